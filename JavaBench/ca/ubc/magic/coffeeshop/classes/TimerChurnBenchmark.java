@@ -0,0 +1,177 @@
+package ca.ubc.magic.coffeeshop.classes;
+
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TimerChurnBenchmark
+ * 
+ * @version 1.0
+ * 
+ *          Compares TimerWheel with java.util.Timer and
+ *          ScheduledThreadPoolExecutor under timer churn: with a number of
+ *          timers outstanding, a random one is cancelled and a new one
+ *          scheduled, over and over, the way idle deadlines, queue expiries
+ *          and sender cooldowns come and go in the coffee shop. The timers are
+ *          due minutes to an hour away, so none of them fire.
+ * 
+ *          Run with "ant bench". The number of outstanding timers, churn
+ *          operations per round and rounds can be given as arguments; the
+ *          defaults are 100000, 1000000 and 5. The first rounds warm up the
+ *          JIT; compare the later ones. The heap in use after each
+ *          implementation shows the cancelled tasks java.util.Timer keeps.
+ */
+public class TimerChurnBenchmark {
+	
+	/*
+	 * The operations measured, over each implementation.
+	 */
+	private interface Timers {
+		
+		Object schedule(Runnable task, long delayMillis);
+		
+		void cancel(Object timer);
+		
+		void stop();
+	}
+	
+	private static final Runnable NOTHING = new Runnable() {
+		@Override
+		public void run() {
+		}
+	};
+	
+	public static void main(String[] args) {
+		int outstanding = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int operations = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+		
+		// The same cancellations and delays for every implementation
+		Random random = new Random(42);
+		int[] victims = new int[operations];
+		long[] delays = new long[outstanding + operations];
+		for (int i = 0; i < operations; i++) {
+			victims[i] = random.nextInt(outstanding);
+		}
+		for (int i = 0; i < delays.length; i++) {
+			delays[i] = TimeUnit.MINUTES.toMillis(1) + (long) (random.nextDouble() * TimeUnit.MINUTES.toMillis(59));
+		}
+		
+		System.out.println("Timer churn: " + outstanding + " outstanding, " + operations
+		        + " cancel and schedule operations per round, " + rounds + " rounds");
+		run("TimerWheel", wheel(), outstanding, victims, delays, rounds);
+		run("java.util.Timer", timer(), outstanding, victims, delays, rounds);
+		run("ScheduledThreadPoolExecutor", executor(), outstanding, victims, delays, rounds);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Fills an implementation with timers and churns them, printing the time
+	 * per operation of each round and the heap in use at the end.
+	 */
+	private static void run(String name, Timers timers, int outstanding, int[] victims, long[] delays, int rounds) {
+		Object[] live = new Object[outstanding];
+		long start = System.nanoTime();
+		for (int i = 0; i < outstanding; i++) {
+			live[i] = timers.schedule(NOTHING, delays[i]);
+		}
+		long fill = System.nanoTime() - start;
+		System.out.printf("%-28s fill %7.1f ns/timer%n", name, (double) fill / outstanding);
+		
+		for (int round = 1; round <= rounds; round++) {
+			start = System.nanoTime();
+			for (int i = 0; i < victims.length; i++) {
+				int victim = victims[i];
+				timers.cancel(live[victim]);
+				live[victim] = timers.schedule(NOTHING, delays[outstanding + i]);
+			}
+			long elapsed = System.nanoTime() - start;
+			System.out.printf("%-28s round %d %7.1f ns/op%n", name, round, (double) elapsed / victims.length);
+		}
+		
+		System.gc();
+		Runtime rt = Runtime.getRuntime();
+		System.out.printf("%-28s heap in use %d MB%n", name, (rt.totalMemory() - rt.freeMemory()) >> 20);
+		timers.stop();
+	}
+	
+	private static Timers wheel() {
+		// The tick of the coffee shop's wheel
+		final TimerWheel wheel = new TimerWheel("TimerChurnBenchmark", 100, new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				command.run();
+			}
+		});
+		return new Timers() {
+			@Override
+			public Object schedule(Runnable task, long delayMillis) {
+				return wheel.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+			}
+			
+			@Override
+			public void cancel(Object timer) {
+				((TimerWheel.Timeout) timer).cancel();
+			}
+			
+			@Override
+			public void stop() {
+				wheel.stop();
+			}
+		};
+	}
+	
+	private static Timers timer() {
+		final Timer timer = new Timer("TimerChurnBenchmark", true);
+		return new Timers() {
+			@Override
+			public Object schedule(final Runnable task, long delayMillis) {
+				TimerTask t = new TimerTask() {
+					@Override
+					public void run() {
+						task.run();
+					}
+				};
+				timer.schedule(t, delayMillis);
+				return t;
+			}
+			
+			@Override
+			public void cancel(Object timer) {
+				((TimerTask) timer).cancel();
+			}
+			
+			@Override
+			public void stop() {
+				timer.cancel();
+			}
+		};
+	}
+	
+	private static Timers executor() {
+		final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+		// Otherwise cancelled tasks stay in the queue until due, as with Timer
+		executor.setRemoveOnCancelPolicy(true);
+		return new Timers() {
+			@Override
+			public Object schedule(Runnable task, long delayMillis) {
+				return executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+			}
+			
+			@Override
+			public void cancel(Object timer) {
+				((ScheduledFuture<?>) timer).cancel(false);
+			}
+			
+			@Override
+			public void stop() {
+				executor.shutdownNow();
+			}
+		};
+	}
+}
@@ -12,6 +12,7 @@ import javax.faces.context.FacesContext;
 import org.apache.log4j.Logger;
 import org.richfaces.event.DropEvent;
 
+import ca.ubc.magic.coffeeshop.classes.ApplicationRegistry;
 import ca.ubc.magic.coffeeshop.classes.CoffeeShop;
 import ca.ubc.magic.coffeeshop.exceptions.ConfigurationException;
 import ca.ubc.magic.coffeeshop.jaxb.Application;
@@ -38,20 +39,21 @@ import ca.ubc.magic.coffeeshop.jaxb.Parameters;
  * throughout the application.  This is done to maintain state on all parts of the app, whether is is the large screen,
  * the selection page, or the configuration page.  Therefore, changes to applications and properties done in this bean
  * are reflected in the large screen and selection pages as well.
+ * 
+ * The lists of applications are never changed in place.  Every change is published to the CoffeeShop as a new version
+ * of its ApplicationRegistry, so the large screen and selection pages always see either the old or the new lists.
+ * Neither are the applications in them: an application is edited as a copy, which replaces it in the next version.
  */
 public class ConfigurationBean implements NavigationConstants {
 	
 	private static Logger log = Logger.getLogger(ConfigurationBean.class);
 	
-	// CoffeeShop instance, applications instances and properties
-	// All of these variables are shallow copies of those from
-	// the CoffeeShop instance, in order to maintain state on all part of the
-	// application
+	// CoffeeShop instance and properties
+	// The properties are a shallow copy of those from the CoffeeShop
+	// instance, in order to maintain state on all part of the application.
+	// Applications are always read from the CoffeeShop's current registry.
 	private CoffeeShop cs;
 	private Properties prop;
-	private List<Application> allApps;
-	private List<Application> configuredApps;
-	private Application defaultApp;
 	
 	// Data Table references
 	private HtmlDataTable configuredTable;
@@ -97,9 +99,6 @@ public class ConfigurationBean implements NavigationConstants {
 		try {
 			cs = CoffeeShop.getInstance();
 			prop = cs.getProperties();
-			configuredApps = cs.getApplications();
-			defaultApp = cs.getDefaultApplication();
-			allApps = cs.getAllApplications();
 			browserDetect();
 		}
 		catch (FileNotFoundException e) {
@@ -141,10 +140,17 @@ public class ConfigurationBean implements NavigationConstants {
 	 * inserts it into the "configured to run" list.
 	 */
 	public void doProcessConfigDrop(DropEvent arg0) {
-		Application a = (Application) arg0.getDragValue();
-		if (allApps.remove(a)) {
-			configuredApps.add(a);
-		}
+		final Application a = (Application) arg0.getDragValue();
+		cs.updateRegistry(new ApplicationRegistry.Update() {
+			@Override
+			public boolean apply(ApplicationRegistry.Builder builder) {
+				if (builder.getAvailable().remove(a)) {
+					builder.getConfigured().add(a);
+					return true;
+				}
+				return false;
+			}
+		});
 	}
 	
 	/*
@@ -155,10 +161,17 @@ public class ConfigurationBean implements NavigationConstants {
 	 * available list when dragged from the appropriate tbable.
 	 */
 	public void doProcessAllDrop(DropEvent arg0) {
-		Application a = (Application) arg0.getDragValue();
-		if (configuredApps.remove(a)) {
-			allApps.add(a);
-		}
+		final Application a = (Application) arg0.getDragValue();
+		cs.updateRegistry(new ApplicationRegistry.Update() {
+			@Override
+			public boolean apply(ApplicationRegistry.Builder builder) {
+				if (builder.getConfigured().remove(a)) {
+					builder.getAvailable().add(a);
+					return true;
+				}
+				return false;
+			}
+		});
 	}
 	
 	/*
@@ -168,10 +181,19 @@ public class ConfigurationBean implements NavigationConstants {
 	 * page. Similar to processAllDrop() and processConfigDrop()
 	 */
 	public void doProcessDefaultDrop(DropEvent arg0) {
-		Application a = (Application) arg0.getDragValue();
-		configuredApps.add(defaultApp);
-		configuredApps.remove(a);
-		defaultApp = a;
+		final Application a = (Application) arg0.getDragValue();
+		cs.updateRegistry(new ApplicationRegistry.Update() {
+			@Override
+			public boolean apply(ApplicationRegistry.Builder builder) {
+				if (builder.getDefaultApplication() == a) {
+					return false;
+				}
+				builder.getConfigured().add(builder.getDefaultApplication());
+				builder.getConfigured().remove(a);
+				builder.setDefaultApplication(a);
+				return true;
+			}
+		});
 	}
 	
 	/*
@@ -189,8 +211,12 @@ public class ConfigurationBean implements NavigationConstants {
 	 * when the applicaiton has been safely shut down.
 	 */
 	public String doSaveAction() {
+		// Take one version of the registry, so all lists agree
+		ApplicationRegistry registry = cs.getRegistry();
+		Application defaultApp = registry.getDefaultApplication();
+		
 		String appNames = "";
-		Iterator<Application> it = configuredApps.iterator();
+		Iterator<Application> it = registry.getConfiguredApplications().iterator();
 		
 		// Build the list of configured applications
 		while (it.hasNext()) {
@@ -208,7 +234,7 @@ public class ConfigurationBean implements NavigationConstants {
 		prop.put("applicationsToRun", appNames);
 		
 		// Add the remaining applications to the list
-		for (Application a : allApps) {
+		for (Application a : registry.getAvailableApplications()) {
 			appNames += "," + a.getApplicationShortName();
 		}
 		
@@ -216,10 +242,9 @@ public class ConfigurationBean implements NavigationConstants {
 		prop.put("allApplications", appNames);
 		prop.put("defaultApplication", defaultApp.getApplicationShortName());
 		
-		// Tell the front end that there is a new configuration to load, and set
-		// the new default app
+		// Tell the front end that there is a new configuration to load. The
+		// new default app was already published when it was dropped.
 		cs.setNewConfiguration(true);
-		cs.setDefaultApplication(defaultApp);
 		
 		// Navigate to the same page.
 		return NAV_HERE;
@@ -232,7 +257,7 @@ public class ConfigurationBean implements NavigationConstants {
 	 * configured list
 	 */
 	public String doViewEditConfiguredAction() {
-		Application a = configuredApps.get(configuredTable.getRowIndex());
+		Application a = cs.getApplications().get(configuredTable.getRowIndex());
 		loadAppForView(a);
 		return NAV_VIEWEDIT;
 	}
@@ -244,7 +269,7 @@ public class ConfigurationBean implements NavigationConstants {
 	 * apps list
 	 */
 	public String doViewEditAllAction() {
-		Application a = allApps.get(allAppTable.getRowIndex());
+		Application a = cs.getAllApplications().get(allAppTable.getRowIndex());
 		loadAppForView(a);
 		return NAV_VIEWEDIT;
 	}
@@ -281,28 +306,36 @@ public class ConfigurationBean implements NavigationConstants {
 	 */
 	public String doSaveViewEditAction() {
 		
-		// Put all information back into the application object.
-		Application a = editingApp;
+		// Put all information into a copy of the application object. The
+		// original may be in use by the large screen and selection pages.
+		Application original = editingApp;
 		editingApp = null;
+		ObjectFactory of = new ObjectFactory();
+		Application a = of.createApplication();
 		a.setApplicationDescription(appDescription);
 		a.setApplicationImageURL(appImageUrl);
 		a.setApplicationName(appName);
 		a.setApplicationShortName(appShortName);
 		a.setInteractionInstructions(appInstructions);
 		a.setMinumumIdleTime(appIdleTime);
-		Connection c = a.getConnectionInfo();
+		Connection c = of.createConnection();
 		c.setApplicationType(appType);
 		c.setConnectorClass(appConnectorClass);
 		c.setDisplayURL(appDisplayUrl);
 		c.setTopic(appTopicName);
 		c.setUseFullScreen(appFullscreen ? "true" : "false");
-		Parameters p = a.getParameters();
+		// The parameters are not edited here, so they are shared
+		Parameters p = original.getParameters();
 		a.setConnectionInfo(c);
 		a.setParameters(p);
 		
+		// Put the copy in place of the original, wherever the coffee shop
+		// holds it
+		ApplicationRegistry registry = cs.replaceApplication(original, a);
+		
 		// If the app is confugured, notify the large screen there is a new
 		// configuration
-		if (configuredApps.contains(a)) {
+		if (registry.getConfiguredApplications().contains(a)) {
 			cs.setNewConfiguration(true);
 		}
 		
@@ -329,9 +362,7 @@ public class ConfigurationBean implements NavigationConstants {
 	 * applications.
 	 */
 	public void doMoveUpAction() {
-		int index = configuredTable.getRowIndex();
-		Application a = configuredApps.remove(index);
-		configuredApps.add(index - 1, a);
+		moveConfigured(configuredTable.getRowIndex(), -1);
 	}
 	
 	/*
@@ -341,9 +372,31 @@ public class ConfigurationBean implements NavigationConstants {
 	 * configured applications
 	 */
 	public void doMoveDownAction() {
-		int index = configuredTable.getRowIndex();
-		Application a = configuredApps.remove(index);
-		configuredApps.add(index + 1, a);
+		moveConfigured(configuredTable.getRowIndex(), 1);
+	}
+	
+	/*
+	 * (non-JavaDoc)
+	 * 
+	 * Moves the application at the given index of the configured list by the
+	 * given offset, and publishes the new order.
+	 */
+	private void moveConfigured(final int index, final int offset) {
+		final Application a = cs.getApplications().get(index);
+		cs.updateRegistry(new ApplicationRegistry.Update() {
+			@Override
+			public boolean apply(ApplicationRegistry.Builder builder) {
+				List<Application> configured = builder.getConfigured();
+				int from = configured.indexOf(a);
+				int to = from + offset;
+				if (from < 0 || to < 0 || to >= configured.size()) {
+					return false;
+				}
+				configured.remove(from);
+				configured.add(to, a);
+				return true;
+			}
+		});
 	}
 	
 	/*
@@ -385,7 +438,7 @@ public class ConfigurationBean implements NavigationConstants {
 		
 		// Create JAXB objects.
 		ObjectFactory of = new ObjectFactory();
-		Application a = of.createApplication();
+		final Application a = of.createApplication();
 		a.setApplicationDescription(appDescription);
 		a.setApplicationImageURL(appImageUrl);
 		a.setApplicationName(appName);
@@ -403,7 +456,12 @@ public class ConfigurationBean implements NavigationConstants {
 		a.setParameters(p);
 		
 		// Add to the list of applications.
-		allApps.add(a);
+		cs.updateRegistry(new ApplicationRegistry.Update() {
+			@Override
+			public boolean apply(ApplicationRegistry.Builder builder) {
+				return builder.getAvailable().add(a);
+			}
+		});
 		
 		return NAV_CONFIG;
 	}
@@ -415,20 +473,34 @@ public class ConfigurationBean implements NavigationConstants {
 	 * setters for form fields, and other member variables needed elsewhere.
 	 */
 
-	public void setAllApps(List<Application> allApps) {
-		this.allApps = allApps;
+	public void setAllApps(final List<Application> allApps) {
+		cs.updateRegistry(new ApplicationRegistry.Update() {
+			@Override
+			public boolean apply(ApplicationRegistry.Builder builder) {
+				builder.getAvailable().clear();
+				builder.getAvailable().addAll(allApps);
+				return true;
+			}
+		});
 	}
 	
 	public List<Application> getAllApps() {
-		return allApps;
+		return cs.getAllApplications();
 	}
 	
 	public List<Application> getConfiguredApps() {
-		return configuredApps;
+		return cs.getApplications();
 	}
 	
-	public void setConfiguredApps(List<Application> configuredApps) {
-		this.configuredApps = configuredApps;
+	public void setConfiguredApps(final List<Application> configuredApps) {
+		cs.updateRegistry(new ApplicationRegistry.Update() {
+			@Override
+			public boolean apply(ApplicationRegistry.Builder builder) {
+				builder.getConfigured().clear();
+				builder.getConfigured().addAll(configuredApps);
+				return true;
+			}
+		});
 	}
 	
 	public void setConfiguredTable(HtmlDataTable configuredTable) {
@@ -544,11 +616,11 @@ public class ConfigurationBean implements NavigationConstants {
 	}
 	
 	public void setDefaultApp(Application defaultApp) {
-		this.defaultApp = defaultApp;
+		cs.setDefaultApplication(defaultApp);
 	}
 	
 	public Application getDefaultApp() {
-		return defaultApp;
+		return cs.getDefaultApplication();
 	}
 	
 	public void setCssFile(String cssFile) {
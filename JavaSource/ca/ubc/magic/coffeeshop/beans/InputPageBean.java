@@ -183,7 +183,11 @@ public class InputPageBean {
 		
 		try {
 			// Push the message to the OSGiBroker, via the MessageBoard object
-			coffeeshop.getMessageBoard().pushEvent(map);
+			if (!coffeeshop.getMessageBoard().pushEvent(map)) {
+				messageStatus = "Message not sent: it contains words that are not allowed on the board.";
+				messageSuccess = false;
+				return;
+			}
 			messageStatus = "Message successfully sent at "
 			        + DateFormat.getTimeInstance(DateFormat.SHORT).format(new Date()) + ".";
 			messageSuccess = true;
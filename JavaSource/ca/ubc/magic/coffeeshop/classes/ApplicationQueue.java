@@ -1,9 +1,12 @@
 package ca.ubc.magic.coffeeshop.classes;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * ApplicationQueue
@@ -16,19 +19,91 @@ import java.util.NoSuchElementException;
  *          The queue acts similarly to a set, where if an object of the same
  *          type is already in the queue, it is not added again.
  * 
+ *          The queue may be bounded. When it is full, the drop policy decides
+ *          whether a new entry pushes out the oldest one (DROP_OLDEST) or is
+ *          turned away (REJECT). Entries may also be given a time to live: each
+ *          entry then has a timer on the timer wheel that takes it out of the
+ *          queue when it expires, so expiring entries costs nothing for the
+ *          entries that stay. The listener is told about entries that leave
+ *          the queue without being dequeued.
+ * 
+ *          The queue is thread-safe. The listener is called without the lock
+ *          of the queue held.
  * 
  * @param <E>
  *            The parameterized class to be used with this queue.
  */
 public class ApplicationQueue<E> {
 	
-	private LinkedList<E> queueImpl;
+	/**
+	 * What to do with a new entry when the queue is full.
+	 */
+	public enum DropPolicy {
+		DROP_OLDEST, REJECT
+	}
+	
+	/**
+	 * The outcome of an enqueue.
+	 */
+	public enum Admission {
+		QUEUED, ALREADY_QUEUED, REJECTED
+	}
+	
+	/**
+	 * Listener
+	 * 
+	 *          Told about entries that leave the queue without being dequeued.
+	 */
+	public interface Listener<E> {
+		
+		/**
+		 * @param e
+		 *            the entry removed
+		 * @param expired
+		 *            true if its time to live ran out, false if it was dropped
+		 *            to make room for a new entry
+		 */
+		void removed(E e, boolean expired);
+	}
+	
+	/* Entries in queue order, with their expiry timers */
+	private final LinkedHashMap<E, Expiry> queueImpl = new LinkedHashMap<E, Expiry>();
+	
+	private final int capacity;
+	private final long ttlMillis;
+	private final DropPolicy policy;
+	private final TimerWheel timers;
+	private final Listener<E> listener;
 	
 	/**
-	 * Default constructor
+	 * Default constructor. The queue is unbounded and entries do not expire.
 	 */
 	public ApplicationQueue() {
-		queueImpl = new LinkedList<E>();
+		this(0, 0, DropPolicy.REJECT, null, null);
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param capacity
+	 *            the most entries in the queue, 0 for no limit
+	 * @param ttlMillis
+	 *            time an entry stays in the queue, in milliseconds, 0 for no
+	 *            limit
+	 * @param policy
+	 *            what to do with a new entry when the queue is full
+	 * @param timers
+	 *            the timer wheel the expiry timers run on; required if entries
+	 *            expire
+	 * @param listener
+	 *            told about entries that expire or are dropped, may be null
+	 */
+	public ApplicationQueue(int capacity, long ttlMillis, DropPolicy policy, TimerWheel timers, Listener<E> listener) {
+		this.capacity = capacity;
+		this.ttlMillis = timers == null ? 0 : ttlMillis;
+		this.policy = policy;
+		this.timers = timers;
+		this.listener = listener;
 	}
 	
 	/**
@@ -36,16 +111,34 @@ public class ApplicationQueue<E> {
 	 * this object, it will be not be added again.
 	 * 
 	 * @param e
-	 * @return true if the object was successfully added to the queue or already
-	 *         exists in the queue, else returns false
+	 * @return QUEUED if the object was added to the queue, ALREADY_QUEUED if
+	 *         it already exists in the queue, REJECTED if the queue is full
 	 */
-	public boolean enqueue(E e) {
-		if (queueImpl.contains(e)) {
-			return true;
+	public Admission enqueue(E e) {
+		E dropped = null;
+		synchronized (this) {
+			if (queueImpl.containsKey(e)) {
+				return Admission.ALREADY_QUEUED;
+			}
+			if (capacity > 0 && queueImpl.size() >= capacity) {
+				if (policy == DropPolicy.REJECT) {
+					return Admission.REJECTED;
+				}
+				dropped = removeHead();
+			}
+			
+			Expiry expiry = null;
+			if (ttlMillis > 0) {
+				expiry = new Expiry(e);
+				expiry.timeout = timers.schedule(expiry, ttlMillis, TimeUnit.MILLISECONDS);
+			}
+			queueImpl.put(e, expiry);
 		}
-		else {
-			return queueImpl.add(e);
+		
+		if (dropped != null && listener != null) {
+			listener.removed(dropped, false);
 		}
+		return Admission.QUEUED;
 	}
 	
 	/**
@@ -56,8 +149,94 @@ public class ApplicationQueue<E> {
 	 * @throws NoSuchElementException
 	 *             if the queue is empty
 	 */
-	public E dequeue() throws NoSuchElementException {
-		return queueImpl.remove();
+	public synchronized E dequeue() throws NoSuchElementException {
+		if (queueImpl.isEmpty()) {
+			throw new NoSuchElementException();
+		}
+		return removeHead();
+	}
+	
+	private E removeHead() {
+		Iterator<Map.Entry<E, Expiry>> it = queueImpl.entrySet().iterator();
+		Map.Entry<E, Expiry> head = it.next();
+		it.remove();
+		if (head.getValue() != null) {
+			head.getValue().timeout.cancel();
+		}
+		return head.getKey();
+	}
+	
+	/**
+	 * Returns the element at the head of the queue without removing it.
+	 * 
+	 * @return object E from the head of the queue, or null if the queue is
+	 *         empty
+	 */
+	public synchronized E peek() {
+		return queueImpl.isEmpty() ? null : queueImpl.keySet().iterator().next();
+	}
+	
+	/**
+	 * Determines whether an object is in the queue.
+	 * 
+	 * @param e
+	 * @return true if the object is queued
+	 */
+	public synchronized boolean contains(E e) {
+		return queueImpl.containsKey(e);
+	}
+	
+	/**
+	 * Gets the position of an object in the queue.
+	 * 
+	 * @param e
+	 * @return the position, 1 for the head of the queue, or 0 if the object is
+	 *         not queued
+	 */
+	public synchronized int getPosition(E e) {
+		int position = 1;
+		for (E queued : queueImpl.keySet()) {
+			if (queued.equals(e)) {
+				return position;
+			}
+			position++;
+		}
+		return 0;
+	}
+	
+	/**
+	 * Puts an object in the place of another in the queue, keeping its
+	 * position and the time it has left to live.
+	 * 
+	 * @param original
+	 *            the object queued
+	 * @param replacement
+	 *            the object to put in its place
+	 * @return true if the original was queued and has been replaced, false if
+	 *         it was not queued or the replacement already is
+	 */
+	public synchronized boolean replace(E original, E replacement) {
+		if (!queueImpl.containsKey(original) || queueImpl.containsKey(replacement)) {
+			return false;
+		}
+		LinkedHashMap<E, Expiry> entries = new LinkedHashMap<E, Expiry>(queueImpl);
+		queueImpl.clear();
+		for (Map.Entry<E, Expiry> entry : entries.entrySet()) {
+			E e = entry.getKey();
+			Expiry expiry = entry.getValue();
+			if (e.equals(original)) {
+				e = replacement;
+				if (expiry != null) {
+					expiry.e = replacement;
+				}
+			}
+			queueImpl.put(e, expiry);
+		}
+		return true;
+	}
+	
+	public synchronized int size() {
+		return queueImpl.size();
 	}
 	
 	/**
@@ -66,7 +245,38 @@ public class ApplicationQueue<E> {
 	 * @return a List object which is a shallow copy of the queue
 	 *         implementation.
 	 */
-	public List<E> getOrderedList() {
-		return new ArrayList<E>(queueImpl);
+	public synchronized List<E> getOrderedList() {
+		return new ArrayList<E>(queueImpl.keySet());
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * The expiry timer of one entry. Only removes the entry if it is still the
+	 * one the timer was set for, not the same object queued again since. The
+	 * entry is changed, under the lock of the queue, when it is replaced.
+	 */
+	private class Expiry implements Runnable {
+		
+		private E e;
+		private TimerWheel.Timeout timeout;
+		
+		Expiry(E e) {
+			this.e = e;
+		}
+		
+		@Override
+		public void run() {
+			E expired;
+			synchronized (ApplicationQueue.this) {
+				if (queueImpl.get(e) != this) {
+					return;
+				}
+				queueImpl.remove(e);
+				expired = e;
+			}
+			if (listener != null) {
+				listener.removed(expired, true);
+			}
+		}
 	}
 }
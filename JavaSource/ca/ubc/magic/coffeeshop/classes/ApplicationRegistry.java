@@ -0,0 +1,213 @@
+package ca.ubc.magic.coffeeshop.classes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ca.ubc.magic.coffeeshop.jaxb.Application;
+
+/**
+ * ApplicationRegistry
+ * 
+ * @version 1.0
+ * 
+ *          An immutable snapshot of the applications loaded by the coffee
+ *          shop: the default application, the applications configured to run
+ *          and the applications available but not configured.
+ * 
+ *          A registry never changes once it has been built. To change the
+ *          applications, an Update is applied to a Builder made from the
+ *          current registry, and the CoffeeShop publishes the result as the
+ *          next version. Readers (servlets, beans and connectors) simply take
+ *          the current registry and use it for as long as they need, without
+ *          locking, and never see a half-made change. The applications in it
+ *          are not changed either; an edited application is a copy, which
+ *          takes the place of the original in the next version.
+ * 
+ *          Applications can be looked up by short name in constant time.
+ */
+public final class ApplicationRegistry {
+	
+	private final long version;
+	private final Application defaultApp;
+	private final List<Application> configured;
+	private final List<Application> available;
+	
+	/* Index */
+	private final Map<String, Application> byShortName;
+	
+	/**
+	 * Constructor. Creates the first version of the registry.
+	 * 
+	 * @param defaultApp
+	 *            the default application
+	 * @param configured
+	 *            the applications configured to run, in menu order
+	 * @param available
+	 *            the applications available but not configured to run
+	 */
+	public ApplicationRegistry(Application defaultApp, List<Application> configured, List<Application> available) {
+		this(1, defaultApp, configured, available);
+	}
+	
+	private ApplicationRegistry(long version, Application defaultApp, List<Application> configured,
+	        List<Application> available) {
+		this.version = version;
+		this.defaultApp = defaultApp;
+		this.configured = Collections.unmodifiableList(new ArrayList<Application>(configured));
+		this.available = Collections.unmodifiableList(new ArrayList<Application>(available));
+		
+		this.byShortName = new HashMap<String, Application>();
+		
+		// Index the default application last, so it wins if short names clash
+		for (Application a : this.available) {
+			index(a);
+		}
+		for (Application a : this.configured) {
+			index(a);
+		}
+		if (defaultApp != null) {
+			index(defaultApp);
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Adds an application to the index.
+	 */
+	private void index(Application a) {
+		byShortName.put(a.getApplicationShortName(), a);
+	}
+	
+	/**
+	 * @return the version of this registry. Every published change increases
+	 *         the version by one.
+	 */
+	public long getVersion() {
+		return version;
+	}
+	
+	/**
+	 * @return the default application
+	 */
+	public Application getDefaultApplication() {
+		return defaultApp;
+	}
+	
+	/**
+	 * @return an unmodifiable list of the applications configured to run, in
+	 *         menu order
+	 */
+	public List<Application> getConfiguredApplications() {
+		return configured;
+	}
+	
+	/**
+	 * @return an unmodifiable list of the applications available, but not
+	 *         configured to run
+	 */
+	public List<Application> getAvailableApplications() {
+		return available;
+	}
+	
+	/**
+	 * Finds an application by short name.
+	 * 
+	 * @param shortName
+	 *            the application short name
+	 * @return the application, or null if there is none with that short name
+	 */
+	public Application getApplication(String shortName) {
+		return byShortName.get(shortName);
+	}
+	
+	/**
+	 * Creates a builder holding modifiable copies of this registry's lists.
+	 * 
+	 * @return a new builder based on this registry
+	 */
+	public Builder edit() {
+		return new Builder(this);
+	}
+	
+	/**
+	 * Builder
+	 * 
+	 *          Modifiable copy of a registry. Changes made to the builder do
+	 *          not affect the registry it came from.
+	 */
+	public static final class Builder {
+		
+		private final ApplicationRegistry base;
+		private Application defaultApp;
+		private final List<Application> configured;
+		private final List<Application> available;
+		
+		private Builder(ApplicationRegistry base) {
+			this.base = base;
+			this.defaultApp = base.defaultApp;
+			this.configured = new ArrayList<Application>(base.configured);
+			this.available = new ArrayList<Application>(base.available);
+		}
+		
+		/**
+		 * @return the registry this builder was made from
+		 */
+		public ApplicationRegistry getBase() {
+			return base;
+		}
+		
+		/**
+		 * @return the modifiable list of configured applications
+		 */
+		public List<Application> getConfigured() {
+			return configured;
+		}
+		
+		/**
+		 * @return the modifiable list of available applications
+		 */
+		public List<Application> getAvailable() {
+			return available;
+		}
+		
+		public Application getDefaultApplication() {
+			return defaultApp;
+		}
+		
+		public void setDefaultApplication(Application defaultApp) {
+			this.defaultApp = defaultApp;
+		}
+		
+		/**
+		 * Builds the next version of the registry, with its index rebuilt.
+		 * 
+		 * @return the new registry
+		 */
+		public ApplicationRegistry build() {
+			return new ApplicationRegistry(base.version + 1, defaultApp, configured, available);
+		}
+	}
+	
+	/**
+	 * Update
+	 * 
+	 *          A change to the registry. The CoffeeShop applies it to a builder
+	 *          of the current registry; if another change was published in the
+	 *          meantime, it is applied again to the newer registry.
+	 */
+	public interface Update {
+		
+		/**
+		 * Applies the change.
+		 * 
+		 * @param builder
+		 *            builder of the current registry
+		 * @return true if the registry changed and should be published, false
+		 *         if there is nothing to publish
+		 */
+		public boolean apply(Builder builder);
+	}
+}
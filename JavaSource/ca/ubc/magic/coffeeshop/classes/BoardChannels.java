@@ -0,0 +1,155 @@
+package ca.ubc.magic.coffeeshop.classes;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * BoardChannels
+ * 
+ * @version 1.0
+ * 
+ *          Views of the message board by channel, so that each screen of a
+ *          venue can show its own posts, e.g. only the posts tagged #cafe on
+ *          one wall.
+ * 
+ *          A post goes to the channel of each #tag in it, found once when the
+ *          post is made. Every channel keeps its latest posts in a ring buffer
+ *          of its own. A screen reads its channel from that buffer only, so
+ *          filtering costs nothing when reading, and a busy channel never
+ *          pushes the posts of a quiet one out.
+ * 
+ *          The number of channels is limited; the channel least recently
+ *          posted to or read makes way for a new one.
+ */
+public class BoardChannels {
+	
+	private final int capacity;
+	private final Map<String, Ring> channels;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param capacity
+	 *            the number of posts each channel keeps
+	 * @param maxChannels
+	 *            the most channels kept
+	 */
+	public BoardChannels(int capacity, final int maxChannels) {
+		this.capacity = Math.max(1, capacity);
+		this.channels = new LinkedHashMap<String, Ring>(16, 0.75f, true) {
+			
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Ring> eldest) {
+				return size() > maxChannels;
+			}
+		};
+	}
+	
+	/**
+	 * Adds a post to the channels it is tagged for.
+	 * 
+	 * @param post
+	 *            the post
+	 */
+	public void add(BoardPost post) {
+		for (String tag : post.getTags()) {
+			Ring ring;
+			synchronized (channels) {
+				ring = channels.get(tag);
+				if (ring == null) {
+					ring = new Ring(capacity);
+					channels.put(tag, ring);
+				}
+			}
+			ring.add(post);
+		}
+	}
+	
+	/**
+	 * Writes the posts of a channel made after a given post, oldest first.
+	 * 
+	 * @param channel
+	 *            the channel, with or without the #
+	 * @param since
+	 *            sequence number of the last post already seen, or 0 for all
+	 *            the posts kept
+	 * @param format
+	 *            the format of the events
+	 * @param out
+	 *            the sink the events are written to
+	 * @return the sequence number of the last post written, or since if
+	 *         there are no new posts
+	 * @throws IOException
+	 *             if the stream can not be written
+	 */
+	public long write(String channel, long since, BoardPost.Format format, BoardPost.EventSink out)
+	        throws IOException {
+		Ring ring;
+		synchronized (channels) {
+			ring = channels.get(normalize(channel));
+		}
+		if (ring == null) {
+			return since;
+		}
+		for (BoardPost post : ring.since(since)) {
+			byte[] event = post.getEvent(format);
+			out.event(event, 0, event.length);
+			since = post.getSequence();
+		}
+		return since;
+	}
+	
+	/**
+	 * @return the number of channels
+	 */
+	public int size() {
+		synchronized (channels) {
+			return channels.size();
+		}
+	}
+	
+	private static String normalize(String channel) {
+		if (channel.startsWith("#")) {
+			channel = channel.substring(1);
+		}
+		return channel.toLowerCase();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * The latest posts of a channel.
+	 */
+	private static class Ring {
+		
+		private final BoardPost[] posts;
+		private long count = 0;
+		
+		Ring(int capacity) {
+			posts = new BoardPost[capacity];
+		}
+		
+		synchronized void add(BoardPost post) {
+			posts[(int) (count % posts.length)] = post;
+			count++;
+		}
+		
+		/*
+		 * The posts after a sequence number, oldest first.
+		 */
+		synchronized BoardPost[] since(long sequence) {
+			long first = Math.max(0, count - posts.length);
+			long i = count;
+			while (i > first && posts[(int) ((i - 1) % posts.length)].getSequence() > sequence) {
+				i--;
+			}
+			BoardPost[] out = new BoardPost[(int) (count - i)];
+			for (int n = 0; n < out.length; n++) {
+				out[n] = posts[(int) ((i + n) % posts.length)];
+			}
+			return out;
+		}
+	}
+}
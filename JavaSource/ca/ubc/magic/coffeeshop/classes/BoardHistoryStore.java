@@ -0,0 +1,583 @@
+package ca.ubc.magic.coffeeshop.classes;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * BoardHistoryStore
+ * 
+ * @version 1.0
+ * 
+ *          The history of the message board, kept on disk so that screens can
+ *          page back through it.
+ * 
+ *          Every post gets the next sequence number and is appended to a log,
+ *          already rendered as the events sent to the GUI, in XML and in JSON.
+ *          The log is split in segment files, each named after the sequence
+ *          number of its first post. Records are written as
+ * 
+ *          [length][sequence][time][XML length][XML event][JSON event]
+ * 
+ *          Next to each segment, an index file holds the offset of every 64th
+ *          record. To find a post, the segment is found from the file names,
+ *          the offset of the nearest indexed post before it from the index,
+ *          and at most 63 record headers are skipped from there. A page of
+ *          posts is then read from the file in one go, and the events in the
+ *          format asked for are copied out as they are. The reads are served from the page
+ *          cache of the operating system, and old posts are never parsed.
+ * 
+ *          Posting does not wait on the disk. The posts appended since the
+ *          last flush are forced to disk together by flush(), which the coffee
+ *          shop calls every second or so on a background thread; a segment is
+ *          also forced when the next one is started. On opening, index entries
+ *          that do not point at the record they should are dropped and rebuilt
+ *          from the log, so a crash can at worst cost the posts since the last
+ *          flush.
+ * 
+ *          The number of segments is limited; the oldest segment is deleted
+ *          when a new one is started.
+ * 
+ *          Single posts can also be looked up by their sequence number, and
+ *          the whole history can be read back, parsed, to rebuild what is
+ *          derived from it on startup.
+ */
+public class BoardHistoryStore {
+	
+	private static final int HEADER_SIZE = 24;
+	private static final int INDEX_INTERVAL = 64;
+	private static final String PREFIX = "board-";
+	private static final String LOG_SUFFIX = ".log";
+	private static final String INDEX_SUFFIX = ".idx";
+	
+	private final Logger log = Logger.getLogger(BoardHistoryStore.class);
+	
+	private final File directory;
+	private final int segmentSize;
+	private final int maxSegments;
+	
+	private final List<Segment> segments = new ArrayList<Segment>();
+	private long nextSequence = 1;
+	/* True if posts were appended since the last flush */
+	private boolean dirty = false;
+	
+	/**
+	 * Constructor. Opens the store, recovering the posts in it.
+	 * 
+	 * @param directory
+	 *            directory holding the segment files
+	 * @param segmentSize
+	 *            size at which a new segment is started, in bytes
+	 * @param maxSegments
+	 *            the most segments kept
+	 * @throws IOException
+	 *             if the directory or segment files can not be read or
+	 *             created
+	 */
+	public BoardHistoryStore(File directory, int segmentSize, int maxSegments) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.maxSegments = Math.max(1, maxSegments);
+		
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new FileNotFoundException("Could not create board history directory "
+			        + directory.getAbsolutePath());
+		}
+		recover();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Opens the segments left from before, oldest first. Only the last one can
+	 * have been cut short by a crash; a torn record at its end is cut off.
+	 */
+	private void recover() throws IOException {
+		String[] names = directory.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(PREFIX) && name.endsWith(LOG_SUFFIX);
+			}
+		});
+		Arrays.sort(names);
+		
+		for (String name : names) {
+			long base;
+			try {
+				base = Long.parseLong(name.substring(PREFIX.length(), name.length() - LOG_SUFFIX.length()));
+			}
+			catch (NumberFormatException e) {
+				continue;
+			}
+			segments.add(new Segment(base));
+		}
+		
+		if (!segments.isEmpty()) {
+			Segment tail = segments.get(segments.size() - 1);
+			tail.recover();
+			nextSequence = tail.base + tail.count;
+			log.info("Recovered message board history up to post " + (nextSequence - 1));
+		}
+	}
+	
+	/**
+	 * Appends a post to the history.
+	 * 
+	 * @param attributes
+	 *            the attributes of the post
+	 * @param time
+	 *            the time of the post, in milliseconds
+	 * @return the post, with its sequence number and events
+	 * @throws IOException
+	 *             if the post can not be written
+	 */
+	public synchronized BoardPost append(Map<String, String> attributes, long time) throws IOException {
+		long sequence = nextSequence;
+		BoardPost post = new BoardPost(sequence, time, attributes);
+		int length = post.getXML().length + post.getJSON().length;
+		
+		Segment tail = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+		if (tail == null || (tail.size > 0 && tail.size + HEADER_SIZE + length > segmentSize)) {
+			if (tail != null && dirty) {
+				// Later flushes only see the new segment
+				tail.channel.force(false);
+			}
+			tail = new Segment(sequence);
+			segments.add(tail);
+			while (segments.size() > maxSegments) {
+				segments.remove(0).delete();
+			}
+		}
+		tail.append(post);
+		nextSequence++;
+		dirty = true;
+		return post;
+	}
+	
+	/**
+	 * Writes a page of the history: the posts just before a given post,
+	 * oldest first.
+	 * 
+	 * @param before
+	 *            sequence number of the post the page ends before, or a
+	 *            value <= 0 for the latest posts
+	 * @param limit
+	 *            the most posts on the page
+	 * @param format
+	 *            the format of the events
+	 * @param out
+	 *            the sink the events are written to
+	 * @return sequence number of the first post on the page, to ask for the
+	 *         page before it, or 0 if there are no posts before it
+	 * @throws IOException
+	 *             if the history can not be read, or the stream written
+	 */
+	public synchronized long writePage(long before, int limit, BoardPost.Format format, BoardPost.EventSink out)
+	        throws IOException {
+		if (segments.isEmpty() || limit <= 0) {
+			return 0;
+		}
+		long oldest = segments.get(0).base;
+		long end = before <= 0 ? nextSequence : Math.min(before, nextSequence);
+		long start = Math.max(oldest, end - limit);
+		if (start >= end) {
+			return 0;
+		}
+		
+		for (int i = find(start); i < segments.size(); i++) {
+			Segment s = segments.get(i);
+			if (s.base >= end) {
+				break;
+			}
+			long from = s.position(Math.max(start, s.base));
+			long to = end < s.base + s.count ? s.position(end) : s.size;
+			s.copyEvents(from, to, format, out);
+		}
+		return start > oldest ? start : 0;
+	}
+	
+	/**
+	 * Writes the posts with the given sequence numbers, in the order given.
+	 * Posts no longer in the history are left out.
+	 * 
+	 * @param sequences
+	 *            the sequence numbers of the posts
+	 * @param format
+	 *            the format of the events
+	 * @param out
+	 *            the sink the events are written to
+	 * @throws IOException
+	 *             if the history can not be read, or the stream written
+	 */
+	public synchronized void writePosts(long[] sequences, BoardPost.Format format, BoardPost.EventSink out)
+	        throws IOException {
+		if (segments.isEmpty()) {
+			return;
+		}
+		long oldest = segments.get(0).base;
+		for (long sequence : sequences) {
+			if (sequence >= oldest && sequence < nextSequence) {
+				segments.get(find(sequence)).copyEvent(sequence, format, out);
+			}
+		}
+	}
+	
+	/**
+	 * Reads back every post in the history, oldest first. The posts are
+	 * parsed from their event elements, so this is meant for startup only.
+	 * 
+	 * @param visitor
+	 *            the visitor the posts are handed to
+	 * @throws IOException
+	 *             if the history can not be read
+	 */
+	public synchronized void visit(Visitor visitor) throws IOException {
+		for (Segment s : segments) {
+			ByteBuffer b = s.read(0, s.size);
+			int pos = 0;
+			while (pos + HEADER_SIZE <= b.position()) {
+				int length = b.getInt(pos);
+				int split = pos + HEADER_SIZE + b.getInt(pos + 20);
+				byte[] xml = Arrays.copyOfRange(b.array(), pos + HEADER_SIZE, split);
+				byte[] json = Arrays.copyOfRange(b.array(), split, pos + HEADER_SIZE + length);
+				visitor.visit(new BoardPost(b.getLong(pos + 4), b.getLong(pos + 12), parse(new String(xml, "UTF-8")),
+				        xml, json));
+				pos += HEADER_SIZE + length;
+			}
+		}
+	}
+	
+	/**
+	 * @return the sequence number of the oldest post kept, or the next
+	 *         sequence number if there are none
+	 */
+	public synchronized long getOldestSequence() {
+		return segments.isEmpty() ? nextSequence : segments.get(0).base;
+	}
+	
+	/**
+	 * @return the sequence number the next post will get
+	 */
+	public synchronized long getNextSequence() {
+		return nextSequence;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Index of the segment holding a sequence number.
+	 */
+	private int find(long sequence) {
+		int lo = 0;
+		int hi = segments.size() - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (segments.get(mid).base <= sequence) {
+				lo = mid;
+			}
+			else {
+				hi = mid - 1;
+			}
+		}
+		return lo;
+	}
+	
+	/**
+	 * Closes the segment files.
+	 */
+	public synchronized void close() {
+		try {
+			flush();
+		}
+		catch (IOException e) {
+			log.warn("Could not flush the message board history.", e);
+		}
+		for (Segment s : segments) {
+			s.close();
+		}
+	}
+	
+	/**
+	 * Forces the posts appended since the last flush to disk, all at once.
+	 * The lock of the store is not held while the disk is written, so posts
+	 * can be appended meanwhile.
+	 * 
+	 * @throws IOException
+	 *             if the posts can not be forced to disk
+	 */
+	public void flush() throws IOException {
+		Segment tail;
+		synchronized (this) {
+			if (!dirty || segments.isEmpty()) {
+				return;
+			}
+			dirty = false;
+			tail = segments.get(segments.size() - 1);
+		}
+		tail.channel.force(false);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Parses the attributes of a post back from its event element.
+	 */
+	private static Map<String, String> parse(String event) {
+		Map<String, String> attributes = new LinkedHashMap<String, String>();
+		int pos = 0;
+		while ((pos = event.indexOf("\t\t<", pos)) >= 0) {
+			int open = event.indexOf('>', pos);
+			String key = event.substring(pos + 3, open);
+			int close = event.indexOf("</" + key + ">\n", open);
+			if (close < 0) {
+				break;
+			}
+			if (!key.equals("seq") && !key.equals("timestamp")) {
+				attributes.put(key, unescape(event.substring(open + 1, close)));
+			}
+			pos = close + key.length() + 3;
+		}
+		return attributes;
+	}
+	
+	private static String unescape(String text) {
+		if (text.indexOf('&') < 0) {
+			return text;
+		}
+		return text.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"").replace("&amp;", "&");
+	}
+	
+	/**
+	 * Visitor
+	 * 
+	 *          Receives the posts read back from the history.
+	 */
+	public interface Visitor {
+		
+		/**
+		 * @param post
+		 *            the post
+		 */
+		void visit(BoardPost post);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * One segment: its log file and its index.
+	 */
+	private class Segment {
+		
+		final long base;
+		final File logFile;
+		final File indexFile;
+		final FileChannel channel;
+		final FileChannel indexChannel;
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		
+		/* Offsets of every INDEX_INTERVAL-th record */
+		int[] offsets = new int[16];
+		int count = 0;
+		long size;
+		/* End of the last whole record, found on opening */
+		long validEnd = 0;
+		
+		Segment(long base) throws IOException {
+			this.base = base;
+			String name = String.format(PREFIX + "%016d", base);
+			this.logFile = new File(directory, name + LOG_SUFFIX);
+			this.indexFile = new File(directory, name + INDEX_SUFFIX);
+			this.channel = new RandomAccessFile(logFile, "rw").getChannel();
+			this.indexChannel = new RandomAccessFile(indexFile, "rw").getChannel();
+			this.size = channel.size();
+			loadIndex();
+		}
+		
+		/*
+		 * Loads the index, and counts the records of the segment. Index
+		 * entries are only trusted as far as each points at the record it
+		 * should, within the log; the rest are dropped. The records after the
+		 * last good entry are walked, and the entries missing for them added.
+		 */
+		private void loadIndex() throws IOException {
+			int entries = (int) (indexChannel.size() / 4);
+			ByteBuffer b = ByteBuffer.allocate(entries * 4);
+			while (b.hasRemaining()) {
+				if (indexChannel.read(b, b.position()) < 0) {
+					break;
+				}
+			}
+			b.flip();
+			offsets = new int[Math.max(16, entries)];
+			int valid = 0;
+			while (valid < entries) {
+				int offset = b.getInt();
+				if ((valid > 0 && offset <= offsets[valid - 1])
+				        || readHeader(offset) != base + (long) valid * INDEX_INTERVAL) {
+					break;
+				}
+				offsets[valid++] = offset;
+			}
+			if (valid < entries) {
+				log.warn("Dropping " + (entries - valid) + " index entries of " + indexFile.getName()
+				        + " past the end of the log");
+				indexChannel.truncate(valid * 4L);
+			}
+			
+			// Walk the records after the last good entry
+			count = valid == 0 ? 0 : (valid - 1) * INDEX_INTERVAL;
+			long pos = valid == 0 ? 0 : offsets[valid - 1];
+			while (readHeader(pos) == base + count) {
+				if (count % INDEX_INTERVAL == 0 && count / INDEX_INTERVAL >= valid) {
+					addIndex((int) pos);
+				}
+				pos += HEADER_SIZE + header.getInt(0);
+				count++;
+			}
+			validEnd = pos;
+		}
+		
+		/*
+		 * Reads the header of the record at an offset into header. Returns
+		 * the sequence number of the record, or -1 if there is no whole record
+		 * at the offset.
+		 */
+		private long readHeader(long pos) throws IOException {
+			if (pos < 0 || pos + HEADER_SIZE > size) {
+				return -1;
+			}
+			header.clear();
+			while (header.hasRemaining()) {
+				if (channel.read(header, pos + header.position()) < 0) {
+					return -1;
+				}
+			}
+			int length = header.getInt(0);
+			if (length <= 0 || pos + HEADER_SIZE + length > size) {
+				return -1;
+			}
+			return header.getLong(4);
+		}
+		
+		/*
+		 * Cuts off anything after the last whole record.
+		 */
+		void recover() throws IOException {
+			if (validEnd < size) {
+				log.warn("Cutting off torn record at offset " + validEnd + " of " + logFile.getName());
+				channel.truncate(validEnd);
+				size = validEnd;
+			}
+		}
+		
+		void append(BoardPost post) throws IOException {
+			byte[] xml = post.getXML();
+			byte[] json = post.getJSON();
+			int length = xml.length + json.length;
+			ByteBuffer b = ByteBuffer.allocate(HEADER_SIZE + length);
+			b.putInt(length).putLong(post.getSequence()).putLong(post.getTime()).putInt(xml.length);
+			b.put(xml).put(json);
+			b.flip();
+			while (b.hasRemaining()) {
+				channel.write(b, size + b.position());
+			}
+			if (count % INDEX_INTERVAL == 0) {
+				addIndex((int) size);
+			}
+			size += HEADER_SIZE + length;
+			count++;
+		}
+		
+		private void addIndex(int offset) throws IOException {
+			int entry = count / INDEX_INTERVAL;
+			if (entry >= offsets.length) {
+				offsets = Arrays.copyOf(offsets, offsets.length * 2);
+			}
+			offsets[entry] = offset;
+			ByteBuffer b = ByteBuffer.allocate(4);
+			b.putInt(offset).flip();
+			indexChannel.write(b, entry * 4L);
+		}
+		
+		/*
+		 * Offset of the record of a sequence number in this segment.
+		 */
+		long position(long sequence) throws IOException {
+			int n = (int) (sequence - base);
+			long pos = offsets[n / INDEX_INTERVAL];
+			for (int i = 0; i < n % INDEX_INTERVAL; i++) {
+				header.clear();
+				channel.read(header, pos);
+				pos += HEADER_SIZE + header.getInt(0);
+			}
+			return pos;
+		}
+		
+		/*
+		 * Reads the bytes between two offsets.
+		 */
+		ByteBuffer read(long from, long to) throws IOException {
+			ByteBuffer b = ByteBuffer.allocate((int) (to - from));
+			while (b.hasRemaining()) {
+				if (channel.read(b, from + b.position()) < 0) {
+					break;
+				}
+			}
+			return b;
+		}
+		
+		/*
+		 * Copies the events of the records between two offsets.
+		 */
+		void copyEvents(long from, long to, BoardPost.Format format, BoardPost.EventSink out) throws IOException {
+			ByteBuffer b = read(from, to);
+			byte[] data = b.array();
+			int pos = 0;
+			while (pos + HEADER_SIZE <= b.position()) {
+				int length = b.getInt(pos);
+				int xmlLength = b.getInt(pos + 20);
+				if (format == BoardPost.Format.JSON) {
+					out.event(data, pos + HEADER_SIZE + xmlLength, length - xmlLength);
+				}
+				else {
+					out.event(data, pos + HEADER_SIZE, xmlLength);
+				}
+				pos += HEADER_SIZE + length;
+			}
+		}
+		
+		/*
+		 * Copies the event of one record.
+		 */
+		void copyEvent(long sequence, BoardPost.Format format, BoardPost.EventSink out) throws IOException {
+			long pos = position(sequence);
+			header.clear();
+			channel.read(header, pos);
+			copyEvents(pos, pos + HEADER_SIZE + header.getInt(0), format, out);
+		}
+		
+		void close() {
+			try {
+				channel.close();
+				indexChannel.close();
+			}
+			catch (IOException e) {
+				log.warn("Could not close " + logFile.getName(), e);
+			}
+		}
+		
+		void delete() {
+			close();
+			if (!logFile.delete() || !indexFile.delete()) {
+				log.warn("Could not delete old board history segment " + logFile.getName());
+			}
+		}
+	}
+}
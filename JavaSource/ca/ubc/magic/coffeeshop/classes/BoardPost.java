@@ -0,0 +1,424 @@
+package ca.ubc.magic.coffeeshop.classes;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.text.DateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import ca.ubc.magic.osgibroker.workgroups.TopicEvent;
+
+/**
+ * BoardPost
+ * 
+ * @version 1.0
+ * 
+ *          A post on the message board: the sequence number and time of the
+ *          post, its attributes, the channels it is tagged for, and the event
+ *          it is sent to the GUI as, both as an XML element and as a JSON
+ *          object.
+ * 
+ *          Attributes are rendered as elements named after them, so those not
+ *          named by a plain XML name (see isName) are left out of the post.
+ * 
+ *          The tags and the events are worked out once, when the post is made
+ *          or received from the broker, so serving the post costs nothing more
+ *          than copying the bytes of the event. The time in the events is the
+ *          time of the post, not the time it is served.
+ */
+public class BoardPost {
+	
+	/**
+	 * Format
+	 * 
+	 *          The formats a post is rendered in.
+	 */
+	public enum Format {
+		XML, JSON
+	}
+	
+	/**
+	 * EventSink
+	 * 
+	 *          Receives rendered events, e.g. to write them to a response.
+	 */
+	public interface EventSink {
+		
+		/**
+		 * @param data
+		 *            the array holding the event, UTF-8 encoded
+		 * @param offset
+		 *            start of the event in the array
+		 * @param length
+		 *            length of the event
+		 * @throws IOException
+		 *             if the event can not be written
+		 */
+		void event(byte[] data, int offset, int length) throws IOException;
+	}
+	
+	/* DateFormat is not thread safe; one per thread rendering posts */
+	private static final ThreadLocal<DateFormat> DATE_FORMAT = new ThreadLocal<DateFormat>() {
+		@Override
+		protected DateFormat initialValue() {
+			return DateFormat.getDateTimeInstance(DateFormat.MEDIUM, DateFormat.MEDIUM);
+		}
+	};
+	
+	private final long sequence;
+	private final long time;
+	private final Map<String, String> attributes;
+	private final Set<String> tags;
+	private final byte[] xml;
+	private final byte[] json;
+	
+	/**
+	 * Constructor. Renders a new post.
+	 * 
+	 * @param sequence
+	 *            the sequence number of the post, or 0 if it has none
+	 * @param time
+	 *            the time of the post, in milliseconds
+	 * @param attributes
+	 *            the attributes of the post
+	 */
+	public BoardPost(long sequence, long time, Map<String, String> attributes) {
+		this(sequence, time, attributes, null, null);
+	}
+	
+	/**
+	 * Constructor. Used for posts read back from the history, which have
+	 * their events already.
+	 * 
+	 * @param sequence
+	 *            the sequence number of the post
+	 * @param time
+	 *            the time of the post, in milliseconds
+	 * @param attributes
+	 *            the attributes of the post
+	 * @param xml
+	 *            the event element of the post, UTF-8 encoded
+	 * @param json
+	 *            the JSON event of the post, UTF-8 encoded
+	 */
+	BoardPost(long sequence, long time, Map<String, String> attributes, byte[] xml, byte[] json) {
+		Map<String, String> named = named(attributes);
+		if (named != attributes) {
+			// The events given were rendered with the names left out
+			xml = null;
+			json = null;
+		}
+		this.sequence = sequence;
+		this.time = time;
+		this.attributes = Collections.unmodifiableMap(named);
+		this.tags = parseTags(named);
+		this.xml = xml != null ? xml : renderXML();
+		this.json = json != null ? json : renderJSON();
+	}
+	
+	/**
+	 * Renders a post received from the OSGiBroker. Such posts have no
+	 * sequence number.
+	 * 
+	 * @param event
+	 *            the event received
+	 * @param time
+	 *            the time the event was received, in milliseconds
+	 * @return the post
+	 */
+	public static BoardPost fromEvent(TopicEvent event, long time) {
+		return fromEvent(event, 0, time);
+	}
+	
+	/**
+	 * Renders an event received from the OSGiBroker, numbered by the
+	 * receiver.
+	 * 
+	 * @param event
+	 *            the event received
+	 * @param sequence
+	 *            the number given to the event
+	 * @param time
+	 *            the time the event was received, in milliseconds
+	 * @return the post
+	 */
+	public static BoardPost fromEvent(TopicEvent event, long sequence, long time) {
+		Map<String, String> attributes = new LinkedHashMap<String, String>();
+		for (String name : event.getNameArray()) {
+			attributes.put(name, event.getAttribute(name));
+		}
+		return new BoardPost(sequence, time, attributes);
+	}
+	
+	/**
+	 * @return the sequence number of the post
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+	
+	/**
+	 * @return the time of the post, in milliseconds
+	 */
+	public long getTime() {
+		return time;
+	}
+	
+	/**
+	 * @return the attributes of the post
+	 */
+	public Map<String, String> getAttributes() {
+		return attributes;
+	}
+	
+	/**
+	 * @return the channels the post is tagged for, the #tags in its
+	 *         attributes in lower case and without the #
+	 */
+	public Set<String> getTags() {
+		return tags;
+	}
+	
+	/**
+	 * Gets the event element of the post, UTF-8 encoded. The array is shared
+	 * and must not be changed.
+	 * 
+	 * @return the event element
+	 */
+	public byte[] getXML() {
+		return xml;
+	}
+	
+	/**
+	 * Gets the event of the post as a JSON object, UTF-8 encoded. The array
+	 * is shared and must not be changed.
+	 * 
+	 * @return the JSON event
+	 */
+	public byte[] getJSON() {
+		return json;
+	}
+	
+	/**
+	 * Gets the event of the post in a format. The array is shared and must
+	 * not be changed.
+	 * 
+	 * @param format
+	 *            the format
+	 * @return the event
+	 */
+	public byte[] getEvent(Format format) {
+		return format == Format.JSON ? json : xml;
+	}
+	
+	/**
+	 * Checks an attribute name can be used as the name of an element: a
+	 * letter or underscore, followed by letters, digits, underscores, hyphens
+	 * and periods. Names starting with "xml" are reserved by XML, and colons
+	 * would make a namespace prefix, so neither is allowed.
+	 * 
+	 * @param name
+	 *            the attribute name
+	 * @return true if the name can be rendered as an element
+	 */
+	public static boolean isName(String name) {
+		if (name == null || name.length() == 0 || name.regionMatches(true, 0, "xml", 0, 3)) {
+			return false;
+		}
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			boolean letter = c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_';
+			if (!letter && (i == 0 || !(c >= '0' && c <= '9' || c == '-' || c == '.'))) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Leaves out the attributes that are not named by a plain XML name.
+	 * Returns the attributes themselves if they all are.
+	 */
+	private static Map<String, String> named(Map<String, String> attributes) {
+		boolean all = true;
+		for (String name : attributes.keySet()) {
+			all &= isName(name);
+		}
+		if (all) {
+			return attributes;
+		}
+		Map<String, String> named = new LinkedHashMap<String, String>();
+		for (Map.Entry<String, String> e : attributes.entrySet()) {
+			if (isName(e.getKey())) {
+				named.put(e.getKey(), e.getValue());
+			}
+		}
+		return named;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Finds the #tags in the attributes: a # at the start of a word, followed
+	 * by letters and digits.
+	 */
+	private static Set<String> parseTags(Map<String, String> attributes) {
+		Set<String> tags = null;
+		for (String value : attributes.values()) {
+			if (value == null) {
+				continue;
+			}
+			int pos = -1;
+			while ((pos = value.indexOf('#', pos + 1)) >= 0) {
+				if (pos > 0 && Character.isLetterOrDigit(value.charAt(pos - 1))) {
+					continue;
+				}
+				int end = pos + 1;
+				while (end < value.length() && Character.isLetterOrDigit(value.charAt(end))) {
+					end++;
+				}
+				if (end > pos + 1) {
+					if (tags == null) {
+						tags = new LinkedHashSet<String>();
+					}
+					tags.add(value.substring(pos + 1, end).toLowerCase());
+				}
+			}
+		}
+		return tags == null ? Collections.<String> emptySet() : Collections.unmodifiableSet(tags);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Renders the post as the event element sent to the GUI.
+	 */
+	private byte[] renderXML() {
+		StringBuilder sb = new StringBuilder("\t<event>\n");
+		if (sequence > 0) {
+			sb.append("\t\t<seq>").append(sequence).append("</seq>\n");
+		}
+		sb.append("\t\t<timestamp>").append(DATE_FORMAT.get().format(new Date(time))).append("</timestamp>\n");
+		for (Map.Entry<String, String> e : attributes.entrySet()) {
+			sb.append("\t\t<").append(e.getKey()).append('>');
+			escape(e.getValue(), sb);
+			sb.append("</").append(e.getKey()).append(">\n");
+		}
+		sb.append("\t</event>\n");
+		return utf8(sb);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Renders the post as a JSON object, with the same members as the event
+	 * element plus the time in milliseconds.
+	 */
+	private byte[] renderJSON() {
+		StringBuilder sb = new StringBuilder("{");
+		if (sequence > 0) {
+			sb.append("\"seq\":").append(sequence).append(',');
+		}
+		sb.append("\"time\":").append(time).append(",\"timestamp\":");
+		quote(DATE_FORMAT.get().format(new Date(time)), sb);
+		for (Map.Entry<String, String> e : attributes.entrySet()) {
+			sb.append(',');
+			quote(e.getKey(), sb);
+			sb.append(':');
+			quote(e.getValue(), sb);
+		}
+		sb.append('}');
+		return utf8(sb);
+	}
+	
+	/**
+	 * Appends text as a JSON string.
+	 * 
+	 * @param text
+	 *            the text, null for a JSON null
+	 * @param sb
+	 *            the builder the string is appended to
+	 */
+	public static void quote(String text, StringBuilder sb) {
+		if (text == null) {
+			sb.append("null");
+			return;
+		}
+		sb.append('"');
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+					sb.append(String.format("\\u%04x", (int) c));
+				}
+				else {
+					sb.append(c);
+				}
+			}
+		}
+		sb.append('"');
+	}
+	
+	/**
+	 * Appends text escaped for use in an XML element. Control characters XML
+	 * does not allow are left out.
+	 * 
+	 * @param text
+	 *            the text, null for nothing
+	 * @param sb
+	 *            the builder the text is appended to
+	 */
+	public static void escape(String text, StringBuilder sb) {
+		if (text == null) {
+			return;
+		}
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			switch (c) {
+			case '<':
+				sb.append("&lt;");
+				break;
+			case '>':
+				sb.append("&gt;");
+				break;
+			case '&':
+				sb.append("&amp;");
+				break;
+			case '"':
+				sb.append("&quot;");
+				break;
+			default:
+				if (c >= 0x20 || c == '\t' || c == '\n' || c == '\r') {
+					sb.append(c);
+				}
+			}
+		}
+	}
+	
+	private static byte[] utf8(CharSequence text) {
+		try {
+			return text.toString().getBytes("UTF-8");
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
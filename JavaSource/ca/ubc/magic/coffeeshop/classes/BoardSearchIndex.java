@@ -0,0 +1,340 @@
+package ca.ubc.magic.coffeeshop.classes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * BoardSearchIndex
+ * 
+ * @version 1.0
+ * 
+ *          An inverted index of the message board history, for finding earlier
+ *          posts by the words in them.
+ * 
+ *          Posts are split into words of letters and digits, ignoring case.
+ *          Each word has a posting list: the sequence numbers of the posts
+ *          holding it, in ascending order. As posts are only ever added with a
+ *          higher sequence number, a post is indexed by appending to the lists
+ *          of its words. The lists are stored as the gaps between sequence
+ *          numbers, as variable length integers, so a post usually costs one
+ *          byte per word.
+ * 
+ *          The words are kept sorted, so a search for a prefix reads the lists
+ *          of the words starting with it, next to each other. A query of
+ *          several words finds the posts holding all of them; each word of the
+ *          query matches as a prefix, so results come up while the last word
+ *          is still being typed. A prefix of more than MAX_EXPANSION words,
+ *          such as a single letter, matches only as a whole word, so a query
+ *          never reads more than that many lists a word.
+ * 
+ *          The index holds the posts the history does: when the history drops
+ *          its oldest segment, the posts in it are pruned from the lists.
+ */
+public class BoardSearchIndex {
+	
+	/* The most words a prefix is expanded to */
+	private static final int MAX_EXPANSION = 64;
+	
+	private final TreeMap<String, Postings> words = new TreeMap<String, Postings>();
+	private long posts = 0;
+	private long bytes = 0;
+	/* Sequence numbers of the oldest and latest posts indexed */
+	private long oldest = 0;
+	private long latest = 0;
+	
+	/**
+	 * Adds a post to the index. Posts must be added in order of their
+	 * sequence numbers. All the values of the attributes of the post are
+	 * indexed.
+	 * 
+	 * @param post
+	 *            the post
+	 */
+	public synchronized void add(BoardPost post) {
+		long sequence = post.getSequence();
+		for (String value : post.getAttributes().values()) {
+			for (String word : tokenize(value)) {
+				Postings p = words.get(word);
+				if (p == null) {
+					p = new Postings();
+					words.put(word, p);
+				}
+				bytes -= p.data.length;
+				p.add(sequence);
+				bytes += p.data.length;
+			}
+		}
+		if (posts == 0) {
+			oldest = sequence;
+		}
+		latest = sequence;
+		posts++;
+	}
+	
+	/**
+	 * Drops the posts older than a given one from the index, as the history
+	 * drops them. Does nothing unless posts older than it are indexed, so it
+	 * can be called after every post.
+	 * 
+	 * @param sequence
+	 *            sequence number of the oldest post the history still holds
+	 */
+	public synchronized void prune(long sequence) {
+		if (posts == 0 || sequence <= oldest) {
+			return;
+		}
+		Iterator<Postings> it = words.values().iterator();
+		while (it.hasNext()) {
+			Postings p = it.next();
+			bytes -= p.data.length;
+			if (p.last < sequence) {
+				it.remove();
+			}
+			else {
+				p.dropBefore(sequence);
+				bytes += p.data.length;
+			}
+		}
+		// The history numbers its posts without gaps
+		posts = Math.max(0, latest - sequence + 1);
+		oldest = sequence;
+	}
+	
+	/**
+	 * Searches the index.
+	 * 
+	 * @param query
+	 *            the words to search for; each matches as a prefix
+	 * @param limit
+	 *            the most posts returned
+	 * @return the sequence numbers of the latest posts holding all the words,
+	 *         oldest first
+	 */
+	public long[] search(String query, int limit) {
+		List<String> terms = tokenize(query);
+		if (terms.isEmpty() || limit <= 0) {
+			return new long[0];
+		}
+		
+		long[] result = null;
+		synchronized (this) {
+			for (String term : terms) {
+				long[] matches = lookup(term);
+				result = result == null ? matches : intersect(result, matches);
+				if (result.length == 0) {
+					break;
+				}
+			}
+		}
+		return result.length <= limit ? result : Arrays.copyOfRange(result, result.length - limit, result.length);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * The posts holding a word starting with a prefix, in ascending order. A
+	 * prefix of too many words matches only the word itself. Called holding
+	 * the lock.
+	 */
+	private long[] lookup(String prefix) {
+		SortedMap<String, Postings> range = words.subMap(prefix, prefix + Character.MAX_VALUE);
+		List<Postings> lists = new ArrayList<Postings>();
+		for (Postings p : range.values()) {
+			if (lists.size() == MAX_EXPANSION) {
+				Postings exact = words.get(prefix);
+				return exact == null ? new long[0] : exact.decode();
+			}
+			lists.add(p);
+		}
+		if (lists.size() == 1) {
+			return lists.get(0).decode();
+		}
+		
+		int total = 0;
+		for (Postings p : lists) {
+			total += p.count;
+		}
+		long[] all = new long[total];
+		int n = 0;
+		for (Postings p : lists) {
+			n = p.decode(all, n);
+		}
+		Arrays.sort(all);
+		
+		// A post holding several of the words is listed once
+		int distinct = 0;
+		for (int i = 0; i < n; i++) {
+			if (distinct == 0 || all[distinct - 1] != all[i]) {
+				all[distinct++] = all[i];
+			}
+		}
+		return distinct == all.length ? all : Arrays.copyOf(all, distinct);
+	}
+	
+	private static long[] intersect(long[] a, long[] b) {
+		long[] out = new long[Math.min(a.length, b.length)];
+		int i = 0;
+		int j = 0;
+		int n = 0;
+		while (i < a.length && j < b.length) {
+			if (a[i] < b[j]) {
+				i++;
+			}
+			else if (a[i] > b[j]) {
+				j++;
+			}
+			else {
+				out[n++] = a[i];
+				i++;
+				j++;
+			}
+		}
+		return Arrays.copyOf(out, n);
+	}
+	
+	/**
+	 * Splits text into the words indexed: runs of letters and digits, in
+	 * lower case.
+	 * 
+	 * @param text
+	 *            the text
+	 * @return the words
+	 */
+	public static List<String> tokenize(String text) {
+		List<String> tokens = new ArrayList<String>();
+		if (text == null) {
+			return tokens;
+		}
+		int start = -1;
+		for (int i = 0; i <= text.length(); i++) {
+			boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if (word && start < 0) {
+				start = i;
+			}
+			else if (!word && start >= 0) {
+				tokens.add(text.substring(start, i).toLowerCase());
+				start = -1;
+			}
+		}
+		return tokens;
+	}
+	
+	/**
+	 * @return the number of distinct words indexed
+	 */
+	public synchronized int size() {
+		return words.size();
+	}
+	
+	/**
+	 * @return the number of posts indexed
+	 */
+	public synchronized long getPosts() {
+		return posts;
+	}
+	
+	/**
+	 * @return the memory taken by the posting lists, in bytes
+	 */
+	public synchronized long getMemoryBytes() {
+		return bytes;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * The posting list of a word: the gaps between the sequence numbers of
+	 * the posts holding it, as variable length integers of seven bits a byte.
+	 */
+	private static class Postings {
+		
+		byte[] data = new byte[4];
+		int length = 0;
+		int count = 0;
+		long last = 0;
+		
+		void add(long sequence) {
+			if (sequence <= last) {
+				// Word repeated in the same post
+				return;
+			}
+			long gap = sequence - last;
+			last = sequence;
+			count++;
+			put(gap);
+		}
+		
+		private void put(long gap) {
+			if (length + 10 > data.length) {
+				data = Arrays.copyOf(data, Math.max(length + 10, data.length * 3 / 2));
+			}
+			while (gap >= 0x80) {
+				data[length++] = (byte) (gap | 0x80);
+				gap >>>= 7;
+			}
+			data[length++] = (byte) gap;
+		}
+		
+		/*
+		 * Drops the sequence numbers before a given one. The first one kept
+		 * is written again as its gap from 0; the gaps after it stay as they
+		 * are. The list must hold a sequence number at or after the one given.
+		 */
+		void dropBefore(long oldest) {
+			long sequence = 0;
+			int pos = 0;
+			int dropped = 0;
+			while (true) {
+				long gap = 0;
+				int shift = 0;
+				byte b;
+				do {
+					b = data[pos++];
+					gap |= (long) (b & 0x7f) << shift;
+					shift += 7;
+				} while (b < 0);
+				sequence += gap;
+				if (sequence >= oldest) {
+					break;
+				}
+				dropped++;
+			}
+			if (dropped == 0) {
+				return;
+			}
+			byte[] rest = Arrays.copyOfRange(data, pos, length);
+			data = new byte[rest.length + 10];
+			length = 0;
+			count -= dropped;
+			put(sequence);
+			System.arraycopy(rest, 0, data, length, rest.length);
+			length += rest.length;
+		}
+		
+		long[] decode() {
+			long[] out = new long[count];
+			decode(out, 0);
+			return out;
+		}
+		
+		int decode(long[] out, int n) {
+			long sequence = 0;
+			int pos = 0;
+			while (pos < length) {
+				long gap = 0;
+				int shift = 0;
+				byte b;
+				do {
+					b = data[pos++];
+					gap |= (long) (b & 0x7f) << shift;
+					shift += 7;
+				} while (b < 0);
+				sequence += gap;
+				out[n++] = sequence;
+			}
+			return n;
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package ca.ubc.magic.coffeeshop.classes;
+
+import java.util.Map;
+
+import ca.ubc.magic.osgibroker.OSGiBrokerException;
+import ca.ubc.magic.osgibroker.workgroups.TopicEvent;
+
+/**
+ * BrokerClient
+ * 
+ * @version 1.0
+ * 
+ *          A client of one OSGiBroker, identified to the broker by its client
+ *          id. Offers the subscribe, poll and publish calls the coffee shop
+ *          uses, in place of the OSGiBroker library's client. All calls go
+ *          through the shared BrokerTransport.
+ * 
+ *          Failed calls throw an OSGiBrokerException holding the HTTP status
+ *          the broker answered with, e.g. 409 when already subscribed.
+ */
+public class BrokerClient {
+	
+	private final BrokerTransport transport;
+	private final String host;
+	private final String clientId;
+	
+	BrokerClient(BrokerTransport transport, String host, String clientId) {
+		this.transport = transport;
+		this.host = host;
+		this.clientId = clientId;
+	}
+	
+	public String getHost() {
+		return host;
+	}
+	
+	public String getClientId() {
+		return clientId;
+	}
+	
+	/**
+	 * Determines whether the broker can be called, i.e. its circuit breaker
+	 * is not open.
+	 * 
+	 * @return true if calls to the broker will be attempted
+	 */
+	public boolean isAvailable() {
+		return transport.getCircuitBreaker(host).isAvailable();
+	}
+	
+	/**
+	 * Subscribes to a topic. Events are collected by the broker until they
+	 * are polled with getEvents.
+	 * 
+	 * @param topic
+	 *            the topic
+	 * @throws OSGiBrokerException
+	 *             if the subscription fails
+	 */
+	public void subscribeHttp(String topic) throws OSGiBrokerException {
+		transport.subscribe(host, clientId, topic, null);
+	}
+	
+	/**
+	 * Subscribes to a topic, asking the broker to notify a url of new events.
+	 * 
+	 * @param topic
+	 *            the topic
+	 * @param url
+	 *            the url notified of events, or null for none
+	 * @throws OSGiBrokerException
+	 *             if the subscription fails
+	 */
+	public void subscribeHttp(String topic, String url) throws OSGiBrokerException {
+		transport.subscribe(host, clientId, topic, url);
+	}
+	
+	/**
+	 * Unsubscribes from a topic.
+	 * 
+	 * @param topic
+	 *            the topic
+	 * @throws OSGiBrokerException
+	 *             if unsubscribing fails
+	 */
+	public void unsubscribeHttp(String topic) throws OSGiBrokerException {
+		transport.unsubscribe(host, clientId, topic);
+	}
+	
+	/**
+	 * Polls a topic for events, waiting for up to timeout seconds if there are
+	 * none yet.
+	 * 
+	 * @param topic
+	 *            the topic
+	 * @param timeout
+	 *            the time to wait, in seconds
+	 * @return the new events, possibly none
+	 * @throws OSGiBrokerException
+	 *             if polling fails
+	 */
+	public TopicEvent[] getEvents(String topic, int timeout) throws OSGiBrokerException {
+		return transport.getEvents(host, clientId, topic, timeout);
+	}
+	
+	/**
+	 * Publishes an event to a topic.
+	 * 
+	 * @param topic
+	 *            the topic
+	 * @param attributes
+	 *            the event attributes
+	 * @throws OSGiBrokerException
+	 *             if publishing fails
+	 */
+	public void sendEvent(String topic, Map<String, String> attributes) throws OSGiBrokerException {
+		transport.sendEvent(host, clientId, topic, attributes);
+	}
+}
@@ -0,0 +1,472 @@
+package ca.ubc.magic.coffeeshop.classes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpException;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.NameValuePair;
+import org.apache.commons.httpclient.methods.DeleteMethod;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+import org.apache.log4j.Logger;
+
+import ca.ubc.magic.osgibroker.OSGiBrokerException;
+import ca.ubc.magic.osgibroker.workgroups.Subscriber;
+import ca.ubc.magic.osgibroker.workgroups.TopicEvent;
+
+/**
+ * BrokerTransport
+ * 
+ * @version 1.0
+ * 
+ *          The HTTP transport shared by every OSGiBroker client in the coffee
+ *          shop: the CoffeeShop itself, the message board and the connectors.
+ * 
+ *          Connections are pooled and kept alive between calls, so a call to
+ *          the broker does not pay for setting up a new connection. There are
+ *          two pools. Long polls for events sit on a connection until the
+ *          broker answers or the poll times out; they use the poll pool.
+ *          Publishes, subscribes and unsubscribes are short and use the request
+ *          pool, so they are never stuck waiting behind a long poll.
+ * 
+ *          Each pool limits the connections it opens to one broker (a route),
+ *          and in total. Routes can be given their own limits with the
+ *          brokerRouteLimits property, e.g.
+ * 
+ *          brokerRouteLimits=broker.magic.ubc.ca:8800=10/4
+ * 
+ *          gives that broker 10 poll and 4 request connections. Connections
+ *          left idle for too long are closed.
+ * 
+ *          The time taken by every call is recorded per operation and route.
+ * 
+ *          Every route has a circuit breaker. When a broker keeps failing,
+ *          calls to it fail at once with status 503 until a probe call gets
+ *          through again, instead of each one waiting for a timeout.
+ * 
+ *          Identical long polls (the same client polling the same topic of the
+ *          same broker) made at the same time are coalesced: a poll made while
+ *          another is in flight waits for it and gets the same events, rather
+ *          than making a second call the broker would answer with nothing, or
+ *          with a share of the events. A poll joining another waits as long as
+ *          that one, whatever its own timeout.
+ */
+public final class BrokerTransport {
+	
+	/* Operations measured */
+	public static final String POLL = "poll";
+	public static final String PUBLISH = "publish";
+	public static final String SUBSCRIBE = "subscribe";
+	public static final String UNSUBSCRIBE = "unsubscribe";
+	
+	/* Extra time given to a long poll beyond its broker timeout, in ms */
+	private static final int POLL_GRACE = 10000;
+	
+	private static final BrokerTransport INSTANCE = new BrokerTransport();
+	
+	private final Logger log = Logger.getLogger(BrokerTransport.class);
+	
+	private final MultiThreadedHttpConnectionManager pollManager = new MultiThreadedHttpConnectionManager();
+	private final MultiThreadedHttpConnectionManager requestManager = new MultiThreadedHttpConnectionManager();
+	private final HttpClient pollClient = new HttpClient(pollManager);
+	private final HttpClient requestClient = new HttpClient(requestManager);
+	private final IdleConnectionTimeoutThread idleThread = new IdleConnectionTimeoutThread();
+	
+	private final ConcurrentMap<String, LatencyStats> stats = new ConcurrentHashMap<String, LatencyStats>();
+	
+	private volatile int requestTimeout = 10000;
+	
+	/* One circuit breaker per route */
+	private final ConcurrentMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<String, CircuitBreaker>();
+	private volatile int failureThreshold = 5;
+	private volatile long openTime = 10000;
+	
+	/* Long polls in flight, by route, client and topic */
+	private final SingleFlight<String, TopicEvent[]> polls = new SingleFlight<String, TopicEvent[]>();
+	
+	private BrokerTransport() {
+		configure(new Properties());
+		
+		idleThread.addConnectionManager(pollManager);
+		idleThread.addConnectionManager(requestManager);
+		idleThread.setName("BrokerTransport-idle");
+		idleThread.setDaemon(true);
+		idleThread.start();
+	}
+	
+	/**
+	 * @return the transport shared by all broker clients
+	 */
+	public static BrokerTransport getInstance() {
+		return INSTANCE;
+	}
+	
+	/**
+	 * Applies the transport settings in the coffee shop properties. Settings
+	 * that are missing keep their defaults. Can be called again to change the
+	 * limits of a running transport.
+	 * 
+	 * @param prop
+	 *            the coffee shop configuration properties
+	 */
+	public synchronized void configure(Properties prop) {
+		int connectTimeout = getInt(prop, "brokerConnectTimeout", 5000);
+		requestTimeout = getInt(prop, "brokerRequestTimeout", 10000);
+		int pollPerRoute = getInt(prop, "brokerPollConnectionsPerRoute", 20);
+		int requestPerRoute = getInt(prop, "brokerRequestConnectionsPerRoute", 8);
+		
+		HttpConnectionManagerParams poll = pollManager.getParams();
+		poll.setConnectionTimeout(connectTimeout);
+		poll.setStaleCheckingEnabled(true);
+		poll.setDefaultMaxConnectionsPerHost(pollPerRoute);
+		poll.setMaxTotalConnections(getInt(prop, "brokerPollMaxConnections", 60));
+		
+		HttpConnectionManagerParams request = requestManager.getParams();
+		request.setConnectionTimeout(connectTimeout);
+		request.setSoTimeout(requestTimeout);
+		request.setStaleCheckingEnabled(true);
+		request.setDefaultMaxConnectionsPerHost(requestPerRoute);
+		request.setMaxTotalConnections(getInt(prop, "brokerRequestMaxConnections", 30));
+		
+		// Don't wait forever for a connection when a pool is exhausted
+		pollClient.getParams().setConnectionManagerTimeout(requestTimeout);
+		requestClient.getParams().setConnectionManagerTimeout(requestTimeout);
+		
+		String routes = prop.getProperty("brokerRouteLimits");
+		if (routes != null && routes.trim().length() > 0) {
+			for (String route : routes.split(",")) {
+				setRouteLimits(route.trim(), poll, request);
+			}
+		}
+		
+		int idleTimeout = getInt(prop, "brokerIdleConnectionTimeout", 60000);
+		idleThread.setConnectionTimeout(idleTimeout);
+		idleThread.setTimeoutInterval(Math.max(1000, idleTimeout / 4));
+		
+		failureThreshold = getInt(prop, "brokerFailureThreshold", 5);
+		openTime = getInt(prop, "brokerOpenTime", 10000);
+		for (CircuitBreaker breaker : breakers.values()) {
+			breaker.configure(failureThreshold, openTime);
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Parses a route limit of the form host:port=poll/request and applies it.
+	 */
+	private void setRouteLimits(String route, HttpConnectionManagerParams poll, HttpConnectionManagerParams request) {
+		try {
+			int eq = route.indexOf('=');
+			int slash = route.indexOf('/', eq);
+			int colon = route.lastIndexOf(':', eq);
+			HostConfiguration host = new HostConfiguration();
+			if (colon < 0) {
+				host.setHost(route.substring(0, eq).trim());
+			}
+			else {
+				host.setHost(route.substring(0, colon).trim(), Integer.parseInt(route.substring(colon + 1, eq).trim()));
+			}
+			poll.setMaxConnectionsPerHost(host, Integer.parseInt(route.substring(eq + 1, slash).trim()));
+			request.setMaxConnectionsPerHost(host, Integer.parseInt(route.substring(slash + 1).trim()));
+		}
+		catch (RuntimeException e) {
+			log.warn("Ignoring malformed broker route limit: " + route);
+		}
+	}
+	
+	private static int getInt(Properties prop, String key, int defaultValue) {
+		String value = prop.getProperty(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		}
+		catch (NumberFormatException e) {
+			Logger.getLogger(BrokerTransport.class).warn("Property " + key + " is not a number, using " + defaultValue);
+			return defaultValue;
+		}
+	}
+	
+	/**
+	 * Creates a client of the broker at the given host. Clients are cheap;
+	 * they all share this transport's connections.
+	 * 
+	 * @param host
+	 *            host and port of the broker, e.g. localhost:8800
+	 * @param clientId
+	 *            the client name registered with the broker
+	 * @return the client
+	 */
+	public BrokerClient createClient(String host, String clientId) {
+		return new BrokerClient(this, host, clientId);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Long polls a topic for events, or joins the same poll in flight.
+	 */
+	TopicEvent[] getEvents(final String host, final String clientId, final String topic, final int timeout)
+	        throws OSGiBrokerException {
+		try {
+			return polls.execute(host + " " + clientId + " " + topic, new Callable<TopicEvent[]>() {
+				@Override
+				public TopicEvent[] call() throws OSGiBrokerException {
+					return poll(host, clientId, topic, timeout);
+				}
+			});
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof OSGiBrokerException) {
+				throw (OSGiBrokerException) e.getCause();
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new OSGiBrokerException("Poll of " + topic + " failed: " + e.getCause());
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Long polls a topic for events.
+	 */
+	private TopicEvent[] poll(String host, String clientId, String topic, int timeout) throws OSGiBrokerException {
+		GetMethod method = new GetMethod(url(host, "event"));
+		method.setQueryString(new NameValuePair[] { new NameValuePair("clientID", clientId),
+		        new NameValuePair("topic", topic), new NameValuePair("timeOut", Integer.toString(timeout)) });
+		method.getParams().setSoTimeout(timeout * 1000 + POLL_GRACE);
+		
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			execute(pollClient, method, host);
+			TopicEvent[] events = Subscriber.parseEvents(method.getResponseBodyAsStream());
+			failed = false;
+			return events;
+		}
+		catch (IOException e) {
+			throw new OSGiBrokerException("Fatal transport error: IOException - " + e.getMessage());
+		}
+		finally {
+			method.releaseConnection();
+			stats(POLL, host).record(start, failed);
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Publishes an event to a topic.
+	 */
+	void sendEvent(String host, String clientId, String topic, Map<String, String> attributes)
+	        throws OSGiBrokerException {
+		PostMethod method = new PostMethod(url(host, "event"));
+		method.addParameter("clientID", clientId);
+		method.addParameter("topic", topic);
+		for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+			method.addParameter(attribute.getKey(), attribute.getValue());
+		}
+		request(PUBLISH, host, method);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Subscribes a client to a topic, with an optional url the broker
+	 * notifies of new events.
+	 */
+	void subscribe(String host, String clientId, String topic, String url) throws OSGiBrokerException {
+		PostMethod method = new PostMethod(url(host, "subscribe"));
+		method.addParameter("clientID", clientId);
+		method.addParameter("topic", topic);
+		if (url != null) {
+			method.addParameter("url", url);
+		}
+		request(SUBSCRIBE, host, method);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Unsubscribes a client from a topic.
+	 */
+	void unsubscribe(String host, String clientId, String topic) throws OSGiBrokerException {
+		DeleteMethod method = new DeleteMethod(url(host, "unsubscribe"));
+		method.setQueryString(new NameValuePair[] { new NameValuePair("clientID", clientId),
+		        new NameValuePair("topic", topic) });
+		request(UNSUBSCRIBE, host, method);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Runs a short request on the request pool.
+	 */
+	private void request(String operation, String host, HttpMethod method) throws OSGiBrokerException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			execute(requestClient, method, host);
+			failed = false;
+		}
+		finally {
+			method.releaseConnection();
+			stats(operation, host).record(start, failed);
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Executes a method, turning failures into OSGiBrokerExceptions the same
+	 * way the OSGiBroker client library does. The caller releases the
+	 * connection.
+	 * 
+	 * The call goes through the route's circuit breaker. Server errors and
+	 * failures to reach the broker count against it; any other answer shows
+	 * the broker is up.
+	 */
+	private void execute(HttpClient client, HttpMethod method, String host) throws OSGiBrokerException {
+		CircuitBreaker breaker = getCircuitBreaker(host);
+		if (!breaker.allowRequest()) {
+			throw new OSGiBrokerException(HttpStatus.SC_SERVICE_UNAVAILABLE, "Broker " + host
+			        + " is unavailable, not calling it until the circuit breaker closes");
+		}
+		
+		boolean reached = false;
+		try {
+			int status = client.executeMethod(method);
+			reached = status < HttpStatus.SC_INTERNAL_SERVER_ERROR;
+			if (status != HttpStatus.SC_OK && status != HttpStatus.SC_NO_CONTENT) {
+				throw new OSGiBrokerException(status, method.getStatusText(), method.getStatusLine());
+			}
+		}
+		catch (HttpException e) {
+			throw new OSGiBrokerException("Fatal protocol violation: HTTPException - " + e.getMessage());
+		}
+		catch (IOException e) {
+			throw new OSGiBrokerException("Fatal transport error: IOException - " + e.getMessage());
+		}
+		finally {
+			if (reached) {
+				breaker.recordSuccess();
+			}
+			else {
+				breaker.recordFailure();
+			}
+		}
+	}
+	
+	/**
+	 * Determines whether a broker call failed because the broker could not be
+	 * reached or could not serve it, rather than because the request was
+	 * refused. Such calls may succeed if tried again later.
+	 * 
+	 * @param e
+	 *            the exception thrown by the call
+	 * @return true if the broker was unavailable
+	 */
+	public static boolean isUnavailable(OSGiBrokerException e) {
+		return e.getStatus() == 0 || e.getStatus() >= HttpStatus.SC_INTERNAL_SERVER_ERROR;
+	}
+	
+	/**
+	 * Gets the circuit breaker guarding calls to a broker.
+	 * 
+	 * @param host
+	 *            host and port of the broker
+	 * @return the breaker, created closed on first use
+	 */
+	public CircuitBreaker getCircuitBreaker(String host) {
+		CircuitBreaker breaker = breakers.get(host);
+		if (breaker == null) {
+			CircuitBreaker created = new CircuitBreaker(host, failureThreshold, openTime);
+			breaker = breakers.putIfAbsent(host, created);
+			if (breaker == null) {
+				breaker = created;
+			}
+		}
+		return breaker;
+	}
+	
+	/**
+	 * @return the circuit breakers of all brokers called so far
+	 */
+	public List<CircuitBreaker> getCircuitBreakers() {
+		return new ArrayList<CircuitBreaker>(breakers.values());
+	}
+	
+	private static String url(String host, String resource) {
+		return "http://" + host + "/osgibroker/" + resource;
+	}
+	
+	private LatencyStats stats(String operation, String host) {
+		String key = operation + " " + host;
+		LatencyStats s = stats.get(key);
+		if (s == null) {
+			LatencyStats created = new LatencyStats(key);
+			s = stats.putIfAbsent(key, created);
+			if (s == null) {
+				s = created;
+			}
+		}
+		return s;
+	}
+	
+	/**
+	 * Gets the latency of broker calls, one entry per operation and route.
+	 * 
+	 * @return the stats, sorted by name
+	 */
+	public List<LatencyStats> getLatencyStats() {
+		List<LatencyStats> list = new ArrayList<LatencyStats>(stats.values());
+		Collections.sort(list, new Comparator<LatencyStats>() {
+			@Override
+			public int compare(LatencyStats a, LatencyStats b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+		return list;
+	}
+	
+	/**
+	 * @return the number of long polls sent to the brokers
+	 */
+	public long getPolls() {
+		return polls.getCalls();
+	}
+	
+	/**
+	 * @return the number of long polls that joined an identical poll in
+	 *         flight instead of calling the broker
+	 */
+	public long getPollsShared() {
+		return polls.getShared();
+	}
+	
+	/**
+	 * Closes all pooled connections. Only call this when the web application
+	 * is being taken down; the transport cannot be used afterwards.
+	 */
+	public void shutdown() {
+		for (LatencyStats s : getLatencyStats()) {
+			log.info(s);
+		}
+		log.info(getPolls() + " polls sent, " + getPollsShared() + " coalesced with a poll in flight");
+		idleThread.shutdown();
+		pollManager.shutdown();
+		requestManager.shutdown();
+	}
+}
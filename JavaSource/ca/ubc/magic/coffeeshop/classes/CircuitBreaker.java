@@ -0,0 +1,144 @@
+package ca.ubc.magic.coffeeshop.classes;
+
+/**
+ * CircuitBreaker
+ * 
+ * @version 1.0
+ * 
+ *          Stops calls to a broker that keeps failing, so callers fail at once
+ *          instead of each waiting for a timeout.
+ * 
+ *          The breaker starts CLOSED and lets every call through. After a
+ *          number of failures in a row it OPENS and refuses calls. Once the
+ *          open time is up it goes HALF_OPEN and lets a single probe call
+ *          through: if the probe succeeds the breaker closes again, if it
+ *          fails the breaker opens for another open time.
+ */
+public class CircuitBreaker {
+	
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+	
+	private final String name;
+	private volatile int failureThreshold;
+	private volatile long openMillis;
+	
+	private State state = State.CLOSED;
+	private int failures = 0;
+	private long openedAt = 0;
+	private boolean probing = false;
+	
+	/* Statistics */
+	private long timesOpened = 0;
+	private long rejected = 0;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param name
+	 *            name of what the breaker protects, for logging
+	 * @param failureThreshold
+	 *            failures in a row that open the breaker
+	 * @param openMillis
+	 *            time the breaker stays open before probing, in milliseconds
+	 */
+	public CircuitBreaker(String name, int failureThreshold, long openMillis) {
+		this.name = name;
+		configure(failureThreshold, openMillis);
+	}
+	
+	/**
+	 * Changes the breaker settings. Takes effect from the next call.
+	 */
+	public void configure(int failureThreshold, long openMillis) {
+		this.failureThreshold = Math.max(1, failureThreshold);
+		this.openMillis = openMillis;
+	}
+	
+	/**
+	 * Asks whether a call may be made. A caller that is allowed through must
+	 * report the outcome with recordSuccess or recordFailure.
+	 * 
+	 * @return true if the call may go ahead, false if it should fail at once
+	 */
+	public synchronized boolean allowRequest() {
+		switch (state) {
+		case CLOSED:
+			return true;
+		case OPEN:
+			if (System.currentTimeMillis() - openedAt >= openMillis) {
+				state = State.HALF_OPEN;
+				probing = true;
+				return true;
+			}
+			break;
+		case HALF_OPEN:
+			if (!probing) {
+				probing = true;
+				return true;
+			}
+			break;
+		}
+		rejected++;
+		return false;
+	}
+	
+	/**
+	 * Reports a call that reached the broker.
+	 */
+	public synchronized void recordSuccess() {
+		failures = 0;
+		probing = false;
+		state = State.CLOSED;
+	}
+	
+	/**
+	 * Reports a call that could not reach the broker, or that the broker
+	 * could not serve.
+	 */
+	public synchronized void recordFailure() {
+		probing = false;
+		failures++;
+		if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+			state = State.OPEN;
+			openedAt = System.currentTimeMillis();
+			timesOpened++;
+		}
+	}
+	
+	/**
+	 * @return true unless the breaker is refusing calls. A half open breaker
+	 *         counts as available, since it is ready to let a probe through.
+	 */
+	public synchronized boolean isAvailable() {
+		return state != State.OPEN || System.currentTimeMillis() - openedAt >= openMillis;
+	}
+	
+	public synchronized State getState() {
+		return state;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * @return the number of times the breaker opened
+	 */
+	public synchronized long getTimesOpened() {
+		return timesOpened;
+	}
+	
+	/**
+	 * @return the number of calls refused while the breaker was open
+	 */
+	public synchronized long getRejected() {
+		return rejected;
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return name + ": " + state + " opened=" + timesOpened + " rejected=" + rejected;
+	}
+}
@@ -0,0 +1,29 @@
+package ca.ubc.magic.coffeeshop.classes;
+
+/**
+ * Clock
+ * 
+ * @version 1.0
+ * 
+ *          Source of the current time for the schedules of the coffee shop.
+ *          The coffee shop runs on the system clock; a schedule can be driven
+ *          by any other clock, e.g. one that is moved forward by hand to check
+ *          a day's playlists in a few seconds, as the tests do.
+ */
+public interface Clock {
+	
+	/**
+	 * The system clock.
+	 */
+	Clock SYSTEM = new Clock() {
+		@Override
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+	};
+	
+	/**
+	 * @return the current time, in milliseconds since the epoch
+	 */
+	long currentTimeMillis();
+}
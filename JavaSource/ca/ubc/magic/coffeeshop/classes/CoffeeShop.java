@@ -16,8 +16,17 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Properties;
 import java.util.StringTokenizer;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.servlet.ServletContext;
 import javax.xml.bind.JAXBContext;
@@ -32,9 +41,7 @@ import ca.ubc.magic.coffeeshop.connectors.DefaultConnector;
 import ca.ubc.magic.coffeeshop.exceptions.ConfigurationException;
 import ca.ubc.magic.coffeeshop.jaxb.Application;
 import ca.ubc.magic.coffeeshop.jaxb.ObjectFactory;
-import ca.ubc.magic.osgibroker.OSGiBrokerClient;
 import ca.ubc.magic.osgibroker.OSGiBrokerException;
-import ca.ubc.magic.osgibroker.OSGiBrokerService;
 import ca.ubc.magic.osgibroker.workgroups.TopicEvent;
 
 /**
@@ -54,6 +61,12 @@ import ca.ubc.magic.osgibroker.workgroups.TopicEvent;
  * 
  *          To get the instance, use the getInstance method.
  * 
+ *          Everything the coffee shop needs to answer the GUI (properties,
+ *          applications and recovered state) is loaded when the instance is
+ *          created. Subscribing with the OSGiBroker happens in the background,
+ *          so servlets are not held up by a slow or unreachable broker. Use
+ *          getStatus to find out whether the broker side is up yet.
+ * 
  */
 public class CoffeeShop {
 	
@@ -65,27 +78,116 @@ public class CoffeeShop {
 	/* log4j Logger */
 	private final Logger log = Logger.getLogger(CoffeeShop.class);
 	
-	/* Instance of class for singleton implementation */
-	private static CoffeeShop INSTANCE = null;
+	/* Time to wait for outstanding broker work on shutdown, in seconds */
+	private static final int SHUTDOWN_TIMEOUT = 30;
+	
+	/* How often the playlist schedule is checked, in milliseconds */
+	private static final long PLAYLIST_TICK = 1000;
+	
+	/* Resolution of the timer wheel, in milliseconds */
+	private static final long TIMER_TICK = 100;
+	
+	/**
+	 * Status
+	 * 
+	 *          The runtime status of the coffee shop. STARTING means the
+	 *          configuration is loaded and can be served, but the broker
+	 *          subscriptions are still being made. RUNNING means the coffee
+	 *          shop is subscribed and switching applications. STOPPED means it
+	 *          has been shut down.
+	 */
+	public enum Status {
+		STARTING, RUNNING, STOPPED
+	}
 	
 	/* Broker variables */
-	private OSGiBrokerService osgiBroker;
-	private OSGiBrokerClient osgiClient;
+	private BrokerClient osgiClient;
 	
 	/* Member variables */
 	private Properties prop;
-	private List<Application> applications;
-	private List<Application> allApps;
+	private final AtomicReference<ApplicationRegistry> registry = new AtomicReference<ApplicationRegistry>();
 	private ApplicationQueue<Application> queue;
-	private Application defaultApp;
-	private Application context;
+	private volatile Application context;
 	private MessageBoard messageBoard;
-	private Timer contextTimer;
+	private TimerWheel.Timeout contextTimer;
+	private volatile ContextSwitchTask contextTask;
+	private StateJournal journal;
+	private Outbox outbox;
+	private IdlePolicy idlePolicy;
+	private PlaylistSchedule schedule;
+	private RateLimiter rateLimiter;
+	private DuplicateFilter duplicateFilter;
+	private ModerationFilter moderation;
+	private BoardHistoryStore boardHistory;
+	private BoardSearchIndex boardIndex;
+	private BoardChannels boardChannels;
+	private volatile EventFanout eventFanout;
+	private final Clock clock = Clock.SYSTEM;
 	
 	/* Status variables */
 	private boolean contextChange = false;
-	private boolean newConfiguration = false;
-	private boolean customAppEvent = false;
+	private long switchStarted = 0;
+	private volatile boolean newConfiguration = false;
+	private volatile boolean customAppEvent = false;
+	private volatile boolean localActivity = false;
+	private volatile Status status = Status.STARTING;
+	
+	/* Guards the context timer and the status transitions that start it */
+	private final Object timerLock = new Object();
+	
+	/*
+	 * Keeps restarts one at a time. Not the coffee shop's own lock: shutting
+	 * down waits on the broker thread, which takes that lock to switch.
+	 */
+	private final Object restartLock = new Object();
+	
+	/*
+	 * Runs broker subscriptions in the background, one at a time, so that
+	 * subscribing on startup and unsubscribing on shutdown stay in order.
+	 */
+	private final ExecutorService brokerExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "CoffeeShop-broker");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	
+	/*
+	 * Runs the tasks of the timers: context switch checks and playlist
+	 * checks, off the timer wheel's own thread. The part of a context switch
+	 * check that asks the broker is handed on to the broker thread, so no
+	 * timer task waits on the broker here.
+	 */
+	private final ExecutorService timerExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "CoffeeShop-timer-worker");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	
+	/* The one timer of the coffee shop */
+	private final TimerWheel timers = new TimerWheel("CoffeeShop-timers", TIMER_TICK, timerExecutor);
+	
+	/*
+	 * Runs the subscribe of a context switch while the broker thread
+	 * unsubscribes.
+	 */
+	private final ExecutorService brokerWorker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "CoffeeShop-broker-worker");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	
+	/* Context switch metrics */
+	private final LatencyStats switchToVisible = new LatencyStats("switch to visible");
+	private final LatencyStats switchEffects = new LatencyStats("switch broker effects");
 	
 	/**
 	 * Gets a CoffeeShop instance. The CoffeeShop returned is configured and
@@ -100,35 +202,103 @@ public class CoffeeShop {
 	 *             fail when opening or during reading
 	 */
 	public static CoffeeShop getInstance() throws FileNotFoundException, IOException {
-		if (INSTANCE == null) {
-			INSTANCE = new CoffeeShop();
+		if (Holder.INSTANCE == null) {
+			if (Holder.FAILURE instanceof IOException) {
+				throw (IOException) Holder.FAILURE;
+			}
+			throw (RuntimeException) Holder.FAILURE;
+		}
+		return Holder.INSTANCE;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Lazy holder for the singleton instance. The JVM initializes this class
+	 * exactly once, on the first call to getInstance, and every other thread
+	 * calling getInstance at the same time waits for that to finish. This
+	 * prevents two instances from being created (and subscribed) when the
+	 * servlets, beans and connectors start up at the same time.
+	 * 
+	 * If creating the instance fails, the failure is kept and handed to every
+	 * caller, as it would be each time a new instance was attempted.
+	 */
+	private static class Holder {
+		
+		static final CoffeeShop INSTANCE;
+		static final Exception FAILURE;
+		
+		static {
+			CoffeeShop instance = null;
+			Exception failure = null;
+			try {
+				instance = new CoffeeShop();
+			}
+			catch (IOException e) {
+				failure = e;
+			}
+			catch (RuntimeException e) {
+				failure = e;
+			}
+			INSTANCE = instance;
+			FAILURE = failure;
 		}
-		return INSTANCE;
 	}
 	
 	/*
 	 * (non-Javadoc)
 	 * CoffeeShop constructor.
 	 * - Loads properties file
+	 * - Sets up the rate limits of message senders
+	 * - Sets up the filter of duplicate messages
+	 * - Loads the moderation blocklist of the message board
 	 * - Loads all configured Application definition files (XML)
+	 * - Loads the playlists run when no application is queued
+	 * - Recovers the runtime state recorded before the last shutdown or crash
+	 * - Loads the usage statistics the idle times are derived from
+	 * - Opens the history of the message board, and indexes it for search and
+	 * fills its channels in the background
 	 * - Subscribes to given topics needed for the CoffeeShop
 	 * - Starts the context switch timer</ul>
 	 */
 	private CoffeeShop() throws FileNotFoundException, IOException {
 		loadProperties();
+		createRateLimiter();
+		createDuplicateFilter();
+		createModerationFilter();
 		loadApplications();
+		loadPlaylists();
+		recoverState();
+		loadIdlePolicy();
+		openOutbox();
+		openBoardHistory();
 		startup();
 	}
 	
 	/*
 	 * (non-JavaDoc)
-	 * Starts the coffee shop by subscribing the appropriate application with
-	 * the broker, sets up the application timer and starts that timer.
+	 * Starts the coffee shop. The broker clients and message board are set up
+	 * right away, then the subscriptions are made in the background. Once they
+	 * are done, the application timer is started and the coffee shop is
+	 * running.
 	 */
-	private void startup() throws FileNotFoundException, IOException {
+	private void startup() {
 		log.info("Starting configuration process...");
+		status = Status.STARTING;
 		configureOSGiBroker();
-		startTimer();
+		
+		brokerExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				subscribeAll();
+				synchronized (timerLock) {
+					if (status == Status.STARTING) {
+						startTimer();
+						status = Status.RUNNING;
+						log.info("Broker subscriptions complete. CoffeeShop is running.");
+					}
+				}
+			}
+		});
 	}
 	
 	/*
@@ -178,8 +348,9 @@ public class CoffeeShop {
 			JAXBContext jc = JAXBContext.newInstance(Application.class.getPackage().getName());
 			Unmarshaller u = jc.createUnmarshaller();
 			
-			allApps = new ArrayList<Application>();
-			applications = new ArrayList<Application>();
+			Application defaultApp = null;
+			List<Application> allApps = new ArrayList<Application>();
+			List<Application> applications = new ArrayList<Application>();
 			List<String> configuredAppNames = Arrays.asList(prop.getProperty("applicationsToRun").split(","));
 			
 			StringTokenizer tok = new StringTokenizer(prop.getProperty("allApplications"), ",");
@@ -203,10 +374,12 @@ public class CoffeeShop {
 				}				
 			}
 			
+			registry.set(new ApplicationRegistry(defaultApp, applications, allApps));
+			
 			// At startup only, set the current context application to the
 			// default application
 			context = defaultApp;
-			queue = new ApplicationQueue<Application>();
+			createQueue();
 		}
 		catch (JAXBException e) {
 			// Something bad happened when unmarshalling the XML.
@@ -216,18 +389,315 @@ public class CoffeeShop {
 	
 	/*
 	 * (non-Javadoc)
+	 * Creates the rate limiter of SMS and OSN senders, and sweeps out idle
+	 * senders every minute.
+	 */
+	private void createRateLimiter() {
+		rateLimiter = new RateLimiter(getIntProperty("senderRateLimit", 6), getIntProperty("senderBurst", 3),
+		        getIntProperty("senderLimiterSize", 10000));
+		timers.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				rateLimiter.sweep();
+			}
+		}, 1, 1, TimeUnit.MINUTES);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Creates the filter that recognizes SMS and OSN messages received twice.
+	 */
+	private void createDuplicateFilter() {
+		duplicateFilter = new DuplicateFilter(getIntProperty("duplicateWindow", 60) * 1000L, getIntProperty(
+		        "duplicateExpected", 10000), getDoubleProperty("duplicateFalsePositiveRate", 0.001));
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Creates the moderation filter of the message board, and checks the
+	 * blocklist file for changes from time to time. The automaton is rebuilt
+	 * on the timer thread, not on a thread posting to the board.
+	 */
+	private void createModerationFilter() {
+		moderation = new ModerationFilter(new File(prop.getProperty("moderationBlocklist", "moderation.txt")));
+		int interval = getIntProperty("moderationReloadInterval", 30);
+		if (interval > 0) {
+			timers.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					moderation.reload();
+				}
+			}, interval, interval, TimeUnit.SECONDS);
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Creates the application queue with the configured capacity, time to
+	 * live and drop policy. Entries that expire or are dropped are recorded
+	 * in the journal as removed.
+	 */
+	private void createQueue() {
+		ApplicationQueue.DropPolicy policy;
+		try {
+			policy = ApplicationQueue.DropPolicy.valueOf(prop.getProperty("queueDropPolicy", "REJECT").trim());
+		}
+		catch (IllegalArgumentException e) {
+			log.warn("Invalid value for property queueDropPolicy: " + prop.getProperty("queueDropPolicy"));
+			policy = ApplicationQueue.DropPolicy.REJECT;
+		}
+		queue = new ApplicationQueue<Application>(getIntProperty("queueCapacity", 10), getIntProperty(
+		        "queueEntryTimeToLive", 1800) * 1000L, policy, timers, new ApplicationQueue.Listener<Application>() {
+			@Override
+			public void removed(Application a, boolean expired) {
+				synchronized (CoffeeShop.this) {
+					// Unless it was queued again in the meantime
+					if (!queue.contains(a)) {
+						journal.recordDequeue(a.getApplicationShortName());
+					}
+				}
+				log.info((expired ? "Queued application expired: " : "Queued application dropped: ")
+				        + a.getApplicationName());
+			}
+		});
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Loads the playlist schedule and, if there are playlists, starts checking
+	 * it. The same task is run on every tick.
+	 */
+	private void loadPlaylists() {
+		schedule = new PlaylistSchedule(prop, TimeZone.getDefault());
+		if (!schedule.isEmpty()) {
+			timers.scheduleAtFixedRate(new PlaylistTask(), PLAYLIST_TICK, PLAYLIST_TICK, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Opens the state journal and restores the application in context and the
+	 * application queue as they were last recorded. This is done from local
+	 * files only, so it does not depend on the OSGiBroker.
 	 * 
-	 * This method configures and subscribes the connection to the OSGiBroker as
-	 * needed by the application.
+	 * If the journal can not be opened, the coffee shop starts with the
+	 * default application and an empty queue, and nothing is recorded.
+	 */
+	private void recoverState() {
+		File dir = new File(prop.getProperty("stateDirectory", "state"));
+		journal = new StateJournal(dir, getIntProperty("journalSize", 1048576), getIntProperty(
+		        "journalSnapshotInterval", 1000));
+		
+		try {
+			StateJournal.RecoveredState state = journal.open();
+			
+			Application a = getApplication(state.getContext());
+			if (a != null && a != context) {
+				context = a;
+				contextChange = true;
+				log.info("Recovered application in context: " + a.getApplicationName());
+			}
+			
+			for (String name : state.getQueue()) {
+				a = getApplication(name);
+				if (a == null || queue.enqueue(a) == ApplicationQueue.Admission.REJECTED) {
+					// No longer configured, or the queue is smaller now
+					journal.recordDequeue(name);
+				}
+			}
+		}
+		catch (IOException e) {
+			log.error("Could not open state journal. Runtime state will not be recorded.", e);
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Loads the idle policy and its statistics from the state directory, and
+	 * starts the session of the application in context.
+	 */
+	private void loadIdlePolicy() {
+		File file = new File(prop.getProperty("stateDirectory", "state"), "idle-stats.properties");
+		idlePolicy = new IdlePolicy(file, Boolean.parseBoolean(prop.getProperty("adaptiveIdle", "true").trim()),
+		        getDoubleProperty("idleSmoothing", 0.2), getDoubleProperty("idleGapMultiplier", 3),
+		        getIntProperty("idleTimeMin", 10), getIntProperty("idleTimeMax", 300));
+		idlePolicy.load();
+		idlePolicy.startSession(context.getApplicationShortName(), clock.currentTimeMillis());
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Opens the outbox in the state directory. Events left in it from before
+	 * are sent once the broker is reachable.
+	 */
+	private void openOutbox() {
+		File dir = new File(prop.getProperty("stateDirectory", "state"), "outbox");
+		Outbox.DropPolicy policy;
+		try {
+			policy = Outbox.DropPolicy.valueOf(prop.getProperty("outboxDropPolicy", "DROP_OLDEST").trim());
+		}
+		catch (IllegalArgumentException e) {
+			log.warn("Invalid value for property outboxDropPolicy: " + prop.getProperty("outboxDropPolicy"));
+			policy = Outbox.DropPolicy.DROP_OLDEST;
+		}
+		outbox = new Outbox(BrokerTransport.getInstance(), dir, getIntProperty("outboxSegmentSize", 262144),
+		        getIntProperty("outboxMaxSegments", 16), policy, getIntProperty("outboxRetryInterval", 1000));
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Opens the history of the message board in the state directory, and
+	 * builds the search index and the channels from it in the background.
+	 * Until they are built, searches and channels find only part of the
+	 * posts, and new posts wait for the history.
+	 * 
+	 * If the history can not be opened, the message board runs without
+	 * history, search or channels, and nothing is kept.
+	 * 
+	 * The posts are forced to disk in groups, every boardHistoryFlushInterval
+	 * milliseconds, by the timers rather than the threads posting.
+	 */
+	private void openBoardHistory() {
+		File dir = new File(prop.getProperty("stateDirectory", "state"), "board");
+		try {
+			boardHistory = new BoardHistoryStore(dir, getIntProperty("boardHistorySegmentSize", 1048576),
+			        getIntProperty("boardHistoryMaxSegments", 64));
+		}
+		catch (IOException e) {
+			log.error("Could not open message board history. Posts will not be kept.", e);
+			return;
+		}
+		boardIndex = new BoardSearchIndex();
+		boardChannels = new BoardChannels(getIntProperty("boardChannelSize", 50),
+		        getIntProperty("boardMaxChannels", 100));
+		
+		int interval = Math.max(1, getIntProperty("boardHistoryFlushInterval", 1000));
+		timers.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					boardHistory.flush();
+				}
+				catch (IOException e) {
+					log.warn("Could not flush the message board history.", e);
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+		
+		Thread indexer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				long start = System.currentTimeMillis();
+				try {
+					boardHistory.visit(new BoardHistoryStore.Visitor() {
+						@Override
+						public void visit(BoardPost post) {
+							boardIndex.add(post);
+							boardChannels.add(post);
+						}
+					});
+					log.info("Indexed " + boardIndex.getPosts() + " message board posts in "
+					        + (System.currentTimeMillis() - start) + " ms.");
+				}
+				catch (IOException e) {
+					log.error("Could not read message board history. Earlier posts will not be found.", e);
+				}
+			}
+		}, "CoffeeShop-board-index");
+		indexer.setDaemon(true);
+		indexer.start();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Reads an integer from the configuration properties, falling back to the
+	 * given default if it is missing or malformed.
+	 */
+	private int getIntProperty(String key, int defaultValue) {
+		String value = prop.getProperty(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		}
+		catch (NumberFormatException e) {
+			log.warn("Invalid value for property " + key + ": " + value);
+			return defaultValue;
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Reads a decimal number from the configuration properties, falling back
+	 * to the given default if it is missing or malformed.
+	 */
+	private double getDoubleProperty(String key, double defaultValue) {
+		String value = prop.getProperty(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Double.parseDouble(value.trim());
+		}
+		catch (NumberFormatException e) {
+			log.warn("Invalid value for property " + key + ": " + value);
+			return defaultValue;
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * This method configures the connection to the OSGiBroker as needed by the
+	 * application. No requests are made to the broker here.
 	 */
 	private void configureOSGiBroker() {
-		// Get instances of the broker and register a client.
-		osgiBroker = new OSGiBrokerService(prop.getProperty("osgiHost") + ":" + prop.getProperty("osgiPort"));
-		osgiClient = osgiBroker.addClient(prop.getProperty("coffeeShopClientName"));
+		// Share the pooled broker transport and register a client.
+		BrokerTransport transport = BrokerTransport.getInstance();
+		transport.configure(prop);
+		osgiClient = transport.createClient(prop.getProperty("osgiHost") + ":" + prop.getProperty("osgiPort"), prop
+		        .getProperty("coffeeShopClientName"));
+		messageBoard = new MessageBoard(prop, outbox, moderation, boardHistory, boardIndex,
+		        boardChannels);
 		
+		// The displays of the applications read their topics through the
+		// coffee shop, which polls each topic for all of them with a client
+		// of its own.
+		String fanoutClient = prop.getProperty("fanoutClientName", prop.getProperty("coffeeShopClientName")
+		        + "Fanout");
+		List<String> fanoutTopics = new ArrayList<String>();
+		for (String topic : prop.getProperty("fanoutTopics", "").split(",")) {
+			if (topic.trim().length() > 0) {
+				fanoutTopics.add(topic.trim());
+			}
+		}
+		// The fanout sees the events of the running application as they
+		// arrive, which the context check only finds later
+		EventFanout.Listener activity = new EventFanout.Listener() {
+			@Override
+			public void received(String topic, int count) {
+				Application a = context;
+				if (topic.equals(a.getConnectionInfo().getTopic())) {
+					idlePolicy.recordEvents(a.getApplicationShortName(), count, clock.currentTimeMillis());
+				}
+			}
+		};
+		eventFanout = new EventFanout(transport.createClient(prop.getProperty("osgiHost") + ":"
+		        + prop.getProperty("osgiPort"), fanoutClient), fanoutTopics, getIntProperty("fanoutBufferSize", 100),
+		        getIntProperty("fanoutIdleTimeout", 300) * 1000L, activity);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * Subscribes with the OSGiBroker. This blocks on the broker, so it is run
+	 * by the broker executor rather than the thread that created the coffee
+	 * shop.
+	 */
+	private void subscribeAll() {
 		// subscribe to the coffee shop application menu, the message board,
 		// and the default applications		
-		messageBoard = new MessageBoard(prop);
 		messageBoard.subscribe();
 		
 		
@@ -236,8 +706,10 @@ public class CoffeeShop {
 			
 		// Check the type of connector. If the connector is not default, then
 		// register with the CoffeeShop servlet for processing.
+		// The application in context is the default application, unless a
+		// different one was recovered from the state journal.
 		boolean isDefault = context.getConnectionInfo().getConnectorClass().equals(DefaultConnector.class.getName());
-		subscribe(defaultApp.getConnectionInfo().getTopic(), !isDefault ? appURL + "/CoffeeShop/coffeeShop.do" : null);
+		subscribe(context.getConnectionInfo().getTopic(), !isDefault ? appURL + "/CoffeeShop/coffeeShop.do" : null);
 		
 		// Register the SMS topic with the coffeeshop servlet for processing
 		subscribe(prop.getProperty("smsDefaultTopic"), appURL + "/CoffeeShop/coffeeShop.do");
@@ -252,13 +724,17 @@ public class CoffeeShop {
 	/*
 	 * (non-Javadoc)
 	 * Starts the context timer.
-	 * The timer's schedule is defined based on the configured minimum idle time
-	 * as specified in the current application's configuration file
+	 * The timer's schedule is defined based on the idle time of the current
+	 * application, as learned by the idle policy from its past use, or as
+	 * specified in the application's configuration file
 	 */
 	private void startTimer() {
-		contextTimer = new Timer();
-		contextTimer.scheduleAtFixedRate(new ContextSwitchTask(), context.getMinumumIdleTime() * 1000, context
-		        .getMinumumIdleTime() * 1000 + 5000);
+		synchronized (timerLock) {
+			int idleTime = idlePolicy.getIdleTime(context);
+			contextTask = new ContextSwitchTask();
+			contextTimer = timers.scheduleAtFixedRate(contextTask, idleTime * 1000, idleTime * 1000 + 5000,
+			        TimeUnit.MILLISECONDS);
+		}
 	}
 	
 	/*
@@ -266,11 +742,13 @@ public class CoffeeShop {
 	 * Stops the current timer.
 	 */
 	private void stopTimer() {
-		try {
-			contextTimer.cancel();
-		}
-		catch (NullPointerException e) {
-			// Ignore this. Someone tried to cancel a timer that didn't exist.
+		synchronized (timerLock) {
+			try {
+				contextTimer.cancel();
+			}
+			catch (NullPointerException e) {
+				// Ignore this. Someone tried to cancel a timer that didn't exist.
+			}
 		}
 	}
 	
@@ -284,11 +762,11 @@ public class CoffeeShop {
 	private void subscribe(String topic, String servletUrl) {
 		try {
 			if (servletUrl == null) {
-				osgiClient.subscriber().subscribeHttp(topic, false);
+				osgiClient.subscribeHttp(topic);
 				log.info("Successfully subcscribed to " + topic);
 			}
 			else {
-				osgiClient.subscriber().subscribeHttp(topic, false, servletUrl);
+				osgiClient.subscribeHttp(topic, servletUrl);
 				log.info("Successfully subcscribed to " + topic + " , with url " + servletUrl);
 			}
 		}
@@ -309,7 +787,7 @@ public class CoffeeShop {
 	 */
 	private void unsubscribe(String topic) {
 		try {
-			osgiClient.subscriber().unsubscribeHttp(topic);
+			osgiClient.unsubscribeHttp(topic);
 			log.info("Successfully unsubscribed from " + topic);
 		}
 		catch (OSGiBrokerException e) {
@@ -327,79 +805,194 @@ public class CoffeeShop {
 	 * 
 	 * Doing this removes the current running
 	 * application and puts either the next queued application in its place, or
-	 * replaces it with the default application.
+	 * replaces it with the next application of the playlist schedule.
+	 * 
+	 * If there is no new application ready to take its place, the running
+	 * application will continue running. When a playlist window closes, the
+	 * default application replaces the application started by the playlist.
 	 * 
-	 * If the method is called while the default application is running and
-	 * there is no new application ready to take its place, the default
-	 * application will continue running.
+	 * The switch takes effect in the coffee shop at once, so the display sees
+	 * it on its next poll. Unsubscribing, subscribing and waking up the new
+	 * application happen afterwards on the broker thread.
 	 */
-	public synchronized void doContextSwitch() {
+	public void doContextSwitch() {
 		
-		boolean changed = true;
+		Application previous;
+		Application next;
+		synchronized (this) {
+			// Get the current running topic so that we can unsubsribe after
+			// the switch
+			previous = context;
+			
+			try {
+				// Get any application queued
+				context = queue.dequeue();
+				schedule.stop();
+				journal.recordDequeue(context.getApplicationShortName());
+			}
+			catch (NoSuchElementException e) {
+				// Nothing queued, so the playlists decide
+				Application scheduled = getScheduledApplication();
+				if (scheduled != null && scheduled != previous) {
+					context = scheduled;
+				}
+				else {
+					/*RVCA: removed this to let application run indefinitely*/	
+					/*
+					// If nothing is queued, put the default application in
+					if (context == getDefaultApplication()) {
+						changed = false;
+					}
+					else {
+						context = getDefaultApplication();
+					}
+					*/
+					
+					return; //RVCA: if nothing is queued leave the application in place indefinitely.
+				}
+			}
+			next = context;
+			journal.recordContext(next.getApplicationShortName());
+			
+			long now = clock.currentTimeMillis();
+			idlePolicy.endSession(previous.getApplicationShortName(), now);
+			idlePolicy.startSession(next.getApplicationShortName(), now);
+			
+			// make sure the application knows something has changed
+			contextChange = true;
+			switchStarted = System.nanoTime();
+		}
 		
-		// Get the current running topic so that we can unsubsribe after the
-		// switch
-		String previousTopic = context.getConnectionInfo().getTopic();
+		idlePolicy.save();
 		
+		// reset the timer, unless we were shut down in the meantime
+		synchronized (timerLock) {
+			stopTimer();
+			if (status == Status.RUNNING) {
+				startTimer();
+			}
+		}
 		
-		try {
-			// Get any application queued
-			context = queue.dequeue();
+		log.info("Context switch occured to application: " + next.getApplicationName());
+		
+		// Tell the broker about the switch in the background, in the order the
+		// switches happened
+		brokerExecutor.execute(new SwitchTask(previous.getConnectionInfo().getTopic(), next));
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Moves the playlist schedule on and gets the application it wants to run:
+	 * the next one of the current playlist, or the default application if a
+	 * playlist window just closed. Null if the schedule has nothing to run.
+	 * Called holding the lock of the coffee shop.
+	 */
+	private Application getScheduledApplication() {
+		boolean playing = schedule.isPlaying();
+		String name = schedule.next(clock.currentTimeMillis());
+		if (name == null) {
+			return playing ? getDefaultApplication() : null;
 		}
-		catch (NoSuchElementException e) {
-			/*RVCA: removed this to let application run indefinitely*/	
-			/*
-			// If nothing is queued, put the default application in
-			if (context == defaultApp) {
-				changed = false;
+		Application a = getApplication(name);
+		if (a == null) {
+			log.warn("Playlist application " + name + " is not configured.");
+		}
+		return a;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Checks the playlist schedule every tick, and switches when nothing is
+	 * queued and the schedule is due: the playlist application has had its
+	 * dwell time, its window has closed, or a window opened while the default
+	 * application is running. Applications asked for by users are only
+	 * replaced when they go idle.
+	 */
+	private class PlaylistTask implements Runnable {
+		
+		@Override
+		public void run() {
+			if (status != Status.RUNNING) {
+				return;
 			}
-			else {
-				context = defaultApp;
+			synchronized (CoffeeShop.this) {
+				if (queue.peek() != null) {
+					return;
+				}
+			}
+			if (schedule.isDue(clock.currentTimeMillis(), context == getDefaultApplication())) {
+				doContextSwitch();
 			}
-			*/
-			
-			changed=false; //RVCA: if nothing is queued leave the application in place indefinitely.
 		}
-		finally {
-			// Will enter this conditional if the application has changed
-			if (changed) {
-				
-				// Pause everything!
-				stopTimer();
-				// unsubscrbe the old topic, and listen to the new topic
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * The broker side of a context switch: unsubscribes the old topic and
+	 * subscribes the new one, then wakes up the new application. Unsubscribing
+	 * and subscribing run at the same time, unless both applications share a
+	 * topic.
+	 */
+	private class SwitchTask implements Runnable {
+		
+		private final String previousTopic;
+		private final Application next;
+		
+		SwitchTask(String previousTopic, Application next) {
+			this.previousTopic = previousTopic;
+			this.next = next;
+		}
+		
+		@Override
+		public void run() {
+			long start = System.nanoTime();
+			final String topic = next.getConnectionInfo().getTopic();
+			
+			// subscribe the topic, if it has a custom connector, register
+			// the servlet to handle received messages
+			final boolean isDefault = next.getConnectionInfo().getConnectorClass().equals(
+			        DefaultConnector.class.getName());
+			Runnable subscribe = new Runnable() {
+				@Override
+				public void run() {
+					subscribe(topic, !isDefault ? appURL + "/CoffeeShop/coffeeShop.do" : null);
+				}
+			};
+			
+			if (previousTopic.equals(topic)) {
 				unsubscribe(previousTopic);
-				
-				// subscribe the topic, if it has a custom connector, register
-				// the servlet to handle received messages
-				boolean isDefault = context.getConnectionInfo().getConnectorClass().equals(
-				        DefaultConnector.class.getName());
-				subscribe(context.getConnectionInfo().getTopic(), !isDefault ? appURL + "/CoffeeShop/coffeeShop.do"
-				        : null);
-				
-				if (!isDefault) {
-					try {
-						// If it has a custom connector, we have to notify the
-						// servlet and the OSGiBroker that we wil be having
-						// messages on this topic. So send a dummy message to
-						// wake everything up.
-						Map<String, String> map = new HashMap<String, String>();
-						map.put("message", "wakeup");
-						publishEvent(map);
-					}
-					catch (OSGiBrokerException e) {
-						log.error("Could not send wakeup message to topic: " + context.getConnectionInfo().getTopic(),
-						        e);
-					}
+				subscribe.run();
+			}
+			else {
+				Future<?> subscribed = brokerWorker.submit(subscribe);
+				unsubscribe(previousTopic);
+				try {
+					subscribed.get();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+				catch (ExecutionException e) {
+					log.error("Could not subscribe to topic: " + topic, e.getCause());
 				}
-				
-				// reset the timer
-				startTimer();
-				
-				// make sure the application knows something has changed
-				contextChange = true;
-				
-				log.info("Context switch occured to application: " + context.getApplicationName());
 			}
+			
+			if (!isDefault) {
+				try {
+					// If it has a custom connector, we have to notify the
+					// servlet and the OSGiBroker that we wil be having
+					// messages on this topic. So send a dummy message to
+					// wake everything up.
+					Map<String, String> map = new HashMap<String, String>();
+					map.put("message", "wakeup");
+					outbox.publish(osgiClient, topic, map);
+				}
+				catch (OSGiBrokerException e) {
+					log.error("Could not send wakeup message to topic: " + topic, e);
+				}
+			}
+			switchEffects.record(start, false);
 		}
 	}
 	
@@ -413,6 +1006,10 @@ public class CoffeeShop {
 	public synchronized boolean isContextChange() {
 		if (contextChange) {
 			contextChange = false;
+			if (switchStarted != 0) {
+				switchToVisible.record(switchStarted, false);
+				switchStarted = 0;
+			}
 			return true;
 		}
 		else {
@@ -425,19 +1022,41 @@ public class CoffeeShop {
 	 * 
 	 * @param applicationNum
 	 *            - the number (indexed from zero) of the application to run.
+	 * @return whether the application was queued, or null if there is no such
+	 *         application
 	 */
-	public void queueApplication(int applicationNum) {
+	public synchronized ApplicationQueue.Admission queueApplication(int applicationNum) {
 		try {
-			Application a = applications.get(applicationNum);
-			queue.enqueue(a);
-			log.info("Application queued: " + a.getApplicationName());
+			Application a = getApplications().get(applicationNum);
+			ApplicationQueue.Admission admission = queue.enqueue(a);
+			if (admission == ApplicationQueue.Admission.QUEUED) {
+				journal.recordEnqueue(a.getApplicationShortName());
+				log.info("Application queued: " + a.getApplicationName());
+			}
+			else if (admission == ApplicationQueue.Admission.REJECTED) {
+				log.info("Queue full, application not queued: " + a.getApplicationName());
+			}
+			return admission;
 		}
 		catch (IndexOutOfBoundsException e) {
 			log.info("Someone tried to select an application that has not been configured. ID: " + applicationNum);
+			return null;
 		}
 		
 	}
 	
+	/**
+	 * Gets the position of an application in the queue.
+	 * 
+	 * @param a
+	 *            the application
+	 * @return the position, 1 for the next application to run, or 0 if the
+	 *         application is not queued
+	 */
+	public int getQueuePosition(Application a) {
+		return queue.getPosition(a);
+	}
+	
 	/**
 	 * Getter for the queue of applications to run.
 	 * 
@@ -451,19 +1070,68 @@ public class CoffeeShop {
 	/**
 	 * Get the list of loaded applications that are configured to run.
 	 * 
-	 * @return a list of loaded applications
+	 * @return an unmodifiable list of loaded applications, from the current
+	 *         registry
 	 */
 	public List<Application> getApplications() {
-		return applications;
+		return registry.get().getConfiguredApplications();
 	}
 	
 	/**
 	 * Get the list of all applications available but not configured to run.
 	 * 
-	 * @return a List of applications available, but are not configured to run.
+	 * @return an unmodifiable List of applications available, but are not
+	 *         configured to run, from the current registry
 	 */
 	public List<Application> getAllApplications() {
-		return allApps;
+		return registry.get().getAvailableApplications();
+	}
+	
+	/**
+	 * Find a loaded application by its short name.
+	 * 
+	 * @param shortName
+	 *            the application short name
+	 * @return the application, or null if none has that short name
+	 */
+	public Application getApplication(String shortName) {
+		return shortName == null ? null : registry.get().getApplication(shortName);
+	}
+	
+	/**
+	 * Get the current application registry. The registry never changes, so a
+	 * caller that needs several lists or lookups to agree with each other
+	 * should take the registry once and use it throughout.
+	 * 
+	 * @return the current application registry
+	 */
+	public ApplicationRegistry getRegistry() {
+		return registry.get();
+	}
+	
+	/**
+	 * Changes the loaded applications by publishing a new version of the
+	 * registry. The update is applied to a copy of the current registry, and
+	 * the copy replaces it atomically. If another update was published in the
+	 * meantime, the update is applied again to the newer registry.
+	 * 
+	 * @param update
+	 *            the change to make
+	 * @return the registry after the update
+	 */
+	public ApplicationRegistry updateRegistry(ApplicationRegistry.Update update) {
+		while (true) {
+			ApplicationRegistry current = registry.get();
+			ApplicationRegistry.Builder builder = current.edit();
+			if (!update.apply(builder)) {
+				return current;
+			}
+			ApplicationRegistry next = builder.build();
+			if (registry.compareAndSet(current, next)) {
+				log.info("Published application registry version " + next.getVersion());
+				return next;
+			}
+		}
 	}
 	
 	/**
@@ -475,13 +1143,30 @@ public class CoffeeShop {
 		return context;
 	}
 	
+	/**
+	 * Predicts the application that will run after the current one: the
+	 * application at the head of the queue, the next application of the
+	 * playlist schedule if nothing is queued, or else the default application.
+	 * The GUI uses this to load the next application before it is switched
+	 * in.
+	 * 
+	 * @return the predicted next application
+	 */
+	public synchronized Application getPredictedNextApplication() {
+		Application next = queue.peek();
+		if (next == null) {
+			next = getApplication(schedule.peek(clock.currentTimeMillis()));
+		}
+		return next != null ? next : getDefaultApplication();
+	}
+	
 	/**
 	 * Get the default application
 	 * 
 	 * @return the configured default application
 	 */
 	public Application getDefaultApplication() {
-		return defaultApp;
+		return registry.get().getDefaultApplication();
 	}
 	
 	/**
@@ -490,8 +1175,93 @@ public class CoffeeShop {
 	 * @param a
 	 *            application to set as default
 	 */
-	public void setDefaultApplication(Application a) {
-		this.defaultApp = a;
+	public void setDefaultApplication(final Application a) {
+		updateRegistry(new ApplicationRegistry.Update() {
+			@Override
+			public boolean apply(ApplicationRegistry.Builder builder) {
+				if (builder.getDefaultApplication() == a) {
+					return false;
+				}
+				builder.setDefaultApplication(a);
+				return true;
+			}
+		});
+	}
+	
+	/**
+	 * Puts an edited copy of an application in the place of the original:
+	 * in the registry, as the running application, and in the queue, so the
+	 * coffee shop no longer holds on to the original anywhere. If the running
+	 * application moved to another topic, the old topic is unsubscribed.
+	 * 
+	 * @param original
+	 *            the application edited
+	 * @param replacement
+	 *            the edited copy
+	 * @return the registry after the update
+	 */
+	public synchronized ApplicationRegistry replaceApplication(final Application original,
+	        final Application replacement) {
+		ApplicationRegistry updated = updateRegistry(new ApplicationRegistry.Update() {
+			@Override
+			public boolean apply(ApplicationRegistry.Builder builder) {
+				boolean changed = replace(builder.getConfigured(), original, replacement);
+				changed |= replace(builder.getAvailable(), original, replacement);
+				if (builder.getDefaultApplication() == original) {
+					builder.setDefaultApplication(replacement);
+					changed = true;
+				}
+				return changed;
+			}
+		});
+		
+		if (context == original) {
+			context = replacement;
+			journal.recordContext(replacement.getApplicationShortName());
+			final String topic = original.getConnectionInfo().getTopic();
+			if (!topic.equals(replacement.getConnectionInfo().getTopic())) {
+				brokerExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						unsubscribe(topic);
+					}
+				});
+			}
+		}
+		queue.replace(original, replacement);
+		return updated;
+	}
+	
+	/*
+	 * (non-JavaDoc)
+	 * Replaces an application in a list by another. Returns true if the list
+	 * held it.
+	 */
+	private static boolean replace(List<Application> list, Application original, Application replacement) {
+		int i = list.indexOf(original);
+		if (i < 0) {
+			return false;
+		}
+		list.set(i, replacement);
+		return true;
+	}
+	
+	/**
+	 * Sends a reply to the sender of a message, e.g. an SMS. The reply is sent
+	 * in the background by the outbox.
+	 * 
+	 * @param topic
+	 *            the topic replies are published to
+	 * @param attributes
+	 *            the reply attributes
+	 */
+	public void sendReply(String topic, Map<String, String> attributes) {
+		try {
+			outbox.publish(osgiClient, topic, attributes);
+		}
+		catch (OSGiBrokerException e) {
+			log.warn("Could not send reply to topic " + topic, e);
+		}
 	}
 	
 	/**
@@ -503,6 +1273,16 @@ public class CoffeeShop {
 		return messageBoard;
 	}
 	
+	/**
+	 * Get the event fanout the displays of the applications read their
+	 * topics from
+	 * 
+	 * @return the event fanout
+	 */
+	public EventFanout getEventFanout() {
+		return eventFanout;
+	}
+	
 	/**
 	 * Get the configuration properties of the system
 	 * 
@@ -518,14 +1298,19 @@ public class CoffeeShop {
 	 * This should be used by any objects or connectors that need to easily
 	 * publish to the running application
 	 * 
+	 * The event is sent in the background by the outbox, which keeps it until
+	 * the broker is available.
+	 * 
 	 * @param attributes
 	 *            a map of string attributes to publish to the OSGiBroker
 	 * @throws OSGiBrokerException
-	 *             of publishing fails
+	 *             of publishing fails, e.g. the outbox is full
 	 */
 	public void publishEvent(Map<String, String> attributes) throws OSGiBrokerException {		
 		String topic = context.getConnectionInfo().getTopic();
-		osgiClient.publisher().sendEvent(topic, attributes);
+		localActivity = true;
+		idlePolicy.recordEvent(context.getApplicationShortName(), clock.currentTimeMillis());
+		outbox.publish(osgiClient, topic, attributes);
 	}
 	
 	/**
@@ -558,10 +1343,11 @@ public class CoffeeShop {
 			
 			// Create a common list of all the appliactions to save, from all
 			// the different categories
+			ApplicationRegistry apps = registry.get();
 			List<Application> savingapps = new ArrayList<Application>();
-			savingapps.addAll(allApps);
-			savingapps.addAll(applications);
-			savingapps.add(defaultApp);
+			savingapps.addAll(apps.getAvailableApplications());
+			savingapps.addAll(apps.getConfiguredApplications());
+			savingapps.add(apps.getDefaultApplication());
 			
 			for (Application a : savingapps) {
 				// Find the file.
@@ -604,17 +1390,76 @@ public class CoffeeShop {
 	public void shutdown() {
 		log.info("Shutting down...");
 		
-		//Unsubscribe all instances.		
-		contextTimer.cancel();
-		unsubscribe(prop.getProperty("coffeeShopMenuTopicName"));
-		unsubscribe(context.getConnectionInfo().getTopic());
-		unsubscribe(prop.getProperty("smsDefaultTopic"));
-		osgiBroker.removeClient(osgiClient.getClientId());
-		messageBoard.unsubscribe();
+		synchronized (timerLock) {
+			status = Status.STOPPED;
+			stopTimer();
+		}
+		idlePolicy.save();
+		
+		//Unsubscribe all instances. This is queued behind any subscriptions
+		//still being made on startup, and we wait for it to finish.
+		Future<?> done = brokerExecutor.submit(new Runnable() {
+			@Override
+			public void run() {
+				unsubscribe(prop.getProperty("coffeeShopMenuTopicName"));
+				unsubscribe(context.getConnectionInfo().getTopic());
+				unsubscribe(prop.getProperty("smsDefaultTopic"));
+				messageBoard.unsubscribe();
+				eventFanout.shutdown();
+			}
+		});
+		try {
+			done.get(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException e) {
+			log.error("Failed to unsubscribe from the OSGiBroker.", e.getCause());
+		}
+		catch (TimeoutException e) {
+			log.warn("Timed out unsubscribing from the OSGiBroker.");
+		}
+		
+		// Fold the journal into a snapshot so the next startup is quick
+		journal.checkpoint();
 
 		log.info("Shutdown Complete");
 	}
 	
+	/**
+	 * Closes what the coffee shop keeps open for its lifetime: the timers,
+	 * the threads working for the broker and the timers, and the message
+	 * board history. Unlike shutdown, which a restart follows, this is done
+	 * once, when the web application goes away, after shutdown. Work still
+	 * queued is given a bounded time to finish, then interrupted.
+	 */
+	public void close() {
+		timers.stop();
+		ExecutorService[] executors = { timerExecutor, brokerExecutor, brokerWorker };
+		for (ExecutorService e : executors) {
+			e.shutdown();
+		}
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(SHUTDOWN_TIMEOUT);
+		try {
+			for (ExecutorService e : executors) {
+				if (!e.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+					log.warn("Timed out waiting for the coffee shop threads to finish.");
+					break;
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (ExecutorService e : executors) {
+			e.shutdownNow();
+		}
+		if (boardHistory != null) {
+			boardHistory.close();
+		}
+	}
+	
 	/*
 	 * (non-JavaDoc)
 	 * Restart the application by un-subscribing everything, resetting
@@ -633,18 +1478,125 @@ public class CoffeeShop {
 		}
 	}
 	
+	/**
+	 * Gets the context switch metrics: the time from a switch until the
+	 * display picked it up, and the time the broker side of a switch took.
+	 * 
+	 * @return the switch latency stats
+	 */
+	public List<LatencyStats> getSwitchStats() {
+		return Arrays.asList(switchToVisible, switchEffects);
+	}
+	
+	/**
+	 * Gets the outbox sending published events to the broker.
+	 * 
+	 * @return the outbox
+	 */
+	public Outbox getOutbox() {
+		return outbox;
+	}
+	
+	/**
+	 * Gets the rate limiter of SMS and OSN senders.
+	 * 
+	 * @return the rate limiter
+	 */
+	public RateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+	
+	/**
+	 * Gets the filter of duplicate SMS and OSN messages.
+	 * 
+	 * @return the duplicate filter
+	 */
+	public DuplicateFilter getDuplicateFilter() {
+		return duplicateFilter;
+	}
+	
+	/**
+	 * Gets the moderation filter of the message board.
+	 * 
+	 * @return the moderation filter
+	 */
+	public ModerationFilter getModerationFilter() {
+		return moderation;
+	}
+	
+	/**
+	 * Gets the history of the message board.
+	 * 
+	 * @return the board history, or null if it could not be opened
+	 */
+	public BoardHistoryStore getBoardHistory() {
+		return boardHistory;
+	}
+	
+	/**
+	 * Gets the search index of the message board history.
+	 * 
+	 * @return the board search index, or null if there is no history
+	 */
+	public BoardSearchIndex getBoardIndex() {
+		return boardIndex;
+	}
+	
+	/**
+	 * Gets the channels of the message board.
+	 * 
+	 * @return the board channels, or null if there is no history
+	 */
+	public BoardChannels getBoardChannels() {
+		return boardChannels;
+	}
+	
+	/**
+	 * Gets the timer wheel the deadlines of the coffee shop run on.
+	 * 
+	 * @return the timer wheel
+	 */
+	public TimerWheel getTimers() {
+		return timers;
+	}
+	
+	/**
+	 * Gets the runtime status of the coffee shop.
+	 * 
+	 * @return the current status
+	 */
+	public Status getStatus() {
+		return status;
+	}
+	
+	/**
+	 * Determines whether the coffee shop has finished subscribing with the
+	 * OSGiBroker.
+	 * 
+	 * @return true if the coffee shop is running
+	 */
+	public boolean isReady() {
+		return status == Status.RUNNING;
+	}
+	
 	/**
 	 * Sets new configuration flag. If flag is true, restarts the appliction
 	 * with new configuration.
 	 * 
+	 * The restart is made without holding the lock of the coffee shop, as
+	 * shutting down waits for the broker thread, which may be about to take
+	 * that lock for a context switch.
+	 * 
 	 * @param flag
 	 *            true if a new configuration is available, false if the
 	 *            configuration reset has been acknowledged.
 	 */
-	public synchronized void setNewConfiguration(boolean flag) {
+	public void setNewConfiguration(boolean flag) {
 		if (flag) {
-			this.newConfiguration = true;
-			restart();
+			synchronized (restartLock) {
+				this.newConfiguration = true;
+				restart();
+			}
 		}
 		else {
 			this.newConfiguration = false;
@@ -667,15 +1619,78 @@ public class CoffeeShop {
 	 * been sent to the current topic since the last time it checked. If there
 	 * are new events, the application continues to run happily. Otherwise, a
 	 * context switch is performed, and a new application is loaded.
+	 * 
+	 * Asking the broker can wait on it, so that is done on the broker thread,
+	 * in turn with the subscriptions, and not on the timer threads.
 	 */
-	private class ContextSwitchTask extends TimerTask {
+	private class ContextSwitchTask implements Runnable {
+		
+		/* Set while a check is waiting for or running on the broker thread */
+		private final AtomicBoolean checking = new AtomicBoolean();
 		
 		@Override
 		public void run() {
+			// A tick handed out just before the timer was replaced belongs to
+			// the application that was switched out
+			if (status != Status.RUNNING || contextTask != this) {
+				return;
+			}
+			
+			// While the broker is down, don't call it (and wait on it). Go by
+			// the activity seen by the coffee shop.
+			if (!osgiClient.isAvailable()) {
+				boolean active = localActivity;
+				localActivity = false;
+				switchIfIdle(active);
+				return;
+			}
+			if (!checking.compareAndSet(false, true)) {
+				// The last check is still waiting on the broker
+				return;
+			}
+			try {
+				brokerExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							checkBroker();
+						}
+						finally {
+							checking.set(false);
+						}
+					}
+				});
+			}
+			catch (RejectedExecutionException e) {
+				// Shut down in the meantime
+				checking.set(false);
+			}
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * Checks the topic of the running application for events, on the
+		 * broker thread.
+		 */
+		private void checkBroker() {
+			if (status != Status.RUNNING || contextTask != this) {
+				return;
+			}
+			boolean active = localActivity;
+			localActivity = false;
+			if (!osgiClient.isAvailable()) {
+				switchIfIdle(active);
+				return;
+			}
 			try {
 				boolean isDefault = context.getConnectionInfo().getConnectorClass().equals(
 				        DefaultConnector.class.getName());
-				TopicEvent[] events = osgiClient.subscriber().getEvents(context.getConnectionInfo().getTopic(), 1);
+				TopicEvent[] events = osgiClient.getEvents(context.getConnectionInfo().getTopic(), 1);
+				if (events.length > 0) {
+					// When these events arrived is not known; only that they
+					// did, some time since the last check
+					idlePolicy.recordActivity(context.getApplicationShortName());
+				}
 				if (isDefault && events.length == 0) {
 					doContextSwitch();
 				}
@@ -688,9 +1703,22 @@ public class CoffeeShop {
 				}
 			}
 			catch (OSGiBrokerException e) {
-				log.warn("Could not check for events during context switch.", e);
+				log.warn("Could not check for events during context switch, using local activity.", e);
+				switchIfIdle(active);
+			}
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * Switches unless the coffee shop itself saw activity for the running
+		 * application since the last tick: events published to it, or events
+		 * received by its custom connector.
+		 */
+		private void switchIfIdle(boolean active) {
+			if (!active && !customAppEvent) {
 				doContextSwitch();
 			}
+			customAppEvent = false;
 		}
 		
 	}
@@ -704,5 +1732,14 @@ public class CoffeeShop {
 	 */
 	public void notifyCustomEvent() {
 		customAppEvent = true;
+		localActivity = true;
+		idlePolicy.recordEvent(context.getApplicationShortName(), clock.currentTimeMillis());
+	}
+	
+	/**
+	 * @return the policy deciding how long applications may sit idle
+	 */
+	public IdlePolicy getIdlePolicy() {
+		return idlePolicy;
 	}
 }
@@ -0,0 +1,169 @@
+package ca.ubc.magic.coffeeshop.classes;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * DuplicateFilter
+ * 
+ * @version 1.0
+ * 
+ *          Recognizes messages seen a short while ago: the same text from the
+ *          same sender, sent twice by the user or delivered twice by the
+ *          broker.
+ * 
+ *          The filter is a pair of Bloom filters. Messages are added to the
+ *          current one and looked up in both. Once per window the current
+ *          filter becomes the previous one, and the previous one is cleared
+ *          for reuse; so a message is remembered for one to two windows. The
+ *          filters are sized once for the expected number of messages per
+ *          window and the false positive rate wanted, and their memory stays
+ *          the same however many messages come in. Past the expected volume
+ *          the false positive rate goes up instead.
+ * 
+ *          A false positive drops a message that was not a duplicate; a
+ *          duplicate is never let through within the window.
+ */
+public class DuplicateFilter {
+	
+	private final long windowNanos;
+	private final int bits;
+	private final int hashes;
+	
+	private long[] current;
+	private long[] previous;
+	private long rotateAt;
+	
+	/* Statistics */
+	private final AtomicLong checked = new AtomicLong();
+	private final AtomicLong duplicates = new AtomicLong();
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param windowMillis
+	 *            how long messages are remembered at least, in milliseconds
+	 * @param expected
+	 *            the number of messages expected in one window
+	 * @param falsePositiveRate
+	 *            the rate of new messages wrongly taken for duplicates, at the
+	 *            expected volume
+	 */
+	public DuplicateFilter(long windowMillis, int expected, double falsePositiveRate) {
+		double n = Math.max(1, expected);
+		double p = Math.min(0.5, Math.max(1e-9, falsePositiveRate));
+		long m = (long) Math.ceil(-n * Math.log(p) / (Math.log(2) * Math.log(2)));
+		this.bits = (int) Math.min(Integer.MAX_VALUE - 63, Math.max(64, m));
+		this.hashes = Math.max(1, (int) Math.round(bits / n * Math.log(2)));
+		this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+		this.current = new long[(bits + 63) / 64];
+		this.previous = new long[current.length];
+		this.rotateAt = System.nanoTime() + windowNanos;
+	}
+	
+	/**
+	 * Checks whether a message was seen within the window, and remembers it.
+	 * 
+	 * @param sender
+	 *            the sender of the message
+	 * @param payload
+	 *            the text of the message
+	 * @return true if the message is (probably) a duplicate
+	 */
+	public boolean isDuplicate(String sender, String payload) {
+		if (sender == null) {
+			sender = "";
+		}
+		if (payload == null) {
+			payload = "";
+		}
+		int h1 = hash(sender, payload, 0x811C9DC5);
+		int h2 = hash(sender, payload, 0x01000193) | 1;
+		
+		boolean seen;
+		synchronized (this) {
+			long now = System.nanoTime();
+			if (now - rotateAt >= 0) {
+				rotate(now);
+			}
+			
+			boolean inCurrent = true;
+			boolean inPrevious = true;
+			for (int i = 0; i < hashes; i++) {
+				int bit = ((h1 + i * h2) & 0x7fffffff) % bits;
+				long mask = 1L << bit;
+				int word = bit >>> 6;
+				inCurrent &= (current[word] & mask) != 0;
+				inPrevious &= (previous[word] & mask) != 0;
+				current[word] |= mask;
+			}
+			seen = inCurrent || inPrevious;
+		}
+		
+		checked.incrementAndGet();
+		if (seen) {
+			duplicates.incrementAndGet();
+		}
+		return seen;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Starts a new window. If more than a window went by without a message,
+	 * everything is forgotten.
+	 */
+	private void rotate(long now) {
+		long[] cleared = previous;
+		Arrays.fill(cleared, 0);
+		if (now - rotateAt >= windowNanos) {
+			Arrays.fill(current, 0);
+		}
+		previous = current;
+		current = cleared;
+		rotateAt = now + windowNanos;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * FNV-1a style hash of the sender and payload, from a seed, mixed at the
+	 * end. Works on the characters directly, so nothing is allocated.
+	 */
+	private static int hash(String sender, String payload, int seed) {
+		int h = seed;
+		for (int i = 0; i < sender.length(); i++) {
+			h = (h ^ sender.charAt(i)) * 0x01000193;
+		}
+		h = (h ^ 0xFFFF) * 0x01000193;
+		for (int i = 0; i < payload.length(); i++) {
+			h = (h ^ payload.charAt(i)) * 0x01000193;
+		}
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+		return h;
+	}
+	
+	/**
+	 * @return the memory the filter takes, in bytes
+	 */
+	public long getMemoryBytes() {
+		return 2L * current.length * 8;
+	}
+	
+	/**
+	 * @return the number of messages checked
+	 */
+	public long getChecked() {
+		return checked.get();
+	}
+	
+	/**
+	 * @return the number of messages found to be duplicates
+	 */
+	public long getDuplicates() {
+		return duplicates.get();
+	}
+}
@@ -0,0 +1,366 @@
+package ca.ubc.magic.coffeeshop.classes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+import ca.ubc.magic.osgibroker.OSGiBrokerException;
+import ca.ubc.magic.osgibroker.workgroups.TopicEvent;
+
+/**
+ * EventFanout
+ * 
+ * @version 1.0
+ * 
+ *          Hands the events of application topics to the displays of the
+ *          applications. Before, every display polled the OSGiBroker itself,
+ *          so the broker was polled once a second for every screen showing an
+ *          application.
+ * 
+ *          Now the coffee shop subscribes to a topic once, when a display
+ *          first reads it, and polls the broker for it on a thread of its own.
+ *          The events received are numbered and kept in a ring buffer, and
+ *          every display reads them from there with a cursor: the number of
+ *          the last event it has seen. The broker is polled the same whatever
+ *          the number of screens.
+ * 
+ *          A topic nobody has read for a while is unsubscribed from, and its
+ *          thread ends. Only the topics configured may be read, so that the
+ *          displays can not make the coffee shop subscribe to anything else.
+ *          A topic read again while it is being unsubscribed from gets a new
+ *          feed at once, which subscribes once the unsubscribe is done. No
+ *          call to the broker is made holding the lock of the feeds.
+ * 
+ *          A listener is told when events arrive, which lets the coffee shop
+ *          see the activity of an application as it happens.
+ */
+public class EventFanout {
+	
+	/* Time the broker holds a poll of a topic, in seconds */
+	private static final int POLL_TIMEOUT = 3;
+	
+	/* Time to wait after a failed poll, in milliseconds */
+	private static final long RETRY_INTERVAL = 1000;
+	
+	private final Logger log = Logger.getLogger(EventFanout.class);
+	private final BrokerClient client;
+	private final Set<String> topics;
+	private final int capacity;
+	private final long idleTimeout;
+	private final Listener listener;
+	private final Map<String, Feed> feeds = new HashMap<String, Feed>();
+	/* Topics being unsubscribed from, counted down when done; guarded by feeds */
+	private final Map<String, CountDownLatch> stopping = new HashMap<String, CountDownLatch>();
+	private volatile boolean stopped = false;
+	
+	private final ExecutorService pollers = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "CoffeeShop-fanout");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param client
+	 *            the client the topics are subscribed to with; it should be
+	 *            used for nothing else, as polling takes the events from it
+	 * @param topics
+	 *            the topics that may be read
+	 * @param capacity
+	 *            the number of events kept for each topic
+	 * @param idleTimeout
+	 *            time after the last read of a topic it is unsubscribed from,
+	 *            in milliseconds
+	 * @param listener
+	 *            told when events arrive, or null
+	 */
+	public EventFanout(BrokerClient client, Collection<String> topics, int capacity, long idleTimeout,
+	        Listener listener) {
+		this.client = client;
+		this.topics = new HashSet<String>(topics);
+		this.capacity = Math.max(1, capacity);
+		this.idleTimeout = idleTimeout;
+		this.listener = listener;
+	}
+	
+	/**
+	 * @param topic
+	 *            a topic
+	 * @return true if the topic may be read
+	 */
+	public boolean isTopic(String topic) {
+		return topics.contains(topic);
+	}
+	
+	/**
+	 * Writes the events of a topic received after a given event, oldest
+	 * first. If there are none yet, waits up to the given time for one.
+	 * 
+	 * A reader without a cursor gets no events, only the cursor to read the
+	 * next events with. So does a reader whose cursor is ahead of the topic,
+	 * e.g. after a restart of the coffee shop.
+	 * 
+	 * @param topic
+	 *            the topic
+	 * @param since
+	 *            number of the last event already seen, or -1 for none
+	 * @param wait
+	 *            the longest time to wait for an event, in milliseconds
+	 * @param format
+	 *            the format of the events
+	 * @param out
+	 *            the sink the events are written to
+	 * @return the number of the last event written, the cursor for the next
+	 *         read
+	 * @throws IOException
+	 *             if the events can not be written
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 */
+	public long read(String topic, long since, long wait, BoardPost.Format format, BoardPost.EventSink out)
+	        throws IOException, InterruptedException {
+		if (!isTopic(topic)) {
+			throw new IllegalArgumentException("Not a topic of the event fanout: " + topic);
+		}
+		Feed feed = getFeed(topic);
+		BoardPost[] events = feed.since(since, wait);
+		if (events.length == 0) {
+			return feed.getSequence();
+		}
+		for (BoardPost event : events) {
+			byte[] data = event.getEvent(format);
+			out.event(data, 0, data.length);
+		}
+		return events[events.length - 1].getSequence();
+	}
+	
+	/**
+	 * @return the number of topics subscribed to
+	 */
+	public int size() {
+		synchronized (feeds) {
+			return feeds.size();
+		}
+	}
+	
+	/**
+	 * Stops polling, and unsubscribes from all the topics. This blocks on the
+	 * broker.
+	 */
+	public void shutdown() {
+		List<Feed> running;
+		synchronized (feeds) {
+			stopped = true;
+			running = new ArrayList<Feed>(feeds.values());
+			feeds.clear();
+		}
+		pollers.shutdownNow();
+		for (Feed feed : running) {
+			feed.stop();
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Gets the feed of a topic, subscribing to the topic if it has none.
+	 */
+	private Feed getFeed(String topic) {
+		synchronized (feeds) {
+			Feed feed = feeds.get(topic);
+			if (feed == null) {
+				feed = new Feed(topic, stopping.get(topic));
+				if (stopped) {
+					// Nothing is polled once shut down
+					return feed;
+				}
+				feeds.put(topic, feed);
+				pollers.execute(feed);
+			}
+			feed.lastRead = System.currentTimeMillis();
+			return feed;
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * The subscription to one topic, and its latest events.
+	 */
+	private class Feed implements Runnable {
+		
+		private final String topic;
+		private final BoardPost[] events = new BoardPost[capacity];
+		private long sequence = 0;
+		
+		/* The unsubscribe of the feed before this one, or null */
+		private final CountDownLatch previous;
+		
+		/* Guarded by feeds */
+		long lastRead;
+		
+		Feed(String topic, CountDownLatch previous) {
+			this.topic = topic;
+			this.previous = previous;
+		}
+		
+		@Override
+		public void run() {
+			if (previous != null) {
+				try {
+					previous.await();
+				}
+				catch (InterruptedException e) {
+					// Shut down
+					return;
+				}
+			}
+			subscribe();
+			CountDownLatch stopped;
+			while (true) {
+				if (Thread.currentThread().isInterrupted()) {
+					// Shut down; unsubscribed by shutdown()
+					return;
+				}
+				synchronized (feeds) {
+					if (feeds.get(topic) != this) {
+						// Shut down; the subscription is not ours to end
+						return;
+					}
+					if (System.currentTimeMillis() - lastRead > idleTimeout) {
+						// A new feed of the topic subscribes once this one
+						// has unsubscribed
+						feeds.remove(topic);
+						stopped = new CountDownLatch(1);
+						stopping.put(topic, stopped);
+						break;
+					}
+				}
+				try {
+					add(client.getEvents(topic, POLL_TIMEOUT));
+				}
+				catch (OSGiBrokerException e) {
+					log.debug("Could not poll " + topic + " for the event fanout.", e);
+					try {
+						Thread.sleep(RETRY_INTERVAL);
+					}
+					catch (InterruptedException ie) {
+						// Shut down; unsubscribed by shutdown()
+						return;
+					}
+					// The broker may have lost the subscription, e.g. on a restart
+					if (client.isAvailable()) {
+						subscribe();
+					}
+				}
+			}
+			try {
+				stop();
+			}
+			finally {
+				synchronized (feeds) {
+					if (stopping.get(topic) == stopped) {
+						stopping.remove(topic);
+					}
+				}
+				stopped.countDown();
+			}
+		}
+		
+		private void subscribe() {
+			try {
+				client.subscribeHttp(topic);
+				log.info("Fanning out events of " + topic);
+			}
+			catch (OSGiBrokerException e) {
+				if (e.getStatus() != 409) {
+					log.warn("Could not subscribe to OSGiBroker topic " + topic + " for the event fanout.", e);
+				}
+			}
+		}
+		
+		private void add(TopicEvent[] received) {
+			if (received == null || received.length == 0) {
+				return;
+			}
+			long time = System.currentTimeMillis();
+			synchronized (this) {
+				for (TopicEvent e : received) {
+					sequence++;
+					events[(int) (sequence % events.length)] = BoardPost.fromEvent(e, sequence, time);
+				}
+				notifyAll();
+			}
+			if (listener != null) {
+				listener.received(topic, received.length);
+			}
+		}
+		
+		synchronized long getSequence() {
+			return sequence;
+		}
+		
+		/*
+		 * The events after a sequence number, oldest first, waiting for one
+		 * if there are none.
+		 */
+		synchronized BoardPost[] since(long since, long wait) throws InterruptedException {
+			if (since < 0 || since > sequence) {
+				return new BoardPost[0];
+			}
+			long deadline = System.currentTimeMillis() + wait;
+			long left = wait;
+			while (sequence == since && left > 0) {
+				wait(left);
+				left = deadline - System.currentTimeMillis();
+			}
+			long first = Math.max(since, sequence - events.length);
+			BoardPost[] out = new BoardPost[(int) (sequence - first)];
+			for (int i = 0; i < out.length; i++) {
+				out[i] = events[(int) ((first + 1 + i) % events.length)];
+			}
+			return out;
+		}
+		
+		void stop() {
+			try {
+				client.unsubscribeHttp(topic);
+				log.info("Stopped fanning out events of " + topic);
+			}
+			catch (OSGiBrokerException e) {
+				log.warn("Could not unsubscribe from OSGiBroker topic " + topic + " for the event fanout.", e);
+			}
+		}
+	}
+	
+	/**
+	 * Listener
+	 * 
+	 *          Told of the events of a topic as they arrive.
+	 */
+	public interface Listener {
+		
+		/**
+		 * Called on the polling thread of a topic when events arrive.
+		 * 
+		 * @param topic
+		 *            the topic
+		 * @param count
+		 *            the number of events
+		 */
+		void received(String topic, int count);
+	}
+}
@@ -0,0 +1,379 @@
+package ca.ubc.magic.coffeeshop.classes;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+import ca.ubc.magic.coffeeshop.jaxb.Application;
+
+/**
+ * IdlePolicy
+ * 
+ * @version 1.0
+ * 
+ *          Decides how long an application may sit without activity before it
+ *          can be switched out, from how the application has been used.
+ * 
+ *          For every application the policy keeps an exponential moving
+ *          average of the gap between events while it runs, and of the length
+ *          of its sessions. The idle time of an application is a multiple of
+ *          its average event gap, but no longer than its average session,
+ *          kept within the bounds set in the configuration. A busy application
+ *          with quick bursts of events is therefore not switched out between
+ *          bursts, an application is not kept waiting for its next event
+ *          longer than it is usually used for, and an application whose last
+ *          session saw no events at all gets the lower bound. A session lasts
+ *          at least its final idle time, so the cap only bites where a few
+ *          sparse events made the gap out of line with how the application is
+ *          used. Applications without enough history use the minimum idle
+ *          time of their descriptor.
+ * 
+ *          Only events whose arrival time is known go into the average gap:
+ *          events published through the coffee shop, received by a custom
+ *          connector, or polled by the event fanout. Events the context check
+ *          finds waiting at the broker only show that the session was active;
+ *          the gap between them would be the period of the check, which
+ *          depends on the idle time itself.
+ * 
+ *          The statistics are saved to a properties file after every context
+ *          switch and on shutdown, and loaded again on startup.
+ */
+public class IdlePolicy {
+	
+	private final Logger log = Logger.getLogger(IdlePolicy.class);
+	
+	private final File file;
+	private final boolean enabled;
+	private final double smoothing;
+	private final double gapMultiplier;
+	private final int minIdleTime;
+	private final int maxIdleTime;
+	
+	private final Map<String, Stats> stats = new TreeMap<String, Stats>();
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param file
+	 *            the file the statistics are kept in
+	 * @param enabled
+	 *            false to always use the idle time of the descriptors
+	 * @param smoothing
+	 *            weight of a new sample in the moving averages, between 0 and 1
+	 * @param gapMultiplier
+	 *            the idle time as a multiple of the average event gap
+	 * @param minIdleTime
+	 *            lower bound of the idle time, in seconds
+	 * @param maxIdleTime
+	 *            upper bound of the idle time, in seconds
+	 */
+	public IdlePolicy(File file, boolean enabled, double smoothing, double gapMultiplier, int minIdleTime,
+	        int maxIdleTime) {
+		this.file = file;
+		this.enabled = enabled;
+		this.smoothing = Math.min(1, Math.max(0.01, smoothing));
+		this.gapMultiplier = gapMultiplier;
+		this.minIdleTime = minIdleTime;
+		this.maxIdleTime = Math.max(minIdleTime, maxIdleTime);
+	}
+	
+	/**
+	 * Loads the statistics saved before. Missing or unreadable statistics are
+	 * ignored; the policy starts without history.
+	 */
+	public synchronized void load() {
+		if (!file.isFile()) {
+			return;
+		}
+		Properties p = new Properties();
+		try {
+			InputStream is = new FileInputStream(file);
+			try {
+				p.load(is);
+			}
+			finally {
+				is.close();
+			}
+		}
+		catch (IOException e) {
+			log.warn("Could not read idle statistics from " + file.getAbsolutePath(), e);
+			return;
+		}
+		
+		for (String key : p.stringPropertyNames()) {
+			if (!key.endsWith(".gap")) {
+				continue;
+			}
+			String name = key.substring(0, key.length() - 4);
+			try {
+				Stats s = get(name);
+				s.gapAverage = Double.parseDouble(p.getProperty(name + ".gap"));
+				s.sessionAverage = Double.parseDouble(p.getProperty(name + ".session", "0"));
+				s.events = Long.parseLong(p.getProperty(name + ".events", "0"));
+				s.sessions = Long.parseLong(p.getProperty(name + ".sessions", "0"));
+				s.idleLastSession = Boolean.parseBoolean(p.getProperty(name + ".idleLastSession", "false"));
+			}
+			catch (NumberFormatException e) {
+				log.warn("Ignoring malformed idle statistics for " + name);
+				stats.remove(name);
+			}
+		}
+	}
+	
+	/**
+	 * Saves the statistics. The file is replaced in one step, so a crash
+	 * while saving leaves the previous statistics in place.
+	 */
+	public synchronized void save() {
+		Properties p = new Properties();
+		for (Stats s : stats.values()) {
+			p.setProperty(s.name + ".gap", Double.toString(s.gapAverage));
+			p.setProperty(s.name + ".session", Double.toString(s.sessionAverage));
+			p.setProperty(s.name + ".events", Long.toString(s.events));
+			p.setProperty(s.name + ".sessions", Long.toString(s.sessions));
+			p.setProperty(s.name + ".idleLastSession", Boolean.toString(s.idleLastSession));
+		}
+		
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			OutputStream os = new FileOutputStream(tmp);
+			try {
+				p.store(os, "CoffeeShop idle statistics");
+			}
+			finally {
+				os.close();
+			}
+			if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+				throw new IOException("Could not replace " + file.getAbsolutePath());
+			}
+		}
+		catch (IOException e) {
+			log.warn("Could not save idle statistics.", e);
+		}
+	}
+	
+	/**
+	 * Records that an application started running.
+	 * 
+	 * @param shortName
+	 *            the application short name
+	 * @param now
+	 *            the time, in milliseconds
+	 */
+	public synchronized void startSession(String shortName, long now) {
+		Stats s = get(shortName);
+		s.sessionStart = now;
+		s.lastEvent = now;
+		s.sessionEvents = 0;
+	}
+	
+	/**
+	 * Records that an application stopped running.
+	 * 
+	 * @param shortName
+	 *            the application short name
+	 * @param now
+	 *            the time, in milliseconds
+	 */
+	public synchronized void endSession(String shortName, long now) {
+		Stats s = get(shortName);
+		if (s.sessionStart == 0) {
+			return;
+		}
+		s.sessionAverage = average(s.sessionAverage, now - s.sessionStart, s.sessions);
+		s.sessions++;
+		s.idleLastSession = s.sessionEvents == 0;
+		s.sessionStart = 0;
+	}
+	
+	/**
+	 * Records activity of the running application.
+	 * 
+	 * @param shortName
+	 *            the application short name
+	 * @param now
+	 *            the time, in milliseconds
+	 */
+	public void recordEvent(String shortName, long now) {
+		recordEvents(shortName, 1, now);
+	}
+	
+	/**
+	 * Records events of the running application that arrived together. They
+	 * are taken to be spread evenly over the time since the last event.
+	 * 
+	 * @param shortName
+	 *            the application short name
+	 * @param count
+	 *            the number of events
+	 * @param now
+	 *            the time they arrived, in milliseconds
+	 */
+	public synchronized void recordEvents(String shortName, int count, long now) {
+		Stats s = get(shortName);
+		if (s.sessionStart == 0 || count <= 0) {
+			return;
+		}
+		long gap = Math.max(0, now - s.lastEvent) / count;
+		for (int i = 0; i < count; i++) {
+			s.gapAverage = average(s.gapAverage, gap, s.events);
+			s.events++;
+		}
+		s.sessionEvents += count;
+		s.lastEvent = now;
+	}
+	
+	/**
+	 * Records that the running application had events at some time not
+	 * known, e.g. found waiting at the broker when checking for activity.
+	 * The session counts as active, but the event gap is only learned from
+	 * events whose time is known.
+	 * 
+	 * @param shortName
+	 *            the application short name
+	 */
+	public synchronized void recordActivity(String shortName) {
+		Stats s = get(shortName);
+		if (s.sessionStart != 0) {
+			s.sessionEvents++;
+		}
+	}
+	
+	/**
+	 * Gets the time an application may sit idle before it is switched out.
+	 * 
+	 * @param a
+	 *            the application
+	 * @return the idle time, in seconds
+	 */
+	public synchronized int getIdleTime(Application a) {
+		return idleTime(stats.get(a.getApplicationShortName()), a.getMinumumIdleTime());
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * The idle time from the statistics of an application, or the idle time
+	 * of its descriptor if the policy is off or the statistics are too few.
+	 */
+	private int idleTime(Stats s, int descriptorIdleTime) {
+		if (!enabled || s == null || s.events < 2) {
+			return descriptorIdleTime;
+		}
+		if (s.idleLastSession) {
+			return minIdleTime;
+		}
+		double millis = gapMultiplier * s.gapAverage;
+		if (s.sessions > 0) {
+			millis = Math.min(millis, s.sessionAverage);
+		}
+		long seconds = Math.round(millis / 1000);
+		return (int) Math.min(maxIdleTime, Math.max(minIdleTime, seconds));
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Moving average. The first sample is taken as it is.
+	 */
+	private double average(double average, long sample, long samples) {
+		return samples == 0 ? sample : average + smoothing * (sample - average);
+	}
+	
+	private Stats get(String shortName) {
+		Stats s = stats.get(shortName);
+		if (s == null) {
+			s = new Stats(shortName);
+			stats.put(shortName, s);
+		}
+		return s;
+	}
+	
+	/**
+	 * Gets a copy of the statistics of all applications.
+	 * 
+	 * @return the statistics, by application short name
+	 */
+	public synchronized List<Stats> getStats() {
+		List<Stats> list = new ArrayList<Stats>();
+		for (Stats s : stats.values()) {
+			Stats copy = new Stats(s.name);
+			copy.gapAverage = s.gapAverage;
+			copy.sessionAverage = s.sessionAverage;
+			copy.events = s.events;
+			copy.sessions = s.sessions;
+			copy.idleLastSession = s.idleLastSession;
+			copy.idleTime = idleTime(s, 0);
+			list.add(copy);
+		}
+		return list;
+	}
+	
+	/**
+	 * Stats
+	 * 
+	 *          Usage statistics of one application.
+	 */
+	public static class Stats {
+		
+		private final String name;
+		private double gapAverage;
+		private double sessionAverage;
+		private long events;
+		private long sessions;
+		private boolean idleLastSession;
+		private int idleTime;
+		
+		/* Current session, not saved */
+		private long sessionStart;
+		private long lastEvent;
+		private long sessionEvents;
+		
+		private Stats(String name) {
+			this.name = name;
+		}
+		
+		public String getName() {
+			return name;
+		}
+		
+		/**
+		 * @return the average gap between events, in milliseconds
+		 */
+		public double getGapAverage() {
+			return gapAverage;
+		}
+		
+		/**
+		 * @return the average session length, in milliseconds
+		 */
+		public double getSessionAverage() {
+			return sessionAverage;
+		}
+		
+		public long getEvents() {
+			return events;
+		}
+		
+		public long getSessions() {
+			return sessions;
+		}
+		
+		/**
+		 * @return the idle time the policy derives from these statistics, in
+		 *         seconds, or 0 if the application goes by the idle time of
+		 *         its descriptor
+		 */
+		public int getIdleTime() {
+			return idleTime;
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package ca.ubc.magic.coffeeshop.classes;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LatencyStats
+ * 
+ * @version 1.0
+ * 
+ *          Running latency figures for one kind of operation: how many calls
+ *          were made, how many failed, and their mean and worst time. Safe to
+ *          update from any number of threads.
+ */
+public class LatencyStats {
+	
+	private final String name;
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param name
+	 *            name of the operation measured, used when printing the stats
+	 */
+	public LatencyStats(String name) {
+		this.name = name;
+	}
+	
+	/**
+	 * Records one call.
+	 * 
+	 * @param startNanos
+	 *            value of System.nanoTime() when the call started
+	 * @param failed
+	 *            true if the call failed
+	 */
+	public void record(long startNanos, boolean failed) {
+		long elapsed = System.nanoTime() - startNanos;
+		count.incrementAndGet();
+		if (failed) {
+			errors.incrementAndGet();
+		}
+		totalNanos.addAndGet(elapsed);
+		
+		long max = maxNanos.get();
+		while (elapsed > max && !maxNanos.compareAndSet(max, elapsed)) {
+			max = maxNanos.get();
+		}
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public long getCount() {
+		return count.get();
+	}
+	
+	public long getErrors() {
+		return errors.get();
+	}
+	
+	/**
+	 * @return the mean time of a call in milliseconds, or 0 if no calls were
+	 *         made
+	 */
+	public double getMeanMillis() {
+		long n = count.get();
+		return n == 0 ? 0 : totalNanos.get() / (n * 1000000.0);
+	}
+	
+	/**
+	 * @return the longest time a call took in milliseconds
+	 */
+	public double getMaxMillis() {
+		return maxNanos.get() / 1000000.0;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%s: count=%d errors=%d mean=%.1fms max=%.1fms", name, getCount(), getErrors(),
+		        getMeanMillis(), getMaxMillis());
+	}
+}
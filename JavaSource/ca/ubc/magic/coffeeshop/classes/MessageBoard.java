@@ -1,16 +1,15 @@
 package ca.ubc.magic.coffeeshop.classes;
 
-import java.util.Arrays;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Properties;
 
 import org.apache.log4j.Logger;
 
-import ca.ubc.magic.osgibroker.OSGiBrokerClient;
 import ca.ubc.magic.osgibroker.OSGiBrokerException;
-import ca.ubc.magic.osgibroker.OSGiBrokerService;
 import ca.ubc.magic.osgibroker.workgroups.TopicEvent;
 
 /**
@@ -30,11 +29,25 @@ import ca.ubc.magic.osgibroker.workgroups.TopicEvent;
 public class MessageBoard {
 	
 	/* OSGiBroker information */
-	private OSGiBrokerService osgiBroker;
-	private OSGiBrokerClient client;
+	private BrokerClient client;
 	private String topic;
 	private String smstopic;
 	
+	/* Sends posts to the broker in the background */
+	private Outbox outbox;
+	
+	/* Keeps blocked words off the board */
+	private ModerationFilter moderation;
+	
+	/* Every post made through this board, on disk; null if it could not be opened */
+	private BoardHistoryStore history;
+	
+	/* Finds posts in the history by the words in them */
+	private BoardSearchIndex index;
+	
+	/* The latest posts of each #tag */
+	private BoardChannels channels;
+	
 	/* log4j Logger */
 	private final Logger log = Logger.getLogger(MessageBoard.class);
 	
@@ -46,15 +59,32 @@ public class MessageBoard {
 	 * Client it requuired so that it is registered with the coffee shop client,
 	 * mostly to kepp things consistent.
 	 * 
-	 * @param client
-	 *            the previously registered OSGiBroker client
-	 * @param topic
-	 *            the name of the topic for the message board
+	 * @param prop
+	 *            the coffee shop configuration properties
+	 * @param outbox
+	 *            the outbox sending posts to the broker
+	 * @param moderation
+	 *            the filter posts are checked against
+	 * @param history
+	 *            the store keeping the history of the board, or null to keep
+	 *            no history
+	 * @param index
+	 *            the search index of the history, or null without history
+	 * @param channels
+	 *            the channels posts are routed to by their tags, or null
+	 *            without history
 	 */
-	public MessageBoard (Properties prop) {
-		this.osgiBroker = new OSGiBrokerService(prop.getProperty("osgiHost") + ":" + prop.getProperty("osgiPort"));
-		this.client = osgiBroker.addClient(prop.getProperty("messageBoardClientName")); //TODO: unchecked
+	public MessageBoard (Properties prop, Outbox outbox, ModerationFilter moderation,
+	        BoardHistoryStore history, BoardSearchIndex index, BoardChannels channels) {
+		this.client = BrokerTransport.getInstance().createClient(
+		        prop.getProperty("osgiHost") + ":" + prop.getProperty("osgiPort"),
+		        prop.getProperty("messageBoardClientName"));
 		this.topic = prop.getProperty("messageBoardTopicName");
+		this.outbox = outbox;
+		this.moderation = moderation;
+		this.history = history;
+		this.index = index;
+		this.channels = channels;
 	}
 	
 	/**
@@ -62,7 +92,7 @@ public class MessageBoard {
 	 */
 	public void subscribe() {
 		try {
-			client.subscriber().subscribeHttp(topic, false);
+			client.subscribeHttp(topic);
 			log.info("Successfully subscribed");
 		}
 		catch (OSGiBrokerException e) {
@@ -80,7 +110,7 @@ public class MessageBoard {
 	 */
 	public void unsubscribe() {
 		try {
-			client.subscriber().unsubscribeHttp(topic);
+			client.unsubscribeHttp(topic);
 			log.info("Successfully unsubscribed");
 		}
 		catch (OSGiBrokerException e) {
@@ -99,31 +129,146 @@ public class MessageBoard {
 	 * time.
 	 * If no messages exist, an empty list is returned.
 	 * 
-	 * @return a list of messages new TopicEvent objects, or an empty list if
-	 *         there are no new messages
+	 * The messages are rendered for the GUI as they are received, stamped
+	 * with the time they were received.
+	 * 
+	 * @return a list of the new messages, or an empty list if there are no new
+	 *         messages
 	 */
-	public List<TopicEvent> getNewMessages() {
+	public List<BoardPost> getNewMessages() {
 		TopicEvent[] events = null;
 		try {
-			events = client.subscriber().getEvents(topic, 3);
+			events = client.getEvents(topic, 3);
 		}
 		catch (OSGiBrokerException e) {
 			log.error("Could nor recieve events from OSGiBroker.", e);
 		}
 		
-		return Arrays.asList(events);
+		// No events if the broker could not be reached, e.g. while the coffee
+		// shop is still subscribing on startup
+		if (events == null) {
+			return Collections.emptyList();
+		}
+		long received = System.currentTimeMillis();
+		List<BoardPost> posts = new ArrayList<BoardPost>(events.length);
+		for (TopicEvent e : events) {
+			posts.add(BoardPost.fromEvent(e, received));
+		}
+		return posts;
 	}
 	
 	/**
 	 * Sends a new event (or message) to the OSGiBroker on the message board
-	 * topic.
+	 * topic. The message is sent in the background by the outbox, which keeps
+	 * it until the broker is available.
+	 * 
+	 * Messages holding a word on the moderation blocklist are not sent.
 	 * 
 	 * @param attributes
 	 *            attributes to be displayed in the message
+	 * @return true if the message was sent, false if moderation refused it
 	 * @throws OSGiBrokerException
 	 *             if sending the message to the OSGiBroker fails
 	 */
-	public void pushEvent(HashMap<String, String> attributes) throws OSGiBrokerException { //Changed to HashMap
-		client.publisher().sendEvent(topic, attributes);
+	public boolean pushEvent(HashMap<String, String> attributes) throws OSGiBrokerException { //Changed to HashMap
+		if (!moderation.accept(attributes)) {
+			log.info("Moderation refused message board post: " + attributes);
+			return false;
+		}
+		outbox.publish(client, topic, attributes);
+		if (history == null) {
+			return true;
+		}
+		try {
+			// Posts go in the index and channels in the order of the history
+			synchronized (history) {
+				BoardPost post = history.append(attributes, System.currentTimeMillis());
+				index.add(post);
+				channels.add(post);
+				// Posts in a segment the history dropped
+				index.prune(history.getOldestSequence());
+			}
+		}
+		catch (IOException e) {
+			log.error("Could not add post to the message board history.", e);
+		}
+		return true;
+	}
+	
+	/**
+	 * Writes a page of the message board history: the posts made before a
+	 * given post, oldest first.
+	 * 
+	 * @param before
+	 *            sequence number of the post the page ends before, or 0 for
+	 *            the latest posts
+	 * @param limit
+	 *            the most posts on the page
+	 * @param format
+	 *            the format of the events
+	 * @param out
+	 *            the sink the events are written to
+	 * @return sequence number of the first post on the page, or 0 if there
+	 *         are no older posts
+	 * @throws IOException
+	 *             if the history can not be read, or the stream written
+	 */
+	public long writeHistory(long before, int limit, BoardPost.Format format, BoardPost.EventSink out)
+	        throws IOException {
+		if (history == null) {
+			return 0;
+		}
+		return history.writePage(before, limit, format, out);
+	}
+	
+	/**
+	 * Searches the message board history for posts holding the words of a
+	 * query, and writes the latest of them, oldest first.
+	 * 
+	 * @param query
+	 *            the words to search for; each matches as a prefix
+	 * @param limit
+	 *            the most posts written
+	 * @param format
+	 *            the format of the events
+	 * @param out
+	 *            the sink the events are written to
+	 * @return the number of posts found, at most limit
+	 * @throws IOException
+	 *             if the history can not be read, or the stream written
+	 */
+	public int writeSearch(String query, int limit, BoardPost.Format format, BoardPost.EventSink out)
+	        throws IOException {
+		if (history == null) {
+			return 0;
+		}
+		long[] found = index.search(query, limit);
+		history.writePosts(found, format, out);
+		return found.length;
+	}
+	
+	/**
+	 * Writes the latest posts of a channel, oldest first.
+	 * 
+	 * @param channel
+	 *            the channel, the #tag of the posts
+	 * @param since
+	 *            sequence number of the last post already seen, or 0 for all
+	 *            the posts the channel keeps
+	 * @param format
+	 *            the format of the events
+	 * @param out
+	 *            the sink the events are written to
+	 * @return the sequence number of the last post written, or since if there
+	 *         are no new posts
+	 * @throws IOException
+	 *             if the stream can not be written
+	 */
+	public long writeChannel(String channel, long since, BoardPost.Format format, BoardPost.EventSink out)
+	        throws IOException {
+		if (history == null) {
+			return since;
+		}
+		return channels.write(channel, since, format, out);
 	}
 }
@@ -0,0 +1,297 @@
+package ca.ubc.magic.coffeeshop.classes;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * ModerationFilter
+ * 
+ * @version 1.0
+ * 
+ *          Keeps words and phrases on a blocklist off the message board.
+ * 
+ *          The blocklist is compiled into an Aho-Corasick automaton, which
+ *          finds every listed word in a message in a single pass over the
+ *          message, so checking a post takes time in proportion to its length
+ *          however long the list is. Matching ignores case and only counts
+ *          whole words, so a listed word inside a longer word is let through.
+ * 
+ *          The blocklist is read from a text file with one word or phrase per
+ *          line; blank lines and lines starting with # are ignored. reload()
+ *          rebuilds the automaton when the file has changed. Posts are checked
+ *          against the automaton in use until the new one is ready, so a
+ *          rebuild never holds up a post.
+ */
+public class ModerationFilter {
+	
+	private final Logger log = Logger.getLogger(ModerationFilter.class);
+	
+	private final File file;
+	private long lastModified = -1;
+	private long lastLength = -1;
+	
+	private volatile Automaton automaton = new Automaton(new ArrayList<String>());
+	
+	/* Statistics */
+	private final AtomicLong checked = new AtomicLong();
+	private final AtomicLong refused = new AtomicLong();
+	
+	/**
+	 * Constructor. Loads the blocklist, if there is one.
+	 * 
+	 * @param file
+	 *            the blocklist file
+	 */
+	public ModerationFilter(File file) {
+		this.file = file;
+		reload();
+	}
+	
+	/**
+	 * Rebuilds the automaton if the blocklist file has changed since it was
+	 * last read. A missing file is an empty blocklist.
+	 */
+	public synchronized void reload() {
+		long modified = file.lastModified();
+		long length = file.length();
+		if (modified == lastModified && length == lastLength) {
+			return;
+		}
+		lastModified = modified;
+		lastLength = length;
+		
+		List<String> words = new ArrayList<String>();
+		if (file.isFile()) {
+			try {
+				BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+				try {
+					String line;
+					while ((line = in.readLine()) != null) {
+						line = line.trim();
+						if (line.length() > 0 && !line.startsWith("#")) {
+							words.add(line);
+						}
+					}
+				}
+				finally {
+					in.close();
+				}
+			}
+			catch (IOException e) {
+				log.error("Could not read moderation blocklist " + file.getAbsolutePath(), e);
+				return;
+			}
+		}
+		setBlocklist(words);
+	}
+	
+	/**
+	 * Replaces the blocklist.
+	 * 
+	 * @param words
+	 *            the words and phrases to keep off the board
+	 */
+	public void setBlocklist(Collection<String> words) {
+		automaton = new Automaton(words);
+		log.info("Moderation blocklist loaded with " + automaton.size() + " entries.");
+	}
+	
+	/**
+	 * Checks a post.
+	 * 
+	 * @param attributes
+	 *            the attributes of the post
+	 * @return true if the post may go on the board, false if any attribute
+	 *         holds a word on the blocklist, or is not named by a plain XML
+	 *         name (see BoardPost.isName)
+	 */
+	public boolean accept(Map<String, String> attributes) {
+		checked.incrementAndGet();
+		Automaton a = automaton;
+		for (Map.Entry<String, String> e : attributes.entrySet()) {
+			String value = e.getValue();
+			if (!BoardPost.isName(e.getKey()) || value != null && a.matches(value)) {
+				refused.incrementAndGet();
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @return the number of entries on the blocklist
+	 */
+	public int size() {
+		return automaton.size();
+	}
+	
+	/**
+	 * @return the number of posts checked
+	 */
+	public long getChecked() {
+		return checked.get();
+	}
+	
+	/**
+	 * @return the number of posts refused
+	 */
+	public long getRefused() {
+		return refused.get();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * The Aho-Corasick automaton of a blocklist. States are numbered, 0 is the
+	 * root. The transitions of each state are kept as sorted arrays.
+	 */
+	private static class Automaton {
+		
+		private final char[][] keys;
+		private final int[][] targets;
+		private final int[] fail;
+		/* Length of the word ending in a state, 0 if none */
+		private final int[] length;
+		/* Next state along the fail links where a word ends, -1 if none */
+		private final int[] output;
+		private final int size;
+		
+		Automaton(Collection<String> words) {
+			// Build the trie
+			List<TreeMap<Character, Integer>> trie = new ArrayList<TreeMap<Character, Integer>>();
+			List<Integer> lengths = new ArrayList<Integer>();
+			trie.add(new TreeMap<Character, Integer>());
+			lengths.add(0);
+			int count = 0;
+			for (String word : words) {
+				if (word.length() == 0) {
+					continue;
+				}
+				int state = 0;
+				for (int i = 0; i < word.length(); i++) {
+					char c = Character.toLowerCase(word.charAt(i));
+					Integer next = trie.get(state).get(c);
+					if (next == null) {
+						next = trie.size();
+						trie.add(new TreeMap<Character, Integer>());
+						lengths.add(0);
+						trie.get(state).put(c, next);
+					}
+					state = next;
+				}
+				lengths.set(state, word.length());
+				count++;
+			}
+			this.size = count;
+			
+			int n = trie.size();
+			keys = new char[n][];
+			targets = new int[n][];
+			length = new int[n];
+			fail = new int[n];
+			output = new int[n];
+			for (int s = 0; s < n; s++) {
+				TreeMap<Character, Integer> edges = trie.get(s);
+				keys[s] = new char[edges.size()];
+				targets[s] = new int[edges.size()];
+				int i = 0;
+				for (Map.Entry<Character, Integer> e : edges.entrySet()) {
+					keys[s][i] = e.getKey();
+					targets[s][i] = e.getValue();
+					i++;
+				}
+				length[s] = lengths.get(s);
+			}
+			
+			// Fail and output links, breadth first
+			output[0] = -1;
+			LinkedList<Integer> queue = new LinkedList<Integer>();
+			for (int t : targets[0]) {
+				fail[t] = 0;
+				output[t] = -1;
+				queue.add(t);
+			}
+			while (!queue.isEmpty()) {
+				int s = queue.removeFirst();
+				for (int i = 0; i < keys[s].length; i++) {
+					int t = targets[s][i];
+					int f = step(fail[s], keys[s][i]);
+					fail[t] = f;
+					output[t] = length[f] > 0 ? f : output[f];
+					queue.add(t);
+				}
+			}
+		}
+		
+		int size() {
+			return size;
+		}
+		
+		private int transition(int state, char c) {
+			char[] k = keys[state];
+			int lo = 0;
+			int hi = k.length - 1;
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				if (k[mid] < c) {
+					lo = mid + 1;
+				}
+				else if (k[mid] > c) {
+					hi = mid - 1;
+				}
+				else {
+					return targets[state][mid];
+				}
+			}
+			return -1;
+		}
+		
+		private int step(int state, char c) {
+			while (true) {
+				int t = transition(state, c);
+				if (t >= 0) {
+					return t;
+				}
+				if (state == 0) {
+					return 0;
+				}
+				state = fail[state];
+			}
+		}
+		
+		/*
+		 * Determines whether the text holds a word of the blocklist, as a
+		 * whole word.
+		 */
+		boolean matches(String text) {
+			if (size == 0) {
+				return false;
+			}
+			int state = 0;
+			for (int i = 0; i < text.length(); i++) {
+				state = step(state, Character.toLowerCase(text.charAt(i)));
+				int s = length[state] > 0 ? state : output[state];
+				while (s >= 0) {
+					int start = i - length[s] + 1;
+					if ((start == 0 || !Character.isLetterOrDigit(text.charAt(start - 1)))
+					        && (i + 1 == text.length() || !Character.isLetterOrDigit(text.charAt(i + 1)))) {
+						return true;
+					}
+					s = output[s];
+				}
+			}
+			return false;
+		}
+	}
+}
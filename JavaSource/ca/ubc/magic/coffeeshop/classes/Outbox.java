@@ -0,0 +1,342 @@
+package ca.ubc.magic.coffeeshop.classes;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.log4j.Logger;
+
+import ca.ubc.magic.osgibroker.OSGiBrokerException;
+
+/**
+ * Outbox
+ *
+ * @version 1.0
+ *
+ *          Sends published events to the broker in the background, and keeps
+ *          them on disk until the broker has taken them.
+ *
+ *          A publish only appends the event to the outbox log and returns, so
+ *          posting to the message board or forwarding an SMS takes the same
+ *          short time whether the broker is fast, slow or down. A background
+ *          thread sends the events in the order they were published. While
+ *          the broker's circuit breaker is open, or the broker can not be
+ *          reached, the events wait in the log; they also survive a restart of
+ *          the coffee shop. Events the broker refuses (e.g. a bad request) are
+ *          logged and dropped.
+ *
+ *          The log takes a bounded amount of disk space. When it is full the
+ *          drop policy decides what happens: DROP_OLDEST discards the oldest
+ *          segment of waiting events to make room, REJECT refuses the new
+ *          event.
+ *
+ *          If the outbox directory can not be opened, events are sent
+ *          directly to the broker, as if there were no outbox.
+ */
+public class Outbox {
+
+	/**
+	 * What to do with a new event when the outbox is full.
+	 */
+	public enum DropPolicy {
+		DROP_OLDEST, REJECT
+	}
+
+	private final Logger log = Logger.getLogger(Outbox.class);
+
+	private final BrokerTransport transport;
+	private final DropPolicy policy;
+	private final long retryMillis;
+
+	private OutboxLog outboxLog;
+	private final Object lock = new Object();
+	private volatile boolean running = true;
+
+	/* Bumped whenever waiting events are dropped to make room */
+	private long drops = 0;
+
+	/* Statistics */
+	private long published = 0;
+	private long sent = 0;
+	private long dropped = 0;
+	private long rejected = 0;
+
+	/**
+	 * Constructor. Opens the outbox log and starts the thread that sends the
+	 * events in it, including those left from before a restart.
+	 *
+	 * @param transport
+	 *            the transport events are sent with
+	 * @param directory
+	 *            directory of the outbox log
+	 * @param segmentSize
+	 *            size of each log segment file, in bytes
+	 * @param maxSegments
+	 *            the most log segment files kept at once
+	 * @param policy
+	 *            what to do when the outbox is full
+	 * @param retryMillis
+	 *            time to wait before trying an unavailable broker again, in
+	 *            milliseconds
+	 */
+	public Outbox(BrokerTransport transport, File directory, int segmentSize, int maxSegments, DropPolicy policy,
+	        long retryMillis) {
+		this.transport = transport;
+		this.policy = policy;
+		this.retryMillis = retryMillis;
+
+		try {
+			outboxLog = new OutboxLog(directory, segmentSize, maxSegments);
+			if (!outboxLog.isEmpty()) {
+				log.info("Recovered " + outboxLog.size() + " events waiting in the outbox.");
+			}
+		}
+		catch (IOException e) {
+			log.error("Could not open the outbox. Events will be sent directly to the broker.", e);
+			outboxLog = null;
+		}
+
+		Thread drainer = new Thread(new Drainer(), "Outbox-drain");
+		drainer.setDaemon(true);
+		drainer.start();
+	}
+
+	/**
+	 * Publishes an event. The event is sent in the background.
+	 *
+	 * @param client
+	 *            the client publishing the event
+	 * @param topic
+	 *            the topic to publish to
+	 * @param attributes
+	 *            the event attributes
+	 * @throws OSGiBrokerException
+	 *             if the outbox is full and refuses new events, or if the
+	 *             event had to be sent directly and that failed
+	 */
+	public void publish(BrokerClient client, String topic, Map<String, String> attributes)
+	        throws OSGiBrokerException {
+		byte[] record = encode(client.getHost(), client.getClientId(), topic, attributes);
+
+		synchronized (lock) {
+			if (outboxLog != null && !outboxLog.tooLarge(record.length) && append(topic, record)) {
+				published++;
+				lock.notifyAll();
+				return;
+			}
+		}
+
+		// No outbox, or the event does not fit it
+		client.sendEvent(topic, attributes);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * Appends a record to the log, applying the drop policy if it is full.
+	 * Returns false if the log could not be written. Called holding the lock.
+	 */
+	private boolean append(String topic, byte[] record) throws OSGiBrokerException {
+		while (!outboxLog.hasRoom(record.length)) {
+			if (policy == DropPolicy.REJECT) {
+				rejected++;
+				throw new OSGiBrokerException(HttpStatus.SC_SERVICE_UNAVAILABLE, "Outbox full, event for topic "
+				        + topic + " rejected");
+			}
+			int n = outboxLog.dropOldestSegment();
+			dropped += n;
+			drops++;
+			log.warn("Outbox full, dropped the " + n + " oldest waiting events.");
+		}
+
+		try {
+			outboxLog.append(record);
+			return true;
+		}
+		catch (IOException e) {
+			log.error("Could not write to the outbox, sending event directly.", e);
+			return false;
+		}
+	}
+
+	/**
+	 * @return the number of events waiting to be sent
+	 */
+	public int size() {
+		synchronized (lock) {
+			return outboxLog == null ? 0 : outboxLog.size();
+		}
+	}
+
+	/**
+	 * @return the number of events published through the outbox
+	 */
+	public long getPublished() {
+		synchronized (lock) {
+			return published;
+		}
+	}
+
+	/**
+	 * @return the number of events sent to the broker
+	 */
+	public long getSent() {
+		synchronized (lock) {
+			return sent;
+		}
+	}
+
+	/**
+	 * @return the number of waiting events dropped, because the outbox was
+	 *         full or the broker refused them
+	 */
+	public long getDropped() {
+		synchronized (lock) {
+			return dropped;
+		}
+	}
+
+	/**
+	 * @return the number of new events refused because the outbox was full
+	 */
+	public long getRejected() {
+		synchronized (lock) {
+			return rejected;
+		}
+	}
+
+	public DropPolicy getDropPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Stops sending events and flushes the log to disk. Events still waiting
+	 * are sent the next time the outbox is opened.
+	 */
+	public void close() {
+		running = false;
+		synchronized (lock) {
+			if (outboxLog != null) {
+				outboxLog.force();
+			}
+			lock.notifyAll();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * Record encoding: host, client id and topic, followed by the attributes.
+	 */
+	private static byte[] encode(String host, String clientId, String topic, Map<String, String> attributes) {
+		byte[][] parts = { StateJournal.encode(host), StateJournal.encode(clientId), StateJournal.encode(topic),
+		        StateJournal.encode(attributes) };
+		int size = 0;
+		for (byte[] part : parts) {
+			size += part.length;
+		}
+		ByteBuffer b = ByteBuffer.allocate(size);
+		for (byte[] part : parts) {
+			b.put(part);
+		}
+		return b.array();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * An event waiting to be sent.
+	 */
+	private static class Entry {
+
+		final String host;
+		final String clientId;
+		final String topic;
+		final Map<String, String> attributes;
+
+		Entry(byte[] record) {
+			ByteBuffer b = ByteBuffer.wrap(record);
+			this.host = StateJournal.decodeString(b);
+			this.clientId = StateJournal.decodeString(b);
+			this.topic = StateJournal.decodeString(b);
+			this.attributes = StateJournal.decodeMap(b);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * Sends waiting events one at a time, oldest first. The oldest event
+	 * stays at the head of the log until the broker takes it.
+	 */
+	private class Drainer implements Runnable {
+
+		@Override
+		public void run() {
+			while (running) {
+				try {
+					byte[] record;
+					long dropsAtPeek;
+					synchronized (lock) {
+						while (running && (outboxLog == null || outboxLog.isEmpty())) {
+							lock.wait();
+						}
+						if (!running) {
+							return;
+						}
+						record = outboxLog.peek();
+						dropsAtPeek = drops;
+					}
+
+					Entry entry;
+					try {
+						entry = new Entry(record);
+					}
+					catch (BufferUnderflowException e) {
+						log.error("Dropping malformed event in the outbox.");
+						remove(dropsAtPeek, false);
+						continue;
+					}
+
+					if (!transport.getCircuitBreaker(entry.host).isAvailable()) {
+						Thread.sleep(retryMillis);
+						continue;
+					}
+					try {
+						transport.sendEvent(entry.host, entry.clientId, entry.topic, entry.attributes);
+						remove(dropsAtPeek, true);
+					}
+					catch (OSGiBrokerException e) {
+						if (BrokerTransport.isUnavailable(e)) {
+							Thread.sleep(retryMillis);
+						}
+						else {
+							log.error("Broker refused event for topic " + entry.topic + ", dropping it.", e);
+							remove(dropsAtPeek, false);
+						}
+					}
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		/*
+		 * Takes the event just handled off the log, unless it was dropped to
+		 * make room in the meantime.
+		 */
+		private void remove(long dropsAtPeek, boolean delivered) {
+			synchronized (lock) {
+				if (drops == dropsAtPeek) {
+					outboxLog.remove();
+				}
+				if (delivered) {
+					sent++;
+				}
+				else {
+					dropped++;
+				}
+			}
+		}
+	}
+}
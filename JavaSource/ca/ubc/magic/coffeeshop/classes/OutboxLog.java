@@ -0,0 +1,365 @@
+package ca.ubc.magic.coffeeshop.classes;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * OutboxLog
+ * 
+ * @version 1.0
+ * 
+ *          The disk storage of the outbox: an append-only queue of records,
+ *          kept in a directory as a series of fixed size, memory-mapped
+ *          segment files.
+ * 
+ *          Each segment starts with a header holding the offset of the first
+ *          record not yet taken from it. Records are written as
+ * 
+ *          [length][checksum][payload]
+ * 
+ *          with the length written last, so a record torn by a crash is never
+ *          read back. New records go to the last segment; when it is full a
+ *          new segment is started. A segment whose records have all been taken
+ *          is deleted.
+ * 
+ *          The number of segments is limited, which bounds the disk space
+ *          used to segmentSize * maxSegments bytes.
+ * 
+ *          Not thread-safe; the Outbox serializes access.
+ */
+class OutboxLog {
+	
+	private static final int SEGMENT_MAGIC = 0xC0FFEE03;
+	private static final int HEADER_SIZE = 8;
+	private static final int RECORD_OVERHEAD = 8;
+	private static final String PREFIX = "outbox-";
+	private static final String SUFFIX = ".log";
+	
+	private final Logger log = Logger.getLogger(OutboxLog.class);
+	
+	private final File directory;
+	private final int segmentSize;
+	private final int maxSegments;
+	
+	private final LinkedList<Segment> segments = new LinkedList<Segment>();
+	private long nextSequence = 0;
+	private int size = 0;
+	
+	/**
+	 * Constructor. Opens the log, recovering the records left in it.
+	 * 
+	 * @param directory
+	 *            directory holding the segment files
+	 * @param segmentSize
+	 *            size of each segment file, in bytes
+	 * @param maxSegments
+	 *            the most segment files kept at once
+	 * @throws IOException
+	 *             if the directory or segment files can not be read or
+	 *             created
+	 */
+	OutboxLog(File directory, int segmentSize, int maxSegments) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.maxSegments = Math.max(1, maxSegments);
+		
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new FileNotFoundException("Could not create outbox directory " + directory.getAbsolutePath());
+		}
+		recover();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Maps the segment files left from before, oldest first, and finds the
+	 * records in them not yet taken.
+	 */
+	private void recover() throws IOException {
+		String[] names = directory.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+			}
+		});
+		Arrays.sort(names);
+		
+		for (String name : names) {
+			long sequence;
+			try {
+				sequence = Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+			}
+			catch (NumberFormatException e) {
+				continue;
+			}
+			
+			Segment segment = new Segment(new File(directory, name));
+			segment.map();
+			if (segment.recover()) {
+				segments.add(segment);
+				size += segment.count;
+			}
+			else {
+				log.warn("Ignoring damaged outbox segment " + name);
+				segment.delete();
+			}
+			nextSequence = sequence + 1;
+		}
+		
+		// Forget segments with nothing left to take
+		while (segments.size() > 1 && segments.getFirst().count == 0) {
+			segments.removeFirst().delete();
+		}
+	}
+	
+	/**
+	 * @return the number of records not yet taken
+	 */
+	int size() {
+		return size;
+	}
+	
+	boolean isEmpty() {
+		return size == 0;
+	}
+	
+	/**
+	 * Determines whether a record fits, either in the last segment or in a
+	 * new segment.
+	 * 
+	 * @param length
+	 *            length of the record payload
+	 * @return true if the record can be appended without dropping records
+	 */
+	boolean hasRoom(int length) {
+		Segment tail = segments.isEmpty() ? null : segments.getLast();
+		return (tail != null && tail.fits(length)) || segments.size() < maxSegments;
+	}
+	
+	/**
+	 * @return true if a record of the given length is too large to fit any
+	 *         segment
+	 */
+	boolean tooLarge(int length) {
+		return HEADER_SIZE + RECORD_OVERHEAD + length + 4 > segmentSize;
+	}
+	
+	/**
+	 * Appends a record. There must be room for it.
+	 * 
+	 * @param payload
+	 *            the record
+	 * @throws IOException
+	 *             if a new segment file is needed and can not be created
+	 */
+	void append(byte[] payload) throws IOException {
+		Segment tail = segments.isEmpty() ? null : segments.getLast();
+		if (tail == null || !tail.fits(payload.length)) {
+			tail = new Segment(new File(directory, String.format(PREFIX + "%016d" + SUFFIX, nextSequence++)));
+			tail.map();
+			tail.reset();
+			segments.add(tail);
+		}
+		tail.append(payload);
+		size++;
+	}
+	
+	/**
+	 * Drops the oldest segment and every record in it that was not taken.
+	 * 
+	 * @return the number of records dropped
+	 */
+	int dropOldestSegment() {
+		if (segments.isEmpty()) {
+			return 0;
+		}
+		Segment oldest = segments.removeFirst();
+		size -= oldest.count;
+		oldest.delete();
+		return oldest.count;
+	}
+	
+	/**
+	 * @return the oldest record not yet taken, or null if there is none
+	 */
+	byte[] peek() {
+		for (Segment segment : segments) {
+			if (segment.count > 0) {
+				return segment.peek();
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Takes the oldest record, so it is not returned again, even after a
+	 * restart.
+	 */
+	void remove() {
+		while (!segments.isEmpty()) {
+			Segment head = segments.getFirst();
+			if (head.count > 0) {
+				head.take();
+				size--;
+				if (head.count == 0 && segments.size() > 1) {
+					segments.removeFirst().delete();
+				}
+				return;
+			}
+			if (segments.size() == 1) {
+				return;
+			}
+			segments.removeFirst().delete();
+		}
+	}
+	
+	/**
+	 * Flushes all segments to disk.
+	 */
+	void force() {
+		for (Segment segment : segments) {
+			segment.buffer.force();
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Checksum of a record payload.
+	 */
+	private static int checksum(byte[] payload) {
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		return (int) crc.getValue();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * One segment file.
+	 */
+	private class Segment {
+		
+		final File file;
+		int capacity;
+		MappedByteBuffer buffer;
+		int readPosition;
+		int writePosition;
+		int count;
+		
+		Segment(File file) {
+			this.file = file;
+		}
+		
+		void map() throws IOException {
+			// Segments left from before keep their size, even if the segment
+			// size setting has changed since
+			capacity = file.length() > 0 ? (int) file.length() : segmentSize;
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(capacity);
+				buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+			}
+			finally {
+				// The mapping stays valid after the file is closed
+				raf.close();
+			}
+		}
+		
+		/*
+		 * Starts an empty segment.
+		 */
+		void reset() {
+			buffer.putInt(HEADER_SIZE, 0);
+			buffer.putInt(4, HEADER_SIZE);
+			buffer.putInt(0, SEGMENT_MAGIC);
+			readPosition = HEADER_SIZE;
+			writePosition = HEADER_SIZE;
+			count = 0;
+		}
+		
+		/*
+		 * Scans the records of a segment left from before. Returns false if
+		 * the segment is not an outbox segment.
+		 */
+		boolean recover() {
+			if (buffer.getInt(0) != SEGMENT_MAGIC) {
+				return false;
+			}
+			readPosition = buffer.getInt(4);
+			if (readPosition < HEADER_SIZE || readPosition > capacity) {
+				return false;
+			}
+			
+			int pos = HEADER_SIZE;
+			count = 0;
+			while (pos + RECORD_OVERHEAD <= capacity) {
+				int length = buffer.getInt(pos);
+				if (length <= 0 || pos + RECORD_OVERHEAD + length > capacity) {
+					break;
+				}
+				byte[] payload = read(pos, length);
+				if (buffer.getInt(pos + 4) != checksum(payload)) {
+					log.warn("Ignoring torn outbox record at offset " + pos + " of " + file.getName());
+					break;
+				}
+				if (pos >= readPosition) {
+					count++;
+				}
+				pos += RECORD_OVERHEAD + length;
+			}
+			writePosition = pos;
+			return readPosition <= writePosition;
+		}
+		
+		boolean fits(int length) {
+			return writePosition + RECORD_OVERHEAD + length + 4 <= capacity;
+		}
+		
+		void append(byte[] payload) {
+			int pos = writePosition;
+			buffer.position(pos + RECORD_OVERHEAD);
+			buffer.put(payload);
+			buffer.putInt(pos + 4, checksum(payload));
+			// Terminate the segment after this record before publishing the
+			// length
+			buffer.putInt(pos + RECORD_OVERHEAD + payload.length, 0);
+			buffer.putInt(pos, payload.length);
+			writePosition = pos + RECORD_OVERHEAD + payload.length;
+			count++;
+		}
+		
+		byte[] peek() {
+			return read(readPosition, buffer.getInt(readPosition));
+		}
+		
+		void take() {
+			readPosition += RECORD_OVERHEAD + buffer.getInt(readPosition);
+			buffer.putInt(4, readPosition);
+			count--;
+		}
+		
+		private byte[] read(int pos, int length) {
+			byte[] payload = new byte[length];
+			buffer.position(pos + RECORD_OVERHEAD);
+			buffer.get(payload);
+			return payload;
+		}
+		
+		void delete() {
+			buffer = null;
+			if (!file.delete()) {
+				// Still mapped on some platforms; it is ignored on the next
+				// start if it can't be removed then either
+				file.deleteOnExit();
+			}
+		}
+	}
+}
@@ -0,0 +1,276 @@
+package ca.ubc.magic.coffeeshop.classes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.StringTokenizer;
+import java.util.TimeZone;
+
+import org.apache.log4j.Logger;
+
+/**
+ * PlaylistSchedule
+ * 
+ * @version 1.0
+ * 
+ *          Decides what runs when nobody has asked for an application. A
+ *          playlist is a daily time window and the applications shown during
+ *          it, in order, each for its dwell time. The playlists are configured
+ *          in the properties file:
+ * 
+ *          playlists=morning,evening
+ *          playlist.morning.window=07:00-11:00
+ *          playlist.morning.applications=hello:300,counter:120
+ * 
+ *          A window may run past midnight (22:00-02:00). Where windows
+ *          overlap, the playlist listed last wins. An application without a
+ *          dwell time gets playlistDwellTime seconds.
+ * 
+ *          The windows are laid out once in a calendar of the minutes of a
+ *          day, so finding the playlist for a time is a single array lookup.
+ *          Checking whether a switch is due does not allocate, so it can be
+ *          done every second.
+ * 
+ *          The schedule has no clock of its own; every call is given the
+ *          time, so it can be driven by a virtual clock.
+ */
+public class PlaylistSchedule {
+	
+	private static final int MINUTES_PER_DAY = 24 * 60;
+	private static final long MILLIS_PER_MINUTE = 60 * 1000;
+	
+	private final Logger log = Logger.getLogger(PlaylistSchedule.class);
+	
+	private final TimeZone timeZone;
+	private final List<Playlist> playlists = new ArrayList<Playlist>();
+	
+	/* Index of the playlist for every minute of the day, -1 for none */
+	private final short[] calendar = new short[MINUTES_PER_DAY];
+	
+	/* The playlist the running application was started from, if any */
+	private Playlist playing;
+	private int position;
+	private long slotEnd;
+	
+	/**
+	 * Constructor. Reads the playlists from the configuration properties.
+	 * Malformed playlists are logged and left out.
+	 * 
+	 * @param prop
+	 *            the configuration properties
+	 * @param timeZone
+	 *            the time zone of the windows
+	 */
+	public PlaylistSchedule(Properties prop, TimeZone timeZone) {
+		this.timeZone = timeZone;
+		Arrays.fill(calendar, (short) -1);
+		
+		int defaultDwell = 300;
+		try {
+			defaultDwell = Integer.parseInt(prop.getProperty("playlistDwellTime", "300").trim());
+		}
+		catch (NumberFormatException e) {
+			log.warn("Invalid value for property playlistDwellTime: " + prop.getProperty("playlistDwellTime"));
+		}
+		
+		StringTokenizer names = new StringTokenizer(prop.getProperty("playlists", ""), ",");
+		while (names.hasMoreTokens()) {
+			String name = names.nextToken().trim();
+			try {
+				add(name, prop.getProperty("playlist." + name + ".window"), prop.getProperty("playlist." + name
+				        + ".applications"), defaultDwell);
+			}
+			catch (IllegalArgumentException e) {
+				log.error("Ignoring playlist " + name + ": " + e.getMessage());
+			}
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Parses one playlist and marks its window in the calendar.
+	 */
+	private void add(String name, String window, String applications, int defaultDwell) {
+		if (window == null || applications == null) {
+			throw new IllegalArgumentException("window and applications are required");
+		}
+		int dash = window.indexOf('-');
+		if (dash < 0) {
+			throw new IllegalArgumentException("window must be HH:MM-HH:MM");
+		}
+		int start = parseMinute(window.substring(0, dash));
+		int end = parseMinute(window.substring(dash + 1));
+		
+		List<String> apps = new ArrayList<String>();
+		List<Integer> dwells = new ArrayList<Integer>();
+		StringTokenizer st = new StringTokenizer(applications, ",");
+		while (st.hasMoreTokens()) {
+			String entry = st.nextToken().trim();
+			int colon = entry.indexOf(':');
+			if (colon < 0) {
+				apps.add(entry);
+				dwells.add(defaultDwell);
+			}
+			else {
+				apps.add(entry.substring(0, colon).trim());
+				dwells.add(Integer.parseInt(entry.substring(colon + 1).trim()));
+			}
+		}
+		if (apps.isEmpty()) {
+			throw new IllegalArgumentException("no applications");
+		}
+		
+		Playlist p = new Playlist(name, apps.toArray(new String[apps.size()]), dwells);
+		short index = (short) playlists.size();
+		playlists.add(p);
+		
+		// A window ending at or before its start runs past midnight
+		int minute = start;
+		do {
+			calendar[minute] = index;
+			minute = (minute + 1) % MINUTES_PER_DAY;
+		}
+		while (minute != end);
+		
+		log.info("Loaded playlist " + name + " (" + window + "): " + applications);
+	}
+	
+	private static int parseMinute(String time) {
+		int colon = time.indexOf(':');
+		if (colon < 0) {
+			throw new IllegalArgumentException("invalid time " + time);
+		}
+		int hours = Integer.parseInt(time.substring(0, colon).trim());
+		int minutes = Integer.parseInt(time.substring(colon + 1).trim());
+		if (hours < 0 || hours > 24 || minutes < 0 || minutes > 59) {
+			throw new IllegalArgumentException("invalid time " + time);
+		}
+		return (hours * 60 + minutes) % MINUTES_PER_DAY;
+	}
+	
+	/**
+	 * @return true if no playlists are configured
+	 */
+	public boolean isEmpty() {
+		return playlists.isEmpty();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * The playlist whose window holds the given time, or null.
+	 */
+	private Playlist playlistAt(long now) {
+		long local = now + timeZone.getOffset(now);
+		int minute = (int) ((local / MILLIS_PER_MINUTE) % MINUTES_PER_DAY);
+		if (minute < 0) {
+			minute += MINUTES_PER_DAY;
+		}
+		int index = calendar[minute];
+		return index < 0 ? null : playlists.get(index);
+	}
+	
+	/**
+	 * Determines whether the schedule wants to switch the running application.
+	 * That is the case when the application the schedule started has had its
+	 * dwell time or its window has ended, or when a window is open and the
+	 * running application may be replaced.
+	 * 
+	 * @param now
+	 *            the time, in milliseconds
+	 * @param replaceable
+	 *            true if the running application, not started by the
+	 *            schedule, may be replaced by it (e.g. the default
+	 *            application)
+	 * @return true if a switch is due
+	 */
+	public synchronized boolean isDue(long now, boolean replaceable) {
+		Playlist p = playlistAt(now);
+		if (playing != null) {
+			return p != playing || now >= slotEnd;
+		}
+		return p != null && replaceable;
+	}
+	
+	/**
+	 * Moves to the next application of the playlist for the given time. The
+	 * application is considered started at that time.
+	 * 
+	 * @param now
+	 *            the time, in milliseconds
+	 * @return short name of the application to run, or null if no playlist is
+	 *         scheduled at that time
+	 */
+	public synchronized String next(long now) {
+		Playlist p = playlistAt(now);
+		if (p == null) {
+			playing = null;
+			return null;
+		}
+		if (p != playing) {
+			playing = p;
+			position = 0;
+		}
+		else {
+			position = (position + 1) % p.applications.length;
+		}
+		slotEnd = now + p.dwellMillis[position];
+		return p.applications[position];
+	}
+	
+	/**
+	 * Gets the application the schedule would run next, without moving to it.
+	 * 
+	 * @param now
+	 *            the time, in milliseconds
+	 * @return short name of the application, or null if no playlist is
+	 *         scheduled at that time
+	 */
+	public synchronized String peek(long now) {
+		Playlist p = playlistAt(now);
+		if (p == null) {
+			return null;
+		}
+		return p != playing ? p.applications[0] : p.applications[(position + 1) % p.applications.length];
+	}
+	
+	/**
+	 * @return true if the running application was started by the schedule
+	 */
+	public synchronized boolean isPlaying() {
+		return playing != null;
+	}
+	
+	/**
+	 * Records that an application asked for by a user replaced the one the
+	 * schedule started. The playlist starts over once it is back in control.
+	 */
+	public synchronized void stop() {
+		playing = null;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * A playlist: applications and their dwell times.
+	 */
+	private static class Playlist {
+		
+		final String name;
+		final String[] applications;
+		final long[] dwellMillis;
+		
+		Playlist(String name, String[] applications, List<Integer> dwells) {
+			this.name = name;
+			this.applications = applications;
+			this.dwellMillis = new long[dwells.size()];
+			for (int i = 0; i < dwellMillis.length; i++) {
+				dwellMillis[i] = dwells.get(i) * 1000L;
+			}
+		}
+		
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+}
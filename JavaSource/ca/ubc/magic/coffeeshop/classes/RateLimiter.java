@@ -0,0 +1,170 @@
+package ca.ubc.magic.coffeeshop.classes;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RateLimiter
+ * 
+ * @version 1.0
+ * 
+ *          Limits how many messages each sender (a phone number, a social
+ *          network user) may send. Every sender has a token bucket: it holds up
+ *          to burst tokens, refills at a steady rate, and each message takes a
+ *          token. A message that finds the bucket empty is throttled.
+ * 
+ *          The buckets are kept in a number of stripes, each a small map with
+ *          its own lock, so senders on different stripes do not wait on each
+ *          other. Each stripe is kept in order of last use and holds a bounded
+ *          number of senders; the least recently seen sender makes way for a
+ *          new one. A bucket left alone long enough to be full again is the
+ *          same as a new one, so idle buckets are swept out, oldest first,
+ *          which costs nothing for the buckets still in use.
+ */
+public class RateLimiter {
+	
+	private static final int STRIPES = 16;
+	
+	private final double tokensPerNano;
+	private final double burst;
+	private final long idleNanos;
+	private final Stripe[] stripes = new Stripe[STRIPES];
+	
+	/* Statistics */
+	private final AtomicLong accepted = new AtomicLong();
+	private final AtomicLong throttled = new AtomicLong();
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param ratePerMinute
+	 *            messages a sender may send per minute, on average, 0 for no
+	 *            limit
+	 * @param burst
+	 *            messages a sender may send at once
+	 * @param maxSenders
+	 *            the most senders tracked at once
+	 */
+	public RateLimiter(double ratePerMinute, int burst, int maxSenders) {
+		this.tokensPerNano = ratePerMinute / TimeUnit.MINUTES.toNanos(1);
+		this.burst = Math.max(1, burst);
+		this.idleNanos = (long) Math.ceil(this.burst / tokensPerNano);
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe(Math.max(1, maxSenders / STRIPES));
+		}
+	}
+	
+	/**
+	 * Takes a token for a message from a sender.
+	 * 
+	 * @param sender
+	 *            the sender
+	 * @return true if the message may be handled, false if it is throttled
+	 */
+	public boolean tryAcquire(String sender) {
+		if (tokensPerNano <= 0) {
+			accepted.incrementAndGet();
+			return true;
+		}
+		long now = System.nanoTime();
+		Stripe stripe = stripes[(sender.hashCode() & 0x7fffffff) % STRIPES];
+		boolean ok;
+		synchronized (stripe) {
+			Bucket b = stripe.get(sender);
+			if (b == null) {
+				b = new Bucket(burst, now);
+				stripe.put(sender, b);
+			}
+			b.tokens = Math.min(burst, b.tokens + (now - b.updated) * tokensPerNano);
+			b.updated = now;
+			ok = b.tokens >= 1;
+			if (ok) {
+				b.tokens -= 1;
+			}
+		}
+		(ok ? accepted : throttled).incrementAndGet();
+		return ok;
+	}
+	
+	/**
+	 * Removes the buckets of senders idle long enough for their bucket to be
+	 * full again.
+	 */
+	public void sweep() {
+		long now = System.nanoTime();
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				Iterator<Bucket> it = stripe.values().iterator();
+				while (it.hasNext() && now - it.next().updated >= idleNanos) {
+					it.remove();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return the number of senders tracked
+	 */
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.size();
+			}
+		}
+		return size;
+	}
+	
+	/**
+	 * @return the number of messages let through
+	 */
+	public long getAccepted() {
+		return accepted.get();
+	}
+	
+	/**
+	 * @return the number of messages throttled
+	 */
+	public long getThrottled() {
+		return throttled.get();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * A token bucket.
+	 */
+	private static class Bucket {
+		
+		double tokens;
+		long updated;
+		
+		Bucket(double tokens, long updated) {
+			this.tokens = tokens;
+			this.updated = updated;
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * The buckets of one stripe, least recently used first.
+	 */
+	private static class Stripe extends LinkedHashMap<String, Bucket> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final int capacity;
+		
+		Stripe(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Bucket> eldest) {
+			return size() > capacity;
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package ca.ubc.magic.coffeeshop.classes;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SingleFlight
+ * 
+ * @version 1.0
+ * 
+ *          Coalesces identical calls made at the same time. The first caller
+ *          for a key makes the call; callers arriving with the same key while
+ *          it is in flight wait for it and share its result, or its failure,
+ *          instead of making the call again. Once the call is over the key is
+ *          free, so a later caller makes a fresh call: nothing is cached.
+ * 
+ *          The call is made on the thread of the first caller.
+ * 
+ * @param <K>
+ *            the type of the keys
+ * @param <V>
+ *            the type of the results
+ */
+public class SingleFlight<K, V> {
+	
+	private final ConcurrentMap<K, FutureTask<V>> flights = new ConcurrentHashMap<K, FutureTask<V>>();
+	
+	/* Statistics */
+	private final AtomicLong calls = new AtomicLong();
+	private final AtomicLong shared = new AtomicLong();
+	
+	/**
+	 * Makes a call, or joins the call in flight for the same key.
+	 * 
+	 * @param key
+	 *            identifies the call
+	 * @param call
+	 *            the call, made only if none is in flight for the key
+	 * @return the result of the call
+	 * @throws ExecutionException
+	 *             if the call failed, holding what it threw, or if the thread
+	 *             was interrupted while waiting for it
+	 */
+	public V execute(K key, Callable<V> call) throws ExecutionException {
+		FutureTask<V> task = new FutureTask<V>(call);
+		FutureTask<V> flight = flights.putIfAbsent(key, task);
+		if (flight == null) {
+			calls.incrementAndGet();
+			try {
+				task.run();
+			}
+			finally {
+				flights.remove(key, task);
+			}
+			flight = task;
+		}
+		else {
+			shared.incrementAndGet();
+		}
+		
+		try {
+			return flight.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ExecutionException("Interrupted while waiting for " + key, e);
+		}
+	}
+	
+	/**
+	 * @return the number of calls made
+	 */
+	public long getCalls() {
+		return calls.get();
+	}
+	
+	/**
+	 * @return the number of callers that shared a call in flight rather than
+	 *         making their own
+	 */
+	public long getShared() {
+		return shared.get();
+	}
+	
+	/**
+	 * @return the number of calls in flight
+	 */
+	public int getInFlight() {
+		return flights.size();
+	}
+}
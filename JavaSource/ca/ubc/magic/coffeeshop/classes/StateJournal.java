@@ -0,0 +1,520 @@
+package ca.ubc.magic.coffeeshop.classes;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * StateJournal
+ * 
+ * @version 1.0
+ * 
+ *          This class keeps a crash-safe record of the runtime state of the
+ *          coffee shop: the application in context and the contents of the
+ *          application queue. The posts of the message board are kept by the
+ *          board history store.
+ * 
+ *          Every state transition is appended to a memory-mapped journal file
+ *          as soon as it happens. Since the journal is mapped, a record is in
+ *          the operating system's page cache the moment it is written, so it
+ *          survives the JVM dying. Every so often (or when the journal is full)
+ *          the current state is written to a compact snapshot file and the
+ *          journal is started over.
+ * 
+ *          On startup, the snapshot is read and the journal is replayed on top
+ *          of it. Neither step needs the OSGiBroker. The snapshot is replaced
+ *          by renaming a new file over it; if the old one had to be deleted
+ *          first and the coffee shop went down in between, the new file is
+ *          read instead.
+ * 
+ *          Journal layout: a header holding a magic number and the generation
+ *          of the journal, followed by records of the form [length][crc][type]
+ *          [payload]. The length is written last, so a record that was only
+ *          partly written is never replayed. The generation is part of the
+ *          checksum, so records left over from an older generation are ignored.
+ */
+public class StateJournal {
+	
+	/* Record types */
+	private static final byte ENQUEUE = 1;
+	private static final byte DEQUEUE = 2;
+	private static final byte CONTEXT = 3;
+	
+	/* File information */
+	private static final String JOURNAL_FILE = "journal.dat";
+	private static final String SNAPSHOT_FILE = "snapshot.dat";
+	private static final int JOURNAL_MAGIC = 0xC0FFEE01;
+	private static final int SNAPSHOT_MAGIC = 0xC0FFEE02;
+	private static final int HEADER_SIZE = 16;
+	private static final int RECORD_OVERHEAD = 9;
+	
+	/* log4j Logger */
+	private final Logger log = Logger.getLogger(StateJournal.class);
+	
+	/* Journal configuration */
+	private final File directory;
+	private final int capacity;
+	private final int snapshotInterval;
+	
+	/* Journal file */
+	private MappedByteBuffer buffer;
+	private long generation;
+	private int recordsSinceSnapshot;
+	
+	/* Mirror of the state, used to write snapshots */
+	private String context;
+	private final List<String> queue = new LinkedList<String>();
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param directory
+	 *            directory where the journal and snapshot files are kept
+	 * @param capacity
+	 *            size of the memory-mapped journal, in bytes
+	 * @param snapshotInterval
+	 *            number of records written before a new snapshot is taken
+	 */
+	public StateJournal(File directory, int capacity, int snapshotInterval) {
+		this.directory = directory;
+		this.capacity = capacity;
+		this.snapshotInterval = snapshotInterval;
+	}
+	
+	/**
+	 * Opens the journal and recovers the last recorded state from the snapshot
+	 * and the journal. The journal will not record anything until it has been
+	 * opened.
+	 * 
+	 * @return the recovered state
+	 * @throws IOException
+	 *             if the journal or snapshot files can not be read or created
+	 */
+	public synchronized RecoveredState open() throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new FileNotFoundException("Could not create state directory " + directory.getAbsolutePath());
+		}
+		
+		long start = System.currentTimeMillis();
+		readSnapshot();
+		
+		RandomAccessFile raf = new RandomAccessFile(new File(directory, JOURNAL_FILE), "rw");
+		try {
+			raf.setLength(capacity);
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		}
+		finally {
+			// The mapping stays valid after the file is closed
+			raf.close();
+		}
+		
+		int replayed = replay();
+		log.info("Recovered state in " + (System.currentTimeMillis() - start) + "ms (" + replayed
+		        + " journal records replayed).");
+		
+		return new RecoveredState(context, new ArrayList<String>(queue));
+	}
+	
+	/**
+	 * Records that an application was added to the end of the queue
+	 * 
+	 * @param shortName
+	 *            short name of the application
+	 */
+	public synchronized void recordEnqueue(String shortName) {
+		applyEnqueue(shortName);
+		append(ENQUEUE, encode(shortName));
+	}
+	
+	/**
+	 * Records that an application was removed from the queue: dequeued,
+	 * expired or dropped
+	 * 
+	 * @param shortName
+	 *            short name of the application
+	 */
+	public synchronized void recordDequeue(String shortName) {
+		applyDequeue(shortName);
+		append(DEQUEUE, encode(shortName));
+	}
+	
+	/**
+	 * Records that the application in context has changed
+	 * 
+	 * @param shortName
+	 *            short name of the new application in context
+	 */
+	public synchronized void recordContext(String shortName) {
+		context = shortName;
+		append(CONTEXT, encode(shortName));
+	}
+	
+	/**
+	 * Writes a snapshot of the current state and starts a new journal
+	 * generation. This is done automatically, but should also be called on
+	 * orderly shutdown.
+	 */
+	public synchronized void checkpoint() {
+		if (buffer == null) {
+			return;
+		}
+		
+		try {
+			writeSnapshot(generation + 1);
+			resetJournal(generation + 1);
+		}
+		catch (IOException e) {
+			// Keep on appending to the current journal. It is still valid.
+			log.error("Could not write state snapshot.", e);
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Appends a record to the journal, taking a snapshot first if the journal
+	 * is full or enough records have been written.
+	 */
+	private void append(byte type, byte[] payload) {
+		if (buffer == null) {
+			return;
+		}
+		
+		int size = RECORD_OVERHEAD + payload.length;
+		if (size > capacity - HEADER_SIZE - 4) {
+			log.warn("State journal record too large to be recorded: " + size + " bytes.");
+			return;
+		}
+		
+		// The state mirror already includes this record, so if a snapshot is
+		// taken here the record does not need to be appended.
+		if (buffer.position() + size + 4 > capacity || recordsSinceSnapshot >= snapshotInterval) {
+			checkpoint();
+			return;
+		}
+		
+		int pos = buffer.position();
+		buffer.position(pos + 8);
+		buffer.put(type);
+		buffer.put(payload);
+		buffer.putInt(pos + 4, checksum(type, payload));
+		// Terminate the journal after this record before publishing the length
+		buffer.putInt(buffer.position(), 0);
+		buffer.putInt(pos, size - 8);
+		recordsSinceSnapshot++;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Replays all valid records of the current generation on top of the state
+	 * read from the snapshot. Leaves the buffer positioned after the last
+	 * valid record.
+	 */
+	private int replay() {
+		buffer.clear();
+		if (buffer.getInt(0) != JOURNAL_MAGIC || buffer.getLong(4) != generation) {
+			// Either a new journal, or one that was already folded into the
+			// snapshot before we went down.
+			resetJournal(generation);
+			return 0;
+		}
+		
+		int replayed = 0;
+		int pos = HEADER_SIZE;
+		while (pos + 8 <= capacity) {
+			int length = buffer.getInt(pos);
+			if (length <= 0 || pos + 8 + length > capacity) {
+				break;
+			}
+			
+			byte type = buffer.get(pos + 8);
+			byte[] payload = new byte[length - 1];
+			buffer.position(pos + 9);
+			buffer.get(payload);
+			if (buffer.getInt(pos + 4) != checksum(type, payload)) {
+				log.warn("Ignoring torn state journal record at offset " + pos);
+				break;
+			}
+			
+			try {
+				apply(type, ByteBuffer.wrap(payload));
+			}
+			catch (BufferUnderflowException e) {
+				log.warn("Ignoring malformed state journal record at offset " + pos);
+				break;
+			}
+			replayed++;
+			pos += 8 + length;
+		}
+		
+		buffer.position(pos);
+		recordsSinceSnapshot = replayed;
+		return replayed;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Applies a replayed record to the state mirror.
+	 */
+	private void apply(byte type, ByteBuffer payload) {
+		switch (type) {
+			case ENQUEUE:
+				applyEnqueue(decodeString(payload));
+				break;
+			case DEQUEUE:
+				applyDequeue(decodeString(payload));
+				break;
+			case CONTEXT:
+				context = decodeString(payload);
+				break;
+			default:
+				log.warn("Unknown state journal record type: " + type);
+		}
+	}
+	
+	private void applyEnqueue(String shortName) {
+		// The application queue acts like a set.
+		if (!queue.contains(shortName)) {
+			queue.add(shortName);
+		}
+	}
+	
+	private void applyDequeue(String shortName) {
+		queue.remove(shortName);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Starts a new, empty journal with the given generation.
+	 */
+	private void resetJournal(long newGeneration) {
+		generation = newGeneration;
+		buffer.clear();
+		buffer.putInt(0, JOURNAL_MAGIC);
+		buffer.putLong(4, generation);
+		buffer.putInt(HEADER_SIZE, 0);
+		buffer.position(HEADER_SIZE);
+		buffer.force();
+		recordsSinceSnapshot = 0;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Reads the snapshot file into the state mirror, if there is one. Without
+	 * one, a new snapshot left complete but not yet renamed is read.
+	 */
+	private void readSnapshot() throws IOException {
+		generation = 0;
+		File f = new File(directory, SNAPSHOT_FILE);
+		if (f.exists()) {
+			readSnapshot(f);
+			return;
+		}
+		
+		File tmp = new File(directory, SNAPSHOT_FILE + ".tmp");
+		if (!tmp.exists()) {
+			return;
+		}
+		try {
+			// Either the old snapshot was deleted after the new one was
+			// written in full, or the first snapshot was never finished
+			readSnapshot(tmp);
+			log.warn("Recovered state from unfinished snapshot replacement " + tmp.getAbsolutePath());
+			if (!tmp.renameTo(f)) {
+				log.warn("Could not rename " + tmp.getAbsolutePath() + ", it will be replaced by the next snapshot.");
+			}
+		}
+		catch (IOException e) {
+			// Nothing was replaced, so the journal is of the first generation
+			log.warn("Ignoring incomplete state snapshot " + tmp.getAbsolutePath(), e);
+			generation = 0;
+			context = null;
+			queue.clear();
+		}
+	}
+	
+	private void readSnapshot(File f) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+		try {
+			if (in.readInt() != SNAPSHOT_MAGIC) {
+				throw new IOException("Not a state snapshot: " + f.getAbsolutePath());
+			}
+			generation = in.readLong();
+			context = in.readBoolean() ? in.readUTF() : null;
+			
+			int queued = in.readInt();
+			for (int i = 0; i < queued; i++) {
+				queue.add(in.readUTF());
+			}
+		}
+		finally {
+			in.close();
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Writes the state mirror to a new snapshot file, and replaces the old
+	 * snapshot with it. The new file is complete on disk before the old one is
+	 * touched. Where a file can not be renamed over another (Windows), the old
+	 * snapshot is deleted first; readSnapshot() then reads the new file.
+	 */
+	private void writeSnapshot(long newGeneration) throws IOException {
+		File tmp = new File(directory, SNAPSHOT_FILE + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+		try {
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeLong(newGeneration);
+			out.writeBoolean(context != null);
+			if (context != null) {
+				out.writeUTF(context);
+			}
+			
+			out.writeInt(queue.size());
+			for (String s : queue) {
+				out.writeUTF(s);
+			}
+			out.flush();
+			fos.getFD().sync();
+		}
+		finally {
+			out.close();
+		}
+		
+		File f = new File(directory, SNAPSHOT_FILE);
+		if (!tmp.renameTo(f) && !(f.delete() && tmp.renameTo(f))) {
+			throw new IOException("Could not replace state snapshot " + f.getAbsolutePath());
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Checksum of a record, including the journal generation so that stale
+	 * records from an older generation never validate.
+	 */
+	private int checksum(byte type, byte[] payload) {
+		CRC32 crc = new CRC32();
+		for (int i = 0; i < 64; i += 8) {
+			crc.update((int) (generation >>> i));
+		}
+		crc.update(type);
+		crc.update(payload);
+		return (int) crc.getValue();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Record payload encoding. Strings are written as a length followed by
+	 * their UTF-8 bytes.
+	 * 
+	 * Also used by the outbox for its records.
+	 */
+	static byte[] encode(String s) {
+		byte[] bytes = utf8(s);
+		ByteBuffer b = ByteBuffer.allocate(4 + bytes.length);
+		b.putInt(bytes.length).put(bytes);
+		return b.array();
+	}
+	
+	static byte[] encode(Map<String, String> map) {
+		List<byte[]> parts = new ArrayList<byte[]>();
+		int size = 4;
+		for (Map.Entry<String, String> e : map.entrySet()) {
+			byte[] key = utf8(e.getKey());
+			byte[] value = utf8(e.getValue());
+			parts.add(key);
+			parts.add(value);
+			size += 8 + key.length + value.length;
+		}
+		
+		ByteBuffer b = ByteBuffer.allocate(size);
+		b.putInt(map.size());
+		for (byte[] part : parts) {
+			b.putInt(part.length).put(part);
+		}
+		return b.array();
+	}
+	
+	static String decodeString(ByteBuffer b) {
+		byte[] bytes = new byte[b.getInt()];
+		b.get(bytes);
+		try {
+			return new String(bytes, "UTF-8");
+		}
+		catch (UnsupportedEncodingException e) {
+			// Every JVM supports UTF-8
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	static Map<String, String> decodeMap(ByteBuffer b) {
+		Map<String, String> map = new HashMap<String, String>();
+		int size = b.getInt();
+		for (int i = 0; i < size; i++) {
+			map.put(decodeString(b), decodeString(b));
+		}
+		return map;
+	}
+	
+	private static byte[] utf8(String s) {
+		try {
+			return (s == null ? "" : s).getBytes("UTF-8");
+		}
+		catch (UnsupportedEncodingException e) {
+			// Every JVM supports UTF-8
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * RecoveredState
+	 * 
+	 *          The state of the coffee shop as it was last recorded by the
+	 *          journal.
+	 */
+	public static class RecoveredState {
+		
+		private final String context;
+		private final List<String> queue;
+		
+		RecoveredState(String context, List<String> queue) {
+			this.context = context;
+			this.queue = queue;
+		}
+		
+		/**
+		 * @return the short name of the application that was in context, or
+		 *         null if none was recorded
+		 */
+		public String getContext() {
+			return context;
+		}
+		
+		/**
+		 * @return short names of the queued applications, in queue order
+		 */
+		public List<String> getQueue() {
+			return queue;
+		}
+	}
+}
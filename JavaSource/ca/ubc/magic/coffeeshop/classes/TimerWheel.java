@@ -0,0 +1,346 @@
+package ca.ubc.magic.coffeeshop.classes;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * TimerWheel
+ * 
+ * @version 1.0
+ * 
+ *          A hierarchical hashed timer wheel: the one timer of the coffee
+ *          shop, for idle deadlines, playlist checks, queue entry expiry and
+ *          sender cooldowns.
+ * 
+ *          Time is divided into ticks. The wheel has four levels of 64 slots;
+ *          a slot of the first level holds the timers due in one tick, a slot
+ *          of the next level those due in 64 ticks, and so on. A timer is put
+ *          in the slot of the lowest level that reaches its deadline, and
+ *          moved down a level each time that level comes round, until it
+ *          fires. Scheduling and cancelling a timer is a constant time list
+ *          operation, however many timers are outstanding; java.util.Timer
+ *          and ScheduledThreadPoolExecutor keep their timers in a heap, which
+ *          takes logarithmic time, and Timer never releases cancelled tasks
+ *          until they come due. TimerChurnBenchmark ("ant bench") compares the
+ *          three with 100000 timers outstanding.
+ * 
+ *          A timer fires within one tick after its deadline. A single driver
+ *          thread advances the wheel and hands the timers that fire to an
+ *          executor, so a slow task does not hold up the wheel.
+ */
+public class TimerWheel {
+	
+	private static final int LEVELS = 4;
+	private static final int SLOT_BITS = 6;
+	private static final int SLOTS = 1 << SLOT_BITS;
+	private static final int SLOT_MASK = SLOTS - 1;
+	
+	/* The furthest a timer can be placed from the current tick */
+	private static final long SPAN = 1L << (SLOT_BITS * LEVELS);
+	
+	private final Logger log = Logger.getLogger(TimerWheel.class);
+	
+	private final long tickNanos;
+	private final Executor executor;
+	private final long startNanos = System.nanoTime();
+	
+	private final Slot[][] wheel = new Slot[LEVELS][SLOTS];
+	private final Object lock = new Object();
+	private long currentTick = 0;
+	private int size = 0;
+	private volatile boolean running = true;
+	
+	/* Timers fired by the current tick; only used by the driver thread */
+	private final List<Timeout> expired = new ArrayList<Timeout>();
+	
+	/**
+	 * Constructor. Starts the driver thread.
+	 * 
+	 * @param name
+	 *            name of the driver thread
+	 * @param tickMillis
+	 *            length of a tick, in milliseconds
+	 * @param executor
+	 *            executor the tasks of the timers are run on
+	 */
+	public TimerWheel(String name, long tickMillis, Executor executor) {
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+		this.executor = executor;
+		for (int level = 0; level < LEVELS; level++) {
+			for (int slot = 0; slot < SLOTS; slot++) {
+				wheel[level][slot] = new Slot();
+			}
+		}
+		
+		Thread driver = new Thread(new Driver(), name);
+		driver.setDaemon(true);
+		driver.start();
+	}
+	
+	/**
+	 * Schedules a task to run once after a delay.
+	 * 
+	 * @param task
+	 *            the task
+	 * @param delay
+	 *            the delay
+	 * @param unit
+	 *            unit of the delay
+	 * @return the timer, which can be cancelled
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		return add(task, delay, 0, unit);
+	}
+	
+	/**
+	 * Schedules a task to run repeatedly, first after an initial delay, then
+	 * at a fixed rate.
+	 * 
+	 * @param task
+	 *            the task
+	 * @param initialDelay
+	 *            the delay before the first run
+	 * @param period
+	 *            the time between the start of one run and the next
+	 * @param unit
+	 *            unit of the delay and period
+	 * @return the timer, which can be cancelled
+	 */
+	public Timeout scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit) {
+		if (period <= 0) {
+			throw new IllegalArgumentException("period must be positive");
+		}
+		return add(task, initialDelay, period, unit);
+	}
+	
+	private Timeout add(Runnable task, long delay, long period, TimeUnit unit) {
+		long elapsed = System.nanoTime() - startNanos + unit.toNanos(Math.max(0, delay));
+		long deadline = (elapsed + tickNanos - 1) / tickNanos;
+		long periodTicks = period > 0 ? Math.max(1, unit.toNanos(period) / tickNanos) : 0;
+		Timeout t = new Timeout(task, deadline, periodTicks);
+		synchronized (lock) {
+			if (!running) {
+				throw new RejectedExecutionException("Timer wheel stopped");
+			}
+			place(t);
+			size++;
+		}
+		return t;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Puts a timer in the slot of the lowest level that reaches its deadline.
+	 * A timer already due goes in the slot of the next tick. Called holding
+	 * the lock.
+	 */
+	private void place(Timeout t) {
+		long deadline = Math.max(t.deadline, currentTick + 1);
+		long delta = Math.min(deadline - currentTick, SPAN - 1);
+		if (delta < deadline - currentTick) {
+			// Too far out; park it at the end of the top level for now
+			deadline = currentTick + delta;
+		}
+		
+		int level = 0;
+		while (delta >= (1L << (SLOT_BITS * (level + 1)))) {
+			level++;
+		}
+		wheel[level][(int) ((deadline >> (SLOT_BITS * level)) & SLOT_MASK)].add(t);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Advances the wheel by one tick, moving the timers of the higher levels
+	 * that come round down the wheel, and collecting the timers that fire.
+	 * Called holding the lock.
+	 */
+	private void tick() {
+		currentTick++;
+		for (int level = 1; level < LEVELS; level++) {
+			if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+				break;
+			}
+			Slot slot = wheel[level][(int) ((currentTick >> (SLOT_BITS * level)) & SLOT_MASK)];
+			Timeout t = slot.head;
+			while (t != null) {
+				Timeout next = t.next;
+				slot.remove(t);
+				place(t);
+				t = next;
+			}
+		}
+		
+		Slot slot = wheel[0][(int) (currentTick & SLOT_MASK)];
+		Timeout t = slot.head;
+		while (t != null) {
+			Timeout next = t.next;
+			slot.remove(t);
+			if (t.period > 0) {
+				t.deadline += t.period;
+				place(t);
+			}
+			else {
+				t.expired = true;
+				size--;
+			}
+			expired.add(t);
+			t = next;
+		}
+	}
+	
+	/**
+	 * @return the number of timers outstanding
+	 */
+	public int size() {
+		synchronized (lock) {
+			return size;
+		}
+	}
+	
+	/**
+	 * Stops the wheel. Outstanding timers do not fire.
+	 */
+	public void stop() {
+		synchronized (lock) {
+			running = false;
+			lock.notifyAll();
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Advances the wheel once every tick, and runs the timers that fire.
+	 */
+	private class Driver implements Runnable {
+		
+		@Override
+		public void run() {
+			while (running) {
+				synchronized (lock) {
+					long wait = startNanos + (currentTick + 1) * tickNanos - System.nanoTime();
+					try {
+						if (wait > 0) {
+							TimeUnit.NANOSECONDS.timedWait(lock, wait);
+							continue;
+						}
+					}
+					catch (InterruptedException e) {
+						return;
+					}
+					long now = (System.nanoTime() - startNanos) / tickNanos;
+					while (currentTick < now) {
+						tick();
+					}
+				}
+				
+				for (Timeout t : expired) {
+					try {
+						executor.execute(t.task);
+					}
+					catch (RejectedExecutionException e) {
+						log.warn("Timer task rejected, wheel shutting down?", e);
+					}
+				}
+				expired.clear();
+			}
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * The timers due in one slot, in a doubly linked list.
+	 */
+	private static class Slot {
+		
+		Timeout head;
+		
+		void add(Timeout t) {
+			t.slot = this;
+			t.prev = null;
+			t.next = head;
+			if (head != null) {
+				head.prev = t;
+			}
+			head = t;
+		}
+		
+		void remove(Timeout t) {
+			if (t.prev != null) {
+				t.prev.next = t.next;
+			}
+			else {
+				head = t.next;
+			}
+			if (t.next != null) {
+				t.next.prev = t.prev;
+			}
+			t.slot = null;
+			t.prev = null;
+			t.next = null;
+		}
+	}
+	
+	/**
+	 * Timeout
+	 * 
+	 *          A scheduled timer.
+	 */
+	public class Timeout {
+		
+		private final Runnable task;
+		private final long period;
+		private long deadline;
+		private boolean expired = false;
+		private boolean cancelled = false;
+		
+		private Slot slot;
+		private Timeout prev;
+		private Timeout next;
+		
+		private Timeout(Runnable task, long deadline, long period) {
+			this.task = task;
+			this.deadline = deadline;
+			this.period = period;
+		}
+		
+		/**
+		 * Cancels the timer. A task already handed to the executor still
+		 * runs.
+		 * 
+		 * @return true if the timer was cancelled, false if it had already
+		 *         fired or been cancelled
+		 */
+		public boolean cancel() {
+			synchronized (lock) {
+				if (slot == null) {
+					return false;
+				}
+				slot.remove(this);
+				cancelled = true;
+				size--;
+				return true;
+			}
+		}
+		
+		public boolean isCancelled() {
+			synchronized (lock) {
+				return cancelled;
+			}
+		}
+		
+		/**
+		 * @return true if the timer fired, and will not fire again
+		 */
+		public boolean isExpired() {
+			synchronized (lock) {
+				return expired;
+			}
+		}
+	}
+}
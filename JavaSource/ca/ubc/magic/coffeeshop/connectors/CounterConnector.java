@@ -13,11 +13,11 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
+import ca.ubc.magic.coffeeshop.classes.BrokerClient;
+import ca.ubc.magic.coffeeshop.classes.BrokerTransport;
 import ca.ubc.magic.coffeeshop.classes.CoffeeShop;
 import ca.ubc.magic.coffeeshop.jaxb.Application;
-import ca.ubc.magic.osgibroker.OSGiBrokerClient;
 import ca.ubc.magic.osgibroker.OSGiBrokerException;
-import ca.ubc.magic.osgibroker.OSGiBrokerService;
 import ca.ubc.magic.osgibroker.workgroups.TopicEvent;
 
 
@@ -27,20 +27,18 @@ public class CounterConnector implements Connector {
 	String topic = "counter";
 	String topicConnector = "cs_counter";
 
-	OSGiBrokerService BrokerCounter;
-	OSGiBrokerClient ClientCounter;
+	BrokerClient ClientCounter;
 		
 	public CounterConnector() throws OSGiBrokerException {
 				
 		try {
 			cs = CoffeeShop.getInstance();			
 						
-			BrokerCounter = new OSGiBrokerService("localhost:8800");
-			ClientCounter = BrokerCounter.addClient("counterconnector");
+			ClientCounter = BrokerTransport.getInstance().createClient("localhost:8800", "counterconnector");
 			
 			try {
-				ClientCounter.subscriber().subscribeHttp("counter", false);
-				ClientCounter.subscriber().subscribeHttp("cs_counter", false);
+				ClientCounter.subscribeHttp("counter");
+				ClientCounter.subscribeHttp("cs_counter");
 								
 			} catch (OSGiBrokerException e1) {
 				e1.printStackTrace();
@@ -71,12 +69,12 @@ public class CounterConnector implements Connector {
 								
 			while (true){
 				try {
-					TopicEvent[] events = ClientCounter.subscriber().getEvents("counter", 1);
+					TopicEvent[] events = ClientCounter.getEvents("counter", 1);
 							
 					if ( events.length > 0 ) { // if we have at least one event.
 						Map<String, String> map = new HashMap<String, String>();
 						map.put("message", "RUNNINGSTILL" );
-						ClientCounter.publisher().sendEvent("cs_counter", map);							
+						ClientCounter.sendEvent("cs_counter", map);							
 					}
 
 					Thread.sleep(5000);
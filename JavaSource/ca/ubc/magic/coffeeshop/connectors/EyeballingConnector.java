@@ -1,19 +1,17 @@
 package ca.ubc.magic.coffeeshop.connectors;
 
 import java.io.IOException;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.UnknownHostException;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.channels.SocketChannel;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
 
 import ca.ubc.magic.coffeeshop.classes.CoffeeShop;
+import ca.ubc.magic.coffeeshop.classes.TimerWheel;
 import ca.ubc.magic.coffeeshop.jaxb.Application;
 import ca.ubc.magic.osgibroker.OSGiBrokerException;
 import ca.ubc.magic.osgibroker.workgroups.TopicEvent;
@@ -27,86 +25,108 @@ import ca.ubc.magic.osgibroker.workgroups.TopicEvent;
  * This connector is for use with the PSPI Eyeballing appliation.  
  * It has been developed to allow Eyeballing to work with the container, 
  * as well as provides an example of a custom connector.
+ * 
+ * The coffee shop creates a connector each time Eyeballing comes back into
+ * context, so all of them share one registration of the socket. It is closed
+ * once Eyeballing is no longer running, within WATCH_INTERVAL seconds.
  */
 public class EyeballingConnector implements Connector {
 	
-	SocketChannel sock;
-	ByteBuffer buf;
-	CoffeeShop cs;
+	/* Where the Eyeballing game sends its events */
+	private static final String HOST = "broker.magic.ubc.ca";
+	private static final int PORT = 8090;
+	
+	/* How often to check whether Eyeballing is still running, in seconds */
+	private static final int WATCH_INTERVAL = 5;
+	
+	private static final Logger log = Logger.getLogger(EyeballingConnector.class);
+	
+	/* The socket registration shared by all instances, and its watch; guarded by the class */
+	private static Reactor.Registration sock;
+	private static TimerWheel.Timeout watch;
+	
+	private CoffeeShop cs;
 	
 	public EyeballingConnector() {
 		try {
 			cs = CoffeeShop.getInstance();
-			
-			// Set up socket for eyeballing events. Just listens on this socket.
-			sock = SocketChannel.open();
-			sock.configureBlocking(false);
-			sock.connect(new InetSocketAddress(InetAddress.getByName("broker.magic.ubc.ca"), 8090));
-			
-			buf = ByteBuffer.allocate(1024);
-			
-			new Thread(new Listener()).start();
-			
-		}
-		catch (UnknownHostException e) {
-			e.printStackTrace();
+			listen();
 		}
 		catch (IOException e) {
-			e.printStackTrace();
+			log.error("Could not listen for Eyeballing events on " + HOST + ":" + PORT, e);
 		}
 	}
 	
 	/*
-	 * This Listener listens on the eyeballing socket for events. If events are
-	 * received, it notifies the OSGiBroker that the game is being used.
-	 * 
-	 * Socket implemented is non-blocking. Must be non-blocking in order to
-	 * allow the application to run, and this thread to monitor the events.
+	 * Listens on the eyeballing socket, unless an earlier instance already
+	 * does. The connection is made, and made again if lost, by the reactor
+	 * shared by all connectors.
 	 */
-	private class Listener implements Runnable {
-		
-		@Override
-		public void run() {
-			try {
-				// Set up non-blockig io
-				Selector sel = Selector.open();
-				while (sel.select(500) > 0) {
-					
-					Set<SelectionKey> keys = sel.selectedKeys();
-					Iterator<SelectionKey> it = keys.iterator();
-					
-					while (it.hasNext()) {
-						SelectionKey key = it.next();
-						it.remove();
-						
-						if (key.isConnectable()) {
-							while (true) {
-								if (sock.read(buf) > 0) {
-									// Got a message. Send it to the broker.
-									Map<String, String> map = new HashMap<String, String>();
-									map.put("message", "bogus");
-									sendEvent(map);
-									buf.clear();
-								}
-								else { 
-									// Check to see if we can close this thread.
-									Application app = cs.getCurrentApplication();
-									if (!app.getApplicationShortName().equals("eyeballing")) {
-										sock.close();
-										break;
-									}
-								}
-							}
-							break;
-						}
-						break;
+	private void listen() throws IOException {
+		synchronized (EyeballingConnector.class) {
+			if (sock != null) {
+				return;
+			}
+			sock = Reactor.getInstance().connect(new InetSocketAddress(HOST, PORT), new Listener());
+			watch = cs.getTimers().scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					if (!isRunning()) {
+						close();
 					}
 				}
+			}, WATCH_INTERVAL, WATCH_INTERVAL, TimeUnit.SECONDS);
+		}
+	}
+	
+	/*
+	 * Stops listening on the eyeballing socket.
+	 */
+	private static void close() {
+		synchronized (EyeballingConnector.class) {
+			if (sock != null) {
+				sock.close();
+				sock = null;
+				log.info("Stopped listening for Eyeballing events.");
 			}
-			catch (IOException e) {
-				
+			if (watch != null) {
+				watch.cancel();
+				watch = null;
 			}
-			
+		}
+	}
+	
+	private boolean isRunning() {
+		Application app = cs.getCurrentApplication();
+		return app.getApplicationShortName().equals("eyeballing");
+	}
+	
+	/*
+	 * This Listener is called by the reactor when events are received on the
+	 * eyeballing socket. If there are, it notifies the OSGiBroker that the
+	 * game is being used.
+	 * 
+	 * Once Eyeballing is no longer running, the socket is closed by the watch,
+	 * or on the next events received.
+	 */
+	private class Listener implements Reactor.Handler {
+		
+		@Override
+		public void connected() {
+			log.info("Listening for Eyeballing events on " + HOST + ":" + PORT);
+		}
+		
+		@Override
+		public void read(ByteBuffer data, SocketAddress from) {
+			// Got a message. Send it to the broker.
+			Map<String, String> map = new HashMap<String, String>();
+			map.put("message", "bogus");
+			sendEvent(map);
+		}
+		
+		@Override
+		public void disconnected() {
+			log.info("Lost the Eyeballing socket " + HOST + ":" + PORT);
 		}
 	}
 	
@@ -117,33 +137,21 @@ public class EyeballingConnector implements Connector {
 	
 	@Override
 	public void sendEvent(Map<String, String> paramaters) {
-		Application app = cs.getCurrentApplication();
-		// Check to see if we can stop the thread.
-		if (!app.getApplicationShortName().equals("eyeballing")) {
-			try {
-				sock.close();
-			}
-			catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
+		// Check to see if we can stop listening.
+		if (!isRunning()) {
+			close();
 		}
 		else {
 			try {
-				// Publish the event to OSGiBroker.
+				// Publish the event to OSGiBroker. The outbox sends it in the
+				// background, so this does not block the reactor.
 				cs.publishEvent(paramaters);
 			}
 			catch (OSGiBrokerException e) {
-				e.printStackTrace();
+				log.warn("Could not publish Eyeballing event.", e);
 			}
 		}
 		
 	}
 	
-	@Override
-	protected void finalize() throws Throwable {
-		super.finalize();
-		sock.close();
-	}
-	
 }
@@ -13,11 +13,11 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
+import ca.ubc.magic.coffeeshop.classes.BrokerClient;
+import ca.ubc.magic.coffeeshop.classes.BrokerTransport;
 import ca.ubc.magic.coffeeshop.classes.CoffeeShop;
 import ca.ubc.magic.coffeeshop.jaxb.Application;
-import ca.ubc.magic.osgibroker.OSGiBrokerClient;
 import ca.ubc.magic.osgibroker.OSGiBrokerException;
-import ca.ubc.magic.osgibroker.OSGiBrokerService;
 import ca.ubc.magic.osgibroker.workgroups.TopicEvent;
 
 /*
@@ -36,20 +36,18 @@ public class HelloConnector implements Connector {
 	String topic = "hello";
 	String topicConnector = "cs_hello";
 
-	OSGiBrokerService BrokerHello;
-	OSGiBrokerClient ClientHello;
+	BrokerClient ClientHello;
 		
 	public HelloConnector() throws OSGiBrokerException {
 				
 		try {
 			cs = CoffeeShop.getInstance();			
 						
-			BrokerHello = new OSGiBrokerService("localhost:8800");
-			ClientHello = BrokerHello.addClient("helloconnector");
+			ClientHello = BrokerTransport.getInstance().createClient("localhost:8800", "helloconnector");
 			
 			try {
-				ClientHello.subscriber().subscribeHttp("hello", false);
-				ClientHello.subscriber().subscribeHttp("cs_hello", false);
+				ClientHello.subscribeHttp("hello");
+				ClientHello.subscribeHttp("cs_hello");
 								
 			} catch (OSGiBrokerException e1) {
 				e1.printStackTrace();
@@ -84,12 +82,12 @@ public class HelloConnector implements Connector {
 			
 			while (true){
 				try {
-					TopicEvent[] events = ClientHello.subscriber().getEvents("hello", 1);
+					TopicEvent[] events = ClientHello.getEvents("hello", 1);
 							
 					if ( events.length > 0 ) { // if we have at least one event.
 						Map<String, String> map = new HashMap<String, String>();
 						map.put("message", "RUNNINGSTILL" );
-						ClientHello.publisher().sendEvent("cs_hello", map);							
+						ClientHello.sendEvent("cs_hello", map);							
 					}
 
 					Thread.sleep(5000);
@@ -13,11 +13,11 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
+import ca.ubc.magic.coffeeshop.classes.BrokerClient;
+import ca.ubc.magic.coffeeshop.classes.BrokerTransport;
 import ca.ubc.magic.coffeeshop.classes.CoffeeShop;
 import ca.ubc.magic.coffeeshop.jaxb.Application;
-import ca.ubc.magic.osgibroker.OSGiBrokerClient;
 import ca.ubc.magic.osgibroker.OSGiBrokerException;
-import ca.ubc.magic.osgibroker.OSGiBrokerService;
 import ca.ubc.magic.osgibroker.workgroups.TopicEvent;
 
 /*
@@ -35,19 +35,17 @@ public class IdirectoryConnector implements Connector {
 	CoffeeShop cs;
 	String topic = "broker.idirectory";
 	String topicConnector = "cs_idirectory";
-	OSGiBrokerService BrokerIdirectory;
-	OSGiBrokerClient ClientIdirectory;
+	BrokerClient ClientIdirectory;
 	
 	public IdirectoryConnector() throws OSGiBrokerException {
 				
 		try {
 			cs = CoffeeShop.getInstance();		
 			
-			BrokerIdirectory = new OSGiBrokerService("broker.magic.ubc.ca:8800");
-			ClientIdirectory = BrokerIdirectory.addClient("idirectoryconnector");
+			ClientIdirectory = BrokerTransport.getInstance().createClient("broker.magic.ubc.ca:8800", "idirectoryconnector");
 			try {
-				ClientIdirectory.subscriber().subscribeHttp("cs_idirectory", false);
-				ClientIdirectory.subscriber().subscribeHttp("broker.idirectory", false);
+				ClientIdirectory.subscribeHttp("cs_idirectory");
+				ClientIdirectory.subscribeHttp("broker.idirectory");
 								
 			} catch (OSGiBrokerException e1) {
 				e1.printStackTrace();
@@ -75,7 +73,7 @@ public class IdirectoryConnector implements Connector {
 			while (true){
 				try {
 					
-					TopicEvent[] events = ClientIdirectory.subscriber().getEvents("pspi.idirectory", 1);
+					TopicEvent[] events = ClientIdirectory.getEvents("pspi.idirectory", 1);
 					
 					for (int i=0; i< events.length; i++){
 						
@@ -86,13 +84,13 @@ public class IdirectoryConnector implements Connector {
 						
 						//Map<String, String> map = new HashMap<String, String>();
 						//map.put("message", String.valueOf(containsPhone));
-						//ClientIdirectory.publisher().sendEvent("cs_idirectory", map);							
+						//ClientIdirectory.sendEvent("cs_idirectory", map);							
 						
 						//This might be removed. Apparently it stops receiving messages in 30 secs.						
 						if ( containsPhone == 0 ) {
 							Map<String, String> map = new HashMap<String, String>();
 							map.put("message", "RUNNINGSTILL");
-							ClientIdirectory.publisher().sendEvent("cs_idirectory", map);										
+							ClientIdirectory.sendEvent("cs_idirectory", map);										
 						}
 						
 					}
@@ -13,11 +13,11 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
+import ca.ubc.magic.coffeeshop.classes.BrokerClient;
+import ca.ubc.magic.coffeeshop.classes.BrokerTransport;
 import ca.ubc.magic.coffeeshop.classes.CoffeeShop;
 import ca.ubc.magic.coffeeshop.jaxb.Application;
-import ca.ubc.magic.osgibroker.OSGiBrokerClient;
 import ca.ubc.magic.osgibroker.OSGiBrokerException;
-import ca.ubc.magic.osgibroker.OSGiBrokerService;
 import ca.ubc.magic.osgibroker.workgroups.TopicEvent;
 
 /*
@@ -36,20 +36,18 @@ public class MagicBeansConnector implements Connector {
 	String topic = "magicbeans";
 	String topicConnector = "cs_magicbeans";
 
-	OSGiBrokerService BrokerSocialwall;
-	OSGiBrokerClient ClientSocialwall;
+	BrokerClient ClientSocialwall;
 		
 	public MagicBeansConnector() throws OSGiBrokerException {
 				
 		try {
 			cs = CoffeeShop.getInstance();			
 						
-			BrokerSocialwall = new OSGiBrokerService("broker.magic.ubc.ca:8800");
-			ClientSocialwall = BrokerSocialwall.addClient("magicbeansconnector");
+			ClientSocialwall = BrokerTransport.getInstance().createClient("broker.magic.ubc.ca:8800", "magicbeansconnector");
 			
 			try {
-				ClientSocialwall.subscriber().subscribeHttp("magicbeans", false);
-				ClientSocialwall.subscriber().subscribeHttp("cs_magicbeans", false);
+				ClientSocialwall.subscribeHttp("magicbeans");
+				ClientSocialwall.subscribeHttp("cs_magicbeans");
 								
 			} catch (OSGiBrokerException e1) {
 				e1.printStackTrace();
@@ -84,12 +82,12 @@ public class MagicBeansConnector implements Connector {
 			
 			while (true){
 				try {
-					TopicEvent[] events = ClientSocialwall.subscriber().getEvents("magicbeans", 1);
+					TopicEvent[] events = ClientSocialwall.getEvents("magicbeans", 1);
 							
 					if ( events.length > 0 ) { // if we have at least one event.
 						Map<String, String> map = new HashMap<String, String>();
 						map.put("message", "RUNNINGSTILL" );
-						ClientSocialwall.publisher().sendEvent("cs_magicbeans", map);							
+						ClientSocialwall.sendEvent("cs_magicbeans", map);							
 					}
 
 					Thread.sleep(5000);
@@ -0,0 +1,537 @@
+package ca.ubc.magic.coffeeshop.connectors;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Reactor
+ * 
+ * @version 1.0
+ * 
+ *          The one event loop of the connectors that talk to their
+ *          applications over sockets rather than through the OSGiBroker. A
+ *          connector registers a TCP connection or a UDP socket with a handler,
+ *          and the reactor's thread calls the handler whenever there is
+ *          something to read. However many sockets are registered, they cost
+ *          one thread, which sleeps while none of them has anything to read.
+ * 
+ *          A registration stays up until it is closed: a connection that can
+ *          not be made, or is lost, is made again, first after a second and
+ *          then twice as long each time it fails, up to a minute.
+ * 
+ *          Data is read into direct buffers taken from a pool. The buffer
+ *          handed to a handler is only lent to it for the call, and must not
+ *          be kept.
+ */
+public final class Reactor {
+	
+	/**
+	 * Handler
+	 * 
+	 *          Receives what happens on a registered socket. Handlers are
+	 *          called on the reactor's thread, so they must not block.
+	 */
+	public interface Handler {
+		
+		/**
+		 * Called when the connection is made, or the socket is bound.
+		 */
+		void connected();
+		
+		/**
+		 * Called with data read from the socket.
+		 * 
+		 * @param data
+		 *            the data, from its position to its limit; lent for this
+		 *            call only
+		 * @param from
+		 *            the address the data came from
+		 */
+		void read(ByteBuffer data, SocketAddress from);
+		
+		/**
+		 * Called when the connection is lost, or could not be made. Unless
+		 * the registration is closed, it is tried again.
+		 */
+		void disconnected();
+	}
+	
+	/* Size of the pooled read buffers, in bytes */
+	private static final int BUFFER_SIZE = 8192;
+	
+	/* The most buffers kept in the pool */
+	private static final int POOL_SIZE = 16;
+	
+	/* Most reads from one socket in a turn, so one socket can not hog the loop */
+	private static final int MAX_READS = 16;
+	
+	/* Time before the first retry of a failed registration, and the longest, in ms */
+	private static final long MIN_BACKOFF = 1000;
+	private static final long MAX_BACKOFF = 60000;
+	
+	private static final Reactor INSTANCE = new Reactor();
+	
+	private final Logger log = Logger.getLogger(Reactor.class);
+	
+	/* Work handed to the reactor's thread by other threads */
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	
+	/* Pooled read buffers */
+	private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger pooled = new AtomicInteger();
+	
+	/* Registrations waiting to be tried again; used on the reactor's thread only */
+	private final List<Registration> waiting = new ArrayList<Registration>();
+	
+	private Selector selector;
+	private Thread thread;
+	private volatile boolean running = false;
+	
+	private Reactor() {
+	}
+	
+	/**
+	 * @return the reactor shared by all connectors
+	 */
+	public static Reactor getInstance() {
+		return INSTANCE;
+	}
+	
+	/**
+	 * Registers a TCP connection to a remote address. The connection is made
+	 * in the background.
+	 * 
+	 * @param address
+	 *            the address connected to
+	 * @param handler
+	 *            the handler called with the data read
+	 * @return the registration, to close it with
+	 * @throws IOException
+	 *             if the reactor could not be started
+	 */
+	public Registration connect(InetSocketAddress address, Handler handler) throws IOException {
+		return register(new Stream(address, handler));
+	}
+	
+	/**
+	 * Registers a UDP socket bound to a local address.
+	 * 
+	 * @param address
+	 *            the address bound to
+	 * @param handler
+	 *            the handler called with the datagrams received
+	 * @return the registration, to close it with
+	 * @throws IOException
+	 *             if the reactor could not be started
+	 */
+	public Registration bind(InetSocketAddress address, Handler handler) throws IOException {
+		return register(new Datagram(address, handler));
+	}
+	
+	/**
+	 * Closes every registration and stops the reactor's thread. Only call this
+	 * when the web application is being taken down.
+	 */
+	public void shutdown() {
+		Thread t;
+		synchronized (this) {
+			if (thread == null) {
+				return;
+			}
+			running = false;
+			selector.wakeup();
+			t = thread;
+		}
+		try {
+			t.join(MAX_BACKOFF);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Hands a registration to the reactor's thread, starting it if need be.
+	 */
+	private Registration register(final Registration registration) throws IOException {
+		synchronized (this) {
+			if (thread == null) {
+				selector = Selector.open();
+				running = true;
+				thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						loop();
+					}
+				}, "CoffeeShop-reactor");
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+		submit(new Runnable() {
+			@Override
+			public void run() {
+				open(registration);
+			}
+		});
+		return registration;
+	}
+	
+	private void submit(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * The event loop.
+	 */
+	private void loop() {
+		while (running) {
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				task.run();
+			}
+			long timeout = retryWaiting();
+			
+			try {
+				selector.select(timeout);
+			}
+			catch (IOException e) {
+				log.error("Reactor could not wait for its sockets.", e);
+				break;
+			}
+			
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				Registration registration = (Registration) key.attachment();
+				try {
+					if (key.isValid()) {
+						registration.ready(key);
+					}
+				}
+				catch (IOException e) {
+					fail(registration, e);
+				}
+				catch (RuntimeException e) {
+					log.error("Handler of " + registration + " failed.", e);
+					fail(registration, new IOException(e.toString()));
+				}
+			}
+		}
+		
+		for (SelectionKey key : selector.keys()) {
+			((Registration) key.attachment()).drop();
+		}
+		try {
+			selector.close();
+		}
+		catch (IOException e) {
+			log.warn("Could not close the reactor's selector.", e);
+		}
+		log.info("Reactor stopped.");
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Tries again the registrations whose time has come, and returns the time
+	 * until the next one is due, or 0 if none is waiting.
+	 */
+	private long retryWaiting() {
+		long now = System.currentTimeMillis();
+		long next = 0;
+		List<Registration> due = new ArrayList<Registration>();
+		for (Iterator<Registration> it = waiting.iterator(); it.hasNext();) {
+			Registration registration = it.next();
+			if (registration.closed) {
+				it.remove();
+			}
+			else if (registration.retryAt <= now) {
+				it.remove();
+				due.add(registration);
+			}
+			else if (next == 0 || registration.retryAt - now < next) {
+				next = registration.retryAt - now;
+			}
+		}
+		for (Registration registration : due) {
+			open(registration);
+		}
+		return next;
+	}
+	
+	private void open(Registration registration) {
+		if (registration.closed) {
+			return;
+		}
+		try {
+			registration.open();
+		}
+		catch (IOException e) {
+			fail(registration, e);
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Closes a registration's socket after a failure, and schedules it to be
+	 * tried again.
+	 */
+	private void fail(Registration registration, IOException e) {
+		boolean wasOpen = registration.channel != null;
+		registration.drop();
+		if (wasOpen) {
+			try {
+				registration.handler.disconnected();
+			}
+			catch (RuntimeException re) {
+				log.error("Handler of " + registration + " failed.", re);
+			}
+		}
+		if (registration.closed) {
+			return;
+		}
+		if (registration.backoff == MIN_BACKOFF) {
+			log.warn(registration + " failed, trying again: " + e.getMessage());
+		}
+		else {
+			log.debug(registration + " failed again, next try in " + registration.backoff + " ms: " + e.getMessage());
+		}
+		registration.retryAt = System.currentTimeMillis() + registration.backoff;
+		registration.backoff = Math.min(MAX_BACKOFF, registration.backoff * 2);
+		waiting.add(registration);
+	}
+	
+	private ByteBuffer acquire() {
+		ByteBuffer buffer = buffers.poll();
+		if (buffer == null) {
+			return ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+		pooled.decrementAndGet();
+		return buffer;
+	}
+	
+	private void release(ByteBuffer buffer) {
+		buffer.clear();
+		if (pooled.incrementAndGet() <= POOL_SIZE) {
+			buffers.add(buffer);
+		}
+		else {
+			pooled.decrementAndGet();
+		}
+	}
+	
+	/**
+	 * Registration
+	 * 
+	 *          A socket registered with the reactor.
+	 */
+	public abstract class Registration {
+		
+		final InetSocketAddress address;
+		final Handler handler;
+		
+		/* Used on the reactor's thread only */
+		SelectableChannel channel;
+		long backoff = MIN_BACKOFF;
+		long retryAt;
+		
+		volatile boolean closed = false;
+		
+		Registration(InetSocketAddress address, Handler handler) {
+			this.address = address;
+			this.handler = handler;
+		}
+		
+		/**
+		 * Closes the socket, and stops trying to open it again.
+		 */
+		public void close() {
+			closed = true;
+			submit(new Runnable() {
+				@Override
+				public void run() {
+					drop();
+				}
+			});
+		}
+		
+		/**
+		 * @return true if the registration has been closed
+		 */
+		public boolean isClosed() {
+			return closed;
+		}
+		
+		/*
+		 * Opens the socket and registers it with the selector.
+		 */
+		abstract void open() throws IOException;
+		
+		/*
+		 * Handles the operations the socket is ready for.
+		 */
+		abstract void ready(SelectionKey key) throws IOException;
+		
+		/*
+		 * The address to use, resolved again if it could not be before.
+		 */
+		InetSocketAddress resolve() throws UnknownHostException {
+			if (!address.isUnresolved()) {
+				return address;
+			}
+			InetSocketAddress resolved = new InetSocketAddress(address.getHostName(), address.getPort());
+			if (resolved.isUnresolved()) {
+				throw new UnknownHostException(address.getHostName());
+			}
+			return resolved;
+		}
+		
+		void opened() {
+			backoff = MIN_BACKOFF;
+			handler.connected();
+		}
+		
+		/*
+		 * Closes the socket, if open.
+		 */
+		void drop() {
+			if (channel == null) {
+				return;
+			}
+			try {
+				channel.close();
+			}
+			catch (IOException e) {
+				log.debug("Could not close " + this, e);
+			}
+			channel = null;
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * A TCP connection.
+	 */
+	private class Stream extends Registration {
+		
+		Stream(InetSocketAddress address, Handler handler) {
+			super(address, handler);
+		}
+		
+		@Override
+		void open() throws IOException {
+			SocketChannel socket = SocketChannel.open();
+			channel = socket;
+			socket.configureBlocking(false);
+			if (socket.connect(resolve())) {
+				socket.register(selector, SelectionKey.OP_READ, this);
+				opened();
+			}
+			else {
+				socket.register(selector, SelectionKey.OP_CONNECT, this);
+			}
+		}
+		
+		@Override
+		void ready(SelectionKey key) throws IOException {
+			SocketChannel socket = (SocketChannel) key.channel();
+			if (key.isConnectable()) {
+				socket.finishConnect();
+				key.interestOps(SelectionKey.OP_READ);
+				opened();
+			}
+			else if (key.isReadable()) {
+				ByteBuffer buffer = acquire();
+				try {
+					for (int i = 0; i < MAX_READS; i++) {
+						int n = socket.read(buffer);
+						if (n < 0) {
+							throw new EOFException("Connection closed by " + address);
+						}
+						if (n == 0) {
+							break;
+						}
+						buffer.flip();
+						handler.read(buffer, address);
+						buffer.clear();
+					}
+				}
+				finally {
+					release(buffer);
+				}
+			}
+		}
+		
+		@Override
+		public String toString() {
+			return "TCP connection to " + address;
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * A UDP socket.
+	 */
+	private class Datagram extends Registration {
+		
+		Datagram(InetSocketAddress address, Handler handler) {
+			super(address, handler);
+		}
+		
+		@Override
+		void open() throws IOException {
+			DatagramChannel socket = DatagramChannel.open();
+			channel = socket;
+			socket.configureBlocking(false);
+			socket.socket().bind(resolve());
+			socket.register(selector, SelectionKey.OP_READ, this);
+			opened();
+		}
+		
+		@Override
+		void ready(SelectionKey key) throws IOException {
+			DatagramChannel socket = (DatagramChannel) key.channel();
+			ByteBuffer buffer = acquire();
+			try {
+				for (int i = 0; i < MAX_READS; i++) {
+					SocketAddress from = socket.receive(buffer);
+					if (from == null) {
+						break;
+					}
+					buffer.flip();
+					handler.read(buffer, from);
+					buffer.clear();
+				}
+			}
+			finally {
+				release(buffer);
+			}
+		}
+		
+		@Override
+		public String toString() {
+			return "UDP socket on " + address;
+		}
+	}
+}
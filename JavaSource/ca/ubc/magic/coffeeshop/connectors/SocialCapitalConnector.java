@@ -13,11 +13,11 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
+import ca.ubc.magic.coffeeshop.classes.BrokerClient;
+import ca.ubc.magic.coffeeshop.classes.BrokerTransport;
 import ca.ubc.magic.coffeeshop.classes.CoffeeShop;
 import ca.ubc.magic.coffeeshop.jaxb.Application;
-import ca.ubc.magic.osgibroker.OSGiBrokerClient;
 import ca.ubc.magic.osgibroker.OSGiBrokerException;
-import ca.ubc.magic.osgibroker.OSGiBrokerService;
 import ca.ubc.magic.osgibroker.workgroups.TopicEvent;
 
 /*
@@ -36,8 +36,7 @@ public class SocialCapitalConnector implements Connector {
 	String topic = "osn";
 	String topicConnector = "cs_socialcapital";
 
-	OSGiBrokerService BrokerSocialcapital;
-	OSGiBrokerClient ClientSocialcapital;
+	BrokerClient ClientSocialcapital;
 	
 	
 	public SocialCapitalConnector() throws OSGiBrokerException {
@@ -45,12 +44,11 @@ public class SocialCapitalConnector implements Connector {
 		try {
 			cs = CoffeeShop.getInstance();
 
-			BrokerSocialcapital = new OSGiBrokerService("broker.magic.ubc.ca:8800");
-			ClientSocialcapital = BrokerSocialcapital.addClient("socialcapitalconnector");
+			ClientSocialcapital = BrokerTransport.getInstance().createClient("broker.magic.ubc.ca:8800", "socialcapitalconnector");
 			
 			try {
-				ClientSocialcapital.subscriber().subscribeHttp("osn", false);
-				ClientSocialcapital.subscriber().subscribeHttp("cs_socialcapital", false);
+				ClientSocialcapital.subscribeHttp("osn");
+				ClientSocialcapital.subscribeHttp("cs_socialcapital");
 								
 			} catch (OSGiBrokerException e1) {
 				e1.printStackTrace();
@@ -82,12 +80,12 @@ public class SocialCapitalConnector implements Connector {
 			
 			while (true){
 				try {
-					TopicEvent[] events = ClientSocialcapital.subscriber().getEvents("osn", 1);
+					TopicEvent[] events = ClientSocialcapital.getEvents("osn", 1);
 							
 					if ( events.length > 0 ) { // if we have at least one event.
 						Map<String, String> map = new HashMap<String, String>();
 						map.put("message", "RUNNINGSTILL" );
-						ClientSocialcapital.publisher().sendEvent("cs_socialcapital", map);							
+						ClientSocialcapital.sendEvent("cs_socialcapital", map);							
 					}
 
 					Thread.sleep(5000);
@@ -13,11 +13,11 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
+import ca.ubc.magic.coffeeshop.classes.BrokerClient;
+import ca.ubc.magic.coffeeshop.classes.BrokerTransport;
 import ca.ubc.magic.coffeeshop.classes.CoffeeShop;
 import ca.ubc.magic.coffeeshop.jaxb.Application;
-import ca.ubc.magic.osgibroker.OSGiBrokerClient;
 import ca.ubc.magic.osgibroker.OSGiBrokerException;
-import ca.ubc.magic.osgibroker.OSGiBrokerService;
 import ca.ubc.magic.osgibroker.workgroups.TopicEvent;
 
 /*
@@ -36,8 +36,7 @@ public class SocialWallConnector implements Connector {
 	String topic = "osn";
 	String topicConnector = "cs_socialwall";
 
-	OSGiBrokerService BrokerSocialwall;
-	OSGiBrokerClient ClientSocialwall;
+	BrokerClient ClientSocialwall;
 	
 	
 	public SocialWallConnector() throws OSGiBrokerException {
@@ -46,12 +45,11 @@ public class SocialWallConnector implements Connector {
 			cs = CoffeeShop.getInstance();
 			
 						
-			BrokerSocialwall = new OSGiBrokerService("broker.magic.ubc.ca:8800");
-			ClientSocialwall = BrokerSocialwall.addClient("socialwallconnector");
+			ClientSocialwall = BrokerTransport.getInstance().createClient("broker.magic.ubc.ca:8800", "socialwallconnector");
 			
 			try {
-				ClientSocialwall.subscriber().subscribeHttp("osn", false);
-				ClientSocialwall.subscriber().subscribeHttp("cs_socialwall", false);
+				ClientSocialwall.subscribeHttp("osn");
+				ClientSocialwall.subscribeHttp("cs_socialwall");
 								
 			} catch (OSGiBrokerException e1) {
 				e1.printStackTrace();
@@ -83,12 +81,12 @@ public class SocialWallConnector implements Connector {
 			
 			while (true){
 				try {
-					TopicEvent[] events = ClientSocialwall.subscriber().getEvents("osn", 1);
+					TopicEvent[] events = ClientSocialwall.getEvents("osn", 1);
 							
 					if ( events.length > 0 ) { // if we have at least one event.
 						Map<String, String> map = new HashMap<String, String>();
 						map.put("message", "RUNNINGSTILL" );
-						ClientSocialwall.publisher().sendEvent("cs_socialwall", map);							
+						ClientSocialwall.sendEvent("cs_socialwall", map);							
 					}
 
 					Thread.sleep(5000);
@@ -13,8 +13,11 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.log4j.Logger;
 
+import ca.ubc.magic.coffeeshop.classes.ApplicationQueue;
+import ca.ubc.magic.coffeeshop.classes.BrokerTransport;
 import ca.ubc.magic.coffeeshop.classes.CoffeeShop;
 import ca.ubc.magic.coffeeshop.connectors.Connector;
+import ca.ubc.magic.coffeeshop.connectors.Reactor;
 import ca.ubc.magic.coffeeshop.exceptions.ConfigurationException;
 import ca.ubc.magic.coffeeshop.jaxb.Application;
 import ca.ubc.magic.osgibroker.OSGiBrokerException;
@@ -155,9 +158,24 @@ public class CoffeeShopServlet extends HttpServlet {
 	 * appliaction. "Say" messages are sent to the message board for posting.
 	 * All other messages are forwarded to the currently running appliation's
 	 * topic on the OSGiBroker.
+	 * 
+	 * Messages received twice within the duplicate window, and messages from a
+	 * sender over its rate limit, are dropped.
 	 */
 	private void smsDecode(TopicEvent event) {
 		
+		// Drop messages received twice, and from senders over their rate
+		// limit
+		if (coffeeshop.getDuplicateFilter().isDuplicate("sms:" + event.getAttribute("from"), event
+		        .getAttribute("message"))) {
+			log.info("Dropped duplicate SMS message from " + event.getAttribute("from"));
+			return;
+		}
+		if (!coffeeshop.getRateLimiter().tryAcquire("sms:" + event.getAttribute("from"))) {
+			log.info("Throttled SMS message from " + event.getAttribute("from"));
+			return;
+		}
+		
 		// Trim the message
 		String message = event.getAttribute("message").toLowerCase().trim();
 		
@@ -174,8 +192,9 @@ public class CoffeeShopServlet extends HttpServlet {
 		if ("select".equals(identifier)) {
 			String num = message.substring(message.indexOf(" ")).trim();
 			try {
-				// Queue the application
-				doMenuOperation(Integer.parseInt(num));
+				// Queue the application, and tell the sender how it went
+				int menuNumber = Integer.parseInt(num);
+				sendSMSReply(event, getAdmissionMessage(menuNumber, doMenuOperation(menuNumber)));
 			}
 			catch (NumberFormatException e) {
 				// User screwed the message up. Ignore it.
@@ -185,7 +204,9 @@ public class CoffeeShopServlet extends HttpServlet {
 		else if ("say".equals(identifier)) {
 			try {
 				// Send the message to the message board
-				doSMSBoardOperation(event);
+				if (!doSMSBoardOperation(event)) {
+					sendSMSReply(event, "Your message was not posted: it contains words that are not allowed.");
+				}
 			}
 			catch (OSGiBrokerException e) {
 				log.error("Could not send message to message board", e);
@@ -214,10 +235,25 @@ public class CoffeeShopServlet extends HttpServlet {
 	 * appliaction. "Say" messages are sent to the message board for posting.
 	 * All other messages are forwarded to the currently running appliation's
 	 * topic on the OSGiBroker.
+	 * 
+	 * Messages received twice within the duplicate window, and messages from a
+	 * sender over its rate limit, are dropped.
 	 */
 	//TODO: add decoding DM or mentions. 
 	private void osnDecode(TopicEvent event) { //TODO: test
-				
+		
+		// Drop messages received twice, and from senders over their rate
+		// limit
+		if (coffeeshop.getDuplicateFilter().isDuplicate("osn:" + event.getAttribute("friendlyname"), event
+		        .getAttribute("data"))) {
+			log.info("Dropped duplicate osn message from " + event.getAttribute("friendlyname"));
+			return;
+		}
+		if (!coffeeshop.getRateLimiter().tryAcquire("osn:" + event.getAttribute("friendlyname"))) {
+			log.info("Throttled osn message from " + event.getAttribute("friendlyname"));
+			return;
+		}
+		
 		// Trim the message
 		String message = event.getAttribute("data").toLowerCase().trim();
 		
@@ -234,8 +270,9 @@ public class CoffeeShopServlet extends HttpServlet {
 		if ("select".equals(identifier)) {
 			String num = message.substring(message.indexOf(" ")).trim();
 			try {
-				// Queue the application
-				doMenuOperation(Integer.parseInt(num));
+				// Queue the application, and tell the sender how it went
+				int menuNumber = Integer.parseInt(num);
+				sendOSNReply(event, getAdmissionMessage(menuNumber, doMenuOperation(menuNumber)));
 			}
 			catch (NumberFormatException e) {
 				// User screwed the message up. Ignore it.
@@ -245,7 +282,9 @@ public class CoffeeShopServlet extends HttpServlet {
 		else if ("say".equals(identifier)) {
 			try {
 				// Send the message to the message board
-				doOSNBoardOperation(event);
+				if (!doOSNBoardOperation(event)) {
+					sendOSNReply(event, "Your message was not posted: it contains words that are not allowed.");
+				}
 			}
 			catch (OSGiBrokerException e) {
 				log.error("Could not send message to message board", e);
@@ -273,15 +312,67 @@ public class CoffeeShopServlet extends HttpServlet {
 	 * 
 	 * Queue the selected application
 	 */
-	private void doMenuOperation(int menuNumber) {
-		coffeeshop.queueApplication(menuNumber - 1);
+	private ApplicationQueue.Admission doMenuOperation(int menuNumber) {
+		return coffeeshop.queueApplication(menuNumber - 1);
+	}
+	
+	/*
+	 * (non-JavaDoc)
+	 * 
+	 * Describes the outcome of a request to queue an application, for the
+	 * reply to the sender.
+	 */
+	private String getAdmissionMessage(int menuNumber, ApplicationQueue.Admission admission) {
+		if (admission == null) {
+			return "There is no application number " + menuNumber + ".";
+		}
+		Application a = coffeeshop.getApplications().get(menuNumber - 1);
+		if (admission == ApplicationQueue.Admission.REJECTED) {
+			return "Sorry, the queue is full. Please ask for " + a.getApplicationName() + " again later.";
+		}
+		int position = coffeeshop.getQueuePosition(a);
+		if (position == 0) {
+			return a.getApplicationName() + " is up next.";
+		}
+		return a.getApplicationName() + (admission == ApplicationQueue.Admission.ALREADY_QUEUED ? " is already" : " is")
+		        + " queued, number " + position + " in line.";
+	}
+	
+	/*
+	 * (non-JavaDoc) 
+	 * Reply to the sender of an sms message, if a reply topic is configured.
+	 */
+	private void sendSMSReply(TopicEvent event, String text) {
+		String topic = coffeeshop.getProperties().getProperty("smsReplyTopic", "").trim();
+		if (topic.length() == 0 || event.getAttribute("from") == null) {
+			return;
+		}
+		Map<String, String> map = new HashMap<String, String>();
+		map.put("to", event.getAttribute("from").trim());
+		map.put("message", text);
+		coffeeshop.sendReply(topic, map);
+	}
+	
+	/*
+	 * (non-JavaDoc) 
+	 * Reply to the sender of an osn message, if a reply topic is configured.
+	 */
+	private void sendOSNReply(TopicEvent event, String text) {
+		String topic = coffeeshop.getProperties().getProperty("osnReplyTopic", "").trim();
+		if (topic.length() == 0 || event.getAttribute("friendlyname") == null) {
+			return;
+		}
+		Map<String, String> map = new HashMap<String, String>();
+		map.put("to", event.getAttribute("friendlyname").trim());
+		map.put("data", text);
+		coffeeshop.sendReply(topic, map);
 	}
 	
 	/*
 	 * (non-JavaDoc) 
 	 * Send the recieved sms message to the message board.
 	 */
-	private void doSMSBoardOperation(TopicEvent event) throws OSGiBrokerException {
+	private boolean doSMSBoardOperation(TopicEvent event) throws OSGiBrokerException {
 		
 		HashMap<String, String> map = new HashMap<String, String>();
 		
@@ -295,15 +386,15 @@ public class CoffeeShopServlet extends HttpServlet {
 		map.put("name", phoneNumber.substring(phoneNumber.length() - 4));
 		map.put("message", message.substring(message.indexOf(" ")).trim());
 		
-		// Push to the board's topic.
-		coffeeshop.getMessageBoard().pushEvent(map);
+		// Push to the board's topic, unless moderation refuses it.
+		return coffeeshop.getMessageBoard().pushEvent(map);
 	}
 	
 	/*
 	 * (non-JavaDoc) 
 	 * Send the recieved osn message to the message board.
 	 */
-	private void doOSNBoardOperation(TopicEvent event) throws OSGiBrokerException {
+	private boolean doOSNBoardOperation(TopicEvent event) throws OSGiBrokerException {
 		
 		HashMap<String, String> map = new HashMap<String, String>();
 		
@@ -314,8 +405,8 @@ public class CoffeeShopServlet extends HttpServlet {
 		map.put("name", username);
 		map.put("message", message.substring(message.indexOf(" ")).trim());
 		
-		// Push to the board's topic.
-		coffeeshop.getMessageBoard().pushEvent(map);
+		// Push to the board's topic, unless moderation refuses it.
+		return coffeeshop.getMessageBoard().pushEvent(map);
 	}
 	
 	
@@ -387,5 +478,12 @@ public class CoffeeShopServlet extends HttpServlet {
 		catch (IOException e) {
 			log.error("Could not save server state.", e);
 		}
+		
+		// The web application is going away, close the broker connections.
+		// Events still in the outbox are sent after the next start.
+		coffeeshop.close();
+		coffeeshop.getOutbox().close();
+		BrokerTransport.getInstance().shutdown();
+		Reactor.getInstance().shutdown();
 	}
 }
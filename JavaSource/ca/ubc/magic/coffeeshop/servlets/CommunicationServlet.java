@@ -1,5 +1,6 @@
 package ca.ubc.magic.coffeeshop.servlets;
 
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 
@@ -10,6 +11,8 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.log4j.Logger;
 
+import ca.ubc.magic.coffeeshop.classes.ApplicationRegistry;
+import ca.ubc.magic.coffeeshop.classes.BoardPost;
 import ca.ubc.magic.coffeeshop.classes.CoffeeShop;
 import ca.ubc.magic.coffeeshop.exceptions.ConfigurationException;
 
@@ -52,61 +55,112 @@ import ca.ubc.magic.coffeeshop.exceptions.ConfigurationException;
  *          may have a value of "configuration" or "queued". Otherwise, the
  *          servlet will respond with a context message.
  * 
+ *          The messages are sent in XML, or in JSON if the GUI asks for it; see
+ *          MessageWriter.
+ * 
+ *          All of these are answered from the configuration and state held by
+ *          the CoffeeShop, so the GUI is served as soon as the servlet is up,
+ *          even while the CoffeeShop is still subscribing with the OSGiBroker.
+ * 
  */
 public class CommunicationServlet extends HttpServlet {
 	
 	private static final long serialVersionUID = 1L;
 	private final Logger log = Logger.getLogger(CommunicationServlet.class);
 	private CoffeeShop coffeeShop;
+	private volatile boolean configurationSent = false;
+	
+	/* Configuration message in each format, cached for one version of the registry */
+	private long configurationVersion = -1;
+	private final byte[][] configuration = new byte[BoardPost.Format.values().length][];
+	
+	@Override
+	public void init() throws ServletException {
+		super.init();
+		
+		try {
+			// Creating the instance does not wait for the OSGiBroker
+			this.coffeeShop = CoffeeShop.getInstance();
+		}
+		catch (FileNotFoundException e) {
+			log.fatal("Problem trying to find configuration file.", e);
+			throw new ConfigurationException(e);
+		}
+		catch (IOException e) {
+			log.fatal("Problem reading configuration file.", e);
+			throw new ConfigurationException(e);
+		}
+	}
 	
 	@Override
 	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
 		
-		String xmlResponse = null;
+		if (!coffeeShop.isReady()) {
+			log.debug("Answering from loaded configuration, CoffeeShop is " + coffeeShop.getStatus());
+		}
+		
+		// Remember to set the correct headers
+		ServletUtil.createHeaders(resp);
+		BoardPost.Format format = MessageWriter.getFormat(req);
+		
 		// Get configuration and create config message
-		if (coffeeShop == null || "configuration".equals(req.getParameter("type"))) {
-			try {
-				coffeeShop = CoffeeShop.getInstance();
-			}
-			catch (FileNotFoundException e) {
-				log.fatal("Problem trying to find configuration file.", e);
-				throw new ConfigurationException(e);
-			}
-			catch (IOException e) {
-				log.fatal("Problem reading configuration file.", e);
-				throw new ConfigurationException(e);
-			}
-			
-			xmlResponse = ServletUtil.createConfigurationXML(coffeeShop.getApplications(), coffeeShop
-			        .getDefaultApplication());
+		if (!configurationSent || "configuration".equals(req.getParameter("type"))) {
+			configurationSent = true;
+			sendConfiguration(format, resp);
 			log.info("Sending new configuration information");
 		}
 		else if (coffeeShop.isNewConfiguration()) {
 			// There is a new configuration available, so send config message
-			xmlResponse = ServletUtil.createConfigurationXML(coffeeShop.getApplications(), coffeeShop
-			        .getDefaultApplication());
+			sendConfiguration(format, resp);
 			coffeeShop.setNewConfiguration(false);
 			log.info("Sending new configuration information");
 		}
 		else if ("queued".equals(req.getParameter("type"))) {
 			// Send queue message
-			xmlResponse = ServletUtil.createQeueudAppsXML(coffeeShop.getQueuedApplications());
+			ServletUtil.writeQueuedApps(MessageWriter.create(req, resp), coffeeShop.getQueuedApplications(),
+			        coffeeShop.getCurrentApplication(), coffeeShop.getPredictedNextApplication());
 			log.info("Sending queued applications");
 		}
 		else if (coffeeShop.isContextChange()) {
 			// Send context change message
-			xmlResponse = ServletUtil.createContextChangeXML(coffeeShop.getCurrentApplication());
+			ServletUtil.writeContextChange(MessageWriter.create(req, resp), coffeeShop.getCurrentApplication(),
+			        coffeeShop.getPredictedNextApplication());
 			log.info("Sending new context change information");
 		}
 		else {
 			// Send blank message - there is nothing new available
-			xmlResponse = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<coffeeshop>\n</coffeeshop>";
+			ServletUtil.writeEmpty(MessageWriter.create(req, resp));
 		}
-		
-		// Remember to set the correct headers
-		ServletUtil.createHeaders(resp);
-		resp.getWriter().write(xmlResponse);
-		log.debug("SENT: \n" + xmlResponse);
+	}
+	
+	/*
+	 * (non-JavaDoc)
+	 * 
+	 * Sends the configuration message for the current registry. The message is
+	 * only rebuilt when a new version of the registry has been published.
+	 */
+	private void sendConfiguration(BoardPost.Format format, HttpServletResponse resp) throws IOException {
+		byte[] message;
+		synchronized (this) {
+			ApplicationRegistry registry = coffeeShop.getRegistry();
+			if (configurationVersion != registry.getVersion()) {
+				for (int i = 0; i < configuration.length; i++) {
+					configuration[i] = null;
+				}
+				configurationVersion = registry.getVersion();
+			}
+			message = configuration[format.ordinal()];
+			if (message == null) {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				ServletUtil.writeConfiguration(MessageWriter.create(format, bytes), registry
+				        .getConfiguredApplications(), registry.getDefaultApplication());
+				message = bytes.toByteArray();
+				configuration[format.ordinal()] = message;
+			}
+		}
+		resp.setContentType(MessageWriter.getContentType(format));
+		resp.getOutputStream().write(message);
+		log.debug("SENT: \n" + new String(message, "UTF-8"));
 	}
 	
 	@Override
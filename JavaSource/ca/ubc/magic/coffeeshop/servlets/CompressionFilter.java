@@ -0,0 +1,255 @@
+package ca.ubc.magic.coffeeshop.servlets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * CompressionFilter
+ * 
+ * @version 1.0
+ * 
+ *          Compresses the responses of the servlets with gzip, for clients
+ *          that accept it.
+ * 
+ *          The response is held back until it reaches the threshold size; a
+ *          smaller response is sent as it is, since compressing it would save
+ *          less than it costs. Once the threshold is passed the response is
+ *          compressed as it is written, so it is never held in memory whole.
+ *          Only text, XML and JSON responses are compressed.
+ * 
+ *          The threshold is set with the init parameter "threshold", in bytes.
+ */
+public class CompressionFilter implements Filter {
+	
+	private static final int DEFAULT_THRESHOLD = 1024;
+	
+	private int threshold = DEFAULT_THRESHOLD;
+	
+	@Override
+	public void init(FilterConfig config) throws ServletException {
+		String value = config.getInitParameter("threshold");
+		if (value != null) {
+			try {
+				threshold = Integer.parseInt(value.trim());
+			}
+			catch (NumberFormatException e) {
+				throw new ServletException("Invalid threshold for CompressionFilter: " + value);
+			}
+		}
+	}
+	
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException,
+	        ServletException {
+		HttpServletRequest req = (HttpServletRequest) request;
+		HttpServletResponse resp = (HttpServletResponse) response;
+		
+		resp.addHeader("Vary", "Accept-Encoding");
+		if (!acceptsGzip(req)) {
+			chain.doFilter(request, response);
+			return;
+		}
+		
+		CompressionResponse wrapper = new CompressionResponse(resp);
+		try {
+			chain.doFilter(request, wrapper);
+		}
+		finally {
+			wrapper.finish();
+		}
+	}
+	
+	@Override
+	public void destroy() {
+	}
+	
+	/**
+	 * Determines whether a request accepts gzip encoded responses.
+	 * 
+	 * @param req
+	 *            the request
+	 * @return true if gzip is accepted
+	 */
+	static boolean acceptsGzip(HttpServletRequest req) {
+		String accept = req.getHeader("Accept-Encoding");
+		if (accept == null) {
+			return false;
+		}
+		for (String coding : accept.split(",")) {
+			String[] parts = coding.trim().split(";");
+			if (parts[0].trim().equalsIgnoreCase("gzip")) {
+				return parts.length < 2 || !parts[1].replace(" ", "").matches("q=0(\\.0*)?");
+			}
+		}
+		return false;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Only text is worth compressing; anything without a content type is
+	 * taken to be text, as the servlets here write plain text replies.
+	 */
+	private static boolean isCompressible(String contentType) {
+		if (contentType == null) {
+			return true;
+		}
+		String type = contentType.toLowerCase();
+		return type.startsWith("text/") || type.contains("xml") || type.contains("json")
+		        || type.contains("javascript");
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * The response handed to the servlet.
+	 */
+	private class CompressionResponse extends HttpServletResponseWrapper {
+		
+		private final HttpServletResponse resp;
+		private CompressionStream stream;
+		private PrintWriter writer;
+		
+		CompressionResponse(HttpServletResponse resp) {
+			super(resp);
+			this.resp = resp;
+		}
+		
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException {
+			if (writer != null) {
+				throw new IllegalStateException("getWriter() has already been called");
+			}
+			if (stream == null) {
+				stream = new CompressionStream(resp);
+			}
+			return stream;
+		}
+		
+		@Override
+		public PrintWriter getWriter() throws IOException {
+			if (writer == null) {
+				if (stream != null) {
+					throw new IllegalStateException("getOutputStream() has already been called");
+				}
+				stream = new CompressionStream(resp);
+				writer = new PrintWriter(new OutputStreamWriter(stream, getCharacterEncoding()));
+			}
+			return writer;
+		}
+		
+		@Override
+		public void setContentLength(int len) {
+			// The length is not known until the response is finished
+		}
+		
+		@Override
+		public void flushBuffer() throws IOException {
+			if (writer != null) {
+				writer.flush();
+			}
+			if (stream != null) {
+				stream.flush();
+			}
+			super.flushBuffer();
+		}
+		
+		void finish() throws IOException {
+			if (writer != null) {
+				writer.flush();
+			}
+			if (stream != null) {
+				stream.close();
+			}
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Holds the response back up to the threshold, then decides whether to
+	 * compress it.
+	 */
+	private class CompressionStream extends ServletOutputStream {
+		
+		private final HttpServletResponse resp;
+		private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		private OutputStream out;
+		private boolean closed = false;
+		
+		CompressionStream(HttpServletResponse resp) {
+			this.resp = resp;
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (closed) {
+				throw new IOException("Stream closed");
+			}
+			if (out == null) {
+				buffer.write(b, off, len);
+				if (buffer.size() >= threshold) {
+					start(isCompressible(resp.getContentType()));
+				}
+				return;
+			}
+			out.write(b, off, len);
+		}
+		
+		/*
+		 * Sends the response headers, and what was held back.
+		 */
+		private void start(boolean compress) throws IOException {
+			if (compress) {
+				resp.setHeader("Content-Encoding", "gzip");
+				out = new GZIPOutputStream(resp.getOutputStream());
+			}
+			else {
+				out = resp.getOutputStream();
+			}
+			buffer.writeTo(out);
+			buffer = null;
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			// Held back responses are not flushed; they may still be compressed
+			if (out != null) {
+				out.flush();
+			}
+		}
+		
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			if (out == null) {
+				// Below the threshold, sent as it is
+				if (!resp.isCommitted()) {
+					resp.setContentLength(buffer.size());
+				}
+				start(false);
+			}
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package ca.ubc.magic.coffeeshop.servlets;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+
+import ca.ubc.magic.coffeeshop.classes.CoffeeShop;
+import ca.ubc.magic.coffeeshop.classes.EventFanout;
+import ca.ubc.magic.coffeeshop.exceptions.ConfigurationException;
+
+/**
+ * EventFanoutServlet
+ * 
+ * @version 1.0
+ * 
+ *          Serves the events of an application topic to the displays of the
+ *          application, from the events the coffee shop polled for all of
+ *          them; see EventFanout. The displays no longer poll the OSGiBroker
+ *          themselves.
+ * 
+ *          A GET request names the topic with the parameter "topic", and the
+ *          last event the display has seen with "since". The response holds
+ *          the events received after that one, each with its number in a seq
+ *          element, and a since element holding the value of "since" for the
+ *          next request. A display starts without "since", which gets it no
+ *          events but the value to start from.
+ * 
+ *          If there are no new events, the response is held back for up to
+ *          "wait" seconds for one to arrive, if given.
+ * 
+ *          All responses are in XML, or in JSON if the display asks for it;
+ *          see MessageWriter.
+ */
+public class EventFanoutServlet extends HttpServlet {
+	
+	private static final long serialVersionUID = 1L;
+	private static final int MAX_WAIT = 20;
+	private final Logger log = Logger.getLogger(EventFanoutServlet.class);
+	private CoffeeShop coffeeShop;
+	
+	@Override
+	public void init() throws ServletException {
+		super.init();
+		
+		try {
+			this.coffeeShop = CoffeeShop.getInstance();
+		}
+		catch (FileNotFoundException e) {
+			log.fatal("Problem trying to find configuration file.", e);
+			throw new ConfigurationException(e);
+		}
+		catch (IOException e) {
+			log.fatal("Problem reading configuration file.", e);
+			throw new ConfigurationException(e);
+		}
+	}
+	
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+		EventFanout fanout = coffeeShop.getEventFanout();
+		String topic = req.getParameter("topic");
+		if (topic == null || !fanout.isTopic(topic)) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND, "No events for topic " + topic);
+			return;
+		}
+		
+		long since;
+		int wait;
+		try {
+			String s = req.getParameter("since");
+			String w = req.getParameter("wait");
+			since = s == null || s.length() == 0 ? -1 : Long.parseLong(s);
+			wait = w == null || w.length() == 0 ? 0 : Math.max(0, Math.min(MAX_WAIT, Integer.parseInt(w)));
+		}
+		catch (NumberFormatException e) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid since or wait parameter");
+			return;
+		}
+		
+		ServletUtil.createHeaders(resp);
+		MessageWriter writer = MessageWriter.create(req, resp);
+		writer.begin("events");
+		writer.beginArray(null, "event");
+		long next;
+		try {
+			next = fanout.read(topic, since, wait * 1000L, writer.getFormat(), writer);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			next = since;
+		}
+		writer.endArray();
+		writer.value("since", next);
+		writer.end();
+		log.debug("SENT: events of " + topic + " up to " + next);
+	}
+}
@@ -15,11 +15,11 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.log4j.Logger;
 
+import ca.ubc.magic.coffeeshop.classes.BoardPost;
 import ca.ubc.magic.coffeeshop.classes.CoffeeShop;
 import ca.ubc.magic.coffeeshop.classes.MessageBoard;
 import ca.ubc.magic.coffeeshop.exceptions.ConfigurationException;
 import ca.ubc.magic.osgibroker.OSGiBrokerException;
-import ca.ubc.magic.osgibroker.workgroups.TopicEvent;
 
 /**
  * MessageBoardServlet
@@ -37,10 +37,31 @@ import ca.ubc.magic.osgibroker.workgroups.TopicEvent;
  *          it can be done using a POST request, with the parameters "name" and
  *          "message".
  * 
+ *          A GET request with the parameter "before" or "limit" pages through
+ *          the history of the board instead: it responds with the "limit"
+ *          posts made before the post numbered "before", or the latest posts
+ *          if "before" is left out. Each event carries its number in a seq
+ *          element, and a next element holds the value of "before" for the
+ *          page before, if there is one.
+ * 
+ *          A GET request with the parameter "q" searches the history for the
+ *          posts holding all the words of "q", each word matching as a
+ *          prefix, and responds with the latest "limit" of them.
+ * 
+ *          A GET request with the parameter "channel" responds with the latest
+ *          posts tagged with that #tag, made after the post numbered "since"
+ *          if given. A screen showing a channel polls with "since" set to the
+ *          seq of the last event it got.
+ * 
+ *          All responses are in XML, or in JSON if the GUI asks for it; see
+ *          MessageWriter.
+ * 
  */
 public class MessageBoardServlet extends HttpServlet {
 	
 	private static final long serialVersionUID = 1L;
+	private static final int DEFAULT_PAGE_SIZE = 20;
+	private static final int MAX_PAGE_SIZE = 100;
 	private final Logger log = Logger.getLogger(MessageBoardServlet.class);
 	private MessageBoard board;
 	private CoffeeShop coffeeshop;
@@ -73,13 +94,109 @@ public class MessageBoardServlet extends HttpServlet {
 	
 	@Override
 	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+		if (req.getParameter("channel") != null) {
+			doGetChannel(req, resp);
+			return;
+		}
+		if (req.getParameter("q") != null) {
+			doGetSearch(req, resp);
+			return;
+		}
+		if (req.getParameter("before") != null || req.getParameter("limit") != null) {
+			doGetHistory(req, resp);
+			return;
+		}
+		
 		// Check for new messages
-		List<TopicEvent> list = board.getNewMessages();
+		List<BoardPost> list = board.getNewMessages();
 		// Send message to GUI
-		String response = ServletUtil.createMessageBoardXML(list);
 		ServletUtil.createHeaders(resp);
-		resp.getWriter().write(response);
-		log.debug("SENT:\n" + response);
+		ServletUtil.writeMessageBoard(MessageWriter.create(req, resp), list);
+		log.debug("SENT: " + list.size() + " message board events");
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Responds with a page of the board history. The events are copied from
+	 * the history files as they are.
+	 */
+	private void doGetHistory(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		long before;
+		int limit;
+		try {
+			String b = req.getParameter("before");
+			String l = req.getParameter("limit");
+			before = b == null || b.length() == 0 ? 0 : Long.parseLong(b);
+			limit = l == null || l.length() == 0 ? DEFAULT_PAGE_SIZE : Math.min(MAX_PAGE_SIZE, Integer.parseInt(l));
+		}
+		catch (NumberFormatException e) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid before or limit parameter");
+			return;
+		}
+		
+		ServletUtil.createHeaders(resp);
+		MessageWriter w = MessageWriter.create(req, resp);
+		w.begin("events");
+		w.beginArray(null, "event");
+		long next = board.writeHistory(before, limit, w.getFormat(), w);
+		w.endArray();
+		if (next > 0) {
+			w.value("next", next);
+		}
+		w.end();
+		log.debug("SENT: history before " + before + ", limit " + limit);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Responds with the new posts of a channel.
+	 */
+	private void doGetChannel(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		String channel = req.getParameter("channel");
+		long since;
+		try {
+			String s = req.getParameter("since");
+			since = s == null || s.length() == 0 ? 0 : Long.parseLong(s);
+		}
+		catch (NumberFormatException e) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid since parameter");
+			return;
+		}
+		
+		ServletUtil.createHeaders(resp);
+		MessageWriter w = MessageWriter.create(req, resp);
+		w.begin("events");
+		w.beginArray(null, "event");
+		long last = board.writeChannel(channel, since, w.getFormat(), w);
+		w.endArray();
+		w.end();
+		log.debug("SENT: channel " + channel + " up to post " + last);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Responds with the posts found by a search of the board history.
+	 */
+	private void doGetSearch(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		String query = req.getParameter("q");
+		int limit;
+		try {
+			String l = req.getParameter("limit");
+			limit = l == null || l.length() == 0 ? DEFAULT_PAGE_SIZE : Math.min(MAX_PAGE_SIZE, Integer.parseInt(l));
+		}
+		catch (NumberFormatException e) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid limit parameter");
+			return;
+		}
+		
+		ServletUtil.createHeaders(resp);
+		MessageWriter w = MessageWriter.create(req, resp);
+		w.begin("events");
+		w.beginArray(null, "event");
+		int found = board.writeSearch(query, limit, w.getFormat(), w);
+		w.endArray();
+		w.end();
+		log.debug("SENT: " + found + " posts found for " + query);
 	}
 	
 	@SuppressWarnings("unchecked")
@@ -97,8 +214,12 @@ public class MessageBoardServlet extends HttpServlet {
 		
 		String response = "Result: ";
 		try {
-			board.pushEvent(params);
-			response += "Success";
+			if (board.pushEvent(params)) {
+				response += "Success";
+			}
+			else {
+				response += "Failure: refused by moderation";
+			}
 		}
 		catch (OSGiBrokerException e) {
 			response += "Failure: " + e.getMessage();
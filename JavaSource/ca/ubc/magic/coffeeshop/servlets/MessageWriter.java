@@ -0,0 +1,433 @@
+package ca.ubc.magic.coffeeshop.servlets;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import ca.ubc.magic.coffeeshop.classes.BoardPost;
+
+/**
+ * MessageWriter
+ * 
+ * @version 1.0
+ * 
+ *          Writes the messages of the communication protocol with the GUI,
+ *          streaming them to the response as they are built, in XML or in
+ *          JSON. The messages are built once, in ServletUtil, against this
+ *          class; the format only decides how they are written.
+ * 
+ *          A message is a root holding values, objects and arrays. In XML each
+ *          of these is an element. An array holds items, which are written as
+ *          repeated elements, inside an element for the array if it has a
+ *          name. In JSON the root is an object, and an array is a JSON array
+ *          named after the array or, if it has no name, after its items.
+ *          Message board events are copied as they were rendered.
+ * 
+ *          The GUI asks for JSON with the request parameter format=json, or an
+ *          Accept header preferring application/json; XML is the default.
+ */
+public abstract class MessageWriter implements BoardPost.EventSink {
+	
+	protected final OutputStream out;
+	
+	protected MessageWriter(OutputStream out) {
+		this.out = out;
+	}
+	
+	/**
+	 * Chooses the format of the response to a request: the format parameter
+	 * if there is one, else JSON if the Accept header names application/json
+	 * before any XML type.
+	 * 
+	 * @param req
+	 *            the request
+	 * @return the format
+	 */
+	public static BoardPost.Format getFormat(HttpServletRequest req) {
+		String format = req.getParameter("format");
+		if (format != null) {
+			return "json".equalsIgnoreCase(format) ? BoardPost.Format.JSON : BoardPost.Format.XML;
+		}
+		String accept = req.getHeader("Accept");
+		if (accept != null) {
+			int json = accept.indexOf("application/json");
+			int xml = accept.indexOf("xml");
+			if (json >= 0 && (xml < 0 || json < xml)) {
+				return BoardPost.Format.JSON;
+			}
+		}
+		return BoardPost.Format.XML;
+	}
+	
+	/**
+	 * Creates a writer for the response to a request, in the format the
+	 * request asks for, and sets the content type of the response.
+	 * 
+	 * @param req
+	 *            the request
+	 * @param resp
+	 *            the response
+	 * @return the writer
+	 * @throws IOException
+	 *             if the response can not be written
+	 */
+	public static MessageWriter create(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		BoardPost.Format format = getFormat(req);
+		resp.setContentType(getContentType(format));
+		return create(format, resp.getOutputStream());
+	}
+	
+	/**
+	 * Creates a writer.
+	 * 
+	 * @param format
+	 *            the format written
+	 * @param out
+	 *            the stream written to
+	 * @return the writer
+	 */
+	public static MessageWriter create(BoardPost.Format format, OutputStream out) {
+		out = new BufferedOutputStream(out);
+		return format == BoardPost.Format.JSON ? new JSONWriter(out) : new XMLWriter(out);
+	}
+	
+	/**
+	 * @param format
+	 *            a format
+	 * @return the content type of responses in the format
+	 */
+	public static String getContentType(BoardPost.Format format) {
+		return format == BoardPost.Format.JSON ? "application/json; charset=UTF-8" : "text/xml; charset=UTF-8";
+	}
+	
+	/**
+	 * @return the format written
+	 */
+	public abstract BoardPost.Format getFormat();
+	
+	/**
+	 * Starts the message.
+	 * 
+	 * @param root
+	 *            name of the root
+	 * @throws IOException
+	 *             if the stream can not be written
+	 */
+	public abstract void begin(String root) throws IOException;
+	
+	/**
+	 * Ends the message, and flushes it to the stream.
+	 * 
+	 * @throws IOException
+	 *             if the stream can not be written
+	 */
+	public abstract void end() throws IOException;
+	
+	/**
+	 * Writes a named value.
+	 * 
+	 * @param name
+	 *            the name
+	 * @param value
+	 *            the value; numbers and booleans are written as such in JSON,
+	 *            anything else as text
+	 * @throws IOException
+	 *             if the stream can not be written
+	 */
+	public abstract void value(String name, Object value) throws IOException;
+	
+	/**
+	 * Starts a named object.
+	 * 
+	 * @param name
+	 *            the name
+	 * @throws IOException
+	 *             if the stream can not be written
+	 */
+	public abstract void beginObject(String name) throws IOException;
+	
+	/**
+	 * Ends the current object.
+	 * 
+	 * @throws IOException
+	 *             if the stream can not be written
+	 */
+	public abstract void endObject() throws IOException;
+	
+	/**
+	 * Starts an array.
+	 * 
+	 * @param name
+	 *            the name of the array, or null to write its items directly
+	 *            in XML
+	 * @param item
+	 *            the name of its items
+	 * @throws IOException
+	 *             if the stream can not be written
+	 */
+	public abstract void beginArray(String name, String item) throws IOException;
+	
+	/**
+	 * Ends the current array.
+	 * 
+	 * @throws IOException
+	 *             if the stream can not be written
+	 */
+	public abstract void endArray() throws IOException;
+	
+	/**
+	 * Starts an item of the current array.
+	 * 
+	 * @throws IOException
+	 *             if the stream can not be written
+	 */
+	public abstract void beginItem() throws IOException;
+	
+	/**
+	 * Ends the current item.
+	 * 
+	 * @throws IOException
+	 *             if the stream can not be written
+	 */
+	public abstract void endItem() throws IOException;
+	
+	/**
+	 * Writes a message board post as an item of the current array.
+	 * 
+	 * @param post
+	 *            the post
+	 * @throws IOException
+	 *             if the stream can not be written
+	 */
+	public void post(BoardPost post) throws IOException {
+		byte[] event = post.getEvent(getFormat());
+		event(event, 0, event.length);
+	}
+	
+	protected void write(String text) throws IOException {
+		out.write(text.getBytes("UTF-8"));
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Writes XML, one element a line, indented with tabs.
+	 */
+	private static class XMLWriter extends MessageWriter {
+		
+		/* Names of the open elements; null for an array without one */
+		private final List<String> open = new ArrayList<String>();
+		/* Names of the items of the open arrays, null for other elements */
+		private final List<String> items = new ArrayList<String>();
+		private int depth = 0;
+		
+		XMLWriter(OutputStream out) {
+			super(out);
+		}
+		
+		@Override
+		public BoardPost.Format getFormat() {
+			return BoardPost.Format.XML;
+		}
+		
+		private void indent(StringBuilder sb) {
+			for (int i = 0; i < depth; i++) {
+				sb.append('\t');
+			}
+		}
+		
+		private void open(String name, String item) throws IOException {
+			open.add(name);
+			items.add(item);
+			if (name != null) {
+				StringBuilder sb = new StringBuilder();
+				indent(sb);
+				write(sb.append('<').append(name).append(">\n").toString());
+				depth++;
+			}
+		}
+		
+		private void close() throws IOException {
+			items.remove(items.size() - 1);
+			String name = open.remove(open.size() - 1);
+			if (name != null) {
+				depth--;
+				StringBuilder sb = new StringBuilder();
+				indent(sb);
+				write(sb.append("</").append(name).append(">\n").toString());
+			}
+		}
+		
+		@Override
+		public void begin(String root) throws IOException {
+			write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+			open(root, null);
+		}
+		
+		@Override
+		public void end() throws IOException {
+			close();
+			out.flush();
+		}
+		
+		@Override
+		public void value(String name, Object value) throws IOException {
+			StringBuilder sb = new StringBuilder();
+			indent(sb);
+			sb.append('<').append(name).append('>');
+			if (value != null) {
+				BoardPost.escape(value.toString(), sb);
+			}
+			write(sb.append("</").append(name).append(">\n").toString());
+		}
+		
+		@Override
+		public void beginObject(String name) throws IOException {
+			open(name, null);
+		}
+		
+		@Override
+		public void endObject() throws IOException {
+			close();
+		}
+		
+		@Override
+		public void beginArray(String name, String item) throws IOException {
+			open(name, item);
+		}
+		
+		@Override
+		public void endArray() throws IOException {
+			close();
+		}
+		
+		@Override
+		public void beginItem() throws IOException {
+			open(items.get(items.size() - 1), null);
+		}
+		
+		@Override
+		public void endItem() throws IOException {
+			close();
+		}
+		
+		@Override
+		public void event(byte[] data, int offset, int length) throws IOException {
+			out.write(data, offset, length);
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Writes compact JSON.
+	 */
+	private static class JSONWriter extends MessageWriter {
+		
+		/* For each open object or array, whether anything was written in it */
+		private final List<Boolean> started = new ArrayList<Boolean>();
+		
+		JSONWriter(OutputStream out) {
+			super(out);
+		}
+		
+		@Override
+		public BoardPost.Format getFormat() {
+			return BoardPost.Format.JSON;
+		}
+		
+		/*
+		 * Starts the next member of the current object or array.
+		 */
+		private void next(StringBuilder sb, String name) {
+			int last = started.size() - 1;
+			if (started.get(last)) {
+				sb.append(',');
+			}
+			started.set(last, true);
+			if (name != null) {
+				BoardPost.quote(name, sb);
+				sb.append(':');
+			}
+		}
+		
+		private void open(String name, char bracket) throws IOException {
+			StringBuilder sb = new StringBuilder();
+			if (!started.isEmpty()) {
+				next(sb, name);
+			}
+			started.add(false);
+			write(sb.append(bracket).toString());
+		}
+		
+		private void close(char bracket) throws IOException {
+			started.remove(started.size() - 1);
+			out.write(bracket);
+		}
+		
+		@Override
+		public void begin(String root) throws IOException {
+			open(null, '{');
+		}
+		
+		@Override
+		public void end() throws IOException {
+			close('}');
+			out.flush();
+		}
+		
+		@Override
+		public void value(String name, Object value) throws IOException {
+			StringBuilder sb = new StringBuilder();
+			next(sb, name);
+			if (value instanceof Number || value instanceof Boolean) {
+				sb.append(value);
+			}
+			else {
+				BoardPost.quote(value == null ? null : value.toString(), sb);
+			}
+			write(sb.toString());
+		}
+		
+		@Override
+		public void beginObject(String name) throws IOException {
+			open(name, '{');
+		}
+		
+		@Override
+		public void endObject() throws IOException {
+			close('}');
+		}
+		
+		@Override
+		public void beginArray(String name, String item) throws IOException {
+			open(name != null ? name : item, '[');
+		}
+		
+		@Override
+		public void endArray() throws IOException {
+			close(']');
+		}
+		
+		@Override
+		public void beginItem() throws IOException {
+			open(null, '{');
+		}
+		
+		@Override
+		public void endItem() throws IOException {
+			close('}');
+		}
+		
+		@Override
+		public void event(byte[] data, int offset, int length) throws IOException {
+			StringBuilder sb = new StringBuilder();
+			next(sb, null);
+			write(sb.toString());
+			out.write(data, offset, length);
+		}
+	}
+}
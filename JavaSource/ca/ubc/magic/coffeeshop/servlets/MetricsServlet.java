@@ -0,0 +1,56 @@
+package ca.ubc.magic.coffeeshop.servlets;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+
+import ca.ubc.magic.coffeeshop.classes.CoffeeShop;
+import ca.ubc.magic.coffeeshop.exceptions.ConfigurationException;
+
+/**
+ * MetricsServlet
+ * 
+ * @version 1.0
+ * 
+ *          This servlet reports the runtime metrics of the coffee shop as XML:
+ *          broker call latencies, circuit breakers, coalesced broker polls,
+ *          the outbox, sender rate limits, duplicate messages, moderation,
+ *          context switch latencies, and the idle time learned for every
+ *          application.
+ */
+public class MetricsServlet extends HttpServlet {
+	
+	private static final long serialVersionUID = 1L;
+	private final Logger log = Logger.getLogger(MetricsServlet.class);
+	private CoffeeShop coffeeShop;
+	
+	@Override
+	public void init() throws ServletException {
+		super.init();
+		
+		try {
+			this.coffeeShop = CoffeeShop.getInstance();
+		}
+		catch (FileNotFoundException e) {
+			log.fatal("Problem trying to find configuration file.", e);
+			throw new ConfigurationException(e);
+		}
+		catch (IOException e) {
+			log.fatal("Problem reading configuration file.", e);
+			throw new ConfigurationException(e);
+		}
+	}
+	
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+		ServletUtil.createHeaders(resp);
+		resp.setContentType("text/xml");
+		resp.getWriter().write(ServletUtil.createMetricsXML(coffeeShop));
+	}
+}
@@ -0,0 +1,393 @@
+package ca.ubc.magic.coffeeshop.servlets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.apache.log4j.Logger;
+
+import ca.ubc.magic.coffeeshop.classes.BoardPost;
+import ca.ubc.magic.coffeeshop.classes.SingleFlight;
+
+/**
+ * RelayFilter
+ * 
+ * @version 1.0
+ * 
+ *          Serves the polling URLs of the GUI (queue.php, running.php,
+ *          messageboard.php and configuration.php) in the web application
+ *          itself. These were PHP relays, which opened a new HTTP connection
+ *          to the servlets for every poll and copied the response back. The
+ *          filter hands the poll to the servlet inside the container instead.
+ * 
+ *          Every screen polls the same URLs, so the polls are coalesced: a
+ *          poll arriving while the same poll, in the same format, is being
+ *          answered waits for that answer and is sent a copy of it, rather
+ *          than running the servlet again.
+ * 
+ *          The servlet each URL is relayed to is set with an init parameter
+ *          named after the URL, e.g. "/queue.php" set to
+ *          "/communication.do?type=queued". As with the PHP relays, the servlet
+ *          is given the parameters of that URL, and of the request only the
+ *          format.
+ */
+public class RelayFilter implements Filter {
+	
+	private final Logger log = Logger.getLogger(RelayFilter.class);
+	private ServletContext context;
+	private final Map<String, String> targets = new HashMap<String, String>();
+	private final Map<String, Map<String, String[]>> parameters = new HashMap<String, Map<String, String[]>>();
+	private final SingleFlight<String, Reply> polls = new SingleFlight<String, Reply>();
+	
+	@Override
+	public void init(FilterConfig config) throws ServletException {
+		this.context = config.getServletContext();
+		Enumeration<?> names = config.getInitParameterNames();
+		while (names.hasMoreElements()) {
+			String path = (String) names.nextElement();
+			String target = config.getInitParameter(path);
+			targets.put(path, target);
+			int query = target.indexOf('?');
+			parameters.put(target, parseQuery(query < 0 ? null : target.substring(query + 1)));
+		}
+	}
+	
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException,
+	        ServletException {
+		final HttpServletRequest req = (HttpServletRequest) request;
+		final HttpServletResponse resp = (HttpServletResponse) response;
+		
+		final String target = targets.get(req.getServletPath());
+		if (target == null) {
+			chain.doFilter(request, response);
+			return;
+		}
+		
+		final BoardPost.Format format = MessageWriter.getFormat(req);
+		Reply reply;
+		try {
+			reply = polls.execute(target + " " + format, new Callable<Reply>() {
+				@Override
+				public Reply call() throws Exception {
+					return relay(req, resp, target, format);
+				}
+			});
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof ServletException) {
+				throw (ServletException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new ServletException("Could not relay " + req.getServletPath(), cause);
+		}
+		
+		if (reply.status != HttpServletResponse.SC_OK) {
+			resp.sendError(reply.status);
+			return;
+		}
+		ServletUtil.createHeaders(resp);
+		if (reply.contentType != null) {
+			resp.setContentType(reply.contentType);
+		}
+		resp.setContentLength(reply.body.length);
+		resp.getOutputStream().write(reply.body);
+	}
+	
+	@Override
+	public void destroy() {
+		log.info("Relayed " + (polls.getCalls() + polls.getShared()) + " polls, " + polls.getShared()
+		        + " of them answered by a poll already in progress");
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Runs the servlet a URL is relayed to, and keeps its response.
+	 */
+	private Reply relay(HttpServletRequest req, HttpServletResponse resp, String target, BoardPost.Format format)
+	        throws IOException, ServletException {
+		RequestDispatcher dispatcher = context.getRequestDispatcher(target);
+		if (dispatcher == null) {
+			throw new ServletException("No servlet to relay to at " + target);
+		}
+		ReplyResponse reply = new ReplyResponse(new FormatRequest(req, parameters.get(target), format), resp);
+		return reply.forward(dispatcher);
+	}
+	
+	/**
+	 * Parses the query string of a URL.
+	 * 
+	 * @param query
+	 *            the query string, without the "?", or null
+	 * @return the parameters, in order
+	 * @throws ServletException
+	 *             if the query string is not UTF-8 URL encoded
+	 */
+	static Map<String, String[]> parseQuery(String query) throws ServletException {
+		Map<String, String[]> parsed = new LinkedHashMap<String, String[]>();
+		if (query == null || query.length() == 0) {
+			return parsed;
+		}
+		try {
+			for (String pair : query.split("&")) {
+				if (pair.length() == 0) {
+					continue;
+				}
+				int eq = pair.indexOf('=');
+				String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8");
+				String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+				String[] values = parsed.get(name);
+				if (values == null) {
+					values = new String[] { value };
+				}
+				else {
+					String[] more = new String[values.length + 1];
+					System.arraycopy(values, 0, more, 0, values.length);
+					more[values.length] = value;
+					values = more;
+				}
+				parsed.put(name, values);
+			}
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new ServletException(e);
+		}
+		catch (IllegalArgumentException e) {
+			throw new ServletException("Invalid query string " + query, e);
+		}
+		return parsed;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * A response kept to be sent to every poll waiting for it.
+	 */
+	private static class Reply {
+		
+		final int status;
+		final String contentType;
+		final byte[] body;
+		
+		Reply(int status, String contentType, byte[] body) {
+			this.status = status;
+			this.contentType = contentType;
+			this.body = body;
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * The poll as the servlet sees it: the parameters of the URL relayed to,
+	 * and of the poll only the format, so all the polls coalesced get the same
+	 * answer. The container keeps the parameters of the URL forwarded to
+	 * underneath this wrapper, where they would be hidden, so they are set
+	 * here.
+	 */
+	private static class FormatRequest extends HttpServletRequestWrapper {
+		
+		private final Map<String, String[]> parameters;
+		private final String query;
+		
+		FormatRequest(HttpServletRequest req, Map<String, String[]> target, BoardPost.Format format)
+		        throws UnsupportedEncodingException {
+			super(req);
+			Map<String, String[]> merged = new LinkedHashMap<String, String[]>(target);
+			merged.put("format", new String[] { format.name().toLowerCase() });
+			parameters = Collections.unmodifiableMap(merged);
+			
+			StringBuilder sb = new StringBuilder();
+			for (Map.Entry<String, String[]> e : merged.entrySet()) {
+				for (String value : e.getValue()) {
+					if (sb.length() > 0) {
+						sb.append('&');
+					}
+					sb.append(URLEncoder.encode(e.getKey(), "UTF-8")).append('=').append(URLEncoder.encode(value, "UTF-8"));
+				}
+			}
+			query = sb.toString();
+		}
+		
+		@Override
+		public String getParameter(String name) {
+			String[] values = parameters.get(name);
+			return values == null ? null : values[0];
+		}
+		
+		@Override
+		public Map<?, ?> getParameterMap() {
+			return parameters;
+		}
+		
+		@Override
+		public Enumeration<?> getParameterNames() {
+			return Collections.enumeration(parameters.keySet());
+		}
+		
+		@Override
+		public String[] getParameterValues(String name) {
+			return parameters.get(name);
+		}
+		
+		@Override
+		public String getQueryString() {
+			return query;
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Holds the response of the servlet instead of sending it.
+	 */
+	private static class ReplyResponse extends HttpServletResponseWrapper {
+		
+		private final HttpServletRequest req;
+		private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		private final ServletOutputStream stream = new ServletOutputStream() {
+			@Override
+			public void write(int b) {
+				body.write(b);
+			}
+			
+			@Override
+			public void write(byte[] b, int off, int len) {
+				body.write(b, off, len);
+			}
+		};
+		private PrintWriter writer;
+		private int status = SC_OK;
+		private String contentType;
+		
+		ReplyResponse(HttpServletRequest req, HttpServletResponse resp) {
+			super(resp);
+			this.req = req;
+		}
+		
+		Reply forward(RequestDispatcher dispatcher) throws IOException, ServletException {
+			dispatcher.forward(req, this);
+			if (writer != null) {
+				writer.flush();
+			}
+			return new Reply(status, contentType, body.toByteArray());
+		}
+		
+		@Override
+		public ServletOutputStream getOutputStream() {
+			return stream;
+		}
+		
+		@Override
+		public PrintWriter getWriter() throws IOException {
+			if (writer == null) {
+				writer = new PrintWriter(new OutputStreamWriter(stream, "UTF-8"));
+			}
+			return writer;
+		}
+		
+		@Override
+		public void setContentType(String type) {
+			this.contentType = type;
+		}
+		
+		@Override
+		public String getContentType() {
+			return contentType;
+		}
+		
+		@Override
+		public String getCharacterEncoding() {
+			return "UTF-8";
+		}
+		
+		@Override
+		public void setStatus(int sc) {
+			this.status = sc;
+		}
+		
+		@Override
+		public void sendError(int sc) {
+			this.status = sc;
+		}
+		
+		@Override
+		public void sendError(int sc, String msg) {
+			this.status = sc;
+		}
+		
+		@Override
+		public void setContentLength(int len) {
+			// The length is that of the body kept
+		}
+		
+		@Override
+		public void setHeader(String name, String value) {
+			// The caching headers are set when the reply is sent
+		}
+		
+		@Override
+		public void addHeader(String name, String value) {
+			// The caching headers are set when the reply is sent
+		}
+		
+		@Override
+		public void setDateHeader(String name, long date) {
+			// The caching headers are set when the reply is sent
+		}
+		
+		@Override
+		public void setIntHeader(String name, int value) {
+			// The caching headers are set when the reply is sent
+		}
+		
+		@Override
+		public boolean isCommitted() {
+			return false;
+		}
+		
+		@Override
+		public void flushBuffer() {
+		}
+		
+		@Override
+		public void resetBuffer() {
+			body.reset();
+		}
+		
+		@Override
+		public void reset() {
+			body.reset();
+			status = SC_OK;
+			contentType = null;
+		}
+	}
+}
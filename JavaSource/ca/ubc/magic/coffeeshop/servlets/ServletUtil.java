@@ -1,13 +1,21 @@
 package ca.ubc.magic.coffeeshop.servlets;
 
-import java.text.DateFormat;
-import java.util.Date;
+import java.io.IOException;
 import java.util.List;
 
 import javax.servlet.http.HttpServletResponse;
 
+import ca.ubc.magic.coffeeshop.classes.BoardPost;
+import ca.ubc.magic.coffeeshop.classes.BrokerTransport;
+import ca.ubc.magic.coffeeshop.classes.CircuitBreaker;
+import ca.ubc.magic.coffeeshop.classes.CoffeeShop;
+import ca.ubc.magic.coffeeshop.classes.DuplicateFilter;
+import ca.ubc.magic.coffeeshop.classes.IdlePolicy;
+import ca.ubc.magic.coffeeshop.classes.LatencyStats;
+import ca.ubc.magic.coffeeshop.classes.ModerationFilter;
+import ca.ubc.magic.coffeeshop.classes.Outbox;
+import ca.ubc.magic.coffeeshop.classes.RateLimiter;
 import ca.ubc.magic.coffeeshop.jaxb.Application;
-import ca.ubc.magic.osgibroker.workgroups.TopicEvent;
 
 /**
  * ServletUtil
@@ -17,12 +25,15 @@ import ca.ubc.magic.osgibroker.workgroups.TopicEvent;
  * 
  *          This static class creates communication messages to send to the
  *          CoffeeShop GUI. It is used to format the messages appropriately, and
- *          build the communication protocol.
+ *          build the communication protocol. The messages are written with a
+ *          MessageWriter, in XML or in JSON.
  */
 public class ServletUtil {
 	
 	/**
-	 * Creates appropriate HTTP headers for this communication protocol
+	 * Creates appropriate HTTP headers for this communication protocol. The
+	 * messages change from one poll to the next, so clients must check back
+	 * every time, but they need not be kept out of caches altogether.
 	 * 
 	 * @param resp
 	 *            the response object to be sent for communication
@@ -31,7 +42,7 @@ public class ServletUtil {
 		// Set to expire far in the past.
 		resp.setHeader("Expires", "Sat, 6 May 1995 12:00:00 GMT");
 		// Set standard HTTP/1.1 no-cache headers.
-		resp.setHeader("Cache-Control", "no-store, no-cache, must-revalidate");
+		resp.setHeader("Cache-Control", "no-cache, must-revalidate");
 		
 		// Set IE extended HTTP/1.1 no-cache headers (use addHeader).
 		resp.addHeader("Cache-Control", "post-check=0, pre-check=0");
@@ -40,102 +51,221 @@ public class ServletUtil {
 	}
 	
 	/**
-	 * Creates configuration message for GUI. Includes all applications that are
+	 * Writes configuration message for GUI. Includes all applications that are
 	 * configured to run, plus the default application, and other information
 	 * required by the protocol.
 	 * 
+	 * @param w
+	 *            the writer the message is written with
 	 * @param list
 	 *            a list of application configured to run
 	 * @param defaultApp
 	 *            the configured default application
-	 * @return the message to be sent to the GUI
+	 * @throws IOException
+	 *             if the message can not be written
 	 */
-	public static String createConfigurationXML(List<Application> list, Application defaultApp) {
-		String ret = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<coffeeshop>\n";
-		ret += "\t<mode>configuration</mode>\n";
-		ret += "\t<numapps>" + list.size() + "</numapps>\n";
-		ret += "\t<defaultURL>" + defaultApp.getConnectionInfo().getDisplayURL() + "</defaultURL>\n";
-		ret += "\t<defaultType>" + defaultApp.getConnectionInfo().getApplicationType() + "</defaultType>\n";
-		ret += "\t<defaultName>" + defaultApp.getApplicationName() + "</defaultName>\n";
-		ret += "\t<applications>\n";
+	public static void writeConfiguration(MessageWriter w, List<Application> list, Application defaultApp)
+	        throws IOException {
+		w.begin("coffeeshop");
+		w.value("mode", "configuration");
+		w.value("numapps", list.size());
+		w.value("defaultURL", defaultApp.getConnectionInfo().getDisplayURL());
+		w.value("defaultType", defaultApp.getConnectionInfo().getApplicationType());
+		w.value("defaultName", defaultApp.getApplicationName());
+		w.beginArray("applications", "application");
 		for (Application a : list) {
-			ret += "\t\t<application>\n";
-			ret += "\t\t\t<name>" + a.getApplicationName() + "</name>\n";
-			ret += "\t\t\t<img>" + a.getApplicationImageURL() + "</img>\n";
-			ret += "\t\t</application>\n";
+			w.beginItem();
+			w.value("name", a.getApplicationName());
+			w.value("img", a.getApplicationImageURL());
+			w.endItem();
 		}
-		ret += "\t</applications>\n";
-		ret += "</coffeeshop>";
-		return ret;
+		w.endArray();
+		w.end();
 	}
 	
 	/**
-	 * Creates context message. It includes all information needed by the GUI
-	 * when a new application is set to run.
+	 * Writes context message. It includes all information needed by the GUI
+	 * when a new application is set to run, and the application predicted to
+	 * run next, so the GUI can load it in the background.
 	 * 
+	 * @param w
+	 *            the writer the message is written with
 	 * @param a
 	 *            the application involved in the context change
-	 * @return the message to be sent to the GUI
+	 * @param next
+	 *            the application predicted to run next
+	 * @throws IOException
+	 *             if the message can not be written
 	 */
-	public static String createContextChangeXML(Application a) {
-		String ret = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<coffeeshop>\n";
-		ret += "\t<mode>context</mode>\n";
-		ret += "\t<application>\n";
-		ret += "\t\t<url>" + a.getConnectionInfo().getDisplayURL() + "</url>\n";
-		ret += "\t\t<type>" + a.getConnectionInfo().getApplicationType() + "</type>\n";
-		ret += "\t\t<name>" + a.getApplicationName() + "</name>\n";
-		ret += "\t\t<img>" + a.getApplicationImageURL() + "</img>\n";
-		ret += "\t\t<fullscreen>" + a.getConnectionInfo().getUseFullScreen() + "</fullscreen>\n";
-		ret += "\t</application>\n";
-		ret += "</coffeeshop>";
-		return ret;
+	public static void writeContextChange(MessageWriter w, Application a, Application next) throws IOException {
+		w.begin("coffeeshop");
+		w.value("mode", "context");
+		writeApplication(w, "application", a);
+		writeNext(w, a, next);
+		w.end();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Writes the prefetch hint for the application predicted to run next.
+	 * Nothing if the prediction is the application already running.
+	 */
+	private static void writeNext(MessageWriter w, Application current, Application next) throws IOException {
+		if (next == null || next == current) {
+			return;
+		}
+		writeApplication(w, "next", next);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Writes what the GUI needs to display an application.
+	 */
+	private static void writeApplication(MessageWriter w, String name, Application a) throws IOException {
+		w.beginObject(name);
+		w.value("url", a.getConnectionInfo().getDisplayURL());
+		w.value("type", a.getConnectionInfo().getApplicationType());
+		w.value("name", a.getApplicationName());
+		w.value("img", a.getApplicationImageURL());
+		w.value("fullscreen", a.getConnectionInfo().getUseFullScreen());
+		w.endObject();
 	}
 	
 	/**
-	 * Creates a message that informs the GUI what applications are currently
+	 * Writes a message that informs the GUI what applications are currently
 	 * in the queue.
 	 * 
+	 * @param w
+	 *            the writer the message is written with
 	 * @param list
 	 *            list of applications currently in the ready queue
-	 * @return the message to be sent to the GUI
+	 * @param current
+	 *            the application currently running
+	 * @param next
+	 *            the application predicted to run next
+	 * @throws IOException
+	 *             if the message can not be written
 	 */
-	public static String createQeueudAppsXML(List<Application> list) {
-		String ret = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<coffeeshop>\n";
+	public static void writeQueuedApps(MessageWriter w, List<Application> list, Application current,
+	        Application next) throws IOException {
+		w.begin("coffeeshop");
 		if (list.size() > 0) {
-			ret += "\t<mode>queued</mode>\n";
+			w.value("mode", "queued");
 		}
+		w.beginArray(null, "application");
 		for (Application a : list) {
-			ret += "\t<application>\n";
-			ret += "\t\t<name>" + a.getApplicationName() + "</name>\n";
-			ret += "\t\t<img>" + a.getApplicationImageURL() + "</img>\n";
-			ret += "\t</application>\n";
+			w.beginItem();
+			w.value("name", a.getApplicationName());
+			w.value("img", a.getApplicationImageURL());
+			w.endItem();
 		}
-		ret += "</coffeeshop>";
-		return ret;
+		w.endArray();
+		writeNext(w, current, next);
+		w.end();
+	}
+	
+	/**
+	 * Writes a message with nothing new in it.
+	 * 
+	 * @param w
+	 *            the writer the message is written with
+	 * @throws IOException
+	 *             if the message can not be written
+	 */
+	public static void writeEmpty(MessageWriter w) throws IOException {
+		w.begin("coffeeshop");
+		w.end();
 	}
 	
 	/**
-	 * Create a message that includes all messages sent to the message board
-	 * since the last time the GUI asked.
+	 * Writes a message that includes all messages sent to the message board
+	 * since the last time the GUI asked. The posts are rendered already, so
+	 * their events are only copied.
 	 * 
+	 * @param w
+	 *            the writer the message is written with
 	 * @param list
-	 *            of message board events from the OSGiBroker
-	 * @return the message to be sent to the GUI
+	 *            of message board posts
+	 * @throws IOException
+	 *             if the message can not be written
 	 */
-	public static String createMessageBoardXML(List<TopicEvent> list) {
-		String ret = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<events>\n";
-		for (TopicEvent e : list) {
-			ret += "\t<event>\n";
-			
-			ret += "\t\t<timestamp>"
-			        + DateFormat.getDateTimeInstance(DateFormat.MEDIUM, DateFormat.MEDIUM).format(new Date())
-			        + "</timestamp>\n";
-			String[] attr = e.getNameArray();
-			for (String s : attr) {
-				ret += "\t\t<" + s + ">" + e.getAttribute(s) + "</" + s + ">\n";
-			}
-			ret += "\t</event>\n";
+	public static void writeMessageBoard(MessageWriter w, List<BoardPost> list) throws IOException {
+		w.begin("events");
+		w.beginArray(null, "event");
+		for (BoardPost p : list) {
+			w.post(p);
 		}
-		return ret + "</events>\n";
+		w.endArray();
+		w.end();
+	}
+	
+	/**
+	 * Creates a message with the runtime metrics of the coffee shop: broker
+	 * call latencies and circuit breakers, the outbox, the sender rate limits,
+	 * duplicate messages, moderation, context switch latencies, and the idle
+	 * times learned for each application.
+	 * 
+	 * @param coffeeShop
+	 *            the coffee shop
+	 * @return the metrics message
+	 */
+	public static String createMetricsXML(CoffeeShop coffeeShop) {
+		BrokerTransport transport = BrokerTransport.getInstance();
+		StringBuilder ret = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<metrics>\n");
+		ret.append("\t<status>").append(coffeeShop.getStatus()).append("</status>\n");
+		
+		ret.append("\t<broker>\n");
+		for (LatencyStats s : transport.getLatencyStats()) {
+			appendLatency(ret, s);
+		}
+		for (CircuitBreaker b : transport.getCircuitBreakers()) {
+			ret.append("\t\t<breaker name=\"").append(b.getName()).append("\" state=\"").append(b.getState())
+			        .append("\" opened=\"").append(b.getTimesOpened()).append("\" rejected=\"").append(
+			                b.getRejected()).append("\"/>\n");
+		}
+		ret.append("\t\t<polls sent=\"").append(transport.getPolls()).append("\" shared=\"").append(
+		        transport.getPollsShared()).append("\"/>\n");
+		ret.append("\t</broker>\n");
+		
+		Outbox outbox = coffeeShop.getOutbox();
+		ret.append("\t<outbox policy=\"").append(outbox.getDropPolicy()).append("\" waiting=\"").append(
+		        outbox.size()).append("\" published=\"").append(outbox.getPublished()).append("\" sent=\"").append(
+		        outbox.getSent()).append("\" dropped=\"").append(outbox.getDropped()).append("\" rejected=\"")
+		        .append(outbox.getRejected()).append("\"/>\n");
+		
+		RateLimiter limiter = coffeeShop.getRateLimiter();
+		ret.append("\t<senders tracked=\"").append(limiter.size()).append("\" accepted=\"").append(
+		        limiter.getAccepted()).append("\" throttled=\"").append(limiter.getThrottled()).append("\"/>\n");
+		
+		DuplicateFilter duplicates = coffeeShop.getDuplicateFilter();
+		ret.append("\t<duplicates checked=\"").append(duplicates.getChecked()).append("\" dropped=\"").append(
+		        duplicates.getDuplicates()).append("\" memory=\"").append(duplicates.getMemoryBytes()).append(
+		        "\"/>\n");
+		
+		ModerationFilter moderation = coffeeShop.getModerationFilter();
+		ret.append("\t<moderation blocklist=\"").append(moderation.size()).append("\" checked=\"").append(
+		        moderation.getChecked()).append("\" refused=\"").append(moderation.getRefused()).append("\"/>\n");
+		
+		ret.append("\t<switch>\n");
+		for (LatencyStats s : coffeeShop.getSwitchStats()) {
+			appendLatency(ret, s);
+		}
+		ret.append("\t</switch>\n");
+		
+		ret.append("\t<idle>\n");
+		for (IdlePolicy.Stats s : coffeeShop.getIdlePolicy().getStats()) {
+			ret.append(String.format("\t\t<application name=\"%s\" gap=\"%.0f\" session=\"%.0f\" events=\"%d\" "
+			        + "sessions=\"%d\" idleTime=\"%d\"/>\n", s.getName(), s.getGapAverage(), s.getSessionAverage(),
+			        s.getEvents(), s.getSessions(), s.getIdleTime()));
+		}
+		ret.append("\t</idle>\n");
+		
+		ret.append("</metrics>");
+		return ret.toString();
+	}
+	
+	private static void appendLatency(StringBuilder ret, LatencyStats s) {
+		ret.append(String.format("\t\t<latency name=\"%s\" count=\"%d\" errors=\"%d\" mean=\"%.1f\" max=\"%.1f\"/>\n",
+		        s.getName(), s.getCount(), s.getErrors(), s.getMeanMillis(), s.getMaxMillis()));
 	}
 }
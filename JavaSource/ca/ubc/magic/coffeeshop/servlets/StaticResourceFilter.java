@@ -0,0 +1,205 @@
+package ca.ubc.magic.coffeeshop.servlets;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.URL;
+import java.net.URLConnection;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * StaticResourceFilter
+ * 
+ * @version 1.0
+ * 
+ *          Serves the static resources of the GUI (the Flash container,
+ *          scripts, style sheets and images) with caching headers, and from
+ *          their precompressed variants where there are any.
+ * 
+ *          The resources keep their names from one release to the next, so
+ *          they are cached for a short time only, and then revalidated with
+ *          their Last-Modified date. Only successful GET and HEAD responses
+ *          are marked cacheable; errors and redirects are left alone.
+ * 
+ *          The build compresses the resources worth compressing ahead of time,
+ *          next to the original with .gz appended to the name. A client that
+ *          accepts gzip is sent that file as it is, so nothing is compressed
+ *          while serving. Other requests are left to the container.
+ * 
+ *          The time resources may be cached before they are revalidated is
+ *          set with the init parameter "maxAge", in seconds.
+ */
+public class StaticResourceFilter implements Filter {
+	
+	private static final int DEFAULT_MAX_AGE = 3600;
+	
+	private ServletContext context;
+	private String cacheControl;
+	
+	@Override
+	public void init(FilterConfig config) throws ServletException {
+		this.context = config.getServletContext();
+		int maxAge = DEFAULT_MAX_AGE;
+		String value = config.getInitParameter("maxAge");
+		if (value != null) {
+			try {
+				maxAge = Integer.parseInt(value.trim());
+			}
+			catch (NumberFormatException e) {
+				throw new ServletException("Invalid maxAge for StaticResourceFilter: " + value);
+			}
+		}
+		cacheControl = "public, max-age=" + maxAge;
+	}
+	
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException,
+	        ServletException {
+		HttpServletRequest req = (HttpServletRequest) request;
+		HttpServletResponse resp = (HttpServletResponse) response;
+		
+		resp.addHeader("Vary", "Accept-Encoding");
+		
+		String method = req.getMethod();
+		if (!"GET".equals(method) && !"HEAD".equals(method)) {
+			chain.doFilter(request, response);
+			return;
+		}
+		
+		String path = req.getServletPath();
+		URL compressed = CompressionFilter.acceptsGzip(req) ? context.getResource(path + ".gz") : null;
+		if (compressed == null || !"GET".equals(method)) {
+			CachingResponse caching = new CachingResponse(resp);
+			chain.doFilter(request, caching);
+			caching.markCacheable();
+			return;
+		}
+		
+		URLConnection connection = compressed.openConnection();
+		resp.setHeader("Cache-Control", cacheControl);
+		long modified = connection.getLastModified();
+		if (modified > 0) {
+			long since = req.getDateHeader("If-Modified-Since");
+			if (since >= 0 && modified / 1000 <= since / 1000) {
+				resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				return;
+			}
+			resp.setDateHeader("Last-Modified", modified);
+		}
+		
+		String type = context.getMimeType(path);
+		if (type != null) {
+			resp.setContentType(type);
+		}
+		resp.setHeader("Content-Encoding", "gzip");
+		int length = connection.getContentLength();
+		if (length >= 0) {
+			resp.setContentLength(length);
+		}
+		
+		InputStream in = connection.getInputStream();
+		try {
+			OutputStream out = resp.getOutputStream();
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				out.write(buffer, 0, n);
+			}
+		}
+		finally {
+			in.close();
+		}
+	}
+	
+	@Override
+	public void destroy() {
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * A response of the container that gets the caching header if it turns
+	 * out to be successful: a 2xx or a 304. The header is set before the
+	 * response can be committed, when its body is first asked for, or when
+	 * the container is done with it.
+	 */
+	private class CachingResponse extends HttpServletResponseWrapper {
+		
+		private int status = SC_OK;
+		private boolean marked = false;
+		
+		CachingResponse(HttpServletResponse response) {
+			super(response);
+		}
+		
+		void markCacheable() {
+			if (marked || isCommitted()) {
+				return;
+			}
+			marked = true;
+			if ((status >= 200 && status < 300) || status == SC_NOT_MODIFIED) {
+				setHeader("Cache-Control", cacheControl);
+			}
+		}
+		
+		@Override
+		public void setStatus(int sc) {
+			super.setStatus(sc);
+			status = sc;
+		}
+		
+		@SuppressWarnings("deprecation")
+		@Override
+		public void setStatus(int sc, String sm) {
+			super.setStatus(sc, sm);
+			status = sc;
+		}
+		
+		@Override
+		public void sendError(int sc) throws IOException {
+			status = sc;
+			super.sendError(sc);
+		}
+		
+		@Override
+		public void sendError(int sc, String msg) throws IOException {
+			status = sc;
+			super.sendError(sc, msg);
+		}
+		
+		@Override
+		public void sendRedirect(String location) throws IOException {
+			status = SC_FOUND;
+			super.sendRedirect(location);
+		}
+		
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException {
+			markCacheable();
+			return super.getOutputStream();
+		}
+		
+		@Override
+		public PrintWriter getWriter() throws IOException {
+			markCacheable();
+			return super.getWriter();
+		}
+		
+		@Override
+		public void flushBuffer() throws IOException {
+			markCacheable();
+			super.flushBuffer();
+		}
+	}
+}
@@ -0,0 +1,194 @@
+package ca.ubc.magic.coffeeshop.classes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * BoardHistoryStoreTest
+ * 
+ * @version 1.0
+ * 
+ *          Tests of the recovery of BoardHistoryStore: past a torn record, and
+ *          with an index that points past the end of the log or at the wrong
+ *          records. Posts go on from the last whole one either way.
+ */
+public class BoardHistoryStoreTest {
+	
+	private static final int SEGMENT_SIZE = 1024 * 1024;
+	
+	private File dir;
+	
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("board", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+	
+	@After
+	public void tearDown() {
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+	
+	@Test
+	public void readsBackThePosts() throws IOException {
+		write(store(), 1, 200);
+		assertPosts(store(), 200);
+	}
+	
+	@Test
+	public void cutsOffATornRecord() throws IOException {
+		write(store(), 1, 100);
+		
+		// Down halfway through the last record
+		RandomAccessFile raf = new RandomAccessFile(log(), "rw");
+		try {
+			raf.setLength(raf.length() - 10);
+		}
+		finally {
+			raf.close();
+		}
+		
+		BoardHistoryStore store = store();
+		assertEquals(100, store.getNextSequence());
+		write(store, 100, 101);
+		assertPosts(store(), 200);
+	}
+	
+	@Test
+	public void rebuildsAnIndexPastTheEndOfTheLog() throws IOException {
+		write(store(), 1, 200);
+		
+		// The index made it to disk, the end of the log did not
+		RandomAccessFile raf = new RandomAccessFile(log(), "rw");
+		try {
+			raf.setLength(raf.length() / 2);
+		}
+		finally {
+			raf.close();
+		}
+		
+		BoardHistoryStore store = store();
+		long next = store.getNextSequence();
+		// Posts 129 and 193 were indexed, and are gone
+		assertTrue(next > 65 && next < 129);
+		assertEquals(2 * 4, index().length());
+		write(store, next, 201 - next);
+		assertPosts(store(), 200);
+	}
+	
+	@Test
+	public void rebuildsAGarbageIndex() throws IOException {
+		write(store(), 1, 200);
+		
+		RandomAccessFile raf = new RandomAccessFile(index(), "rw");
+		try {
+			raf.seek(4);
+			raf.writeInt(7);
+			raf.writeInt(Integer.MAX_VALUE);
+		}
+		finally {
+			raf.close();
+		}
+		
+		BoardHistoryStore store = store();
+		assertEquals(201, store.getNextSequence());
+		assertEquals(4 * 4, index().length());
+		write(store, 201, 50);
+		assertPosts(store(), 250);
+	}
+	
+	@Test
+	public void rebuildsAMissingIndex() throws IOException {
+		write(store(), 1, 150);
+		RandomAccessFile raf = new RandomAccessFile(index(), "rw");
+		try {
+			raf.setLength(0);
+		}
+		finally {
+			raf.close();
+		}
+		assertPosts(store(), 150);
+		assertEquals(3 * 4, index().length());
+	}
+	
+	@Test
+	public void keepsTheNewestSegments() throws IOException {
+		BoardHistoryStore store = new BoardHistoryStore(dir, 2048, 2);
+		write(store, 1, 100);
+		assertEquals(4, dir.list().length);
+		
+		final List<Long> sequences = new ArrayList<Long>();
+		store = new BoardHistoryStore(dir, 2048, 2);
+		store.visit(new BoardHistoryStore.Visitor() {
+			@Override
+			public void visit(BoardPost post) {
+				sequences.add(post.getSequence());
+			}
+		});
+		store.close();
+		assertEquals(Long.valueOf(100), sequences.get(sequences.size() - 1));
+		assertTrue(sequences.get(0) > 1);
+	}
+	
+	private BoardHistoryStore store() throws IOException {
+		return new BoardHistoryStore(dir, SEGMENT_SIZE, 4);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Appends posts, checking each gets the next sequence number, and closes
+	 * the store.
+	 */
+	private static void write(BoardHistoryStore store, long first, long count) throws IOException {
+		for (long i = first; i < first + count; i++) {
+			BoardPost post = store.append(Collections.singletonMap("text", "post " + i), 1000 + i);
+			assertEquals(i, post.getSequence());
+		}
+		store.close();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Checks the store holds exactly the posts written, numbered from 1 and in
+	 * order, and closes it.
+	 */
+	private static void assertPosts(BoardHistoryStore store, final long count) throws IOException {
+		final List<BoardPost> posts = new ArrayList<BoardPost>();
+		store.visit(new BoardHistoryStore.Visitor() {
+			@Override
+			public void visit(BoardPost post) {
+				posts.add(post);
+			}
+		});
+		assertEquals(count, posts.size());
+		for (int i = 1; i <= count; i++) {
+			assertEquals(i, posts.get(i - 1).getSequence());
+			assertEquals("post " + i, posts.get(i - 1).getAttributes().get("text"));
+		}
+		assertEquals(count + 1, store.getNextSequence());
+		store.close();
+	}
+	
+	private File log() {
+		return new File(dir, "board-0000000000000001.log");
+	}
+	
+	private File index() {
+		return new File(dir, "board-0000000000000001.idx");
+	}
+}
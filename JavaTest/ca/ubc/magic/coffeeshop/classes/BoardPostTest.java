@@ -0,0 +1,68 @@
+package ca.ubc.magic.coffeeshop.classes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * BoardPostTest
+ * 
+ * @version 1.0
+ * 
+ *          Tests of the rendering of BoardPost: attributes not named by a
+ *          plain XML name are left out of the post, and values are escaped.
+ */
+public class BoardPostTest {
+	
+	@Test
+	public void leavesOutAttributesThatAreNotElementNames() throws Exception {
+		Map<String, String> attributes = new LinkedHashMap<String, String>();
+		attributes.put("sender", "me");
+		attributes.put("x><injected/><y", "1");
+		attributes.put("message", "hi");
+		BoardPost post = new BoardPost(1, 0, attributes);
+		
+		assertEquals(2, post.getAttributes().size());
+		assertFalse(post.getAttributes().containsKey("x><injected/><y"));
+		String xml = new String(post.getXML(), "UTF-8");
+		assertFalse(xml.contains("injected"));
+		assertTrue(xml.contains("<sender>me</sender>"));
+		assertTrue(xml.contains("<message>hi</message>"));
+		assertFalse(new String(post.getJSON(), "UTF-8").contains("injected"));
+	}
+	
+	@Test
+	public void rerendersARecoveredPostWithBadNames() throws Exception {
+		Map<String, String> attributes = new LinkedHashMap<String, String>();
+		attributes.put("a b", "1");
+		attributes.put("message", "hi");
+		BoardPost post = new BoardPost(1, 0, attributes, "<a b>1</a b>".getBytes("UTF-8"), "{}".getBytes("UTF-8"));
+		assertFalse(new String(post.getXML(), "UTF-8").contains("<a b>"));
+		assertTrue(new String(post.getJSON(), "UTF-8").contains("\"message\":\"hi\""));
+	}
+	
+	@Test
+	public void checksNames() {
+		assertTrue(BoardPost.isName("message"));
+		assertTrue(BoardPost.isName("_sender-name.2"));
+		assertFalse(BoardPost.isName(null));
+		assertFalse(BoardPost.isName(""));
+		assertFalse(BoardPost.isName("2nd"));
+		assertFalse(BoardPost.isName("-x"));
+		assertFalse(BoardPost.isName("ns:name"));
+		assertFalse(BoardPost.isName("XMLthing"));
+		assertFalse(BoardPost.isName("a>b"));
+	}
+	
+	@Test
+	public void escapesValues() throws Exception {
+		BoardPost post = new BoardPost(0, 0, Collections.singletonMap("message", "<b>&\u0001"));
+		assertTrue(new String(post.getXML(), "UTF-8").contains("<message>&lt;b&gt;&amp;</message>"));
+	}
+}
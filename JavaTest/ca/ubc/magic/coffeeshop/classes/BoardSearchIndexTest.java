@@ -0,0 +1,70 @@
+package ca.ubc.magic.coffeeshop.classes;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+/**
+ * BoardSearchIndexTest
+ * 
+ * @version 1.0
+ * 
+ *          Tests of BoardSearchIndex: prefix queries, the bound on the words a
+ *          prefix expands to, and pruning the posts the history dropped.
+ */
+public class BoardSearchIndexTest {
+	
+	@Test
+	public void findsPostsHoldingAllTheWords() {
+		BoardSearchIndex index = new BoardSearchIndex();
+		add(index, 1, "Coffee at the Magic lab");
+		add(index, 2, "magic tricks");
+		add(index, 3, "more coffee please");
+		assertArrayEquals(new long[] { 1, 3 }, index.search("coffee", 10));
+		assertArrayEquals(new long[] { 1 }, index.search("COFFEE mag", 10));
+		assertArrayEquals(new long[] { 3 }, index.search("coffee", 1));
+	}
+	
+	@Test
+	public void matchesAShortPrefixAsAWholeWord() {
+		BoardSearchIndex index = new BoardSearchIndex();
+		for (int i = 1; i <= 100; i++) {
+			add(index, i, "a" + i);
+		}
+		add(index, 101, "a");
+		assertArrayEquals(new long[] { 101 }, index.search("a", 200));
+		// Few enough words to expand
+		assertArrayEquals(new long[] { 1, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 100 }, index.search("a1", 200));
+	}
+	
+	@Test
+	public void prunesThePostsDropped() {
+		BoardSearchIndex index = new BoardSearchIndex();
+		for (int i = 1; i <= 300; i++) {
+			add(index, i, (i % 2 == 0 ? "even" : "odd") + " post" + (i <= 100 ? " early" : ""));
+		}
+		long bytes = index.getMemoryBytes();
+		
+		index.prune(201);
+		assertEquals(100, index.getPosts());
+		assertEquals(50, index.search("even", 1000).length);
+		assertEquals(202, index.search("even", 1000)[0]);
+		assertEquals(201, index.search("odd", 1000)[0]);
+		assertEquals(0, index.search("early", 1000).length);
+		assertEquals(3, index.size());
+		assertTrue(index.getMemoryBytes() < bytes);
+		
+		// Posts added after pruning follow on
+		add(index, 301, "odd");
+		assertEquals(301, index.search("odd", 1)[0]);
+		assertEquals(51, index.search("odd", 1000).length);
+	}
+	
+	private static void add(BoardSearchIndex index, long sequence, String text) {
+		index.add(new BoardPost(sequence, 0, Collections.singletonMap("text", text)));
+	}
+}
@@ -0,0 +1,74 @@
+package ca.ubc.magic.coffeeshop.classes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * DuplicateFilterTest
+ * 
+ * @version 1.0
+ * 
+ *          Tests of DuplicateFilter: duplicates are caught within the window,
+ *          forgotten after it, told apart by sender and text with a missing
+ *          one taken as empty, and few new messages are taken for duplicates
+ *          at the expected volume.
+ */
+public class DuplicateFilterTest {
+	
+	@Test
+	public void catchesADuplicate() {
+		DuplicateFilter filter = new DuplicateFilter(60000, 1000, 0.01);
+		assertFalse(filter.isDuplicate("alice", "hello"));
+		assertTrue(filter.isDuplicate("alice", "hello"));
+		assertEquals(2, filter.getChecked());
+		assertEquals(1, filter.getDuplicates());
+	}
+	
+	@Test
+	public void tellsSendersAndTextsApart() {
+		DuplicateFilter filter = new DuplicateFilter(60000, 1000, 0.01);
+		assertFalse(filter.isDuplicate("alice", "hello"));
+		assertFalse(filter.isDuplicate("bob", "hello"));
+		assertFalse(filter.isDuplicate("alice", "hello again"));
+		// The sender and text do not run together
+		assertFalse(filter.isDuplicate("ab", "c"));
+		assertFalse(filter.isDuplicate("a", "bc"));
+	}
+	
+	@Test
+	public void takesNullAsEmpty() {
+		DuplicateFilter filter = new DuplicateFilter(60000, 1000, 0.01);
+		assertFalse(filter.isDuplicate(null, null));
+		assertTrue(filter.isDuplicate("", ""));
+	}
+	
+	@Test
+	public void remembersForAWindowThenForgets() throws InterruptedException {
+		DuplicateFilter filter = new DuplicateFilter(100, 1000, 0.01);
+		assertFalse(filter.isDuplicate("alice", "hello"));
+		
+		// Into the next window: still remembered in the previous filter
+		Thread.sleep(120);
+		assertTrue(filter.isDuplicate("alice", "hello"));
+		
+		// Two windows without a message
+		Thread.sleep(250);
+		assertFalse(filter.isDuplicate("alice", "hello"));
+	}
+	
+	@Test
+	public void fewFalsePositivesAtTheExpectedVolume() {
+		DuplicateFilter filter = new DuplicateFilter(60000, 10000, 0.01);
+		int duplicates = 0;
+		for (int i = 0; i < 10000; i++) {
+			if (filter.isDuplicate("sender" + (i % 97), "message " + i)) {
+				duplicates++;
+			}
+		}
+		// 1% expected; allow for chance
+		assertTrue(duplicates + " false positives", duplicates < 300);
+	}
+}
@@ -0,0 +1,140 @@
+package ca.ubc.magic.coffeeshop.classes;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ca.ubc.magic.coffeeshop.jaxb.Application;
+
+/**
+ * IdlePolicyTest
+ * 
+ * @version 1.0
+ * 
+ *          Tests of IdlePolicy: the event gap is learned from the arrival
+ *          times of events, activity seen without a time does not move it,
+ *          and the idle time is no longer than the average session.
+ */
+public class IdlePolicyTest {
+	
+	private File file;
+	private IdlePolicy policy;
+	
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("idle-stats", ".properties");
+		file.delete();
+		policy = new IdlePolicy(file, true, 0.5, 3, 10, 300);
+	}
+	
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+	
+	@Test
+	public void learnsTheGapBetweenEvents() {
+		// Times start after 0, which stands for no session
+		policy.startSession("counter", 1000);
+		policy.recordEvent("counter", 6000);
+		policy.recordEvent("counter", 11000);
+		policy.recordEvent("counter", 16000);
+		IdlePolicy.Stats s = policy.getStats().get(0);
+		assertEquals(5000, s.getGapAverage(), 0.1);
+		assertEquals(3, s.getEvents());
+		assertEquals(15, s.getIdleTime());
+	}
+	
+	@Test
+	public void spreadsEventsArrivingTogether() {
+		policy.startSession("counter", 1000);
+		policy.recordEvents("counter", 4, 9000);
+		IdlePolicy.Stats s = policy.getStats().get(0);
+		assertEquals(2000, s.getGapAverage(), 0.1);
+		assertEquals(4, s.getEvents());
+	}
+	
+	@Test
+	public void activityWithoutATimeKeepsTheGap() {
+		policy.startSession("counter", 1000);
+		policy.recordEvent("counter", 6000);
+		policy.recordEvent("counter", 11000);
+		
+		// Context checks finding events, a check period apart
+		for (int i = 0; i < 20; i++) {
+			policy.recordActivity("counter");
+		}
+		policy.recordEvent("counter", 16000);
+		IdlePolicy.Stats s = policy.getStats().get(0);
+		assertEquals(5000, s.getGapAverage(), 0.1);
+		assertEquals(3, s.getEvents());
+		
+		// The session was active, so the learned idle time is kept
+		policy.endSession("counter", 61000);
+		policy.startSession("counter", 61000);
+		assertEquals(15, policy.getStats().get(0).getIdleTime());
+	}
+	
+	@Test
+	public void capsTheIdleTimeAtTheAverageSession() {
+		// Events 40 seconds apart would give 120 seconds
+		policy.startSession("counter", 1000);
+		policy.recordEvent("counter", 41000);
+		policy.recordEvent("counter", 81000);
+		policy.endSession("counter", 101000);
+		assertEquals(100, policy.getStats().get(0).getIdleTime());
+		
+		// Sessions of 100 and 20 seconds average 60 seconds, a gap of 25
+		// seconds would give 75
+		policy.startSession("counter", 200000);
+		policy.recordEvent("counter", 210000);
+		policy.endSession("counter", 220000);
+		assertEquals(60, policy.getIdleTime(application("counter", 30)));
+		assertEquals(60, policy.getStats().get(0).getIdleTime());
+	}
+	
+	@Test
+	public void usesTheDescriptorWithoutEnoughHistory() {
+		policy.startSession("counter", 1000);
+		policy.recordEvent("counter", 6000);
+		assertEquals(30, policy.getIdleTime(application("counter", 30)));
+		assertEquals(0, policy.getStats().get(0).getIdleTime());
+	}
+	
+	@Test
+	public void eventsOutsideASessionAreIgnored() {
+		policy.recordEvent("counter", 6000);
+		policy.recordActivity("counter");
+		assertEquals(0, policy.getStats().get(0).getEvents());
+	}
+	
+	@Test
+	public void savesAndLoadsTheStatistics() {
+		policy.startSession("counter", 1000);
+		policy.recordEvent("counter", 5000);
+		policy.recordEvent("counter", 9000);
+		policy.endSession("counter", 31000);
+		policy.save();
+		
+		IdlePolicy loaded = new IdlePolicy(file, true, 0.5, 3, 10, 300);
+		loaded.load();
+		IdlePolicy.Stats s = loaded.getStats().get(0);
+		assertEquals("counter", s.getName());
+		assertEquals(4000, s.getGapAverage(), 0.1);
+		assertEquals(2, s.getEvents());
+		assertEquals(1, s.getSessions());
+		assertEquals(12, s.getIdleTime());
+	}
+	
+	private static Application application(String shortName, int idleTime) {
+		Application a = new Application();
+		a.setApplicationShortName(shortName);
+		a.setMinumumIdleTime(idleTime);
+		return a;
+	}
+}
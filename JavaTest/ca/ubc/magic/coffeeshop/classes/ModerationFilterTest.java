@@ -0,0 +1,139 @@
+package ca.ubc.magic.coffeeshop.classes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * ModerationFilterTest
+ * 
+ * @version 1.0
+ * 
+ *          Tests of ModerationFilter: whole words and phrases are refused
+ *          whatever their case and wherever they overlap, in any attribute,
+ *          words inside longer words are let through, and the blocklist file
+ *          is read and reloaded. Posts with attribute names that can not be
+ *          element names are refused too.
+ */
+public class ModerationFilterTest {
+	
+	private File file;
+	
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("blocklist", ".txt");
+		file.delete();
+	}
+	
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+	
+	@Test
+	public void missingFileIsAnEmptyBlocklist() {
+		ModerationFilter filter = new ModerationFilter(file);
+		assertEquals(0, filter.size());
+		assertTrue(filter.accept(post("anything at all")));
+	}
+	
+	@Test
+	public void refusesWholeWordsInAnyCase() {
+		ModerationFilter filter = filter("spam", "bad word");
+		assertFalse(filter.accept(post("spam")));
+		assertFalse(filter.accept(post("Buy SPAM now")));
+		assertFalse(filter.accept(post("that is a Bad Word!")));
+		assertTrue(filter.accept(post("bad words are fine")));
+		assertEquals(4, filter.getChecked());
+		assertEquals(3, filter.getRefused());
+	}
+	
+	@Test
+	public void letsThroughWordsInsideLongerWords() {
+		ModerationFilter filter = filter("ass");
+		assertTrue(filter.accept(post("a classic assortment")));
+		assertFalse(filter.accept(post("you ass.")));
+	}
+	
+	@Test
+	public void findsOverlappingWords() {
+		// "she" ends inside "ushers", "he" and "hers" along the fail links
+		ModerationFilter filter = filter("he", "she", "hers", "his");
+		assertTrue(filter.accept(post("ushers")));
+		assertFalse(filter.accept(post("ushers hers")));
+		assertFalse(filter.accept(post("is it his?")));
+		assertFalse(filter.accept(post("ask she")));
+	}
+	
+	@Test
+	public void checksEveryAttribute() {
+		ModerationFilter filter = filter("spam");
+		Map<String, String> attributes = new HashMap<String, String>();
+		attributes.put("sender", "spam");
+		attributes.put("message", "hello");
+		attributes.put("empty", null);
+		assertFalse(filter.accept(attributes));
+	}
+	
+	@Test
+	public void refusesNamesThatAreNotElementNames() {
+		ModerationFilter filter = filter();
+		assertTrue(filter.accept(Collections.singletonMap("sender-name.1", "me")));
+		assertFalse(filter.accept(Collections.singletonMap("a><script", "me")));
+		assertFalse(filter.accept(Collections.singletonMap("1st", "me")));
+		assertFalse(filter.accept(Collections.singletonMap("xmlns", "me")));
+		assertFalse(filter.accept(Collections.singletonMap("", "me")));
+	}
+	
+	@Test
+	public void readsAndReloadsTheFile() throws IOException {
+		write("# comment\n\nspam\n  eggs  \n");
+		ModerationFilter filter = new ModerationFilter(file);
+		assertEquals(2, filter.size());
+		assertFalse(filter.accept(post("eggs and ham")));
+		assertTrue(filter.accept(post("ham")));
+		
+		write("spam\neggs\nham\n");
+		filter.reload();
+		assertEquals(3, filter.size());
+		assertFalse(filter.accept(post("ham")));
+		
+		file.delete();
+		filter.reload();
+		assertEquals(0, filter.size());
+	}
+	
+	private ModerationFilter filter(String... words) {
+		ModerationFilter filter = new ModerationFilter(file);
+		filter.setBlocklist(Arrays.asList(words));
+		return filter;
+	}
+	
+	private static Map<String, String> post(String message) {
+		return Collections.singletonMap("message", message);
+	}
+	
+	private void write(String text) throws IOException {
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			out.write(text);
+		}
+		finally {
+			out.close();
+		}
+	}
+}
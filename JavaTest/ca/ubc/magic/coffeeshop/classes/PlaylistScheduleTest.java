@@ -0,0 +1,164 @@
+package ca.ubc.magic.coffeeshop.classes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Properties;
+import java.util.TimeZone;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * PlaylistScheduleTest
+ * 
+ * @version 1.0
+ * 
+ *          Tests of PlaylistSchedule, driven through a day by a clock moved
+ *          forward by hand: windows open and close on time, applications take
+ *          turns for their dwell times, and users asking for an application
+ *          take precedence.
+ */
+public class PlaylistScheduleTest {
+	
+	private Properties prop;
+	private ManualClock clock;
+	
+	@Before
+	public void setUp() {
+		prop = new Properties();
+		prop.setProperty("playlistDwellTime", "60");
+		prop.setProperty("playlists", "morning,night,lunch,broken");
+		prop.setProperty("playlist.morning.window", "07:00-13:00");
+		prop.setProperty("playlist.morning.applications", "hello:300,counter:120");
+		prop.setProperty("playlist.night.window", "22:00-02:00");
+		prop.setProperty("playlist.night.applications", "eyeballing");
+		// Listed after morning, so it wins where they overlap
+		prop.setProperty("playlist.lunch.window", "12:00-13:30");
+		prop.setProperty("playlist.lunch.applications", "menu:600");
+		prop.setProperty("playlist.broken.window", "noon");
+		prop.setProperty("playlist.broken.applications", "hello");
+		clock = new ManualClock();
+	}
+	
+	@Test
+	public void opensTheWindowOnTime() {
+		PlaylistSchedule schedule = schedule();
+		clock.set(6, 59);
+		assertFalse(schedule.isDue(clock.currentTimeMillis(), true));
+		assertNull(schedule.peek(clock.currentTimeMillis()));
+		clock.set(7, 0);
+		assertTrue(schedule.isDue(clock.currentTimeMillis(), true));
+		assertEquals("hello", schedule.peek(clock.currentTimeMillis()));
+	}
+	
+	@Test
+	public void leavesAnApplicationNotItsOwnRunning() {
+		PlaylistSchedule schedule = schedule();
+		clock.set(8, 0);
+		assertFalse(schedule.isDue(clock.currentTimeMillis(), false));
+	}
+	
+	@Test
+	public void takesTurnsForTheDwellTimes() {
+		PlaylistSchedule schedule = schedule();
+		clock.set(7, 0);
+		assertEquals("hello", schedule.next(clock.currentTimeMillis()));
+		assertTrue(schedule.isPlaying());
+		
+		clock.advance(299);
+		assertFalse(schedule.isDue(clock.currentTimeMillis(), false));
+		clock.advance(1);
+		assertTrue(schedule.isDue(clock.currentTimeMillis(), false));
+		assertEquals("counter", schedule.next(clock.currentTimeMillis()));
+		
+		clock.advance(120);
+		assertTrue(schedule.isDue(clock.currentTimeMillis(), false));
+		assertEquals("hello", schedule.next(clock.currentTimeMillis()));
+	}
+	
+	@Test
+	public void closesTheWindowOnTime() {
+		PlaylistSchedule schedule = schedule();
+		clock.set(11, 59);
+		assertEquals("hello", schedule.next(clock.currentTimeMillis()));
+		clock.set(12, 0);
+		assertTrue(schedule.isDue(clock.currentTimeMillis(), false));
+		assertEquals("menu", schedule.next(clock.currentTimeMillis()));
+		
+		clock.set(13, 30);
+		assertTrue(schedule.isDue(clock.currentTimeMillis(), false));
+		assertNull(schedule.next(clock.currentTimeMillis()));
+		assertFalse(schedule.isPlaying());
+	}
+	
+	@Test
+	public void runsPastMidnight() {
+		PlaylistSchedule schedule = schedule();
+		clock.set(23, 0);
+		assertEquals("eyeballing", schedule.next(clock.currentTimeMillis()));
+		clock.set(24 + 1, 59);
+		assertEquals("eyeballing", schedule.peek(clock.currentTimeMillis()));
+		clock.set(24 + 2, 0);
+		assertNull(schedule.peek(clock.currentTimeMillis()));
+	}
+	
+	@Test
+	public void startsOverAfterAUserRequest() {
+		PlaylistSchedule schedule = schedule();
+		clock.set(7, 0);
+		schedule.next(clock.currentTimeMillis());
+		schedule.stop();
+		assertFalse(schedule.isPlaying());
+		clock.advance(300);
+		assertEquals("hello", schedule.next(clock.currentTimeMillis()));
+	}
+	
+	@Test
+	public void usesTheDefaultDwellTime() {
+		PlaylistSchedule schedule = schedule();
+		clock.set(22, 0);
+		schedule.next(clock.currentTimeMillis());
+		clock.advance(59);
+		assertFalse(schedule.isDue(clock.currentTimeMillis(), false));
+		clock.advance(1);
+		assertTrue(schedule.isDue(clock.currentTimeMillis(), false));
+	}
+	
+	@Test
+	public void leavesOutMalformedPlaylists() {
+		PlaylistSchedule schedule = schedule();
+		assertFalse(schedule.isEmpty());
+		assertTrue(new PlaylistSchedule(new Properties(), TimeZone.getTimeZone("UTC")).isEmpty());
+	}
+	
+	private PlaylistSchedule schedule() {
+		return new PlaylistSchedule(prop, TimeZone.getTimeZone("UTC"));
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * A clock moved by hand, starting on the first day of 2010, UTC.
+	 */
+	private static class ManualClock implements Clock {
+		
+		private static final long DAY = 1262304000000L;
+		
+		private long now = DAY;
+		
+		void set(int hours, int minutes) {
+			now = DAY + (hours * 60L + minutes) * 60 * 1000;
+		}
+		
+		void advance(int seconds) {
+			now += seconds * 1000L;
+		}
+		
+		@Override
+		public long currentTimeMillis() {
+			return now;
+		}
+	}
+}
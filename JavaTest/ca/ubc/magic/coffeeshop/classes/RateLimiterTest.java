@@ -0,0 +1,82 @@
+package ca.ubc.magic.coffeeshop.classes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * RateLimiterTest
+ * 
+ * @version 1.0
+ * 
+ *          Tests of RateLimiter: bursts, refills, senders kept apart, no limit
+ *          at a rate of zero, idle senders swept out, and the bound on the
+ *          senders tracked.
+ */
+public class RateLimiterTest {
+	
+	@Test
+	public void allowsABurstThenThrottles() {
+		RateLimiter limiter = new RateLimiter(1, 3, 100);
+		assertTrue(limiter.tryAcquire("604-555-0100"));
+		assertTrue(limiter.tryAcquire("604-555-0100"));
+		assertTrue(limiter.tryAcquire("604-555-0100"));
+		assertFalse(limiter.tryAcquire("604-555-0100"));
+		assertEquals(3, limiter.getAccepted());
+		assertEquals(1, limiter.getThrottled());
+	}
+	
+	@Test
+	public void keepsSendersApart() {
+		RateLimiter limiter = new RateLimiter(1, 1, 100);
+		assertTrue(limiter.tryAcquire("alice"));
+		assertFalse(limiter.tryAcquire("alice"));
+		assertTrue(limiter.tryAcquire("bob"));
+		assertEquals(2, limiter.size());
+	}
+	
+	@Test
+	public void refillsOverTime() throws InterruptedException {
+		// 100 messages a second, one at a time
+		RateLimiter limiter = new RateLimiter(6000, 1, 100);
+		assertTrue(limiter.tryAcquire("alice"));
+		assertFalse(limiter.tryAcquire("alice"));
+		Thread.sleep(30);
+		assertTrue(limiter.tryAcquire("alice"));
+	}
+	
+	@Test
+	public void noLimitAtRateZero() {
+		RateLimiter limiter = new RateLimiter(0, 1, 100);
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(limiter.tryAcquire("alice"));
+		}
+		assertEquals(0, limiter.getThrottled());
+		assertEquals(0, limiter.size());
+	}
+	
+	@Test
+	public void sweepsIdleSenders() throws InterruptedException {
+		RateLimiter limiter = new RateLimiter(6000, 1, 100);
+		limiter.tryAcquire("alice");
+		limiter.tryAcquire("bob");
+		limiter.sweep();
+		assertEquals(2, limiter.size());
+		
+		// Full again after 10 ms
+		Thread.sleep(30);
+		limiter.sweep();
+		assertEquals(0, limiter.size());
+	}
+	
+	@Test
+	public void boundsTheSendersTracked() {
+		RateLimiter limiter = new RateLimiter(1, 1, 32);
+		for (int i = 0; i < 1000; i++) {
+			limiter.tryAcquire("sender" + i);
+		}
+		assertTrue(limiter.size() <= 32);
+	}
+}
@@ -0,0 +1,190 @@
+package ca.ubc.magic.coffeeshop.classes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * StateJournalTest
+ * 
+ * @version 1.0
+ * 
+ *          Tests of the recovery of StateJournal: from the journal alone, from
+ *          a snapshot and the journal after it, from a snapshot replaced only
+ *          halfway, and past a torn record.
+ */
+public class StateJournalTest {
+	
+	private static final int CAPACITY = 64 * 1024;
+	
+	private File dir;
+	
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("journal", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+	
+	@After
+	public void tearDown() {
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+	
+	@Test
+	public void startsEmpty() throws IOException {
+		StateJournal.RecoveredState state = journal().open();
+		assertNull(state.getContext());
+		assertTrue(state.getQueue().isEmpty());
+	}
+	
+	@Test
+	public void recoversFromTheJournal() throws IOException {
+		StateJournal journal = journal();
+		journal.open();
+		journal.recordContext("counter");
+		journal.recordEnqueue("hello");
+		journal.recordEnqueue("eyeballing");
+		journal.recordEnqueue("hello");
+		journal.recordDequeue("eyeballing");
+		
+		StateJournal.RecoveredState state = journal().open();
+		assertEquals("counter", state.getContext());
+		assertEquals(Arrays.asList("hello"), state.getQueue());
+	}
+	
+	@Test
+	public void recoversFromASnapshotAndTheJournalAfterIt() throws IOException {
+		StateJournal journal = journal();
+		journal.open();
+		journal.recordContext("counter");
+		journal.recordEnqueue("hello");
+		journal.checkpoint();
+		assertTrue(new File(dir, "snapshot.dat").isFile());
+		journal.recordEnqueue("eyeballing");
+		journal.recordContext("hello");
+		journal.recordDequeue("hello");
+		
+		StateJournal.RecoveredState state = journal().open();
+		assertEquals("hello", state.getContext());
+		assertEquals(Arrays.asList("eyeballing"), state.getQueue());
+	}
+	
+	@Test
+	public void takesSnapshotsAsItGoes() throws IOException {
+		// A snapshot every 3 records
+		StateJournal journal = new StateJournal(dir, CAPACITY, 3);
+		journal.open();
+		for (int i = 0; i < 10; i++) {
+			journal.recordEnqueue("app" + i);
+		}
+		journal.recordDequeue("app0");
+		
+		StateJournal.RecoveredState state = journal().open();
+		assertEquals(9, state.getQueue().size());
+		assertEquals("app1", state.getQueue().get(0));
+	}
+	
+	@Test
+	public void recoversWhenTheSnapshotWasDeletedBeforeTheRename() throws IOException {
+		StateJournal journal = journal();
+		journal.open();
+		journal.recordContext("counter");
+		journal.recordEnqueue("hello");
+		journal.checkpoint();
+		
+		// Down after the old snapshot was deleted, before the new one was
+		// renamed
+		File snapshot = new File(dir, "snapshot.dat");
+		File tmp = new File(dir, "snapshot.dat.tmp");
+		assertTrue(snapshot.renameTo(tmp));
+		
+		StateJournal.RecoveredState state = journal().open();
+		assertEquals("counter", state.getContext());
+		assertEquals(Arrays.asList("hello"), state.getQueue());
+		assertTrue(snapshot.isFile());
+		assertFalse(tmp.exists());
+	}
+	
+	@Test
+	public void ignoresAnUnfinishedFirstSnapshot() throws IOException {
+		StateJournal journal = journal();
+		journal.open();
+		journal.recordContext("counter");
+		journal.recordEnqueue("hello");
+		
+		// Down while writing the first snapshot: its magic number, then part
+		// of the generation
+		FileOutputStream out = new FileOutputStream(new File(dir, "snapshot.dat.tmp"));
+		out.write(new byte[] { (byte) 0xC0, (byte) 0xFF, (byte) 0xEE, 0x02, 0, 0 });
+		out.close();
+		
+		StateJournal.RecoveredState state = journal().open();
+		assertEquals("counter", state.getContext());
+		assertEquals(Arrays.asList("hello"), state.getQueue());
+	}
+	
+	@Test
+	public void ignoresAStaleSnapshotReplacement() throws IOException {
+		StateJournal journal = journal();
+		journal.open();
+		journal.recordContext("counter");
+		journal.checkpoint();
+		journal.recordEnqueue("hello");
+		
+		// A replacement left half written next to the snapshot
+		FileOutputStream out = new FileOutputStream(new File(dir, "snapshot.dat.tmp"));
+		out.write(new byte[] { 1, 2, 3 });
+		out.close();
+		
+		StateJournal.RecoveredState state = journal().open();
+		assertEquals("counter", state.getContext());
+		assertEquals(Arrays.asList("hello"), state.getQueue());
+	}
+	
+	@Test
+	public void stopsAtATornRecord() throws IOException {
+		StateJournal journal = journal();
+		journal.open();
+		journal.recordEnqueue("hello");
+		journal.recordEnqueue("counter");
+		
+		// Damage the payload of the last record
+		RandomAccessFile raf = new RandomAccessFile(new File(dir, "journal.dat"), "rw");
+		try {
+			byte[] data = new byte[256];
+			raf.readFully(data);
+			int last = new String(data, "ISO-8859-1").lastIndexOf("counter");
+			raf.seek(last);
+			raf.write('C');
+		}
+		finally {
+			raf.close();
+		}
+		
+		StateJournal reopened = journal();
+		assertEquals(Arrays.asList("hello"), reopened.open().getQueue());
+		
+		// Recording goes on after the last good record
+		reopened.recordEnqueue("eyeballing");
+		assertEquals(Arrays.asList("hello", "eyeballing"), journal().open().getQueue());
+	}
+	
+	private StateJournal journal() {
+		return new StateJournal(dir, CAPACITY, 1000);
+	}
+}
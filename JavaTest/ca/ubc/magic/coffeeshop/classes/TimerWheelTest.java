@@ -0,0 +1,191 @@
+package ca.ubc.magic.coffeeshop.classes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * TimerWheelTest
+ * 
+ * @version 1.0
+ * 
+ *          Tests of TimerWheel: timers fire no earlier than their deadline and
+ *          soon after it, whichever level of the wheel they are placed on and
+ *          however often they cascade down, and cancelled timers do not fire.
+ */
+public class TimerWheelTest {
+	
+	private static final long TICK = 2;
+	
+	/* Slack allowed for a timer to fire late, for a busy machine */
+	private static final long SLACK = 500;
+	
+	private TimerWheel wheel;
+	
+	@Before
+	public void setUp() {
+		wheel = new TimerWheel("TimerWheelTest", TICK, new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				command.run();
+			}
+		});
+	}
+	
+	@After
+	public void tearDown() {
+		wheel.stop();
+	}
+	
+	@Test
+	public void firesOnTheFirstLevel() throws InterruptedException {
+		assertFiresAfter(20);
+	}
+	
+	@Test
+	public void cascadesFromTheSecondLevel() throws InterruptedException {
+		// Past 64 ticks, so placed a level up and moved down once
+		assertFiresAfter(64 * TICK * 3);
+	}
+	
+	@Test
+	public void cascadesFromTheThirdLevel() throws InterruptedException {
+		// Past 64 * 64 ticks, so placed two levels up and moved down twice
+		assertFiresAfter(64 * 64 * TICK + 100);
+	}
+	
+	@Test
+	public void firesTimersDueInTheSameSlot() throws InterruptedException {
+		final CountDownLatch fired = new CountDownLatch(100);
+		for (int i = 0; i < 100; i++) {
+			wheel.schedule(new Runnable() {
+				@Override
+				public void run() {
+					fired.countDown();
+				}
+			}, 50, TimeUnit.MILLISECONDS);
+		}
+		assertEquals(100, wheel.size());
+		assertTrue(fired.await(50 + SLACK, TimeUnit.MILLISECONDS));
+		assertEquals(0, wheel.size());
+	}
+	
+	@Test
+	public void firesATimerAlreadyDue() throws InterruptedException {
+		Probe probe = new Probe();
+		TimerWheel.Timeout t = wheel.schedule(probe, 0, TimeUnit.MILLISECONDS);
+		assertTrue(probe.await(SLACK));
+		assertTrue(t.isExpired());
+		assertFalse(t.cancel());
+	}
+	
+	@Test
+	public void cancelledTimerDoesNotFire() throws InterruptedException {
+		Probe cancelled = new Probe();
+		Probe kept = new Probe();
+		TimerWheel.Timeout t = wheel.schedule(cancelled, 40, TimeUnit.MILLISECONDS);
+		wheel.schedule(kept, 40, TimeUnit.MILLISECONDS);
+		assertEquals(2, wheel.size());
+		
+		assertTrue(t.cancel());
+		assertTrue(t.isCancelled());
+		assertFalse(t.cancel());
+		assertEquals(1, wheel.size());
+		
+		assertTrue(kept.await(40 + SLACK));
+		assertFalse(cancelled.await(100));
+		assertFalse(t.isExpired());
+		assertEquals(0, wheel.size());
+	}
+	
+	@Test
+	public void cancelsATimerOnAHigherLevel() throws InterruptedException {
+		Probe probe = new Probe();
+		TimerWheel.Timeout t = wheel.schedule(probe, 64 * TICK * 2, TimeUnit.MILLISECONDS);
+		Thread.sleep(64 * TICK);
+		assertTrue(t.cancel());
+		assertFalse(probe.await(64 * TICK * 2 + 100));
+		assertEquals(0, wheel.size());
+	}
+	
+	@Test
+	public void repeatsAtAFixedRate() throws InterruptedException {
+		final AtomicInteger runs = new AtomicInteger();
+		final CountDownLatch fired = new CountDownLatch(5);
+		TimerWheel.Timeout t = wheel.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				runs.incrementAndGet();
+				fired.countDown();
+			}
+		}, 10, 10, TimeUnit.MILLISECONDS);
+		assertTrue(fired.await(50 + SLACK, TimeUnit.MILLISECONDS));
+		assertFalse(t.isExpired());
+		assertEquals(1, wheel.size());
+		
+		assertTrue(t.cancel());
+		int after = runs.get();
+		Thread.sleep(50);
+		assertTrue(runs.get() <= after + 1);
+		assertEquals(0, wheel.size());
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void refusesANonPositivePeriod() {
+		wheel.scheduleAtFixedRate(new Probe(), 10, 0, TimeUnit.MILLISECONDS);
+	}
+	
+	@Test
+	public void stoppedWheelDoesNotFire() throws InterruptedException {
+		Probe probe = new Probe();
+		wheel.schedule(probe, 20, TimeUnit.MILLISECONDS);
+		wheel.stop();
+		assertFalse(probe.await(100));
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Schedules a timer, and checks it fires no earlier than its delay and
+	 * within the slack after it.
+	 */
+	private void assertFiresAfter(long delay) throws InterruptedException {
+		Probe probe = new Probe();
+		long start = System.nanoTime();
+		TimerWheel.Timeout t = wheel.schedule(probe, delay, TimeUnit.MILLISECONDS);
+		assertEquals(1, wheel.size());
+		assertTrue("Timer did not fire", probe.await(delay + SLACK));
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(probe.firedAt - start);
+		assertTrue("Timer fired early, after " + elapsed + " ms", elapsed >= delay);
+		assertTrue(t.isExpired());
+		assertEquals(0, wheel.size());
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * A task that records when it ran.
+	 */
+	private static class Probe implements Runnable {
+		
+		private final CountDownLatch fired = new CountDownLatch(1);
+		volatile long firedAt;
+		
+		@Override
+		public void run() {
+			firedAt = System.nanoTime();
+			fired.countDown();
+		}
+		
+		boolean await(long millis) throws InterruptedException {
+			return fired.await(millis, TimeUnit.MILLISECONDS);
+		}
+	}
+}
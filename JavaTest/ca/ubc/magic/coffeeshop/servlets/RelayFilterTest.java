@@ -0,0 +1,294 @@
+package ca.ubc.magic.coffeeshop.servlets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * RelayFilterTest
+ * 
+ * @version 1.0
+ * 
+ *          Tests of RelayFilter: every URL the filter answers, as configured
+ *          in web.xml, gets the answer the PHP relay of that URL got from the
+ *          servlet it called.
+ * 
+ *          The servlets are stood in for by a dispatcher that answers with
+ *          the path and the parameters it was given. Like the container, it
+ *          does not add the parameters of the URL dispatched to to the request
+ *          the filter hands it.
+ */
+public class RelayFilterTest {
+	
+	private static final File WEB_CONTENT = new File("WebContent");
+	private static final Pattern RELAY_URL = Pattern.compile("\\$daurl = '[^']*/CoffeeShop(/[^']*)'");
+	
+	private RelayFilter filter;
+	private Map<String, String> relays;
+	
+	@Before
+	public void setUp() throws Exception {
+		relays = readRelays();
+		filter = new RelayFilter();
+		filter.init(proxy(FilterConfig.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getServletContext")) {
+					return context();
+				}
+				if (method.getName().equals("getInitParameterNames")) {
+					return Collections.enumeration(relays.keySet());
+				}
+				if (method.getName().equals("getInitParameter")) {
+					return relays.get(args[0]);
+				}
+				return null;
+			}
+		}));
+	}
+	
+	@Test
+	public void relaysEveryPhpRelay() throws Exception {
+		int checked = 0;
+		for (File php : WEB_CONTENT.listFiles()) {
+			if (!php.getName().endsWith(".php")) {
+				continue;
+			}
+			Matcher m = RELAY_URL.matcher(read(php));
+			if (!m.find()) {
+				continue;
+			}
+			String path = "/" + php.getName();
+			String url = m.group(1);
+			assertNotNull("No relay for " + path, relays.get(path));
+			
+			for (String format : new String[] { null, "xml", "json" }) {
+				String expected = answer(url, format);
+				Poll poll = poll(path, format);
+				assertEquals(path, HttpServletResponse.SC_OK, poll.status);
+				assertEquals(path + " format " + format, expected, poll.body.toString("UTF-8"));
+			}
+			checked++;
+		}
+		assertEquals(relays.size(), checked);
+	}
+	
+	@Test
+	public void passesOnOnlyTheFormat() throws Exception {
+		Poll poll = poll("/queue.php", "json", "type", "running", "extra", "1");
+		assertEquals(answer("/communication.do?type=queued", "json"), poll.body.toString("UTF-8"));
+	}
+	
+	@Test
+	public void parsesQueryStrings() throws Exception {
+		Map<String, String[]> parsed = RelayFilter.parseQuery("type=queued&a=1&a=2&b&c=x%20y");
+		assertArrayEquals(new String[] { "queued" }, parsed.get("type"));
+		assertArrayEquals(new String[] { "1", "2" }, parsed.get("a"));
+		assertArrayEquals(new String[] { "" }, parsed.get("b"));
+		assertArrayEquals(new String[] { "x y" }, parsed.get("c"));
+		assertTrue(RelayFilter.parseQuery(null).isEmpty());
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * The answer of the stand-in servlet to a URL, called directly as the PHP
+	 * relay did, with the format of the display added.
+	 */
+	private static String answer(String url, String format) throws Exception {
+		int q = url.indexOf('?');
+		String path = q < 0 ? url : url.substring(0, q);
+		Map<String, String[]> params = RelayFilter.parseQuery(q < 0 ? null : url.substring(q + 1));
+		// Without a format the servlets answer in XML
+		params.put("format", new String[] { format == null ? "xml" : format });
+		return describe(path, params);
+	}
+	
+	private static String describe(String path, Map<?, ?> params) {
+		StringBuilder sb = new StringBuilder(path);
+		for (String name : new String[] { "type", "format" }) {
+			String[] values = (String[]) params.get(name);
+			sb.append(' ').append(name).append('=').append(values == null ? null : values[0]);
+		}
+		return sb.toString();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Polls a URL through the filter.
+	 */
+	private Poll poll(final String path, String format, String... more) throws Exception {
+		final Map<String, String> params = new LinkedHashMap<String, String>();
+		if (format != null) {
+			params.put("format", format);
+		}
+		for (int i = 0; i < more.length; i += 2) {
+			params.put(more[i], more[i + 1]);
+		}
+		HttpServletRequest req = proxy(HttpServletRequest.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getServletPath")) {
+					return path;
+				}
+				if (method.getName().equals("getParameter")) {
+					return params.get(args[0]);
+				}
+				if (method.getName().equals("getParameterMap")) {
+					Map<String, String[]> map = new LinkedHashMap<String, String[]>();
+					for (Map.Entry<String, String> e : params.entrySet()) {
+						map.put(e.getKey(), new String[] { e.getValue() });
+					}
+					return map;
+				}
+				return null;
+			}
+		});
+		final Poll poll = new Poll();
+		HttpServletResponse resp = proxy(HttpServletResponse.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getOutputStream")) {
+					return stream(poll.body);
+				}
+				if (method.getName().equals("sendError")) {
+					poll.status = (Integer) args[0];
+				}
+				return null;
+			}
+		});
+		filter.doFilter(req, resp, proxy(FilterChain.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				throw new AssertionError("Relayed URL passed down the chain");
+			}
+		}));
+		return poll;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * A context whose dispatchers stand in for the servlets.
+	 */
+	private static ServletContext context() {
+		return proxy(ServletContext.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getRequestDispatcher")) {
+					return dispatcher((String) args[0]);
+				}
+				return null;
+			}
+		});
+	}
+	
+	private static RequestDispatcher dispatcher(String url) {
+		int q = url.indexOf('?');
+		final String path = q < 0 ? url : url.substring(0, q);
+		return proxy(RequestDispatcher.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws IOException {
+				ServletRequest req = (ServletRequest) args[0];
+				ServletResponse resp = (ServletResponse) args[1];
+				resp.setContentType("text/plain");
+				resp.getOutputStream().write(describe(path, req.getParameterMap()).getBytes("UTF-8"));
+				return null;
+			}
+		});
+	}
+	
+	private static ServletOutputStream stream(final ByteArrayOutputStream body) {
+		return new ServletOutputStream() {
+			@Override
+			public void write(int b) {
+				body.write(b);
+			}
+		};
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * The URLs relayed and their targets, from web.xml.
+	 */
+	private static Map<String, String> readRelays() throws Exception {
+		Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+		        .parse(new File(WEB_CONTENT, "WEB-INF/web.xml"));
+		Map<String, String> relays = new LinkedHashMap<String, String>();
+		NodeList filters = doc.getElementsByTagName("filter");
+		for (int i = 0; i < filters.getLength(); i++) {
+			Element f = (Element) filters.item(i);
+			if (!text(f, "filter-class").equals(RelayFilter.class.getName())) {
+				continue;
+			}
+			NodeList params = f.getElementsByTagName("init-param");
+			for (int j = 0; j < params.getLength(); j++) {
+				Element p = (Element) params.item(j);
+				relays.put(text(p, "param-name"), text(p, "param-value"));
+			}
+		}
+		assertTrue("No relays in web.xml", relays.size() > 0);
+		return relays;
+	}
+	
+	private static String text(Element e, String tag) {
+		return e.getElementsByTagName(tag).item(0).getTextContent().trim();
+	}
+	
+	private static String read(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			Scanner s = new Scanner(in, "UTF-8").useDelimiter("\\A");
+			return s.hasNext() ? s.next() : "";
+		}
+		finally {
+			in.close();
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return (T) Proxy.newProxyInstance(RelayFilterTest.class.getClassLoader(), new Class<?>[] { type }, handler);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * The response to a poll.
+	 */
+	private static class Poll {
+		
+		int status = HttpServletResponse.SC_OK;
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+	}
+}
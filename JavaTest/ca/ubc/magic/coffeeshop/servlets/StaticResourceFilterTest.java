@@ -0,0 +1,132 @@
+package ca.ubc.magic.coffeeshop.servlets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * StaticResourceFilterTest
+ * 
+ * @version 1.0
+ * 
+ *          Tests of the caching headers of StaticResourceFilter: resources the
+ *          container serves successfully to a GET or HEAD are cached for a
+ *          while, errors, redirects and other methods are not.
+ */
+public class StaticResourceFilterTest {
+	
+	private StaticResourceFilter filter;
+	
+	@Before
+	public void setUp() throws Exception {
+		filter = new StaticResourceFilter();
+		filter.init(proxy(FilterConfig.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getInitParameter") && args[0].equals("maxAge")) {
+					return "600";
+				}
+				return null;
+			}
+		}));
+	}
+	
+	@Test
+	public void cachesAResourceServed() throws Exception {
+		assertEquals("public, max-age=600", serve("GET", HttpServletResponse.SC_OK).get("Cache-Control"));
+		assertEquals("public, max-age=600", serve("HEAD", HttpServletResponse.SC_OK).get("Cache-Control"));
+	}
+	
+	@Test
+	public void cachesANotModified() throws Exception {
+		assertEquals("public, max-age=600", serve("GET", HttpServletResponse.SC_NOT_MODIFIED).get("Cache-Control"));
+	}
+	
+	@Test
+	public void doesNotCacheErrors() throws Exception {
+		Map<String, String> headers = serve("GET", HttpServletResponse.SC_NOT_FOUND);
+		assertNull(headers.get("Cache-Control"));
+		assertEquals("Accept-Encoding", headers.get("Vary"));
+	}
+	
+	@Test
+	public void doesNotCacheRedirects() throws Exception {
+		assertNull(serve("GET", HttpServletResponse.SC_FOUND).get("Cache-Control"));
+	}
+	
+	@Test
+	public void doesNotCacheOtherMethods() throws Exception {
+		assertNull(serve("POST", HttpServletResponse.SC_OK).get("Cache-Control"));
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * Passes a request for a script through the filter to a container that
+	 * answers with a given status, and returns the headers set.
+	 */
+	private Map<String, String> serve(final String method, final int status) throws Exception {
+		HttpServletRequest req = proxy(HttpServletRequest.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method m, Object[] args) {
+				if (m.getName().equals("getMethod")) {
+					return method;
+				}
+				if (m.getName().equals("getServletPath")) {
+					return "/gui.js";
+				}
+				return null;
+			}
+		});
+		final Map<String, String> headers = new HashMap<String, String>();
+		HttpServletResponse resp = proxy(HttpServletResponse.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method m, Object[] args) {
+				if (m.getName().equals("setHeader") || m.getName().equals("addHeader")) {
+					headers.put((String) args[0], (String) args[1]);
+				}
+				if (m.getName().equals("isCommitted")) {
+					return false;
+				}
+				return null;
+			}
+		});
+		filter.doFilter(req, resp, new FilterChain() {
+			@Override
+			public void doFilter(ServletRequest request, ServletResponse response) throws IOException {
+				HttpServletResponse r = (HttpServletResponse) response;
+				if (status == HttpServletResponse.SC_FOUND) {
+					r.sendRedirect("/gui/");
+				}
+				else if (status >= 400) {
+					r.sendError(status);
+				}
+				else {
+					r.setStatus(status);
+				}
+			}
+		});
+		return headers;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return (T) Proxy.newProxyInstance(StaticResourceFilterTest.class.getClassLoader(), new Class<?>[] { type },
+		        handler);
+	}
+}
@@ -4,11 +4,23 @@
 
 $daurl = 'http://kimberly.magic.ubc.ca:8080/CoffeeShop/messageBoard.do';
 
+// Ask for the format the display asked for, XML or JSON
+if (isset($_GET['format'])) {
+    $daurl .= (strpos($daurl, '?') === false ? '?' : '&') . 'format=' . urlencode($_GET['format']);
+}
+$accept = isset($_SERVER['HTTP_ACCEPT']) ? $_SERVER['HTTP_ACCEPT'] : '*/*';
+$context = stream_context_create(array('http' => array('header' => 'Accept: ' . $accept)));
+
 // Get that website's content
-$handle = fopen($daurl, "r");
+$handle = fopen($daurl, "r", false, $context);
 
-// If there is something, read and return
+// If there is something, pass on its content type, read and return
 if ($handle) {
+    foreach ($http_response_header as $h) {
+        if (stripos($h, 'Content-Type:') === 0) {
+            header($h);
+        }
+    }
     while (!feof($handle)) {
         $buffer = fgets($handle, 4096);
         echo $buffer;
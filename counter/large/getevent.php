@@ -2,9 +2,13 @@
 // Set your return content type
 header('Content-type: application/xml');
 
-//The minimum timeout allowed by the broker's rest API is 1 second. For most large-display-to-mobile
-//applications a second latency is enough (e.g. accelerometer data needs to be interpolated and averaged)
-$daurl = 'http://localhost:8800/osgibroker/event?topic=counter&clientID=counter_large&timeOut=1';
+//The events of the counter topic are polled from the broker once by the coffee shop, for all the
+//large displays. Each display reads them from there, passing the number of the last event it has
+//seen as "since"; without it, it only gets the number to start from.
+$daurl = 'http://localhost:8080/CoffeeShop/events.do?topic=counter';
+if (isset($_GET['since']) && ctype_digit($_GET['since'])) {
+    $daurl .= '&since=' . $_GET['since'];
+}
 
 // Get that website's content
 $handle = fopen($daurl, "r");
@@ -2,7 +2,13 @@
 // Set your return content type
 //header('Content-type: application/xml');
 
-$daurl = 'http://localhost:8800/osgibroker/event?topic=hello&clientID=hello&timeOut=1';
+// The events of the hello topic are polled from the broker once by the coffee shop, for all the
+// displays. Each display reads them from there, passing the number of the last event it has seen
+// as "since"; without it, it only gets the number to start from.
+$daurl = 'http://localhost:8080/CoffeeShop/events.do?topic=hello';
+if (isset($_GET['since']) && ctype_digit($_GET['since'])) {
+    $daurl .= '&since=' . $_GET['since'];
+}
 
 // Get that website's content
 $handle = fopen($daurl, "r");